@@ -29,4 +29,7 @@ public class IndentingPrintWriter extends PrintWriter {
     public void setIndentation(int indentation)    throws IOException { flush(); iw.setIndentation(indentation); }
     public void adjustIndentation(int adjustment)  throws IOException { flush(); iw.adjustIndentation(adjustment); }
 
+    /** see IndentingWriter.writeNested() */
+    public void printNested(CharSequence text)     throws IOException { flush(); iw.writeNested(text); }
+
 }
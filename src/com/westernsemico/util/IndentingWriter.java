@@ -39,6 +39,29 @@ public class IndentingWriter extends Writer {
         w.write(i);
     }
 
+    /**
+     *  Write text produced by another IndentingWriter (one whose
+     *  indentation started at zero), shifting each of its lines by this
+     *  writer's indentation.  This is what writing the same calls here
+     *  would have produced, so a document can be rendered in pieces,
+     *  on separate threads, and assembled afterwards.
+     */
+    public void writeNested(CharSequence text) throws IOException {
+        int n = text.length();
+        for(int i=0; i<n; ) {
+            int eol = i;
+            while (eol < n && text.charAt(eol) != '\n') eol++;
+            if (eol > i) {
+                if (!nonWhitespaceOnThisLine)
+                    for(int j=0; j<indentation; j++) w.write(' ');
+                nonWhitespaceOnThisLine = true;
+                w.append(text, i, eol);
+            }
+            if (eol < n) { w.write('\n'); nonWhitespaceOnThisLine = false; }
+            i = eol + 1;
+        }
+    }
+
     @Override public void flush() throws IOException { w.flush(); }
     @Override public void close() throws IOException { w.close(); }
     public void write(char[] buf, int ofs, int len) throws IOException {
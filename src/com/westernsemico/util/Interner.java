@@ -0,0 +1,64 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.util;
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+ *  A weak canonical table of immutable values: intern() returns the
+ *  one instance equal to its argument, so equal values can be
+ *  compared with ==.  The table holds its values only weakly, so a
+ *  value nothing else refers to any more is collected as usual.
+ *
+ *  The table is split by hash into stripes, each a WeakHashMap with
+ *  its own lock, so threads interning different values rarely wait
+ *  for one another.  Equal values have equal hashes and so always
+ *  meet in the same stripe.
+ */
+public class Interner<T> {
+
+    private static final int STRIPES = 32;
+
+    private final ArrayList<WeakHashMap<T,WeakReference<T>>> stripes = new ArrayList<WeakHashMap<T,WeakReference<T>>>();
+
+    public Interner() {
+        for(int i=0; i<STRIPES; i++) stripes.add(new WeakHashMap<T,WeakReference<T>>());
+    }
+
+    private WeakHashMap<T,WeakReference<T>> stripe(Object value) {
+        int h = value.hashCode() * 0x9E3779B9;
+        return stripes.get((h ^ (h >>> 16)) & (STRIPES-1));
+    }
+
+    /** the canonical instance equal to value, which becomes it if there is none yet */
+    public T intern(T value) {
+        WeakHashMap<T,WeakReference<T>> table = stripe(value);
+        synchronized(table) {
+            WeakReference<T> ref = table.get(value);
+            T ret = ref == null ? null : ref.get();
+            if (ret != null) return ret;
+            table.put(value, new WeakReference<T>(value));
+            return value;
+        }
+    }
+
+    /** the number of canonical instances still alive */
+    public int size() {
+        int ret = 0;
+        for(WeakHashMap<T,WeakReference<T>> table : stripes)
+            synchronized(table) { ret += table.size(); }
+        return ret;
+    }
+}
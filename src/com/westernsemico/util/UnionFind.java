@@ -0,0 +1,56 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.util;
+
+/**
+ *  Disjoint sets over the integers [0,size), stored in a pair of
+ *  int arrays (union by size, path halving).  Sets can only be
+ *  merged, never split, which is exactly what is needed when
+ *  connectivity is built up incrementally one layer at a time.
+ */
+public class UnionFind {
+
+    private final int[] parent;
+    private final int[] size;
+
+    public UnionFind(int n) {
+        parent = new int[n];
+        size   = new int[n];
+        for(int i=0; i<n; i++) { parent[i] = i; size[i] = 1; }
+    }
+
+    public int size() { return parent.length; }
+
+    /** returns the representative of the set containing i */
+    public int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /** merge two sets, given their representatives; returns the representative of the merged set (which is always one of the two) */
+    public int link(int rootA, int rootB) {
+        if (rootA == rootB) return rootA;
+        if (size[rootA] < size[rootB]) { int t = rootA; rootA = rootB; rootB = t; }
+        parent[rootB] = rootA;
+        size[rootA] += size[rootB];
+        return rootA;
+    }
+
+    /** merge the sets containing a and b; returns the representative of the merged set */
+    public int union(int a, int b) { return link(find(a), find(b)); }
+}
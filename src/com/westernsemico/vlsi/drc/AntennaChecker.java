@@ -0,0 +1,171 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.drc;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import com.westernsemico.util.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Checks the antenna rules (TechLayer.antennaRatio and
+ *  TechLayer.cumulativeAntennaRatio) on a Layout.
+ *
+ *  The conducting layers are visited in the order they are
+ *  fabricated (by height3D).  At each step that layer's shapes, and
+ *  the cuts landing on it from below, are merged into the nets built
+ *  so far using an incremental union-find -- which is exactly the
+ *  connectivity the wafer has while that layer is being etched.  So
+ *  one pass over the shapes, bottom to top, yields every partial and
+ *  cumulative ratio without ever searching a net.
+ *
+ *  A net which reaches diffusion has a discharge path and is exempt.
+ */
+public class AntennaChecker {
+
+    public final Layout layout;
+
+    public AntennaChecker(Layout layout) { this.layout = layout; }
+
+    /** a net whose area on some layer exceeds that layer's antenna ratio */
+    public static class Violation {
+        public final TechLayer layer;
+        public final boolean   cumulative;
+        public final double    ratio;
+        public final double    limit;
+        /** one shape of the offending net on this layer */
+        public final int       shape;
+        public Violation(TechLayer layer, boolean cumulative, double ratio, double limit, int shape) {
+            this.layer = layer;
+            this.cumulative = cumulative;
+            this.ratio = ratio;
+            this.limit = limit;
+            this.shape = shape;
+        }
+        public String toString() {
+            return layer+(cumulative?" cumulative":"")+" antenna ratio "+ratio+" exceeds "+limit+" at shape #"+shape;
+        }
+    }
+
+    // per-net state, valid only at the representative of each set
+    private UnionFind uf;
+    private double[]  gateArea;
+    private double[]  carried;
+    private boolean[] diode;
+
+    private final HashMap<TechLayer,int[]> shapesOn = new HashMap<TechLayer,int[]>();
+    private int[] shapesOn(TechLayer tl) {
+        int[] ret = shapesOn.get(tl);
+        if (ret == null) shapesOn.put(tl, ret = layout.shapesOn(tl));
+        return ret;
+    }
+
+    private void union(int a, int b) {
+        int ra = uf.find(a), rb = uf.find(b);
+        if (ra == rb) return;
+        int r = uf.link(ra, rb), o = r==ra ? rb : ra;
+        gateArea[r] += gateArea[o];
+        carried[r]   = Math.max(carried[r], carried[o]);
+        diode[r]    |= diode[o];
+    }
+
+    public List<Violation> check() {
+        Tech tech = layout.tech.compile();
+        int n = layout.size();
+        uf       = new UnionFind(n);
+        gateArea = new double[n];
+        carried  = new double[n];
+        diode    = new boolean[n];
+
+        // the conducting layers in fabrication order, and each cut layer keyed by the highest layer it lands on
+        Map<TechLayer,Set<TechLayer>> vias = tech.getViaConnections();
+        TreeSet<TechLayer> conductors = new TreeSet<TechLayer>(STACK_ORDER);
+        for(Set<TechLayer> connects : vias.values()) conductors.addAll(connects);
+        HashMap<TechLayer,List<TechLayer>> cutsLandingOn = new HashMap<TechLayer,List<TechLayer>>();
+        for(TechLayer cut : vias.keySet()) {
+            TechLayer top = null;
+            for(TechLayer tl : vias.get(cut)) if (top == null || STACK_ORDER.compare(tl, top) > 0) top = tl;
+            if (top == null) continue;
+            if (cutsLandingOn.get(top) == null) cutsLandingOn.put(top, new ArrayList<TechLayer>());
+            cutsLandingOn.get(top).add(cut);
+        }
+
+        // gates are wherever poly crosses diffusion
+        for(TechLayer p : conductors) {
+            if (!p.isPoly) continue;
+            for(TechLayer d : conductors) {
+                if (!d.isDiff) continue;
+                layout.forEachTouching(shapesOn(p), shapesOn(d), (i, j) -> gateArea[i] += Math.max(0, layout.overlapArea(i, j)));
+            }
+        }
+        for(TechLayer d : conductors)
+            if (d.isDiff)
+                for(int i : shapesOn(d)) diode[i] = true;
+
+        ArrayList<Violation> ret = new ArrayList<Violation>();
+        double[] area = new double[n];
+        int[] touched = new int[n], shapeOf = new int[n];
+        for(TechLayer tl : conductors) {
+            int[] shapes = shapesOn(tl);
+            layout.forEachTouching(shapes, shapes, this::union);
+            List<TechLayer> cuts = cutsLandingOn.get(tl);
+            if (cuts != null)
+                for(TechLayer cut : cuts)
+                    for(TechLayer other : vias.get(cut))
+                        layout.forEachTouching(shapesOn(cut), shapesOn(other), this::union);
+
+            if (tl.antennaRatio <= 0 && tl.cumulativeAntennaRatio <= 0) continue;
+            int ntouched = 0;
+            for(int i : shapes) {
+                int r = uf.find(i);
+                if (area[r] == 0) { shapeOf[ntouched] = i; touched[ntouched++] = r; }
+                area[r] += layout.area(i);
+            }
+            for(int k=0; k<ntouched; k++) {
+                int r = touched[k];
+                double par = area[r] / gateArea[r];
+                area[r] = 0;
+                if (gateArea[r] <= 0 || diode[r]) continue;
+                carried[r] += par;
+                if (tl.antennaRatio > 0 && par > tl.antennaRatio)
+                    ret.add(new Violation(tl, false, par, tl.antennaRatio, shapeOf[k]));
+                if (tl.cumulativeAntennaRatio > 0 && carried[r] > tl.cumulativeAntennaRatio)
+                    ret.add(new Violation(tl, true, carried[r], tl.cumulativeAntennaRatio, shapeOf[k]));
+            }
+        }
+        return ret;
+    }
+
+    /** orders layers from the bottom of the process stack to the top */
+    private static final Comparator<TechLayer> STACK_ORDER = new Comparator<TechLayer>() {
+            public int compare(TechLayer a, TechLayer b) {
+                int ret = Double.compare(a.height3D, b.height3D);
+                return ret != 0 ? ret : a.name.compareTo(b.name);
+            }
+        };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: java "+AntennaChecker.class.getName()+" <layout.gds>");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        List<Violation> violations = new AntennaChecker(layout).check();
+        for(Violation v : violations)
+            System.out.println(v+" ("+layout.xmin(v.shape)+","+layout.ylo(v.shape)+")");
+        System.out.println(violations.size()+" antenna violations");
+    }
+}
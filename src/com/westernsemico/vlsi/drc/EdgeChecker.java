@@ -0,0 +1,299 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.drc;
+import com.westernsemico.vlsi.geom.*;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Checks every rule which is a distance between two edges -- the
+ *  spacing rules (LayerRules.minSpace and the interlayer spacings),
+ *  the enclosure rules, and the extension rules -- on a Layout.
+ *
+ *  The boundary edges of the merged geometry on every layer named by
+ *  some rule are sorted once by their leftmost x and swept left to
+ *  right; each edge is compared only against the edges still within
+ *  the largest rule distance of it, and the pair of layers selects
+ *  which rules (of any kind) apply.  Adding a kind of rule therefore
+ *  adds a predicate, not a pass.
+ *
+ *  Spacing is Euclidean (corner to corner counts) and is measured
+ *  only between edges which face each other across empty space;
+ *  touching or overlapping geometry is left to the forbidden rules.
+ *  Enclosure and extension are measured between edges which face the
+ *  same way and overlap when projected onto one another.
+ *  Connectivity is not extracted here, so the "unconnected" spacing
+ *  rules are checked as plain spacing rules.
+ *
+ *  A rule on a layer which is never drawn in GDS (Electric's PAct,
+ *  NTap, PCont and so on, or gate, which shares poly's GDS layer) is
+ *  checked on the derived layer which stands for it (Tech.getStandIn()),
+ *  i.e. "nwell encloses Electric-PAct" is checked as "nwell encloses
+ *  diff AND psdm".
+ */
+public class EdgeChecker {
+
+    public enum Kind { SPACING, ENCLOSURE, EXTENSION }
+
+    public final Layout layout;
+
+    public EdgeChecker(Layout layout) { this.layout = layout; }
+
+    /** two edges closer than a rule allows; distances are in microns and edges are (x0,y0,x1,y1) in database units */
+    public static class Violation {
+        public final Kind      kind;
+        /** for ENCLOSURE the outer layer, for EXTENSION the extending layer */
+        public final TechLayer a;
+        public final TechLayer b;
+        public final double    distance;
+        public final double    limit;
+        public final int[]     edgeA;
+        public final int[]     edgeB;
+        public Violation(Kind kind, TechLayer a, TechLayer b, double distance, double limit, int[] edgeA, int[] edgeB) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.distance = distance;
+            this.limit = limit;
+            this.edgeA = edgeA;
+            this.edgeB = edgeB;
+        }
+        public String toString() {
+            String what =
+                kind==Kind.SPACING   ? "spacing of "+a+" to "+b :
+                kind==Kind.ENCLOSURE ? "enclosure of "+b+" by "+a :
+                "extension of "+a+" past "+b;
+            return what+" is "+distance+" < "+limit+" at ("+edgeA[0]+","+edgeA[1]+")-("+edgeA[2]+","+edgeA[3]+")";
+        }
+    }
+
+    private static class Rule {
+        final Kind   kind;
+        final int    a, b;
+        final double limit;   // database units
+        final double microns;
+        Rule(Kind kind, int a, int b, double microns, double micronsPerDbu) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.microns = microns;
+            this.limit = microns / micronsPerDbu;
+        }
+    }
+
+    // the state of one check(), reset at its start:
+    // the layers named by some rule, what is evaluated for each, and their merged geometry
+    private final ArrayList<TechLayer> layers = new ArrayList<TechLayer>();
+    private final ArrayList<DerivedLayer> operands = new ArrayList<DerivedLayer>();
+    private final HashMap<TechLayer,Integer> index = new HashMap<TechLayer,Integer>();
+    private Region[] regions;
+
+    // the rules, by (a,b) layer index pair
+    private ArrayList<ArrayList<Rule>> rules;
+
+    // the edges, column-wise
+    private int   nedges = 0;
+    private int[] layer, x0, y0, x1, y1;
+
+    private int layerIndex(TechLayer tl, DerivedLayer operand) {
+        Integer ret = index.get(tl);
+        if (ret == null) {
+            index.put(tl, ret = layers.size());
+            layers.add(tl);
+            operands.add(operand);
+        }
+        return ret;
+    }
+
+    /** what to evaluate for a layer: itself if anything is drawn on it, else its stand-in, else null */
+    private DerivedLayer operand(TechLayer tl) {
+        if (layout.shapesOn(tl).length > 0) return DerivedLayer.of(tl);
+        return layout.tech.getStandIn(tl);
+    }
+
+    /** check the layout; calls on one checker are serialized since they share the sweep's state */
+    public synchronized List<Violation> check() {
+        Tech tech = layout.tech.compile();
+        layers.clear();
+        operands.clear();
+        index.clear();
+        nedges = 0;
+
+        // gather the rules, skipping any which name a layer with neither anything drawn on it nor a stand-in
+        ArrayList<Object[]> found = new ArrayList<Object[]>();
+        for(TechLayer tl : tech.getLayers()) {
+            if (tl.layerRules != null && tl.layerRules.minSpace > 0)
+                found.add(new Object[] { Kind.SPACING, tl, tl, tl.layerRules.minSpace });
+            for(Map.Entry<TechLayer,Double> e : tl.getSpacingRules().entrySet())
+                found.add(new Object[] { Kind.SPACING, tl, e.getKey(), e.getValue() });
+            for(Map.Entry<TechLayer,Double> e : tl.getUnconnectedSpacingRules().entrySet())
+                found.add(new Object[] { Kind.SPACING, tl, e.getKey(), e.getValue() });
+            for(Map.Entry<TechLayer,Double> e : tl.getEnclosureRules().entrySet())
+                found.add(new Object[] { Kind.ENCLOSURE, tl, e.getKey(), e.getValue() });
+            for(Map.Entry<TechLayer,Double> e : tl.getExtensionRules().entrySet())
+                found.add(new Object[] { Kind.EXTENSION, tl, e.getKey(), e.getValue() });
+        }
+        ArrayList<Rule> all = new ArrayList<Rule>();
+        for(Object[] f : found) {
+            TechLayer a = (TechLayer)f[1], b = (TechLayer)f[2];
+            DerivedLayer oa = operand(a), ob = operand(b);
+            if (oa == null || ob == null) continue;
+            all.add(new Rule((Kind)f[0], layerIndex(a, oa), layerIndex(b, ob), (Double)f[3], layout.micronsPerDbu));
+        }
+        int nl = layers.size();
+        rules = new ArrayList<ArrayList<Rule>>(Collections.nCopies(nl*nl, (ArrayList<Rule>)null));
+        double maxLimit = 0;
+        for(Rule rule : all) {
+            int k = rule.a*nl + rule.b;
+            if (rules.get(k) == null) rules.set(k, new ArrayList<Rule>());
+            rules.get(k).add(rule);
+            maxLimit = Math.max(maxLimit, rule.limit);
+        }
+
+        // merge each layer (in parallel) and collect the boundary edges
+        ArrayList<CompletableFuture<Region>> futures = new ArrayList<CompletableFuture<Region>>();
+        for(DerivedLayer dl : operands) futures.add(layout.regionAsync(dl));
+        regions = new Region[nl];
+        int[][] boundaries = new int[nl][];
+        for(int i=0; i<nl; i++) {
+            regions[i] = futures.get(i).join();
+            boundaries[i] = regions[i].boundary();
+            nedges += boundaries[i].length / 4;
+        }
+        layer = new int[nedges]; x0 = new int[nedges]; y0 = new int[nedges]; x1 = new int[nedges]; y1 = new int[nedges];
+        for(int i=0, e=0; i<nl; i++)
+            for(int k=0; k<boundaries[i].length; k+=4, e++) {
+                layer[e] = i;
+                x0[e] = boundaries[i][k];   y0[e] = boundaries[i][k+1];
+                x1[e] = boundaries[i][k+2]; y1[e] = boundaries[i][k+3];
+            }
+
+        // the one sorted pass
+        long[] order = new long[nedges];
+        for(int e=0; e<nedges; e++) order[e] = ((long)Math.min(x0[e], x1[e]) << 32) | e;
+        Arrays.sort(order);
+        ArrayList<Violation> ret = new ArrayList<Violation>();
+        int[] active = new int[16];
+        int nactive = 0;
+        for(long o : order) {
+            int e = (int)o;
+            int exmin = Math.min(x0[e], x1[e]);
+            int eymin = Math.min(y0[e], y1[e]), eymax = Math.max(y0[e], y1[e]);
+            int m = 0;
+            for(int k=0; k<nactive; k++) {
+                int f = active[k];
+                if (Math.max(x0[f], x1[f]) + maxLimit <= exmin) continue;
+                active[m++] = f;
+                if (Math.min(y0[f], y1[f]) - maxLimit >= eymax || Math.max(y0[f], y1[f]) + maxLimit <= eymin) continue;
+                pair(e, f, ret);
+                if (layer[e] != layer[f]) pair(f, e, ret);
+            }
+            nactive = m;
+            if (nactive == active.length) active = Arrays.copyOf(active, 2*nactive);
+            active[nactive++] = e;
+        }
+        return ret;
+    }
+
+    /** apply the rules whose first layer is e's and whose second layer is f's */
+    private void pair(int e, int f, List<Violation> ret) {
+        ArrayList<Rule> rs = rules.get(layer[e]*layers.size() + layer[f]);
+        if (rs == null) return;
+        for(Rule rule : rs) {
+            double d = rule.kind==Kind.SPACING ? spacing(e, f) : enclosure(e, f, rule.kind==Kind.ENCLOSURE);
+            if (d >= 0 && d < rule.limit)
+                ret.add(new Violation(rule.kind, layers.get(rule.a), layers.get(rule.b),
+                                      d * layout.micronsPerDbu, rule.microns,
+                                      new int[] { x0[e], y0[e], x1[e], y1[e] },
+                                      new int[] { x0[f], y0[f], x1[f], y1[f] }));
+        }
+    }
+
+    /** the distance between two edges facing each other across empty space, or -1 if they do not */
+    private double spacing(int e, int f) {
+        if (side(e, x0[f], y0[f]) <= 0 && side(e, x1[f], y1[f]) <= 0) return -1;
+        if (side(f, x0[e], y0[e]) <= 0 && side(f, x1[e], y1[e]) <= 0) return -1;
+        double d = distance(e, f);
+        return d > 0 ? d : -1;
+    }
+
+    /**
+     *  The distance from inner edge f to outer edge e, or -1 if it is
+     *  not measured: the edges must face the same way, overlap when
+     *  projected onto e, f must not lie outside e, and the layer of e
+     *  must be present just inside f.  If crossing is set, an inner
+     *  edge which crosses an outer one is reported at distance zero.
+     */
+    private double enclosure(int e, int f, boolean crossing) {
+        long sf0 = side(e, x0[f], y0[f]), sf1 = side(e, x1[f], y1[f]);
+        if (crossing && ((sf0 < 0 && sf1 > 0) || (sf0 > 0 && sf1 < 0))) {
+            long se0 = side(f, x0[e], y0[e]), se1 = side(f, x1[e], y1[e]);
+            if ((se0 <= 0 && se1 >= 0) || (se0 >= 0 && se1 <= 0)) return 0;
+        }
+        if (sf0 > 0 || sf1 > 0) return -1;
+        double ex = x1[e]-x0[e], ey = y1[e]-y0[e], el = Math.hypot(ex, ey);
+        double fx = x1[f]-x0[f], fy = y1[f]-y0[f], fl = Math.hypot(fx, fy);
+        if (ey*fy + ex*fx <= 0) return -1;   // normals are (dy,-dx), so this is the dot product of the normals
+
+        // the part of f which projects onto e
+        double p0 = ((x0[f]-x0[e])*ex + (y0[f]-y0[e])*ey) / el;
+        double p1 = ((x1[f]-x0[e])*ex + (y1[f]-y0[e])*ey) / el;
+        double lo = Math.max(0, Math.min(p0, p1)), hi = Math.min(el, Math.max(p0, p1));
+        if (hi <= lo) return -1;
+
+        // probe half a unit inside f, at the middle of that part
+        double t = ((lo+hi)/2 - p0) / (p1 - p0);
+        double px = x0[f] + t*fx - 0.5*fy/fl;
+        double py = y0[f] + t*fy + 0.5*fx/fl;
+        if (!regions[layer[e]].contains(px, py)) return -1;
+        return distance(e, f);
+    }
+
+    /** twice the signed area of (e0,e1,p): positive when p is outside the region across e */
+    private long side(int e, int px, int py) {
+        return (long)(y1[e]-y0[e])*(px-x0[e]) - (long)(x1[e]-x0[e])*(py-y0[e]);
+    }
+
+    private double distance(int e, int f) {
+        long a = side(e, x0[f], y0[f]), b = side(e, x1[f], y1[f]);
+        long c = side(f, x0[e], y0[e]), d = side(f, x1[e], y1[e]);
+        if (((a <= 0 && b >= 0) || (a >= 0 && b <= 0)) && ((c <= 0 && d >= 0) || (c >= 0 && d <= 0))) return 0;
+        return Math.min(Math.min(pointToSegment(x0[f], y0[f], e), pointToSegment(x1[f], y1[f], e)),
+                        Math.min(pointToSegment(x0[e], y0[e], f), pointToSegment(x1[e], y1[e], f)));
+    }
+
+    private double pointToSegment(double px, double py, int e) {
+        double dx = x1[e]-x0[e], dy = y1[e]-y0[e];
+        double t = ((px-x0[e])*dx + (py-y0[e])*dy) / (dx*dx + dy*dy);
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (x0[e]+t*dx), py - (y0[e]+t*dy));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: java "+EdgeChecker.class.getName()+" <layout.gds>");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        List<Violation> violations = new EdgeChecker(layout).check();
+        for(Violation v : violations)
+            System.out.println(v);
+        System.out.println(violations.size()+" edge rule violations");
+    }
+}
@@ -0,0 +1,249 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.drc;
+import com.westernsemico.vlsi.io.gds.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Checks coordinates against the manufacturing grid
+ *  (Tech.gridAlignmentInUnits): every vertex of a GDS file, as it is
+ *  flattened, and every coordinate of the Tech's primitives.
+ *
+ *  Everything is integer arithmetic.  GDS vertices are already in
+ *  database units; primitive coordinates (microns, as doubles) are
+ *  rounded to picometres first, and one which is not within a
+ *  thousandth of a picometre is off every grid.  Coordinates are swept
+ *  in blocks: a block is first reduced with a branch-free
+ *  divisibility test (a multiply by the inverse of the grid modulo
+ *  2^32, which the JIT vectorizes where it would not vectorize %),
+ *  and only a block which fails is searched for its culprits.
+ */
+public class GridChecker {
+
+    /** coordinates are reduced this many at a time before any is looked at individually */
+    private static final int BLOCK = 1024;
+
+    /** the grid, in whatever units the coordinates are */
+    public final int grid;
+
+    // grid = odd << shift; inverse*odd == 1 (mod 2^32); limit = floor((2^32-1)/odd)
+    private final int shift, mask, inverse, limit;
+
+    public GridChecker(int grid) {
+        if (grid <= 0) throw new IllegalArgumentException("grid must be positive: "+grid);
+        this.grid = grid;
+        this.shift = Integer.numberOfTrailingZeros(grid);
+        this.mask = (1 << shift) - 1;
+        int odd = grid >>> shift;
+        int inv = odd;
+        for(int i=0; i<5; i++) inv *= 2 - odd*inv;     // Newton's iteration doubles the correct low bits each time
+        this.inverse = odd == 1 ? 0 : inv;
+        this.limit   = odd == 1 ? 0 : (int)(0xFFFFFFFFL / odd);
+    }
+
+    /** the grid in database units of the given size, for a Tech */
+    public static GridChecker forTech(Tech tech, double micronsPerDbu) {
+        long g = Math.round(tech.gridAlignmentInUnits * 1e6);
+        long d = Math.round(micronsPerDbu * 1e6);
+        if (g <= 0 || d <= 0) throw new IllegalArgumentException("grid "+tech.gridAlignmentInUnits+"um is not a multiple of a picometre");
+        // a multiple of d pm is a multiple of g pm iff the count is a multiple of g/gcd(g,d)
+        long a = g, b = d;
+        while (b != 0) { long t = a % b; a = b; b = t; }
+        return new GridChecker((int)(g / a));
+    }
+
+    /** nonzero if some v[from..to) is off the grid; no branches, so it vectorizes */
+    private int reduce(int[] v, int from, int to) {
+        int bad = 0;
+        for(int i=from; i<to; i++) {
+            // |v| is on the grid iff its low bits are clear and (|v|>>shift)*inverse, unsigned, is at most limit
+            int y = Math.abs(v[i]);
+            int q = (y >>> shift) * inverse;
+            bad |= (y & mask) | ((q | (limit - q)) >>> 31);
+        }
+        return bad;
+    }
+
+    public boolean isOnGrid(int v) { return v % grid == 0; }
+
+    /** receives the index of each coordinate which is off the grid */
+    public interface Culprit { void offGrid(int index); }
+
+    /** report each of v[from..to) which is off the grid; returns how many were */
+    public int sweep(int[] v, int from, int to, Culprit culprit) {
+        int ret = 0;
+        for(int b=from; b<to; b+=BLOCK) {
+            int e = Math.min(to, b+BLOCK);
+            if (reduce(v, b, e) == 0) continue;
+            for(int i=b; i<e; i++)
+                if (!isOnGrid(v[i])) {
+                    ret++;
+                    if (culprit != null) culprit.offGrid(i);
+                }
+        }
+        return ret;
+    }
+
+    // GDS //////////////////////////////////////////////////////////////////////////////
+
+    /** an off-grid vertex of a GDS polygon, in database units */
+    public static class Vertex {
+        public final int major, minor, x, y;
+        public Vertex(int major, int minor, int x, int y) { this.major = major; this.minor = minor; this.x = x; this.y = y; }
+        public String toString() { return "vertex ("+x+","+y+") on GDS "+major+"/"+minor+" is off the grid"; }
+    }
+
+    /**
+     *  A GDSReader.Sink which checks every vertex on its way to
+     *  another sink, so an import can be checked in the same pass.  At
+     *  most max off-grid vertices are kept; all are counted.
+     */
+    public class Checking implements GDSReader.Sink {
+        private final GDSReader.Sink next;
+        private final int max;
+        public final ArrayList<Vertex> vertices = new ArrayList<Vertex>();
+        public long offGrid = 0;
+        public long checked = 0;
+
+        public Checking(GDSReader.Sink next, int max) {
+            this.next = next;
+            this.max = max;
+        }
+
+        public void polygon(int major, int minor, int[] xy, int npoints) {
+            checked += npoints;
+            int n = sweep(xy, 0, 2*npoints, i -> {
+                    int v = i & ~1;
+                    if (vertices.size() < max && (vertices.isEmpty() || vertices.get(vertices.size()-1).x != xy[v]
+                                                  || vertices.get(vertices.size()-1).y != xy[v+1]))
+                        vertices.add(new Vertex(major, minor, xy[v], xy[v+1]));
+                });
+            offGrid += n;
+            if (next != null) next.polygon(major, minor, xy, npoints);
+        }
+
+        public void text(int major, int minor, int x, int y, String text) {
+            if (next != null) next.text(major, minor, x, y, text);
+        }
+    }
+
+    /** check every vertex of a GDS file against a Tech's grid, keeping at most max of the off-grid ones */
+    public static Checking check(Tech tech, File gds, int max) throws IOException {
+        GDSReader reader = new GDSReader(gds);
+        Checking ret = forTech(tech, reader.metersPerDbu * 1e6).new Checking(null, max);
+        reader.flatten(ret);
+        return ret;
+    }
+
+    // Primitives //////////////////////////////////////////////////////////////////////////////
+
+    /** an off-grid coordinate of a primitive, in microns */
+    public static class Coordinate {
+        public final Primitive primitive;
+        public final String    what;
+        public final double    microns;
+        public Coordinate(Primitive primitive, String what, double microns) {
+            this.primitive = primitive;
+            this.what = what;
+            this.microns = microns;
+        }
+        public String toString() { return primitive.name+": "+what+" = "+microns+"um is off the grid"; }
+    }
+
+    /**
+     *  Check every coordinate of every primitive of a Tech: the node
+     *  base and default size, each rectangle's and port's box, and each
+     *  cut's size, spacing, and centroid box.  Boxes are checked as
+     *  drawn at the node's default size, centred on the origin: each
+     *  edge of a ScaledBox is its add edge moved by its mult times half
+     *  of how much the default size exceeds the nodeBase.
+     */
+    public static List<Coordinate> checkPrimitives(Tech tech) {
+        tech.compile();
+        final ArrayList<Primitive> owner = new ArrayList<Primitive>();
+        final ArrayList<String>    what  = new ArrayList<String>();
+        final ArrayList<Double>    value = new ArrayList<Double>();
+        for(PrimitiveGroup group : tech.getPrimitiveGroups())
+            for(Primitive p : group.getPrimitives()) {
+                box(p, "nodeBase", p.nodeBase, owner, what, value);
+                add(p, "defaultWidth", p.defaultWidth, owner, what, value);
+                add(p, "defaultHeight", p.defaultHeight, owner, what, value);
+                for(Primitive.Layer l : p.getLayers()) {
+                    if (l instanceof Primitive.Rectangle)
+                        box(p, l.tlayer+" rectangle", p.atDefaultSize(((Primitive.Rectangle)l).lambdaBox), owner, what, value);
+                    if (l instanceof Primitive.MultiCut) {
+                        Primitive.MultiCut mc = (Primitive.MultiCut)l;
+                        add(p, l.tlayer+" cutWidth", mc.cutWidth, owner, what, value);
+                        add(p, l.tlayer+" cutHeight", mc.cutHeight, owner, what, value);
+                        add(p, l.tlayer+" cutSpacing1d", mc.cutSpacing1d, owner, what, value);
+                        add(p, l.tlayer+" cutSpacing2d", mc.cutSpacing2d, owner, what, value);
+                        box(p, l.tlayer+" cut centroids", mc.boundingBoxOfCentroids, owner, what, value);
+                    }
+                }
+                for(Primitive.Port port : p.getPorts())
+                    box(p, "port "+port.name, p.atDefaultSize(port.extent), owner, what, value);
+            }
+
+        // to picometres; anything not (nearly) a whole number of them is off the grid whatever it is
+        int n = value.size();
+        int[] pm = new int[n];
+        ArrayList<Coordinate> ret = new ArrayList<Coordinate>();
+        GridChecker checker = new GridChecker((int)Math.round(tech.gridAlignmentInUnits * 1e6));
+        for(int i=0; i<n; i++) {
+            double v = value.get(i) * 1e6;
+            pm[i] = (int)Math.round(v);
+            if (Math.abs(v - pm[i]) > 1e-3) {
+                ret.add(new Coordinate(owner.get(i), what.get(i), value.get(i)));
+                pm[i] = 0;
+            }
+        }
+        checker.sweep(pm, 0, n, i -> ret.add(new Coordinate(owner.get(i), what.get(i), value.get(i))));
+        return ret;
+    }
+
+    private static void add(Primitive p, String what, double v, List<Primitive> owner, List<String> whats, List<Double> value) {
+        owner.add(p);
+        whats.add(what);
+        value.add(v);
+    }
+
+    private static void box(Primitive p, String what, Box b, List<Primitive> owner, List<String> whats, List<Double> value) {
+        if (b == null) return;
+        add(p, what+".klx", b.klx, owner, whats, value);
+        add(p, what+".kly", b.kly, owner, whats, value);
+        add(p, what+".khx", b.khx, owner, whats, value);
+        add(p, what+".khy", b.khy, owner, whats, value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            System.err.println("usage: java "+GridChecker.class.getName()+" [<layout.gds>]");
+            System.exit(1);
+        }
+        Tech tech = new SkyWater130();
+        List<Coordinate> coordinates = checkPrimitives(tech);
+        for(Coordinate c : coordinates) System.out.println(c);
+        System.out.println(coordinates.size()+" off-grid primitive coordinates");
+        if (args.length == 0) return;
+        long start = System.nanoTime();
+        Checking gds = check(tech, new File(args[0]), 100);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for(Vertex v : gds.vertices) System.out.println(v);
+        System.out.println(String.format("%d of %d vertex coordinates off the grid (%.3fs)", gds.offGrid, gds.checked*2, seconds));
+    }
+}
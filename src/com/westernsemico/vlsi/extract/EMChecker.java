@@ -0,0 +1,244 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.extract;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Electromigration check: the DC current through every wire segment
+ *  against Tech.getMaxCurrentDensityMilliAmpsPerSquareMicron(), the
+ *  segment's cross-section being its width times its layer's thick3D.
+ *
+ *  Currents come in per net, either as a total drawn uniformly from
+ *  the net's lowest wire layer or as loads at given points (from a
+ *  simulation dump of pin currents, say), which are located on the
+ *  net's wires through a LayoutIndex.  IRDrop extracts each net as a
+ *  grid of segments and solves it, driven from the net's labelled pins,
+ *  which gives the current in each segment.  A net without a pin has
+ *  nothing to solve against, so every one of its segments is held to
+ *  the net's whole current, which is an upper bound.
+ */
+public class EMChecker {
+
+    public final Layout      layout;
+    public final Nets        nets;
+    public final IRDrop      ir;
+    public final LayoutIndex index;
+    private final Tech       tech;
+
+    /** loads dropped or spread over their net, in the order read and checked */
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    /** the worst segment of a shape which carries more than its layer's limit */
+    public static class Violation {
+        public final int       net, shape;
+        public final TechLayer layer;
+        public final double    amps, widthMicrons, density, limit;
+        public final boolean   bound;
+        Violation(int net, int shape, TechLayer layer, double amps, double widthMicrons, double density, double limit, boolean bound) {
+            this.net = net; this.shape = shape; this.layer = layer;
+            this.amps = amps; this.widthMicrons = widthMicrons; this.density = density; this.limit = limit;
+            this.bound = bound;
+        }
+    }
+
+    /** a current drawn from a net, at a point (in dbu) if located */
+    public static class Load {
+        public final int       net;
+        public final double    amps;
+        public final boolean   located;
+        public final int       x, y;
+        public final TechLayer layer;   // null for any wire layer at the point
+        public Load(int net, double amps) { this(net, amps, false, 0, 0, null); }
+        public Load(int net, double amps, int x, int y, TechLayer layer) { this(net, amps, true, x, y, layer); }
+        private Load(int net, double amps, boolean located, int x, int y, TechLayer layer) {
+            this.net = net; this.amps = amps; this.located = located; this.x = x; this.y = y; this.layer = layer;
+        }
+    }
+
+    public EMChecker(Layout layout) { this(new IRDrop(layout)); }
+
+    public EMChecker(IRDrop ir) {
+        this.layout = ir.layout;
+        this.nets = ir.nets;
+        this.ir = ir;
+        this.index = new LayoutIndex(layout);
+        this.tech = layout.tech.compile();
+    }
+
+    // Currents //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Read loads, one per line, as "net,amps" or "net,amps,x,y" or
+     *  "net,amps,x,y,layer" with x and y in microns.  Blank lines, lines
+     *  starting with '#', and a header line are ignored; loads on nets
+     *  which are not in the layout are dropped, with a warning.
+     */
+    public List<Load> readLoads(Reader r) throws IOException {
+        ArrayList<Load> ret = new ArrayList<Load>();
+        BufferedReader br = new BufferedReader(r);
+        int lineNumber = 0;
+        for(String line = br.readLine(); line != null; line = br.readLine()) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            String[] f = line.split("\\s*,\\s*");
+            if (f.length != 2 && f.length != 4 && f.length != 5) throw new IOException("line "+lineNumber+": expected net,amps[,x,y[,layer]]: "+line);
+            double amps;
+            try { amps = Double.parseDouble(f[1]); }
+            catch (NumberFormatException e) {
+                if (ret.isEmpty()) continue;   // the header
+                throw new IOException("line "+lineNumber+": bad current "+f[1]);
+            }
+            int k = nets.find(f[0]);
+            if (k == -1) { warnings.add("line "+lineNumber+": no net "+f[0]); continue; }
+            if (f.length == 2) { ret.add(new Load(k, amps)); continue; }
+            TechLayer tl = null;
+            if (f.length == 5) {
+                for(TechLayer l : layout.getLayers()) if (l.name.equals(f[4])) tl = l;
+                if (tl == null) throw new IOException("line "+lineNumber+": no layer "+f[4]);
+            }
+            ret.add(new Load(k, amps,
+                             (int)Math.round(Double.parseDouble(f[2]) / layout.micronsPerDbu),
+                             (int)Math.round(Double.parseDouble(f[3]) / layout.micronsPerDbu), tl));
+        }
+        return ret;
+    }
+
+    /** the net's wire shape under a load, or -1 */
+    private int locate(Load load) {
+        int[] ret = { -1 };
+        LayoutIndex.Visitor v = i -> { if (ret[0] == -1 && nets.net(i) == load.net && ir.wire(i)) ret[0] = i; };
+        if (load.layer != null) index.point(load.layer, load.x, load.y, v);
+        else                    index.point(load.x, load.y, v);
+        return ret[0];
+    }
+
+    // Checking //////////////////////////////////////////////////////////////////////////////
+
+    private double thickMicrons(int i) { return layout.getLayers().get(layout.layerOrdinal(i)).thick3D; }
+
+    private double limit(int i) { return tech.getMaxCurrentDensityMilliAmpsPerSquareMicron(layout.getLayers().get(layout.layerOrdinal(i))); }
+
+    /** the warnings from readLoads() and check() so far */
+    public List<String> getWarnings() {
+        synchronized(warnings) { return new ArrayList<String>(warnings); }
+    }
+
+    /** check one net against the given loads, all of which must be on it; a load off the net's wires is spread over it, with a warning */
+    public List<Violation> check(int k, List<Load> loads) { return check(k, loads, warnings); }
+
+    private List<Violation> check(int k, List<Load> loads, List<String> warnings) {
+        double uniform = 0, total = 0;
+        ArrayList<IRDrop.Tap> taps = new ArrayList<IRDrop.Tap>();
+        for(Load load : loads) {
+            total += Math.abs(load.amps);
+            if (!load.located) { uniform += load.amps; continue; }
+            int i = locate(load);
+            if (i == -1) {
+                warnings.add("no wire of "+nets.displayName(k)+" at ("+load.x*layout.micronsPerDbu+","+load.y*layout.micronsPerDbu
+                             +"); spreading its "+load.amps+"A over the net");
+                uniform += load.amps;
+                continue;
+            }
+            taps.add(new IRDrop.Tap(i, load.x, load.y, load.amps));
+        }
+        ArrayList<Violation> ret = new ArrayList<Violation>();
+        if (total == 0) return ret;
+        IRDrop.Grid g = ir.build(k, uniform, taps);
+        boolean pinned = false;
+        for(int n=0; n<g.nodes() && !pinned; n++) pinned = g.isSupply(n);
+
+        if (!pinned) {
+            for(int i : nets.shapes(k)) {
+                if (!ir.wire(i)) continue;
+                double w = Math.min(layout.xmax(i) - layout.xmin(i), layout.yhi(i) - layout.ylo(i)) * layout.micronsPerDbu;
+                double density = 1000 * total / (w * thickMicrons(i));
+                if (density > limit(i)) ret.add(new Violation(k, i, layout.getLayers().get(layout.layerOrdinal(i)), total, w, density, limit(i), true));
+            }
+            return ret;
+        }
+
+        // the worst segment of each shape
+        ir.solve(g);
+        HashMap<Integer,Violation> worst = new HashMap<Integer,Violation>();
+        for(int r=0; r<g.resistors(); r++) {
+            int i = g.shape(r);
+            if (!ir.wire(i)) continue;
+            double amps = Math.abs(g.amps(r));
+            if (Double.isNaN(amps)) continue;
+            boolean along = Math.abs(g.x(g.from[r]) - g.x(g.to[r])) >= Math.abs(g.y(g.from[r]) - g.y(g.to[r]));
+            if (g.x(g.from[r]) == g.x(g.to[r]) && g.y(g.from[r]) == g.y(g.to[r])) along = ir.horizontal(i);
+            double w = (along ? layout.yhi(i) - layout.ylo(i) : layout.xmax(i) - layout.xmin(i)) * layout.micronsPerDbu;
+            double density = 1000 * amps / (w * thickMicrons(i));
+            if (density <= limit(i)) continue;
+            Violation v = worst.get(i);
+            if (v == null || density > v.density)
+                worst.put(i, new Violation(k, i, layout.getLayers().get(layout.layerOrdinal(i)), amps, w, density, limit(i), false));
+        }
+        ret.addAll(worst.values());
+        Collections.sort(ret, (a, b) -> Integer.compare(a.shape, b.shape));
+        return ret;
+    }
+
+    /** check every net with a load, one net per task on the common pool; the result, and the warnings, are in net order */
+    public List<Violation> checkAll(List<Load> loads) {
+        TreeMap<Integer,List<Load>> byNet = new TreeMap<Integer,List<Load>>();
+        for(Load load : loads) byNet.computeIfAbsent(load.net, k -> new ArrayList<Load>()).add(load);
+        ArrayList<CompletableFuture<List<Violation>>> checks = new ArrayList<CompletableFuture<List<Violation>>>();
+        ArrayList<List<String>> netWarnings = new ArrayList<List<String>>();
+        for(Map.Entry<Integer,List<Load>> e : byNet.entrySet()) {
+            List<String> w = new ArrayList<String>();
+            netWarnings.add(w);
+            checks.add(CompletableFuture.supplyAsync(() -> check(e.getKey(), e.getValue(), w)));
+        }
+        ArrayList<Violation> ret = new ArrayList<Violation>();
+        for(int i=0; i<checks.size(); i++) {
+            ret.addAll(checks.get(i).join());
+            warnings.addAll(netWarnings.get(i));
+        }
+        return ret;
+    }
+
+    public String toString(Violation v) {
+        return String.format("%s %s shape %d at (%.3f,%.3f): %.4gA through %.3fum x %.3fum is %.3fmA/um^2, limit %.2f%s",
+                             nets.displayName(v.net), v.layer.name, v.shape,
+                             (layout.xmin(v.shape) + layout.xmax(v.shape)) / 2 * layout.micronsPerDbu,
+                             (layout.ylo(v.shape) + layout.yhi(v.shape)) / 2 * layout.micronsPerDbu,
+                             v.amps, v.widthMicrons, v.layer.thick3D, v.density, v.limit,
+                             v.bound ? " (no pin: bounded by the net's whole current)" : "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: java "+EMChecker.class.getName()+" <layout.gds> <currents.csv>");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        EMChecker em = new EMChecker(layout);
+        List<Load> loads;
+        try (Reader r = new FileReader(args[1])) { loads = em.readLoads(r); }
+        long start = System.currentTimeMillis();
+        List<Violation> violations = em.checkAll(loads);
+        for(String w : em.getWarnings()) System.err.println("warning: "+w);
+        for(Violation v : violations) System.out.println(em.toString(v));
+        System.err.println(violations.size()+" violations on "+loads.size()+" loads in "+(System.currentTimeMillis()-start)+"ms");
+        if (violations.size() > 0) System.exit(2);
+    }
+}
@@ -0,0 +1,261 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.extract;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Elmore delay and slew at every node of an RCNetwork, driven at one
+ *  node through a driver resistance.
+ *
+ *  The network is first reduced to a tree by a breadth-first search
+ *  from the driven node (a resistor which would close a loop is
+ *  dropped, which can only make the estimates pessimistic).  Then two
+ *  passes over the nodes in search order -- leaves up to accumulate
+ *  the capacitance and the first-moment-weighted capacitance
+ *  downstream of each node, root down to accumulate the moments --
+ *  give the first moment m1 (the Elmore delay) and second moment m2
+ *  of the step response at every node in time linear in its size.
+ *
+ *  The step response's 10-90% slew is ln(9)*sqrt(2*m2-m1^2), which is
+ *  exact for a single pole, and an input slew is folded in as the root
+ *  sum of squares (the PERI rule).
+ *
+ *  Gate loads are given in X units (multiples of the smallest
+ *  transistor) and converted with Tech.getNfetGateCapacitanceFemtoFaradsForX1().
+ */
+public class ElmoreDelay {
+
+    public final Tech tech;
+
+    private static final double LN9 = Math.log(9);
+
+    public ElmoreDelay(Tech tech) { this.tech = tech; }
+
+    /** the timing of one net */
+    public static class Timing {
+        public final RCNetwork network;
+        /** the driven node */
+        public final int       root;
+        /** Elmore delay (first moment) at each node, in picoseconds; NaN where the node is not connected to the root */
+        public final double[]  delay;
+        /** 10-90% slew at each node, in picoseconds */
+        public final double[]  slew;
+        /** wire plus load capacitance, in femtofarads */
+        public final double    totalCapacitance;
+        /** the same in X units, i.e. the number of minimum gates which would present the same load */
+        public final double    loadX;
+        Timing(RCNetwork network, int root, double[] delay, double[] slew, double totalCapacitance, double loadX) {
+            this.network = network;
+            this.root = root;
+            this.delay = delay;
+            this.slew = slew;
+            this.totalCapacitance = totalCapacitance;
+            this.loadX = loadX;
+        }
+        public String toString() {
+            double worst = 0;
+            for(double d : delay) if (!Double.isNaN(d)) worst = Math.max(worst, d);
+            return network.name+": "+String.format("%.4gfF (%.3gX), worst Elmore delay %.4gps", totalCapacitance, loadX, worst);
+        }
+    }
+
+    /**
+     *  Time one network.
+     *
+     *  @param root        the driven node
+     *  @param driverOhms  the driver's output resistance
+     *  @param inputSlewPs the slew at the driver's input, in picoseconds
+     *  @param loadX       gate load at each node in X units (may be null)
+     */
+    public Timing analyze(RCNetwork rc, int root, double driverOhms, double inputSlewPs, double[] loadX) {
+        int n = rc.nodes(), m = rc.resistors();
+
+        // adjacency, packed
+        int[] first = new int[n+1];
+        for(int r=0; r<m; r++) { first[rc.from(r)+1]++; first[rc.to(r)+1]++; }
+        for(int k=0; k<n; k++) first[k+1] += first[k];
+        int[] adj = new int[2*m], fill = Arrays.copyOf(first, n);
+        for(int r=0; r<m; r++) { adj[fill[rc.from(r)]++] = r; adj[fill[rc.to(r)]++] = r; }
+
+        double cx1 = tech.getNfetGateCapacitanceFemtoFaradsForX1();
+        double[] c = new double[n];
+        for(int k=0; k<n; k++) c[k] = rc.capacitance(k) + (loadX == null ? 0 : loadX[k] * cx1);
+
+        // breadth-first spanning tree
+        int[] order = new int[n], parent = new int[n];
+        double[] up = new double[n];
+        Arrays.fill(parent, -2);
+        int head = 0, tail = 0;
+        order[tail++] = root;
+        parent[root] = -1;
+        up[root] = driverOhms;
+        while (head < tail) {
+            int k = order[head++];
+            for(int e=first[k]; e<first[k+1]; e++) {
+                int r = adj[e], o = rc.from(r) == k ? rc.to(r) : rc.from(r);
+                if (parent[o] != -2) continue;
+                parent[o] = k;
+                up[o] = rc.ohms(r);
+                order[tail++] = o;
+            }
+        }
+
+        // leaves up: downstream capacitance
+        double[] down = new double[n];
+        for(int q=tail-1; q>=0; q--) {
+            int k = order[q];
+            down[k] += c[k];
+            if (parent[k] >= 0) down[parent[k]] += down[k];
+        }
+        // root down: first moments (in femtoseconds, since ohms*fF = fs)
+        double[] m1 = new double[n];
+        Arrays.fill(m1, Double.NaN);
+        for(int q=0; q<tail; q++) {
+            int k = order[q];
+            m1[k] = (parent[k] >= 0 ? m1[parent[k]] : 0) + up[k] * down[k];
+        }
+        // leaves up: downstream first-moment-weighted capacitance; root down: second moments
+        double[] down1 = new double[n];
+        for(int q=tail-1; q>=0; q--) {
+            int k = order[q];
+            down1[k] += c[k] * m1[k];
+            if (parent[k] >= 0) down1[parent[k]] += down1[k];
+        }
+        double[] m2 = new double[n];
+        double[] delay = new double[n], slew = new double[n];
+        Arrays.fill(delay, Double.NaN);
+        Arrays.fill(slew, Double.NaN);
+        for(int q=0; q<tail; q++) {
+            int k = order[q];
+            m2[k] = (parent[k] >= 0 ? m2[parent[k]] : 0) + up[k] * down1[k];
+            double step = LN9 * Math.sqrt(Math.max(0, 2*m2[k] - m1[k]*m1[k])) / 1000;
+            delay[k] = m1[k] / 1000;
+            slew[k]  = Math.sqrt(inputSlewPs*inputSlewPs + step*step);
+        }
+
+        double total = 0;
+        for(double ck : c) total += ck;
+        return new Timing(rc, root, delay, slew, total, total / cx1);
+    }
+
+    /** time many networks in parallel on the common fork-join pool; roots, driverOhms and loads are per network */
+    public List<Timing> analyzeAll(List<RCNetwork> networks, int[] roots, double driverOhms, double inputSlewPs, List<double[]> loadX) {
+        ArrayList<CompletableFuture<Timing>> futures = new ArrayList<CompletableFuture<Timing>>();
+        for(int i=0; i<networks.size(); i++) {
+            final int fi = i;
+            futures.add(CompletableFuture.supplyAsync(() ->
+                        analyze(networks.get(fi), roots[fi], driverOhms, inputSlewPs, loadX == null ? null : loadX.get(fi))));
+        }
+        ArrayList<Timing> ret = new ArrayList<Timing>();
+        for(CompletableFuture<Timing> f : futures) ret.add(f.join());
+        return ret;
+    }
+
+    /** the number of nets timed per task in analyzeAll(RCExtractor, ...), as in RCExtractor.extractAll() */
+    private static final int BATCH = 64;
+
+    /**
+     *  Extract and time every non-empty net of a layout in parallel,
+     *  each driven at the node under its naming label (node 0 if it
+     *  has none).
+     *
+     *  @param loadX gate load on each shape of the layout in X units, as from gateLoads(Layout) (may be null)
+     */
+    public List<Timing> analyzeAll(RCExtractor ex, double driverOhms, double inputSlewPs, double[] loadX) {
+        ArrayList<CompletableFuture<List<Timing>>> batches = new ArrayList<CompletableFuture<List<Timing>>>();
+        for(int first=0; first<ex.nets.count(); first+=BATCH) {
+            final int lo = first, hi = Math.min(ex.nets.count(), first+BATCH);
+            batches.add(CompletableFuture.supplyAsync(() -> {
+                        ArrayList<Timing> ret = new ArrayList<Timing>();
+                        for(int k=lo; k<hi; k++) {
+                            RCNetwork rc = ex.extract(k);
+                            if (rc.nodes() > 0)
+                                ret.add(analyze(rc, labelledNode(ex.nets, rc), driverOhms, inputSlewPs, loadX == null ? null : gateLoads(loadX, rc)));
+                        }
+                        return ret;
+                    }));
+        }
+        ArrayList<Timing> ret = new ArrayList<Timing>();
+        for(CompletableFuture<List<Timing>> f : batches) ret.addAll(f.join());
+        return ret;
+    }
+
+    // Layout Loads //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  The gate load on every shape of a layout, in X units: every poly
+     *  shape crossing diffusion carries its channel area over the area
+     *  of an X=1 gate (the minimum poly width by the minimum diffusion
+     *  width).  One sweep per poly and diffusion layer pair.
+     */
+    public static double[] gateLoads(Layout layout) {
+        double[] ret = new double[layout.size()];
+        ArrayList<TechLayer> diffs = new ArrayList<TechLayer>();
+        for(TechLayer tl : layout.getLayers()) if (tl.isDiff && tl.layerRules != null) diffs.add(tl);
+        for(TechLayer p : layout.getLayers()) {
+            if (!p.isPoly || p.layerRules == null) continue;
+            int[] polys = layout.shapesOn(p);
+            if (polys.length == 0) continue;
+            for(TechLayer d : diffs) {
+                double area = p.layerRules.minWidth * d.layerRules.minWidth / (layout.micronsPerDbu * layout.micronsPerDbu);
+                layout.forEachTouching(polys, layout.shapesOn(d), (i, j) -> {
+                        double overlap = layout.overlapArea(i, j);
+                        if (overlap > 0) ret[i] += overlap / area;
+                    });
+            }
+        }
+        return ret;
+    }
+
+    /** the gate load at each node of a network, picked out of gateLoads(Layout) */
+    public static double[] gateLoads(double[] byShape, RCNetwork rc) {
+        double[] ret = new double[rc.nodes()];
+        for(int k=0; k<rc.nodes(); k++) ret[k] = byShape[rc.shape(k)];
+        return ret;
+    }
+
+    /** the node of a network under the label naming its net, or 0 if it has none; labels usually mark the driving pin */
+    public static int labelledNode(Nets nets, RCNetwork rc) {
+        int s = nets.namedShape(rc.net);
+        return s < 0 ? 0 : Math.max(0, rc.node(s));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: java "+ElmoreDelay.class.getName()+" <layout.gds> [driver ohms] [input slew ps]");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        double driverOhms  = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        double inputSlewPs = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        long start = System.currentTimeMillis();
+        RCExtractor ex = new RCExtractor(layout);
+        double[] byShape = gateLoads(layout);
+        List<Timing> timings = new ElmoreDelay(layout.tech).analyzeAll(ex, driverOhms, inputSlewPs, byShape);
+        for(Timing t : timings) {
+            System.out.println(t);
+            for(int k=0; k<t.network.nodes(); k++)
+                if (byShape[t.network.shape(k)] > 0)
+                    System.out.println(String.format("  sink %s:%d  %.3gX  delay %.4gps  slew %.4gps",
+                                                     t.network.name, t.network.shape(k), byShape[t.network.shape(k)], t.delay[k], t.slew[k]));
+        }
+        System.err.println(timings.size()+" nets timed in "+(System.currentTimeMillis()-start)+"ms");
+    }
+}
@@ -0,0 +1,691 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.extract;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Static IR drop on a power or ground net.
+ *
+ *  A power grid needs finer nodes than RCExtractor's one per shape: a
+ *  rail with a thousand vias on it is a thousand resistors in series,
+ *  not a star.  So here every place where something lands on a wire
+ *  shape -- another shape of its layer, a cut, a pin label -- is a
+ *  node on that shape, and consecutive nodes along the shape are
+ *  joined by the sheet resistance between them.  Each cut is a node
+ *  joined to the point it lands on in each layer by half of
+ *  Tech.getViaResistanceOhms().
+ *
+ *  The labelled nodes are the supply (zero drop).  The load current is
+ *  spread uniformly over the net's lowest wire layer, in proportion to
+ *  area, which is the usual assumption before placement.  The drop at
+ *  every other node solves G*v=i for the grid's conductance matrix G,
+ *  which is symmetric positive definite once the supply nodes are
+ *  removed; it is stored in compressed rows of primitive arrays and
+ *  solved by conjugate gradients.  A grid's condition number grows
+ *  with its size, so plain Jacobi preconditioning needs thousands of
+ *  iterations on a million nodes; instead each iteration applies one
+ *  V-cycle of an aggregation multigrid with Jacobi smoothing, which
+ *  keeps the count near fifty.  Every pass over the rows is split
+ *  across the common fork-join pool.
+ */
+public class IRDrop {
+
+    public final Layout layout;
+    public final Nets   nets;
+
+    /** the solver stops when the residual has shrunk by this factor */
+    public static final double TOLERANCE = 1e-6;
+
+    // per layout layer ordinal
+    private final double[] ohmsPerSquare;   // NaN unless a poly or metal layer
+    private final double[] viaOhms;         // NaN unless a cut
+    private final double[] height3D;
+    private final Map<TechLayer,Set<TechLayer>> vias;
+
+    /** the labels (indices into Layout.getLabels()) on the wires of net k are labels[labelFirst[k]..labelFirst[k+1]) */
+    private final int[] labelFirst;
+    private final int[] labels;
+
+    public IRDrop(Layout layout) { this(layout, new Nets(layout)); }
+
+    public IRDrop(Layout layout, Nets nets) {
+        this.layout = layout;
+        this.nets = nets;
+        Tech tech = layout.tech.compile();
+        this.vias = tech.getViaConnections();
+        int n = layout.getLayers().size();
+        ohmsPerSquare = new double[n];
+        viaOhms       = new double[n];
+        height3D      = new double[n];
+        for(int o=0; o<n; o++) {
+            TechLayer tl = layout.getLayers().get(o);
+            int ordinal = tech.polyOrMetalOrdinal(tl);
+            height3D[o]      = tl.height3D;
+            viaOhms[o]       = vias.containsKey(tl) ? tech.getViaResistanceOhms(tl) : Double.NaN;
+            ohmsPerSquare[o] = !vias.containsKey(tl) && ordinal != Integer.MIN_VALUE ? tech.getResistanceOhmsPerSquare(ordinal) : Double.NaN;
+        }
+
+        // bucket the labels by the net of the wire each lands on
+        int nlabels = layout.getLabels().size();
+        labelFirst = new int[nets.count()+1];
+        for(int l=0; l<nlabels; l++) {
+            int s = nets.labelShape(l);
+            if (s >= 0 && wire(s)) labelFirst[nets.net(s)+1]++;
+        }
+        for(int k=0; k<nets.count(); k++) labelFirst[k+1] += labelFirst[k];
+        labels = new int[labelFirst[nets.count()]];
+        int[] fill = Arrays.copyOf(labelFirst, nets.count());
+        for(int l=0; l<nlabels; l++) {
+            int s = nets.labelShape(l);
+            if (s >= 0 && wire(s)) labels[fill[nets.net(s)]++] = l;
+        }
+    }
+
+    // Grid //////////////////////////////////////////////////////////////////////////////
+
+    /** the resistive grid of one net and, once solved, the drop at each of its nodes */
+    public class Grid {
+        public final int net;
+        int n = 0;
+        int[] x = new int[1024], y = new int[1024];
+        boolean[] supply = new boolean[1024];
+        double[] amps = new double[1024];
+        int nr = 0;
+        int[] from = new int[1024], to = new int[1024], shape = new int[1024];
+        double[] siemens = new double[1024];
+        /** volts below (or, on a ground net, above) the supply at each node; NaN where a node has no path to the supply */
+        double[] drop;
+        /** conjugate gradient iterations taken */
+        public int iterations;
+
+        Grid(int net) { this.net = net; }
+
+        int node(int px, int py) {
+            if (n == x.length) {
+                x = Arrays.copyOf(x, 2*n); y = Arrays.copyOf(y, 2*n);
+                supply = Arrays.copyOf(supply, 2*n); amps = Arrays.copyOf(amps, 2*n);
+            }
+            x[n] = px; y[n] = py;
+            return n++;
+        }
+
+        void resistor(int a, int b, double ohms, int s) {
+            if (a == b) return;
+            if (nr == from.length) {
+                from = Arrays.copyOf(from, 2*nr); to = Arrays.copyOf(to, 2*nr);
+                shape = Arrays.copyOf(shape, 2*nr); siemens = Arrays.copyOf(siemens, 2*nr);
+            }
+            from[nr] = a; to[nr] = b; shape[nr] = s; siemens[nr] = 1 / Math.max(ohms, RCExtractor.MIN_OHMS);
+            nr++;
+        }
+
+        public int nodes()               { return n; }
+        public int x(int node)           { return x[node]; }
+        public int y(int node)           { return y[node]; }
+        public double drop(int node)     { return drop[node]; }
+        public boolean isSupply(int node){ return supply[node]; }
+        public int resistors()           { return nr; }
+        /** the shape a resistor runs along (a wire) or through (a cut) */
+        public int shape(int r)          { return shape[r]; }
+        /** the current through a resistor once solved, in amps, positive from its from-node to its to-node */
+        public double amps(int r)        { return (drop[to[r]] - drop[from[r]]) * siemens[r]; }
+        public String toString()         { return nets.displayName(net)+": "+n+" nodes, "+nr+" resistors"; }
+
+        public double worstDrop() {
+            double ret = 0;
+            for(double d : drop) if (!Double.isNaN(d)) ret = Math.max(ret, d);
+            return ret;
+        }
+    }
+
+    /** a point on a wire shape, to be chained to its neighbours along the shape */
+    private static class Attachments {
+        int n = 0;
+        int[] shape = new int[1024], node = new int[1024];
+        void add(int s, int k) {
+            if (n == shape.length) { shape = Arrays.copyOf(shape, 2*n); node = Arrays.copyOf(node, 2*n); }
+            shape[n] = s; node[n] = k; n++;
+        }
+    }
+
+    boolean wire(int i) { return !Double.isNaN(ohmsPerSquare[layout.layerOrdinal(i)]); }
+    private boolean cut(int i)  { return !Double.isNaN(viaOhms[layout.layerOrdinal(i)]); }
+    boolean horizontal(int i) { return layout.xmax(i) - layout.xmin(i) >= layout.yhi(i) - layout.ylo(i); }
+
+    /** a load drawn at a point on one of a net's wire shapes */
+    public static class Tap {
+        public final int shape, x, y;
+        public final double amps;
+        public Tap(int shape, int x, int y, double amps) { this.shape = shape; this.x = x; this.y = y; this.amps = amps; }
+    }
+
+    /** build the grid of net k, drawing totalAmps uniformly from its lowest wire layer */
+    public Grid build(int k, double totalAmps) { return build(k, totalAmps, Collections.<Tap>emptyList()); }
+
+    /** build the grid of net k, drawing uniformAmps uniformly from its lowest wire layer and each tap's amps at its point */
+    public Grid build(int k, double uniformAmps, List<Tap> taps) {
+        Grid g = new Grid(k);
+        int[] all = nets.shapes(k);
+        int ns = 0;
+        for(int i : all) if (wire(i) || cut(i)) all[ns++] = i;
+        int[] shapes = Arrays.copyOf(all, ns);
+        Attachments at = new Attachments();
+
+        // every wire shape has a node at its centre, so that none is left without one
+        int lowest = -1;
+        for(int i : shapes) {
+            if (!wire(i)) continue;
+            at.add(i, g.node((int)(((long)layout.xmin(i) + layout.xmax(i)) / 2), (int)(((long)layout.ylo(i) + layout.yhi(i)) / 2)));
+            int o = layout.layerOrdinal(i);
+            if (lowest == -1 || height3D[o] < height3D[lowest]) lowest = o;
+        }
+
+        // each layer's shapes sorted by xmin, as forEachTouching wants them
+        int nl = layout.getLayers().size();
+        int[][] on = new int[nl][];
+        int[] count = new int[nl];
+        for(int i : shapes) count[layout.layerOrdinal(i)]++;
+        long[][] keys = new long[nl][];
+        for(int o=0; o<nl; o++) keys[o] = new long[count[o]];
+        Arrays.fill(count, 0);
+        for(int i : shapes) { int o = layout.layerOrdinal(i); keys[o][count[o]++] = ((long)layout.xmin(i) << 32) | i; }
+        for(int o=0; o<nl; o++) {
+            Arrays.sort(keys[o]);
+            on[o] = new int[keys[o].length];
+            for(int j=0; j<on[o].length; j++) on[o][j] = (int)keys[o][j];
+        }
+
+        for(int o=0; o<nl; o++) {
+            if (on[o].length == 0) continue;
+            if (!Double.isNaN(ohmsPerSquare[o])) {
+                // abutting or overlapping shapes of one layer meet at the middle of their overlap
+                layout.forEachTouching(on[o], on[o], (i, j) -> {
+                        int node = g.node((int)(((long)Math.max(layout.xmin(i), layout.xmin(j)) + Math.min(layout.xmax(i), layout.xmax(j))) / 2),
+                                          (int)(((long)Math.max(layout.ylo(i), layout.ylo(j)) + Math.min(layout.yhi(i), layout.yhi(j))) / 2));
+                        at.add(i, node);
+                        at.add(j, node);
+                    });
+            } else if (!Double.isNaN(viaOhms[o])) {
+                // a node per cut, joined to a landing node on each shape it connects
+                int[] cutNode = new int[on[o].length];
+                for(int j=0; j<on[o].length; j++) {
+                    int c = on[o][j];
+                    cutNode[j] = g.node((int)(((long)layout.xmin(c) + layout.xmax(c)) / 2), (int)(((long)layout.ylo(c) + layout.yhi(c)) / 2));
+                }
+                int[] cuts = on[o];
+                long[] cutKeys = keys[o];
+                layout.forEachTouching(cuts, cuts, (a, b) -> g.resistor(cutNode[indexOf(cutKeys, a)], cutNode[indexOf(cutKeys, b)], RCExtractor.MIN_OHMS, a));
+                double half = viaOhms[o] / 2;
+                TechLayer cutLayer = layout.getLayers().get(o);
+                for(int p=0; p<nl; p++) {
+                    if (on[p].length == 0 || Double.isNaN(ohmsPerSquare[p]) || !vias.get(cutLayer).contains(layout.getLayers().get(p))) continue;
+                    layout.forEachTouching(cuts, on[p], (c, s) -> {
+                            int cn = cutNode[indexOf(cutKeys, c)];
+                            int landing = g.node(g.x[cn], g.y[cn]);
+                            g.resistor(cn, landing, half, c);
+                            at.add(s, landing);
+                        });
+                }
+            }
+        }
+
+        // the pins are the supply
+        for(int m=labelFirst[k]; m<labelFirst[k+1]; m++) {
+            Layout.Label label = layout.getLabels().get(labels[m]);
+            int node = g.node(label.x, label.y);
+            g.supply[node] = true;
+            at.add(nets.labelShape(labels[m]), node);
+        }
+
+        for(Tap tap : taps) {
+            int node = g.node(tap.x, tap.y);
+            g.amps[node] += tap.amps;
+            at.add(tap.shape, node);
+        }
+
+        // the load, by area, on the lowest wire layer
+        double area = 0;
+        if (lowest >= 0) for(int i : on[lowest]) area += layout.area(i);
+
+        // chain the attachments of each wire shape in order along it
+        int[] first = new int[ns+1];
+        for(int a=0; a<at.n; a++) first[Arrays.binarySearch(shapes, at.shape[a])+1]++;
+        for(int s=0; s<ns; s++) first[s+1] += first[s];
+        int[] fill = Arrays.copyOf(first, ns);
+        int[] byShape = new int[at.n];
+        for(int a=0; a<at.n; a++) byShape[fill[Arrays.binarySearch(shapes, at.shape[a])]++] = at.node[a];
+        for(int s=0; s<ns; s++) {
+            int i = shapes[s], m = first[s+1] - first[s];
+            if (m == 0) continue;
+            boolean h = horizontal(i);
+            int base = h ? layout.xmin(i) : layout.ylo(i);
+            long[] along = new long[m];
+            for(int j=0; j<m; j++) {
+                int node = byShape[first[s]+j];
+                along[j] = ((long)((h ? g.x[node] : g.y[node]) - base) << 32) | node;
+            }
+            Arrays.sort(along);
+            double rs = ohmsPerSquare[layout.layerOrdinal(i)];
+            int w = layout.xmax(i) - layout.xmin(i), ht = layout.yhi(i) - layout.ylo(i);
+            for(int j=1; j<m; j++) {
+                int a = (int)along[j-1], b = (int)along[j];
+                double dx = Math.abs(g.x[a] - g.x[b]), dy = Math.abs(g.y[a] - g.y[b]);
+                g.resistor(a, b, rs * ((ht == 0 ? 0 : dx / ht) + (w == 0 ? 0 : dy / w)), i);
+            }
+            if (layout.layerOrdinal(i) == lowest && area > 0) {
+                double each = uniformAmps * layout.area(i) / area / m;
+                for(int j=0; j<m; j++) g.amps[(int)along[j]] += each;
+            }
+        }
+        return g;
+    }
+
+    /** where a shape falls in its layer's (xmin,shape) keys */
+    private int indexOf(long[] keys, int shape) { return Arrays.binarySearch(keys, ((long)layout.xmin(shape) << 32) | shape); }
+
+    // Solving //////////////////////////////////////////////////////////////////////////////
+
+    /** the rows of a symmetric matrix in compressed form */
+    private static class Matrix {
+        int n;
+        int[] start, col;
+        double[] val, diag;
+    }
+
+    /** solve for the drop at every node of the grid; returns the grid */
+    public Grid solve(Grid g) {
+        int n = g.n;
+        g.drop = new double[n];
+        Arrays.fill(g.drop, Double.NaN);
+
+        // nodes with a path to the supply, renumbered densely in search order (which also keeps neighbours close in memory)
+        int[] first = new int[n+1];
+        for(int r=0; r<g.nr; r++) { first[g.from[r]+1]++; first[g.to[r]+1]++; }
+        for(int k=0; k<n; k++) first[k+1] += first[k];
+        int[] adj = new int[2*g.nr], fill = Arrays.copyOf(first, n);
+        for(int r=0; r<g.nr; r++) { adj[fill[g.from[r]]++] = r; adj[fill[g.to[r]]++] = r; }
+        int[] row = new int[n];
+        Arrays.fill(row, -2);
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for(int k=0; k<n; k++) if (g.supply[k]) { row[k] = -1; order[tail++] = k; }
+        int nf = 0;
+        while (head < tail) {
+            int k = order[head++];
+            for(int e=first[k]; e<first[k+1]; e++) {
+                int r = adj[e], o = g.from[r] == k ? g.to[r] : g.from[r];
+                if (row[o] != -2) continue;
+                row[o] = nf++;
+                order[tail++] = o;
+            }
+        }
+
+        // the matrix over the free nodes; a resistor to the supply only adds to the diagonal
+        Matrix a = new Matrix();
+        a.n = nf;
+        a.start = new int[nf+1];
+        a.diag = new double[nf];
+        double[] b = new double[nf];
+        for(int r=0; r<g.nr; r++) {
+            int p = row[g.from[r]], q = row[g.to[r]];
+            if (p >= 0) a.diag[p] += g.siemens[r];
+            if (q >= 0) a.diag[q] += g.siemens[r];
+            if (p >= 0 && q >= 0) { a.start[p+1]++; a.start[q+1]++; }
+        }
+        for(int k=0; k<nf; k++) a.start[k+1] += a.start[k];
+        a.col = new int[a.start[nf]];
+        a.val = new double[a.start[nf]];
+        int[] next = Arrays.copyOf(a.start, nf);
+        for(int r=0; r<g.nr; r++) {
+            int p = row[g.from[r]], q = row[g.to[r]];
+            if (p < 0 || q < 0) continue;
+            a.col[next[p]] = q; a.val[next[p]++] = -g.siemens[r];
+            a.col[next[q]] = p; a.val[next[q]++] = -g.siemens[r];
+        }
+        for(int k=0; k<n; k++) if (row[k] >= 0) b[row[k]] = g.amps[k];
+
+        double[] v = new double[nf];
+        g.iterations = conjugateGradient(a, b, v);
+        for(int k=0; k<n; k++) {
+            if (row[k] >= 0)  g.drop[k] = v[row[k]];
+            if (row[k] == -1) g.drop[k] = 0;
+        }
+        return g;
+    }
+
+    /** a pass over rows [lo,hi) which returns a partial sum */
+    private interface Rows { double run(int lo, int hi); }
+
+    /** run a pass over [0,n) in chunks on the common pool; the partial sums are added in chunk order, so results do not depend on scheduling */
+    private static double parallel(int n, Rows body) {
+        int chunks = Math.max(1, Math.min(4*ForkJoinPool.getCommonPoolParallelism(), n / 16384));
+        if (chunks == 1) return body.run(0, n);
+        ArrayList<CompletableFuture<Double>> parts = new ArrayList<CompletableFuture<Double>>();
+        for(int c=0; c<chunks; c++) {
+            int lo = (int)((long)n * c / chunks), hi = (int)((long)n * (c+1) / chunks);
+            parts.add(CompletableFuture.supplyAsync(() -> body.run(lo, hi)));
+        }
+        double ret = 0;
+        for(CompletableFuture<Double> f : parts) ret += f.join();
+        return ret;
+    }
+
+    // Multigrid //////////////////////////////////////////////////////////////////////////////
+
+    /** rows are aggregated with neighbours they are joined to by at least this fraction of the geometric mean of the two diagonals */
+    private static final double STRONG = 0.08;
+
+    /** levels with no more rows than this are solved directly */
+    private static final int COARSEST = 256;
+
+    /** damped Jacobi sweeps before and after each coarse correction, and their damping */
+    private static final int    SWEEPS = 1;
+    private static final double OMEGA  = 0.6;
+
+    /** piecewise-constant prolongation undershoots smooth errors, so the coarse correction is scaled up */
+    private static final double OVERCORRECTION = 1.8;
+
+    /**
+     *  One level of an unsmoothed aggregation multigrid: the rows of
+     *  a finer level are grouped into aggregates of strongly connected
+     *  neighbours, each of which is one row here, and the matrix is the
+     *  Galerkin product of the finer one with the piecewise-constant
+     *  prolongation.  The coarsest level keeps a dense Cholesky factor.
+     */
+    private static class Level {
+        final Matrix a;
+        int[] aggregate;        // the row of the next level which each row of this one belongs to
+        double[] cholesky;      // coarsest level only
+        final double[] x, b, r;
+        Level(Matrix a) { this.a = a; x = new double[a.n]; b = new double[a.n]; r = new double[a.n]; }
+    }
+
+    private static Level[] hierarchy(Matrix fine) {
+        ArrayList<Level> ret = new ArrayList<Level>();
+        Level l = new Level(fine);
+        ret.add(l);
+        while (l.a.n > COARSEST) {
+            int[] count = new int[1];
+            int[] agg = aggregate(l.a, count);
+            if (count[0] > 0.8 * l.a.n) break;
+            l.aggregate = agg;
+            l = new Level(coarsen(l.a, agg, count[0]));
+            ret.add(l);
+        }
+        if (l.a.n <= 4*COARSEST) l.cholesky = cholesky(l.a);
+        return ret.toArray(new Level[0]);
+    }
+
+    private static boolean strong(Matrix a, int i, int e) { return -a.val[e] >= STRONG * Math.sqrt(a.diag[i] * a.diag[a.col[e]]); }
+
+    /** group the rows of a into aggregates; returns each row's aggregate and sets count[0] */
+    private static int[] aggregate(Matrix a, int[] count) {
+        int n = a.n, nc = 0;
+        int[] agg = new int[n];
+        Arrays.fill(agg, -1);
+
+        // rows whose strong neighbours are all free seed an aggregate of themselves and those neighbours
+        for(int i=0; i<n; i++) {
+            if (agg[i] != -1) continue;
+            boolean free = true;
+            for(int e=a.start[i]; e<a.start[i+1] && free; e++) if (strong(a, i, e) && agg[a.col[e]] != -1) free = false;
+            if (!free) continue;
+            agg[i] = nc;
+            for(int e=a.start[i]; e<a.start[i+1]; e++) if (strong(a, i, e)) agg[a.col[e]] = nc;
+            nc++;
+        }
+
+        // the rest join the aggregate they are most strongly connected to
+        int[] join = agg.clone();
+        for(int i=0; i<n; i++) {
+            if (agg[i] != -1) continue;
+            double best = 0;
+            for(int e=a.start[i]; e<a.start[i+1]; e++)
+                if (strong(a, i, e) && agg[a.col[e]] != -1 && -a.val[e] > best) { best = -a.val[e]; join[i] = agg[a.col[e]]; }
+        }
+        agg = join;
+
+        // and what is left (rows held mostly by the supply) forms aggregates among itself
+        for(int i=0; i<n; i++) {
+            if (agg[i] != -1) continue;
+            agg[i] = nc;
+            for(int e=a.start[i]; e<a.start[i+1]; e++) if (agg[a.col[e]] == -1) agg[a.col[e]] = nc;
+            nc++;
+        }
+        count[0] = nc;
+        return agg;
+    }
+
+    /** the Galerkin coarse matrix P'AP where P maps each row to its aggregate */
+    private static Matrix coarsen(Matrix a, int[] agg, int nc) {
+        int[] first = new int[nc+1];
+        for(int i=0; i<a.n; i++) first[agg[i]+1]++;
+        for(int c=0; c<nc; c++) first[c+1] += first[c];
+        int[] members = new int[a.n], fill = Arrays.copyOf(first, nc);
+        for(int i=0; i<a.n; i++) members[fill[agg[i]]++] = i;
+
+        Matrix ret = new Matrix();
+        ret.n = nc;
+        ret.start = new int[nc+1];
+        ret.diag = new double[nc];
+        int[] col = new int[Math.max(16, a.col.length / 2)];
+        double[] val = new double[col.length];
+        int[] pos = new int[nc];
+        Arrays.fill(pos, -1);
+        int nnz = 0;
+        for(int c=0; c<nc; c++) {
+            ret.start[c] = nnz;
+            for(int m=first[c]; m<first[c+1]; m++) {
+                int i = members[m];
+                ret.diag[c] += a.diag[i];
+                for(int e=a.start[i]; e<a.start[i+1]; e++) {
+                    int d = agg[a.col[e]];
+                    if (d == c) { ret.diag[c] += a.val[e]; continue; }
+                    if (pos[d] >= ret.start[c]) { val[pos[d]] += a.val[e]; continue; }
+                    if (nnz == col.length) { col = Arrays.copyOf(col, 2*nnz); val = Arrays.copyOf(val, 2*nnz); }
+                    pos[d] = nnz;
+                    col[nnz] = d;
+                    val[nnz++] = a.val[e];
+                }
+            }
+        }
+        ret.start[nc] = nnz;
+        ret.col = Arrays.copyOf(col, nnz);
+        ret.val = Arrays.copyOf(val, nnz);
+        return ret;
+    }
+
+    /** the lower triangle of a dense Cholesky factorisation, row by row */
+    private static double[] cholesky(Matrix a) {
+        int n = a.n;
+        double[] l = new double[n*n];
+        for(int i=0; i<n; i++) {
+            l[i*n+i] = a.diag[i];
+            for(int e=a.start[i]; e<a.start[i+1]; e++) l[i*n+a.col[e]] += a.val[e];
+        }
+        for(int j=0; j<n; j++) {
+            double d = l[j*n+j];
+            for(int k=0; k<j; k++) d -= l[j*n+k] * l[j*n+k];
+            l[j*n+j] = Math.sqrt(d);
+            for(int i=j+1; i<n; i++) {
+                double s = l[i*n+j];
+                for(int k=0; k<j; k++) s -= l[i*n+k] * l[j*n+k];
+                l[i*n+j] = s / l[j*n+j];
+            }
+        }
+        return l;
+    }
+
+    /** r = b - Ax over all rows */
+    private static void residual(Matrix a, double[] b, double[] x, double[] r) {
+        parallel(a.n, (lo, hi) -> {
+                for(int i=lo; i<hi; i++) {
+                    double t = b[i] - a.diag[i] * x[i];
+                    for(int e=a.start[i]; e<a.start[i+1]; e++) t -= a.val[e] * x[a.col[e]];
+                    r[i] = t;
+                }
+                return 0;
+            });
+    }
+
+    private static void jacobi(Level l, int sweeps) {
+        Matrix a = l.a;
+        for(int s=0; s<sweeps; s++) {
+            residual(a, l.b, l.x, l.r);
+            parallel(a.n, (lo, hi) -> { for(int i=lo; i<hi; i++) l.x[i] += OMEGA * l.r[i] / a.diag[i]; return 0; });
+        }
+    }
+
+    /** one V-cycle from x=0 on levels[k] (whose right hand side is already in levels[k].b); symmetric, so it can precondition CG */
+    private static void vcycle(Level[] levels, int k) {
+        Level l = levels[k];
+        int n = l.a.n;
+        Arrays.fill(l.x, 0);
+        if (l.cholesky != null) {
+            double[] c = l.cholesky, x = l.x;
+            for(int i=0; i<n; i++) {
+                double s = l.b[i];
+                for(int j=0; j<i; j++) s -= c[i*n+j] * x[j];
+                x[i] = s / c[i*n+i];
+            }
+            for(int i=n-1; i>=0; i--) {
+                double s = x[i];
+                for(int j=i+1; j<n; j++) s -= c[j*n+i] * x[j];
+                x[i] = s / c[i*n+i];
+            }
+            return;
+        }
+        if (l.aggregate == null) { jacobi(l, 8*SWEEPS); return; }
+        jacobi(l, SWEEPS);
+        residual(l.a, l.b, l.x, l.r);
+        Level next = levels[k+1];
+        Arrays.fill(next.b, 0);
+        for(int i=0; i<n; i++) next.b[l.aggregate[i]] += l.r[i];
+        vcycle(levels, k+1);
+        parallel(n, (lo, hi) -> { for(int i=lo; i<hi; i++) l.x[i] += OVERCORRECTION * next.x[l.aggregate[i]]; return 0; });
+        jacobi(l, SWEEPS);
+    }
+
+    /** conjugate gradients from x=0, preconditioned by a multigrid V-cycle; returns the number of iterations */
+    private static int conjugateGradient(Matrix a, double[] b, double[] x) {
+        int n = a.n;
+        Level[] levels = hierarchy(a);
+        Level fine = levels[0];
+        double[] r = b.clone(), p = new double[n], q = new double[n];
+        double bb = parallel(n, (lo, hi) -> { double s = 0; for(int i=lo; i<hi; i++) s += b[i]*b[i]; return s; });
+        if (bb == 0) return 0;
+        System.arraycopy(r, 0, fine.b, 0, n);
+        vcycle(levels, 0);
+        double rz = parallel(n, (lo, hi) -> { double s = 0; for(int i=lo; i<hi; i++) { p[i] = fine.x[i]; s += r[i]*p[i]; } return s; });
+        for(int iter=1; iter<=n+100; iter++) {
+            double pq = parallel(n, (lo, hi) -> {
+                    double s = 0;
+                    for(int i=lo; i<hi; i++) {
+                        double t = a.diag[i] * p[i];
+                        for(int e=a.start[i]; e<a.start[i+1]; e++) t += a.val[e] * p[a.col[e]];
+                        q[i] = t;
+                        s += p[i] * t;
+                    }
+                    return s;
+                });
+            double alpha = rz / pq;
+            double rr = parallel(n, (lo, hi) -> {
+                    double s = 0;
+                    for(int i=lo; i<hi; i++) {
+                        x[i] += alpha * p[i];
+                        r[i] -= alpha * q[i];
+                        fine.b[i] = r[i];
+                        s += r[i] * r[i];
+                    }
+                    return s;
+                });
+            if (rr <= TOLERANCE * TOLERANCE * bb) return iter;
+            vcycle(levels, 0);
+            double rzNew = parallel(n, (lo, hi) -> { double s = 0; for(int i=lo; i<hi; i++) s += r[i] * fine.x[i]; return s; });
+            double beta = rzNew / rz;
+            rz = rzNew;
+            parallel(n, (lo, hi) -> { for(int i=lo; i<hi; i++) p[i] = fine.x[i] + beta * p[i]; return 0; });
+        }
+        throw new RuntimeException("conjugate gradients did not converge");
+    }
+
+    // Tiles //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  The worst drop in each square tile of the grid's bounding box, in
+     *  millivolts, printed as one line per row of tiles from the top
+     *  down ("-" where a tile has no nodes).
+     */
+    public void writeTiles(Grid g, double tileMicrons, PrintWriter pw) {
+        int tile = Math.max(1, (int)Math.round(tileMicrons / layout.micronsPerDbu));
+        int xlo = Integer.MAX_VALUE, ylo = Integer.MAX_VALUE, xhi = Integer.MIN_VALUE, yhi = Integer.MIN_VALUE;
+        for(int k=0; k<g.n; k++) { xlo = Math.min(xlo, g.x[k]); xhi = Math.max(xhi, g.x[k]); ylo = Math.min(ylo, g.y[k]); yhi = Math.max(yhi, g.y[k]); }
+        int nx = (int)(((long)xhi - xlo) / tile) + 1, ny = (int)(((long)yhi - ylo) / tile) + 1;
+        double[] worst = new double[nx*ny];
+        Arrays.fill(worst, Double.NaN);
+        for(int k=0; k<g.n; k++) {
+            if (Double.isNaN(g.drop[k])) continue;
+            int t = (int)(((long)g.y[k] - ylo) / tile) * nx + (int)(((long)g.x[k] - xlo) / tile);
+            if (Double.isNaN(worst[t]) || g.drop[k] > worst[t]) worst[t] = g.drop[k];
+        }
+        pw.println("# "+g+"; "+g.iterations+" iterations; worst drop "+String.format("%.3f", 1000*g.worstDrop())+"mV");
+        pw.println("# "+nx+"x"+ny+" tiles of "+tileMicrons+"um from ("+xlo*layout.micronsPerDbu+","+ylo*layout.micronsPerDbu+")um; mV, top row first");
+        for(int ty=ny-1; ty>=0; ty--) {
+            StringBuilder sb = new StringBuilder();
+            for(int tx=0; tx<nx; tx++) {
+                double d = worst[ty*nx+tx];
+                sb.append(tx == 0 ? "" : " ").append(Double.isNaN(d) ? "-" : String.format("%.3f", 1000*d));
+            }
+            pw.println(sb);
+        }
+        pw.flush();
+    }
+
+    /** power and ground nets are recognised by name */
+    public static boolean isSupplyName(String name) {
+        String n = name.toUpperCase();
+        return n.startsWith("VDD") || n.startsWith("VPWR") || n.startsWith("VCC") || n.startsWith("VPB")
+            || n.startsWith("VSS") || n.startsWith("VGND") || n.startsWith("GND") || n.startsWith("VNB");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java "+IRDrop.class.getName()+" <layout.gds> <load amps per net> [tile microns] [net names...]");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        double amps = Double.parseDouble(args[1]);
+        double tile = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        IRDrop ir = new IRDrop(layout);
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        for(int k=0; k<ir.nets.count(); k++) {
+            String name = ir.nets.name(k);
+            if (name == null) continue;
+            boolean wanted = args.length > 3 ? Arrays.asList(args).subList(3, args.length).contains(name) : isSupplyName(name);
+            if (!wanted) continue;
+            long start = System.currentTimeMillis();
+            Grid g = ir.build(k, amps);
+            long built = System.currentTimeMillis();
+            ir.solve(g);
+            System.err.println(g+": built in "+(built-start)+"ms, solved in "+(System.currentTimeMillis()-built)+"ms ("+g.iterations+" iterations)");
+            ir.writeTiles(g, tile, pw);
+        }
+    }
+}
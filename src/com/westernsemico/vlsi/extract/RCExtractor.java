@@ -0,0 +1,251 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.extract;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Extracts an RCNetwork for each net of a Layout.
+ *
+ *  Every shape on a poly or metal layer is a wire segment running
+ *  along the longer side of its bounding box, with a node at its
+ *  centre.  Two touching segments on one layer are joined by the
+ *  resistance from each centre to the middle of their overlap
+ *  (Tech.getResistanceOhmsPerSquare() times the squares crossed);
+ *  a cut is joined to each shape it lands on by half of
+ *  Tech.getViaResistanceOhms() plus the wire from that shape's centre.
+ *  Diffusion and other layers are not part of the network.
+ *
+ *  Each segment's capacitance to ground is its length times the
+ *  per-unit-length capacitance of its width, which is looked up in a
+ *  table built once per layer at every width (in database units)
+ *  which occurs on that layer, so nothing is evaluated per segment.
+ *  The table comes from the field-solved CapacitanceTables (an
+ *  isolated wire over the substrate) if they are given, and otherwise
+ *  from Tech.getWireCapacitanceFemtoFaradsPerMicron().
+ *
+ *  Nets are independent, so they are extracted in parallel in batches
+ *  on the common fork-join pool; the results come back in net order.
+ */
+public class RCExtractor {
+
+    public final Layout layout;
+    public final Nets   nets;
+
+    /** resistors are never smaller than this, so that coincident nodes do not make a singular network */
+    public static final double MIN_OHMS = 1e-3;
+
+    /** widths up to this many database units are tabulated; wider segments evaluate the formula */
+    public static final int MAX_TABLE_WIDTH = 1 << 16;
+
+    /** nets per parallel task */
+    private static final int BATCH = 64;
+
+    // per layout layer ordinal
+    private final double[]   ohmsPerSquare;   // NaN unless a poly or metal layer
+    private final double[]   viaOhms;         // NaN unless a cut
+    private final double[][] capPerDbu;       // fF per dbu of length, indexed by width in dbu
+    private final TechLayer[] layers;
+    private final Map<TechLayer,Set<TechLayer>> vias;
+
+    /** the field-solved tables, or null to use the Tech's analytic formula */
+    public final CapacitanceTables tables;
+
+    public RCExtractor(Layout layout) { this(layout, new Nets(layout), null); }
+
+    public RCExtractor(Layout layout, Nets nets, CapacitanceTables tables) {
+        this.layout = layout;
+        this.nets = nets;
+        this.tables = tables;
+        Tech tech = layout.tech;
+        this.vias = tech.getViaConnections();
+        List<TechLayer> ls = layout.getLayers();
+        int n = ls.size();
+        layers        = ls.toArray(new TechLayer[n]);
+        ohmsPerSquare = new double[n];
+        viaOhms       = new double[n];
+        capPerDbu     = new double[n][];
+
+        int[] maxWidth = new int[n];
+        for(int i=0; i<layout.size(); i++) {
+            int o = layout.layerOrdinal(i);
+            maxWidth[o] = Math.max(maxWidth[o], width(i));
+        }
+        for(int o=0; o<n; o++) {
+            TechLayer tl = layers[o];
+            ohmsPerSquare[o] = Double.NaN;
+            viaOhms[o]       = Double.NaN;
+            if (vias.containsKey(tl)) { viaOhms[o] = tech.getViaResistanceOhms(tl); continue; }
+            int ordinal = tech.polyOrMetalOrdinal(tl);
+            if (ordinal == Integer.MIN_VALUE) continue;
+            ohmsPerSquare[o] = tech.getResistanceOhmsPerSquare(ordinal);
+            double[] table = capPerDbu[o] = new double[Math.min(maxWidth[o], MAX_TABLE_WIDTH)+1];
+            for(int w=0; w<table.length; w++)
+                table[w] = wireCapacitance(tl, w);
+        }
+    }
+
+    // Segments //////////////////////////////////////////////////////////////////////////////
+
+    private boolean horizontal(int i) { return layout.xmax(i) - layout.xmin(i) >= layout.yhi(i) - layout.ylo(i); }
+    private int length(int i) { return horizontal(i) ? layout.xmax(i) - layout.xmin(i) : layout.yhi(i) - layout.ylo(i); }
+
+    /** the mean width across the segment's length (area over length), so trapezoids and notches count fairly */
+    private int width(int i) {
+        int l = length(i);
+        return l == 0 ? 0 : (int)Math.round(layout.area(i) / l);
+    }
+
+    private double capacitance(int i) {
+        double[] table = capPerDbu[layout.layerOrdinal(i)];
+        int w = width(i);
+        double perDbu = w < table.length ? table[w] : wireCapacitance(layers[layout.layerOrdinal(i)], w);
+        return perDbu * length(i);
+    }
+
+    /** fF per dbu of length of an isolated wire w dbu wide */
+    private double wireCapacitance(TechLayer tl, int w) {
+        double um = w * layout.micronsPerDbu;
+        return layout.micronsPerDbu * (tables != null
+                                       ? tables.totalFemtoFaradsPerMicron(tl, null, um, Double.POSITIVE_INFINITY)
+                                       : layout.tech.getWireCapacitanceFemtoFaradsPerMicron(tl, um));
+    }
+
+    /**
+     *  Resistance from the centre of wire segment i to the point
+     *  (px2/2,py2/2): the x distance through the segment's height plus
+     *  the y distance through its width, which is the length over the
+     *  width of a straight wire and still sensible for squarish shapes
+     *  where the current turns a corner.
+     */
+    private double toCentre(int i, long px2, long py2) {
+        double rs = ohmsPerSquare[layout.layerOrdinal(i)];
+        long dx = Math.abs(px2 - ((long)layout.xmin(i) + layout.xmax(i)));
+        long dy = Math.abs(py2 - ((long)layout.ylo(i) + layout.yhi(i)));
+        int w = layout.xmax(i) - layout.xmin(i), h = layout.yhi(i) - layout.ylo(i);
+        return rs * ((h == 0 ? 0 : dx / 2.0 / h) + (w == 0 ? 0 : dy / 2.0 / w));
+    }
+
+    // Extraction //////////////////////////////////////////////////////////////////////////////
+
+    /** the network of net k */
+    public RCNetwork extract(int k) {
+        int[] all = nets.shapes(k);
+        int n = 0;
+        for(int i : all) {
+            int o = layout.layerOrdinal(i);
+            if (!Double.isNaN(ohmsPerSquare[o]) || !Double.isNaN(viaOhms[o])) all[n++] = i;
+        }
+        int[] shapes = Arrays.copyOf(all, n);
+        double[] cap = new double[n];
+        for(int j=0; j<n; j++)
+            if (!Double.isNaN(ohmsPerSquare[layout.layerOrdinal(shapes[j])])) cap[j] = capacitance(shapes[j]);
+
+        // each layer's shapes sorted by xmin, as forEachTouching wants them
+        int[][] on = new int[layers.length][];
+        int[] count = new int[layers.length];
+        for(int i : shapes) count[layout.layerOrdinal(i)]++;
+        long[][] keys = new long[layers.length][];
+        for(int o=0; o<layers.length; o++) keys[o] = new long[count[o]];
+        Arrays.fill(count, 0);
+        for(int i : shapes) {
+            int o = layout.layerOrdinal(i);
+            keys[o][count[o]++] = ((long)layout.xmin(i) << 32) | i;
+        }
+        for(int o=0; o<layers.length; o++) {
+            Arrays.sort(keys[o]);
+            on[o] = new int[keys[o].length];
+            for(int j=0; j<on[o].length; j++) on[o][j] = (int)keys[o][j];
+        }
+
+        Resistors rs = new Resistors(shapes);
+        for(int o=0; o<layers.length; o++) {
+            int[] a = on[o];
+            if (a.length == 0) continue;
+            boolean cut = !Double.isNaN(viaOhms[o]);
+            layout.forEachTouching(a, a, (i, j) -> {
+                    if (cut) { rs.add(i, j, MIN_OHMS); return; }
+                    long px2 = (long)Math.max(layout.xmin(i), layout.xmin(j)) + Math.min(layout.xmax(i), layout.xmax(j));
+                    long py2 = (long)Math.max(layout.ylo(i), layout.ylo(j)) + Math.min(layout.yhi(i), layout.yhi(j));
+                    rs.add(i, j, toCentre(i, px2, py2) + toCentre(j, px2, py2));
+                });
+            if (!cut) continue;
+            double half = viaOhms[o] / 2;
+            for(int p=0; p<layers.length; p++) {
+                if (p == o || on[p].length == 0 || !Double.isNaN(viaOhms[p]) || !vias.get(layers[o]).contains(layers[p])) continue;
+                layout.forEachTouching(a, on[p], (c, s) -> {
+                        long px2 = (long)layout.xmin(c) + layout.xmax(c), py2 = (long)layout.ylo(c) + layout.yhi(c);
+                        rs.add(c, s, half + toCentre(s, px2, py2));
+                    });
+            }
+        }
+        return new RCNetwork(k, nets.displayName(k), shapes, cap,
+                             Arrays.copyOf(rs.from, rs.n), Arrays.copyOf(rs.to, rs.n), Arrays.copyOf(rs.ohms, rs.n));
+    }
+
+    /** a growable list of resistors between the nodes of shapes (which is sorted) */
+    private static class Resistors {
+        final int[] shapes;
+        int n = 0;
+        int[] from = new int[16], to = new int[16];
+        double[] ohms = new double[16];
+        Resistors(int[] shapes) { this.shapes = shapes; }
+        void add(int shapeA, int shapeB, double r) {
+            if (n == ohms.length) {
+                from = Arrays.copyOf(from, 2*n); to = Arrays.copyOf(to, 2*n); ohms = Arrays.copyOf(ohms, 2*n);
+            }
+            from[n] = Arrays.binarySearch(shapes, shapeA);
+            to[n]   = Arrays.binarySearch(shapes, shapeB);
+            ohms[n] = Math.max(MIN_OHMS, r);
+            n++;
+        }
+    }
+
+    /** the networks of every net, in net order */
+    public List<RCNetwork> extractAll() {
+        ArrayList<CompletableFuture<List<RCNetwork>>> batches = new ArrayList<CompletableFuture<List<RCNetwork>>>();
+        for(int first=0; first<nets.count(); first+=BATCH) {
+            final int lo = first, hi = Math.min(nets.count(), first+BATCH);
+            batches.add(CompletableFuture.supplyAsync(() -> {
+                        ArrayList<RCNetwork> ret = new ArrayList<RCNetwork>();
+                        for(int k=lo; k<hi; k++) ret.add(extract(k));
+                        return ret;
+                    }));
+        }
+        ArrayList<RCNetwork> ret = new ArrayList<RCNetwork>();
+        for(CompletableFuture<List<RCNetwork>> f : batches) ret.addAll(f.join());
+        return ret;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean solve = args.length == 2 && args[0].equals("-tables");
+        if (args.length != (solve ? 2 : 1)) {
+            System.err.println("usage: java "+RCExtractor.class.getName()+" [-tables] <layout.gds>");
+            System.exit(1);
+        }
+        Layout layout = Layout.read(new SkyWater130(), new File(args[args.length-1]));
+        long start = System.currentTimeMillis();
+        CapacitanceTables tables = solve ? CapacitanceTables.forTech(layout.tech) : null;
+        List<RCNetwork> networks = new RCExtractor(layout, new Nets(layout), tables).extractAll();
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        for(RCNetwork rc : networks) if (rc.nodes() > 0) rc.writeSpice(pw);
+        pw.flush();
+        System.err.println(networks.size()+" nets extracted in "+(System.currentTimeMillis()-start)+"ms");
+    }
+}
@@ -0,0 +1,80 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.extract;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  The extracted RC network of one net: a node per shape, a grounded
+ *  capacitor at each node, and resistors between nodes.  Node k
+ *  stands for shape shape(k) of the Layout the net came from.
+ */
+public class RCNetwork {
+
+    /** the net number (see Nets) and its name */
+    public final int    net;
+    public final String name;
+
+    private final int[]    shapes;
+    private final double[] cap;
+    private final int[]    from;
+    private final int[]    to;
+    private final double[] ohms;
+
+    RCNetwork(int net, String name, int[] shapes, double[] cap, int[] from, int[] to, double[] ohms) {
+        this.net = net;
+        this.name = name;
+        this.shapes = shapes;
+        this.cap = cap;
+        this.from = from;
+        this.to = to;
+        this.ohms = ohms;
+    }
+
+    public int nodes()                   { return shapes.length; }
+    public int shape(int node)           { return shapes[node]; }
+    /** capacitance from the node to ground, in femtofarads */
+    public double capacitance(int node)  { return cap[node]; }
+    public int resistors()               { return ohms.length; }
+    public int from(int r)               { return from[r]; }
+    public int to(int r)                 { return to[r]; }
+    public double ohms(int r)            { return ohms[r]; }
+
+    /** the node standing for the given shape, or -1; nodes are in shape order */
+    public int node(int shape) {
+        int ret = Arrays.binarySearch(shapes, shape);
+        return ret < 0 ? -1 : ret;
+    }
+
+    public double totalCapacitance() {
+        double ret = 0;
+        for(double c : cap) ret += c;
+        return ret;
+    }
+
+    public String toString() {
+        return name+": "+nodes()+" nodes, "+resistors()+" resistors, "+String.format("%.4g", totalCapacitance())+"fF";
+    }
+
+    /** write the network as SPICE elements; node k is named "name:shape(k)" and ground is 0 */
+    public void writeSpice(PrintWriter pw) {
+        pw.println("* "+this);
+        for(int r=0; r<ohms.length; r++)
+            pw.println("R"+net+"_"+r+" "+name+":"+shapes[from[r]]+" "+name+":"+shapes[to[r]]+" "+String.format("%.6g", ohms[r]));
+        for(int k=0; k<cap.length; k++)
+            if (cap[k] > 0)
+                pw.println("C"+net+"_"+k+" "+name+":"+shapes[k]+" 0 "+String.format("%.6g", cap[k])+"f");
+    }
+}
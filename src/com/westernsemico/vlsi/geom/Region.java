@@ -0,0 +1,333 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.geom;
+import java.util.*;
+
+/**
+ *  An immutable area of the plane, in integer database units, stored
+ *  as non-overlapping horizontal trapezoids sorted by (ylo, xlb).
+ *  Each trapezoid has a bottom edge from (xlb,ylo) to (xhb,ylo) and a
+ *  top edge from (xlt,yhi) to (xht,yhi).
+ *
+ *  The boolean operations are computed by a scanline sweep (see
+ *  Scanline) and handle vertical, horizontal, and 45-degree edges
+ *  exactly, except where two 45-degree edges cross half way between
+ *  grid lines: that crossing is moved onto the grid, which puts a
+ *  1-dbu vertical step in the result and changes its area by at most
+ *  a quarter of a square dbu per such crossing.
+ */
+public final class Region {
+
+    /** the boolean operations; NOT is "a and not b" */
+    public enum Op {
+        AND { boolean eval(boolean a, boolean b) { return a && b; } },
+        OR  { boolean eval(boolean a, boolean b) { return a || b; } },
+        XOR { boolean eval(boolean a, boolean b) { return a != b; } },
+        NOT { boolean eval(boolean a, boolean b) { return a && !b; } };
+        abstract boolean eval(boolean a, boolean b);
+    }
+
+    public static final Region EMPTY = new Region(0, new int[0], new int[0], new int[0], new int[0], new int[0], new int[0]);
+
+    private final int   count;
+    private final int[] ylo, yhi, xlb, xhb, xlt, xht;
+
+    /** the height of the tallest trapezoid; bounds the search in contains() */
+    private final int   maxHeight;
+
+    private Region(int count, int[] ylo, int[] yhi, int[] xlb, int[] xhb, int[] xlt, int[] xht) {
+        this.count = count;
+        this.ylo = ylo; this.yhi = yhi;
+        this.xlb = xlb; this.xhb = xhb;
+        this.xlt = xlt; this.xht = xht;
+        int h = 0;
+        for(int i=0; i<count; i++) h = Math.max(h, yhi[i]-ylo[i]);
+        this.maxHeight = h;
+    }
+
+    // Construction //////////////////////////////////////////////////////////////////////////////
+
+    /** the area inside a polygon (nonzero winding rule) */
+    public static Region polygon(int[] xy, int npoints) {
+        Scanline.Edges edges = new Scanline.Edges();
+        edges.addPolygon(xy, npoints, 0);
+        return Scanline.sweep(edges, Op.OR);
+    }
+
+    public static Region rect(int xlo, int ylo, int xhi, int yhi) {
+        if (xhi <= xlo || yhi <= ylo) return EMPTY;
+        return new Region(1, new int[] { ylo }, new int[] { yhi }, new int[] { xlo }, new int[] { xhi }, new int[] { xlo }, new int[] { xhi });
+    }
+
+    /** the union of a collection of (possibly overlapping) trapezoids */
+    public static Region union(int n, int[] ylo, int[] yhi, int[] xlb, int[] xhb, int[] xlt, int[] xht) {
+        Scanline.Edges edges = new Scanline.Edges();
+        for(int i=0; i<n; i++) {
+            edges.add(xhb[i], ylo[i], xht[i], yhi[i], 0);
+            edges.add(xlt[i], yhi[i], xlb[i], ylo[i], 0);
+        }
+        return Scanline.sweep(edges, Op.OR);
+    }
+
+    /** regions occupying disjoint horizontal bands, bottom to top */
+    static Region concat(Region[] bands) {
+        Builder b = new Builder();
+        for(Region r : bands)
+            for(int i=0; i<r.count; i++)
+                b.append(r.ylo[i], r.yhi[i], r.xlb[i], r.xhb[i], r.xlt[i], r.xht[i]);
+        return b.build();
+    }
+
+    // Operations //////////////////////////////////////////////////////////////////////////////
+
+    public Region apply(Op op, Region other) {
+        Scanline.Edges edges = new Scanline.Edges();
+        edges.addRegion(this, 0);
+        edges.addRegion(other, 1);
+        return Scanline.sweep(edges, op);
+    }
+
+    public Region and(Region other) { return count==0 || other.count==0 ? EMPTY : apply(Op.AND, other); }
+    public Region or(Region other)  { return other.count==0 ? this : count==0 ? other : apply(Op.OR, other); }
+    public Region xor(Region other) { return other.count==0 ? this : count==0 ? other : apply(Op.XOR, other); }
+    public Region not(Region other) { return count==0 || other.count==0 ? this : apply(Op.NOT, other); }
+
+    /**
+     *  Grow (d>0) or shrink (d<0) by d database units in every
+     *  direction.  Growing is the Minkowski sum with a 2d-by-2d square,
+     *  computed per trapezoid (the convex hull of its corners offset
+     *  by the square) and then unioned; this keeps 45-degree edges at
+     *  45 degrees.  Shrinking grows the complement.
+     */
+    public Region size(int d) {
+        if (d == 0 || count == 0) return this;
+        if (d < 0) {
+            int m = -2*d + 1;
+            Region frame = rect(xmin()-m, ymin()-m, xmax()+m, ymax()+m);
+            return not(frame.not(this).size(-d));
+        }
+        Scanline.Edges edges = new Scanline.Edges();
+        int[] pts = new int[32];
+        for(int i=0; i<count; i++) {
+            int[] corners = { xlb[i], ylo[i], xhb[i], ylo[i], xht[i], yhi[i], xlt[i], yhi[i] };
+            for(int c=0; c<4; c++)
+                for(int s=0; s<4; s++) {
+                    pts[8*c+2*s]   = corners[2*c]   + ((s & 1)==0 ? -d : d);
+                    pts[8*c+2*s+1] = corners[2*c+1] + ((s & 2)==0 ? -d : d);
+                }
+            int[] hull = convexHull(pts, 16);
+            edges.addPolygon(hull, hull.length/2, 0);
+        }
+        return Scanline.sweep(edges, Op.OR);
+    }
+
+    /** Andrew's monotone chain; returns the hull vertices counterclockwise */
+    private static int[] convexHull(int[] pts, int n) {
+        long[] p = new long[n];
+        for(int i=0; i<n; i++) p[i] = ((long)pts[2*i] << 32) | (pts[2*i+1] ^ 0x80000000L) & 0xffffffffL;
+        Arrays.sort(p);
+        int[] hx = new int[2*n], hy = new int[2*n];
+        int k = 0;
+        for(int pass=0; pass<2; pass++) {
+            int start = k;
+            for(int j=0; j<n; j++) {
+                long q = p[pass==0 ? j : n-1-j];
+                int x = (int)(q >> 32), y = (int)(q ^ 0x80000000L);
+                while (k >= start+2 &&
+                       (long)(hx[k-1]-hx[k-2])*(y-hy[k-2]) - (long)(hy[k-1]-hy[k-2])*(x-hx[k-2]) <= 0) k--;
+                hx[k] = x; hy[k] = y; k++;
+            }
+            k--;   // the last point of each chain is the first point of the other
+        }
+        int[] ret = new int[2*k];
+        for(int i=0; i<k; i++) { ret[2*i] = hx[i]; ret[2*i+1] = hy[i]; }
+        return ret;
+    }
+
+    /**
+     *  The boundary of the region as directed edges, four ints
+     *  (x0,y0,x1,y1) per edge, with the inside of the region on the
+     *  left of each edge; the outward normal of an edge is therefore
+     *  (y1-y0, x0-x1).  Seams between trapezoids are not part of the
+     *  boundary and are omitted.
+     */
+    public int[] boundary() {
+        IntList out = new IntList();
+        for(int i=0; i<count; i++) {
+            out.add(xhb[i], ylo[i], xht[i], yhi[i]);
+            out.add(xlt[i], yhi[i], xlb[i], ylo[i]);
+        }
+
+        // horizontal edges: the tops at each y which are not also bottoms, and vice versa
+        long[] order = new long[count];
+        for(int i=0; i<count; i++) order[i] = ((long)yhi[i] << 32) | i;
+        Arrays.sort(order);
+        int[] tx0 = new int[count], tx1 = new int[count];
+        int b = 0, t = 0;
+        while (b < count || t < count) {
+            int y = Math.min(b < count ? ylo[b] : Integer.MAX_VALUE, t < count ? (int)(order[t] >> 32) : Integer.MAX_VALUE);
+            int b1 = b; while (b1 < count && ylo[b1] == y) b1++;
+            int t1 = t; while (t1 < count && (int)(order[t1] >> 32) == y) t1++;
+            // the bottoms are already in x order; sort the tops into x order (there are rarely more than a few)
+            for(int k=t; k<t1; k++) {
+                int i = (int)order[k], j = k;
+                while (j > t && tx0[j-1] > xlt[i]) { tx0[j] = tx0[j-1]; tx1[j] = tx1[j-1]; j--; }
+                tx0[j] = xlt[i]; tx1[j] = xht[i];
+            }
+            subtract(tx0, tx1, t, t1, xlb, xhb, b, b1, y, false, out);
+            subtract(xlb, xhb, b, b1, tx0, tx1, t, t1, y, true,  out);
+            b = b1; t = t1;
+        }
+        return out.toArray();
+    }
+
+    /** emit the parts of the sorted disjoint intervals a[a0..a1) which are not covered by the sorted disjoint intervals b[b0..b1) */
+    private static void subtract(int[] ax0, int[] ax1, int a0, int a1, int[] bx0, int[] bx1, int b0, int b1,
+                                 int y, boolean bottom, IntList out) {
+        int j = b0;
+        for(int i=a0; i<a1; i++) {
+            int x = ax0[i];
+            while (j < b1 && bx1[j] <= x) j++;
+            for(int k=j; k<b1 && bx0[k] < ax1[i]; k++) {
+                if (bx0[k] > x) emit(x, bx0[k], y, bottom, out);
+                x = Math.max(x, bx1[k]);
+            }
+            if (x < ax1[i]) emit(x, ax1[i], y, bottom, out);
+        }
+    }
+
+    private static void emit(int x0, int x1, int y, boolean bottom, IntList out) {
+        if (bottom) out.add(x0, y, x1, y);
+        else        out.add(x1, y, x0, y);
+    }
+
+    /** a growable int array */
+    private static class IntList {
+        int n = 0;
+        int[] a = new int[64];
+        void add(int x0, int y0, int x1, int y1) {
+            if (n+4 > a.length) a = Arrays.copyOf(a, 2*a.length);
+            a[n++] = x0; a[n++] = y0; a[n++] = x1; a[n++] = y1;
+        }
+        int[] toArray() { return Arrays.copyOf(a, n); }
+    }
+
+    // Accessors //////////////////////////////////////////////////////////////////////////////
+
+    public int count() { return count; }
+    public boolean isEmpty() { return count == 0; }
+    public int ylo(int i) { return ylo[i]; }
+    public int yhi(int i) { return yhi[i]; }
+    public int xlb(int i) { return xlb[i]; }
+    public int xhb(int i) { return xhb[i]; }
+    public int xlt(int i) { return xlt[i]; }
+    public int xht(int i) { return xht[i]; }
+
+    /** area in square database units */
+    public double area() {
+        double ret = 0;
+        for(int i=0; i<count; i++) ret += ((xhb[i]-xlb[i]) + (double)(xht[i]-xlt[i])) * (yhi[i]-ylo[i]) / 2.0;
+        return ret;
+    }
+
+    /** true if (x,y) is strictly inside the region */
+    public boolean contains(double x, double y) {
+        // trapezoids are sorted by ylo, so only those with ylo in (y-maxHeight, y) can contain the point
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if (ylo[mid] < y - maxHeight) lo = mid+1; else hi = mid;
+        }
+        for(int i=lo; i<count && ylo[i] < y; i++) {
+            if (yhi[i] <= y) continue;
+            double f = (y-ylo[i]) / (yhi[i]-ylo[i]);
+            if (x > xlb[i] + f*(xlt[i]-xlb[i]) && x < xhb[i] + f*(xht[i]-xhb[i])) return true;
+        }
+        return false;
+    }
+
+    public int xmin() { int ret = Integer.MAX_VALUE; for(int i=0; i<count; i++) ret = Math.min(ret, Math.min(xlb[i], xlt[i])); return ret; }
+    public int xmax() { int ret = Integer.MIN_VALUE; for(int i=0; i<count; i++) ret = Math.max(ret, Math.max(xhb[i], xht[i])); return ret; }
+    public int ymin() { return count==0 ? Integer.MAX_VALUE : ylo[0]; }
+    public int ymax() { int ret = Integer.MIN_VALUE; for(int i=0; i<count; i++) ret = Math.max(ret, yhi[i]); return ret; }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Region[");
+        for(int i=0; i<count; i++)
+            sb.append(i==0?"":" ").append("{y="+ylo[i]+".."+yhi[i]+" bot="+xlb[i]+".."+xhb[i]+" top="+xlt[i]+".."+xht[i]+"}");
+        return sb.append("]").toString();
+    }
+
+    // Builder //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Accumulates trapezoids slab by slab (increasing y, and
+     *  increasing x within a slab), merging each one into the
+     *  trapezoid directly beneath it when their side edges are
+     *  collinear.
+     */
+    static class Builder {
+        private int n = 0;
+        private int[] ylo = new int[16], yhi = new int[16], xlb = new int[16], xhb = new int[16], xlt = new int[16], xht = new int[16];
+        private int   slabY0 = Integer.MIN_VALUE, slabY1 = Integer.MIN_VALUE;
+        private int[] below = new int[16], current = new int[16];
+        private int   nbelow = 0, ncurrent = 0, p = 0;
+
+        void add(int y0, int y1, int lb, int hb, int lt, int ht) {
+            if (lb == hb && lt == ht) return;
+            if (y0 != slabY0) {
+                int[] t = below; below = current; current = t;
+                nbelow = slabY1 == y0 ? ncurrent : 0;
+                ncurrent = 0; p = 0;
+                slabY0 = y0; slabY1 = y1;
+            }
+            while (p < nbelow && xlt[below[p]] < lb) p++;
+            int i = -1;
+            if (p < nbelow) {
+                int q = below[p];
+                if (yhi[q] == y0 && xlt[q] == lb && xht[q] == hb &&
+                    (long)(xlt[q]-xlb[q])*(y1-y0) == (long)(lt-lb)*(yhi[q]-ylo[q]) &&
+                    (long)(xht[q]-xhb[q])*(y1-y0) == (long)(ht-hb)*(yhi[q]-ylo[q])) {
+                    i = q;
+                    yhi[i] = y1; xlt[i] = lt; xht[i] = ht;
+                    p++;
+                }
+            }
+            if (i == -1) i = append(y0, y1, lb, hb, lt, ht);
+            if (ncurrent == current.length) current = Arrays.copyOf(current, 2*ncurrent);
+            current[ncurrent++] = i;
+        }
+
+        /** add a trapezoid without attempting to merge it */
+        int append(int y0, int y1, int lb, int hb, int lt, int ht) {
+            if (n == ylo.length) {
+                int m = 2*n;
+                ylo = Arrays.copyOf(ylo, m); yhi = Arrays.copyOf(yhi, m);
+                xlb = Arrays.copyOf(xlb, m); xhb = Arrays.copyOf(xhb, m);
+                xlt = Arrays.copyOf(xlt, m); xht = Arrays.copyOf(xht, m);
+            }
+            ylo[n] = y0; yhi[n] = y1; xlb[n] = lb; xhb[n] = hb; xlt[n] = lt; xht[n] = ht;
+            return n++;
+        }
+
+        Region build() {
+            if (n == 0) return EMPTY;
+            return new Region(n,
+                              Arrays.copyOf(ylo, n), Arrays.copyOf(yhi, n),
+                              Arrays.copyOf(xlb, n), Arrays.copyOf(xhb, n),
+                              Arrays.copyOf(xlt, n), Arrays.copyOf(xht, n));
+        }
+    }
+}
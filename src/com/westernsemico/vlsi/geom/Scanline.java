@@ -0,0 +1,217 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.geom;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ *  The scanline engine behind Region.  Input is a bag of
+ *  non-horizontal edges, each tagged with which operand (0 or 1) it
+ *  belongs to and a winding direction; output is the set of
+ *  horizontal trapezoids where the boolean operation holds.
+ *
+ *  The plane is cut into horizontal slabs at every edge endpoint and
+ *  at every point where two edges cross; within a slab the edges
+ *  keep their left-to-right order, so one pass across the slab with
+ *  a winding count per operand finds the covered intervals.
+ *  Vertically adjacent pieces whose side edges continue straight are
+ *  merged as they are emitted.
+ *
+ *  Edges are arbitrary-angle, but only vertical and 45-degree edges
+ *  keep integer coordinates at every slab boundary; other angles are
+ *  rounded to the nearest database unit.  Even 45-degree edges are
+ *  not exact where a rising and a falling one are an odd distance
+ *  apart, since they then cross at a half-integer y.  The slab is
+ *  cut at the grid line just below the crossing, and the 1-dbu slab
+ *  above it is emitted from the rounded ends, so the crossing vertex
+ *  moves by half a dbu and the result is off by at most a quarter of
+ *  a square dbu per such crossing, all within that slab.
+ */
+class Scanline {
+
+    /** sweeps with more edges than this are cut into horizontal bands which are swept in parallel */
+    static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    /** a growable column-wise list of edges; each runs upward from (xb,ylo) to (xt,yhi) */
+    static class Edges {
+        int n = 0;
+        int[] ylo = new int[64], yhi = new int[64], xb = new int[64], xt = new int[64];
+        byte[] dir = new byte[64], tag = new byte[64];
+
+        void add(int x0, int y0, int x1, int y1, int tag) {
+            if (y0 == y1) return;
+            if (n == ylo.length) {
+                int m = 2*n;
+                ylo = Arrays.copyOf(ylo, m); yhi = Arrays.copyOf(yhi, m);
+                xb  = Arrays.copyOf(xb,  m); xt  = Arrays.copyOf(xt,  m);
+                dir = Arrays.copyOf(dir, m); this.tag = Arrays.copyOf(this.tag, m);
+            }
+            if (y0 < y1) { ylo[n] = y0; yhi[n] = y1; xb[n] = x0; xt[n] = x1; dir[n] =  1; }
+            else         { ylo[n] = y1; yhi[n] = y0; xb[n] = x1; xt[n] = x0; dir[n] = -1; }
+            this.tag[n] = (byte)tag;
+            n++;
+        }
+
+        /** add a closed polygon */
+        void addPolygon(int[] xy, int npoints, int tag) {
+            for(int i=0; i<npoints; i++) {
+                int j = (i+1) % npoints;
+                add(xy[2*i], xy[2*i+1], xy[2*j], xy[2*j+1], tag);
+            }
+        }
+
+        /** add every trapezoid of a region */
+        void addRegion(Region r, int tag) {
+            for(int i=0; i<r.count(); i++) {
+                add(r.xhb(i), r.ylo(i), r.xht(i), r.yhi(i), tag);
+                add(r.xlt(i), r.yhi(i), r.xlb(i), r.ylo(i), tag);
+            }
+        }
+
+        int x(int e, int y) {
+            if (y == ylo[e]) return xb[e];
+            if (y == yhi[e]) return xt[e];
+            return (int)Math.round(xb[e] + (xt[e]-xb[e]) * (double)(y-ylo[e]) / (yhi[e]-ylo[e]));
+        }
+
+        /** the edges which cross the band [y0,y1], clipped to it */
+        Edges clip(int y0, int y1) {
+            Edges ret = new Edges();
+            for(int e=0; e<n; e++) {
+                if (yhi[e] <= y0 || ylo[e] >= y1) continue;
+                int a = Math.max(ylo[e], y0), b = Math.min(yhi[e], y1);
+                if (dir[e] > 0) ret.add(x(e, a), a, x(e, b), b, tag[e]);
+                else            ret.add(x(e, b), b, x(e, a), a, tag[e]);
+            }
+            return ret;
+        }
+    }
+
+    static Region sweep(Edges edges, Region.Op op) {
+        if (edges.n < PARALLEL_THRESHOLD) return sweepSerial(edges, op);
+
+        // cut into bands holding roughly equal numbers of edge endpoints
+        int nbands = 4 * Runtime.getRuntime().availableProcessors();
+        int[] starts = Arrays.copyOf(edges.ylo, edges.n);
+        Arrays.sort(starts);
+        int[] cuts = new int[nbands+1];
+        cuts[0] = Integer.MIN_VALUE;
+        for(int i=1; i<nbands; i++) cuts[i] = starts[(int)((long)i * edges.n / nbands)];
+        cuts[nbands] = Integer.MAX_VALUE;
+        Region[] bands =
+            IntStream.range(0, nbands)
+            .parallel()
+            .mapToObj(i -> cuts[i] >= cuts[i+1] ? Region.EMPTY : sweepSerial(edges.clip(cuts[i], cuts[i+1]), op))
+            .toArray(Region[]::new);
+        return Region.concat(bands);
+    }
+
+    static Region sweepSerial(Edges edges, Region.Op op) {
+        int n = edges.n;
+        long[] order = new long[n];
+        for(int i=0; i<n; i++) order[i] = ((long)edges.ylo[i] << 32) | i;
+        Arrays.sort(order);
+        int[] ys = new int[2*n];
+        for(int i=0; i<n; i++) { ys[2*i] = edges.ylo[i]; ys[2*i+1] = edges.yhi[i]; }
+        Arrays.sort(ys);
+
+        Region.Builder out = new Region.Builder();
+        int[] active = new int[16];
+        int nactive = 0, next = 0;
+        long[] keys = new long[16];
+        int[] x0 = new int[16], x1 = new int[16];
+        for(int k=0; k+1<ys.length; k++) {
+            int y0 = ys[k], yend = ys[k+1];
+            if (y0 == yend) continue;
+            while (next < n && edges.ylo[(int)order[next]] <= y0) {
+                if (nactive == active.length) active = Arrays.copyOf(active, 2*nactive);
+                active[nactive++] = (int)order[next++];
+            }
+            int m = 0;
+            for(int i=0; i<nactive; i++) if (edges.yhi[active[i]] > y0) active[m++] = active[i];
+            nactive = m;
+            if (keys.length < nactive) { keys = new long[2*nactive]; x0 = new int[2*nactive]; x1 = new int[2*nactive]; }
+
+            // split the slab wherever edges cross
+            while (y0 < yend) {
+                int y1 = yend;
+                for(int i=0; i<nactive; i++)
+                    keys[i] = key(edges.x(active[i], y0), edges.x(active[i], y1));
+                sortByKey(active, keys, nactive);
+                for(int i=0; i+1<nactive; i++) {
+                    int a = active[i], b = active[i+1];
+                    int d0 = edges.x(a, y0) - edges.x(b, y0), d1 = edges.x(a, y1) - edges.x(b, y1);
+                    if (d1 <= 0) continue;
+                    int yc = (int)Math.floor(y0 + (y1-y0) * (double)(-d0) / (d1-d0));
+                    if (yc <= y0) yc = Math.min(y0+1, y1);
+                    if (yc < y1) y1 = yc;
+                }
+                if (y1 != yend) {
+                    for(int i=0; i<nactive; i++)
+                        keys[i] = key(edges.x(active[i], y0), edges.x(active[i], y1));
+                    sortByKey(active, keys, nactive);
+                }
+                for(int i=0; i<nactive; i++) { x0[i] = edges.x(active[i], y0); x1[i] = edges.x(active[i], y1); }
+                emitSlab(edges, active, x0, x1, nactive, y0, y1, op, out);
+                y0 = y1;
+            }
+        }
+        return out.build();
+    }
+
+    /** a sort key ordering by x0 and then by x1 */
+    private static long key(int x0, int x1) { return ((long)x0 << 32) | ((x1 ^ 0x80000000) & 0xffffffffL); }
+
+    /** walk one slab left to right, tracking the winding number of each operand */
+    private static void emitSlab(Edges edges, int[] active, int[] x0, int[] x1, int nactive,
+                                 int y0, int y1, Region.Op op, Region.Builder out) {
+        int wa = 0, wb = 0;
+        boolean inside = false;
+        int lb = 0, lt = 0;
+        for(int i=0; i<nactive; i++) {
+            int e = active[i];
+            if (edges.tag[e] == 0) wa += edges.dir[e]; else wb += edges.dir[e];
+            // only act once every edge at this position has been counted
+            if (i+1 < nactive && x0[i+1] == x0[i] && x1[i+1] == x1[i]) continue;
+            boolean now = op.eval(wa != 0, wb != 0);
+            if (now == inside) continue;
+            if (now) { lb = x0[i]; lt = x1[i]; }
+            else     out.add(y0, y1, lb, Math.max(lb, x0[i]), lt, Math.max(lt, x1[i]));
+            inside = now;
+        }
+    }
+
+    /** sort active[0..n) by keys[0..n), carrying the keys along; a merge sort, since the order changes little from one slab to the next */
+    private static void sortByKey(int[] active, long[] keys, int n) {
+        if (n < 2) return;
+        long[] tk = new long[n];
+        int[]  ta = new int[n];
+        for(int width=1; width<n; width*=2) {
+            for(int lo=0; lo<n-width; lo+=2*width) {
+                int mid = lo+width, hi = Math.min(lo+2*width, n);
+                if (keys[mid-1] <= keys[mid]) continue;
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    if (keys[i] <= keys[j]) { tk[k] = keys[i]; ta[k++] = active[i++]; }
+                    else                    { tk[k] = keys[j]; ta[k++] = active[j++]; }
+                }
+                while (i < mid) { tk[k] = keys[i]; ta[k++] = active[i++]; }
+                while (j < hi)  { tk[k] = keys[j]; ta[k++] = active[j++]; }
+                System.arraycopy(tk, lo, keys, lo, hi-lo);
+                System.arraycopy(ta, lo, active, lo, hi-lo);
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.geom;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ *  A store for full-chip geometry which lives outside the Java heap.
+ *  Each shape is a horizontal trapezoid (as in Region and Layout)
+ *  plus a layer ordinal and a net id, 32 bytes in all, kept in eight
+ *  columns.  Each column is a file mapped into memory in fixed-size
+ *  segments, so the operating system pages the store to and from
+ *  disk as needed and the garbage collector sees only a few hundred
+ *  buffer objects no matter how many shapes there are; 10^9 shapes
+ *  is 32GB of files.
+ *
+ *  Shapes are referred to by a long index, which changes when the
+ *  store is sorted.  Range scans require the store to be sorted.
+ *  Sorting groups the shapes into buckets by the bit lengths of
+ *  their width and height, and orders each bucket by vertical strip
+ *  (a power of two at least as wide as any shape in the bucket) and
+ *  then by ylo.  Since a bucket's shapes are all within a factor of
+ *  two of its widest and tallest, a scan visits in each bucket only
+ *  the strips, and the stretch of each strip, which the window
+ *  widened by those can reach; a query costs about as much as the
+ *  shapes it returns, whether the store holds chip-wide rails or a
+ *  field of vias.
+ *
+ *  A store which is not temporary writes a small header file (its
+ *  size, whether it is sorted, and its buckets) when closed, and
+ *  open() reads the store back from its directory.  The header is
+ *  removed while the store is open, so a store which was not closed
+ *  cleanly cannot be reopened.
+ */
+public class ShapeStore implements Closeable {
+
+    /** each segment holds 2^SEGMENT_BITS shapes (16MB per column) */
+    private static final int SEGMENT_BITS = 22;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int LAYER = 0, YLO = 1, YHI = 2, XLB = 3, XHB = 4, XLT = 5, XHT = 6, NET = 7, NCOLUMNS = 8;
+    private static final String[] COLUMN_NAMES = { "layer", "ylo", "yhi", "xlb", "xhb", "xlt", "xht", "net" };
+
+    /** the header file's name, and the number it starts with ("SHS" and a format version) */
+    private static final String HEADER = "header";
+    private static final int    MAGIC  = 0x53485303;
+
+    /** bucket NCLASSES*cw+ch holds widths of bit length cw and heights of bit length ch (lengths over 31 counting as 31) */
+    private static final int NCLASSES = 32, NBUCKETS = NCLASSES*NCLASSES;
+
+    /** strips are at least 2^STRIP_BITS wide, which keeps the strip number to 21 bits of the sort key */
+    private static final int STRIP_BITS = 11;
+
+    private final File    dir;
+    private final boolean temporary;
+    private Column[]      columns;
+    private long          size = 0;
+    private boolean       sorted = true;
+
+    /** per bucket: how many shapes, and the widest and tallest, which bound how far left of and below a scan window a matching shape can begin */
+    private final long[]  bucketCount = new long[NBUCKETS];
+    private final int[]   bucketWidth = new int[NBUCKETS];
+    private final int[]   bucketHeight = new int[NBUCKETS];
+
+    /** once sorted, bucket b is shapes [bucketStart[b], bucketStart[b+1]) */
+    private final long[]  bucketStart = new long[NBUCKETS+1];
+
+    /** an empty store whose files are created in dir (which must exist), replacing any store there, and left there when the store is closed */
+    public ShapeStore(File dir) throws IOException { this(dir, false); }
+
+    /** a store in a temporary directory which is deleted when the store is closed */
+    public ShapeStore() throws IOException { this(Files.createTempDirectory("shapestore").toFile(), true); }
+
+    private ShapeStore(File dir, boolean temporary) throws IOException {
+        this.dir = dir;
+        this.temporary = temporary;
+        Files.deleteIfExists(new File(dir, HEADER).toPath());
+        this.columns = openColumns("", true);
+    }
+
+    /** reopen the store which was closed in dir */
+    public static ShapeStore open(File dir) throws IOException {
+        File header = new File(dir, HEADER);
+        if (!header.exists()) throw new IOException(dir+" holds no ShapeStore, or one which was not closed");
+        long size;
+        boolean sorted;
+        long[] count = new long[NBUCKETS];
+        int[] width = new int[NBUCKETS], height = new int[NBUCKETS];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(header))) {
+            if (in.readInt() != MAGIC) throw new IOException(header+" is not a ShapeStore header");
+            if (in.readBoolean() != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN))
+                throw new IOException(dir+" was written with the other byte order");
+            size = in.readLong();
+            sorted = in.readBoolean();
+            for(int b=0; b<NBUCKETS; b++) { count[b] = in.readLong(); width[b] = in.readInt(); height[b] = in.readInt(); }
+        }
+        ShapeStore ret = new ShapeStore(dir, size, sorted, count, width, height);
+        Files.delete(header.toPath());
+        return ret;
+    }
+
+    private ShapeStore(File dir, long size, boolean sorted, long[] count, int[] width, int[] height) throws IOException {
+        this.dir = dir;
+        this.temporary = false;
+        this.columns = openColumns("", false);
+        this.size = size;
+        this.sorted = sorted;
+        System.arraycopy(count, 0, bucketCount, 0, NBUCKETS);
+        System.arraycopy(width, 0, bucketWidth, 0, NBUCKETS);
+        System.arraycopy(height, 0, bucketHeight, 0, NBUCKETS);
+        computeBucketStarts();
+        for(int s=0; ((long)s << SEGMENT_BITS) < size; s++)
+            for(Column c : columns) c.segment(s);
+    }
+
+    private Column[] openColumns(String suffix, boolean create) throws IOException {
+        Column[] ret = new Column[NCOLUMNS];
+        for(int c=0; c<NCOLUMNS; c++) ret[c] = new Column(new File(dir, COLUMN_NAMES[c]+suffix), create);
+        return ret;
+    }
+
+    /** one int per shape, in a file mapped segment by segment */
+    private static class Column {
+        File              file;
+        final FileChannel channel;
+        IntBuffer[]       segments = new IntBuffer[16];
+        Column(File file, boolean create) throws IOException {
+            this.file = file;
+            this.channel = create
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        IntBuffer segment(int s) throws IOException {
+            if (s >= segments.length) segments = Arrays.copyOf(segments, Math.max(2*segments.length, s+1));
+            if (segments[s] == null)
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, (long)s * SEGMENT_SIZE * 4, (long)SEGMENT_SIZE * 4)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            return segments[s];
+        }
+        int  get(long i)        { return segments[(int)(i >>> SEGMENT_BITS)].get((int)(i & SEGMENT_MASK)); }
+        void put(long i, int v) { segments[(int)(i >>> SEGMENT_BITS)].put((int)(i & SEGMENT_MASK), v); }
+        void close() throws IOException {
+            segments = null;
+            channel.close();
+        }
+    }
+
+    // Appending //////////////////////////////////////////////////////////////////////////////
+
+    public long append(int layer, int ylo, int yhi, int xlb, int xhb, int xlt, int xht, int net) throws IOException {
+        if ((size & SEGMENT_MASK) == 0)
+            for(Column c : columns) c.segment((int)(size >>> SEGMENT_BITS));
+        long i = size++;
+        columns[LAYER].put(i, layer);
+        columns[YLO].put(i, ylo); columns[YHI].put(i, yhi);
+        columns[XLB].put(i, xlb); columns[XHB].put(i, xhb);
+        columns[XLT].put(i, xlt); columns[XHT].put(i, xht);
+        columns[NET].put(i, net);
+        int b = bucket(i);
+        bucketCount[b]++;
+        bucketWidth[b]  = Math.max(bucketWidth[b],  width(i));
+        bucketHeight[b] = Math.max(bucketHeight[b], height(i));
+        sorted = false;
+        return i;
+    }
+
+    public long appendRect(int layer, int xlo, int ylo, int xhi, int yhi, int net) throws IOException {
+        return append(layer, ylo, yhi, xlo, xhi, xlo, xhi, net);
+    }
+
+    public void setNet(long i, int net) { columns[NET].put(i, net); }
+
+    // Accessors //////////////////////////////////////////////////////////////////////////////
+
+    public long size()         { return size; }
+    public boolean isSorted()  { return sorted; }
+    public int layer(long i)   { return columns[LAYER].get(i); }
+    public int ylo(long i)     { return columns[YLO].get(i); }
+    public int yhi(long i)     { return columns[YHI].get(i); }
+    public int xlb(long i)     { return columns[XLB].get(i); }
+    public int xhb(long i)     { return columns[XHB].get(i); }
+    public int xlt(long i)     { return columns[XLT].get(i); }
+    public int xht(long i)     { return columns[XHT].get(i); }
+    public int net(long i)     { return columns[NET].get(i); }
+    public int xmin(long i)    { return Math.min(xlb(i), xlt(i)); }
+    public int xmax(long i)    { return Math.max(xhb(i), xht(i)); }
+
+    private int width(long i)  { return (int)Math.min(Integer.MAX_VALUE, (long)xmax(i) - xmin(i)); }
+    private int height(long i) { return (int)Math.min(Integer.MAX_VALUE, (long)yhi(i) - ylo(i)); }
+    private static int lengthClass(int v) { return Math.min(NCLASSES-1, 32 - Integer.numberOfLeadingZeros(v)); }
+
+    private int bucket(long i) { return NCLASSES*lengthClass(width(i)) + lengthClass(height(i)); }
+
+    /** the strips of a bucket are 2^stripBits wide, which is more than the width of any of its shapes */
+    private static int stripBits(int bucket) { return Math.max(STRIP_BITS, bucket / NCLASSES); }
+
+    /** the sort key: bucket, then strip, then y, each made unsigned; 10+21+32 bits */
+    private static long key(int bucket, long strip, long y) { return ((long)bucket << 53) | (strip << 32) | y; }
+    private static long unsigned(long v) { return Math.max(0, v - Integer.MIN_VALUE); }
+    private long key(int bucket, long i) { return key(bucket, unsigned(xmin(i)) >>> stripBits(bucket), unsigned(ylo(i))); }
+    private long key(long i) { return key(bucket(i), i); }
+
+    private void computeBucketStarts() {
+        for(int b=0; b<NBUCKETS; b++) bucketStart[b+1] = bucketStart[b] + bucketCount[b];
+    }
+
+    // Sorting //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Sort by bucket, strip and ylo.  Each segment is sorted in place (one segment's
+     *  keys on the heap at a time) and the sorted segments are then
+     *  merged into a fresh set of column files, so the sort never
+     *  needs more memory than one segment regardless of the size of
+     *  the store.
+     */
+    public void sortByX() throws IOException {
+        if (sorted) return;
+        int nsegments = (int)((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+
+        // sort each segment in place
+        // a key leaves no room for an index, so the keys are sorted, each replaced by its rank, and the (rank, index) pairs sorted
+        long[] keys   = new long[(int)Math.min(size, SEGMENT_SIZE)];
+        long[] ranked = new long[keys.length];
+        int[]  tmp    = new int[keys.length];
+        for(int s=0; s<nsegments; s++) {
+            int n = (int)Math.min(SEGMENT_SIZE, size - ((long)s << SEGMENT_BITS));
+            long base = (long)s << SEGMENT_BITS;
+            for(int i=0; i<n; i++) ranked[i] = keys[i] = key(base+i);
+            Arrays.sort(ranked, 0, n);
+            for(int i=0; i<n; i++) keys[i] = ((long)Arrays.binarySearch(ranked, 0, n, keys[i]) << SEGMENT_BITS) | i;
+            Arrays.sort(keys, 0, n);
+            for(Column c : columns) {
+                IntBuffer seg = c.segments[s];
+                for(int i=0; i<n; i++) tmp[i] = seg.get((int)(keys[i] & SEGMENT_MASK));
+                for(int i=0; i<n; i++) seg.put(i, tmp[i]);
+            }
+        }
+
+        // merge the segments, keeping a heap of segments ordered by the key of each one's head
+        if (nsegments > 1) {
+            Column[] out = openColumns(".sorted", true);
+            int[]  heap = new int[nsegments];
+            long[] head = new long[nsegments];
+            long[] next = new long[nsegments];
+            long[] end  = new long[nsegments];
+            int nheap = 0;
+            for(int s=0; s<nsegments; s++) {
+                next[s] = (long)s << SEGMENT_BITS;
+                end[s]  = Math.min(size, next[s] + SEGMENT_SIZE);
+                head[s] = key(next[s]);
+                heap[nheap++] = s;
+            }
+            for(int i=nheap/2-1; i>=0; i--) siftDown(heap, head, i, nheap);
+            for(long k=0; k<size; k++) {
+                if ((k & SEGMENT_MASK) == 0)
+                    for(Column c : out) c.segment((int)(k >>> SEGMENT_BITS));
+                int s = heap[0];
+                long i = next[s]++;
+                for(int c=0; c<NCOLUMNS; c++) out[c].put(k, columns[c].get(i));
+                if (next[s] < end[s]) head[s] = key(next[s]);
+                else                  heap[0] = heap[--nheap];
+                siftDown(heap, head, 0, nheap);
+            }
+            for(int c=0; c<NCOLUMNS; c++) {
+                columns[c].close();
+                Files.move(out[c].file.toPath(), columns[c].file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                out[c].file = columns[c].file;
+            }
+            columns = out;
+        }
+        computeBucketStarts();
+        sorted = true;
+    }
+
+    private static void siftDown(int[] heap, long[] head, int i, int n) {
+        while (true) {
+            int c = 2*i+1;
+            if (c >= n) return;
+            if (c+1 < n && head[heap[c+1]] < head[heap[c]]) c++;
+            if (head[heap[i]] <= head[heap[c]]) return;
+            int t = heap[i]; heap[i] = heap[c]; heap[c] = t;
+            i = c;
+        }
+    }
+
+    // Range Scans //////////////////////////////////////////////////////////////////////////////
+
+    public static interface Visitor { public void visit(long shape); }
+
+    /**
+     *  Visit every shape on the given layer (or on every layer, if
+     *  layer is negative) whose bounding box overlaps the rectangle
+     *  [xlo,xhi]x[ylo,yhi].  The store must be sorted.
+     */
+    public void scan(int layer, int xlo, int ylo, int xhi, int yhi, Visitor visitor) {
+        if (!sorted) throw new IllegalStateException("ShapeStore.scan() requires sortByX() first");
+        for(int b=0; b<NBUCKETS; b++) {
+            long i = bucketStart[b], end = bucketStart[b+1];
+            if (i == end) continue;
+            int  bits  = stripBits(b);
+            long strip = unsigned((long)xlo - bucketWidth[b]) >>> bits;
+            long last  = unsigned(xhi) >>> bits;
+            long y0 = unsigned((long)ylo - bucketHeight[b]), y1 = unsigned(yhi);
+            while (strip <= last) {
+                // the first shape of this strip which can reach the window, or of a later strip
+                long lo = i, hi = end, from = key(b, strip, y0);
+                while (lo < hi) {
+                    long mid = (lo+hi) >>> 1;
+                    if (key(b, mid) < from) lo = mid+1; else hi = mid;
+                }
+                i = lo;
+                if (i == end) break;
+                long k = key(b, i), s = (k >>> 32) & ((1L << 21) - 1);
+                if (s != strip) { strip = s; continue; }
+                for(long to = key(b, strip, y1); i<end && key(b, i) <= to; i++) {
+                    if (xmax(i) < xlo || xmin(i) > xhi) continue;
+                    if (yhi(i) < ylo || ylo(i) > yhi) continue;
+                    if (layer >= 0 && layer(i) != layer) continue;
+                    visitor.visit(i);
+                }
+                strip++;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        for(Column c : columns) {
+            c.close();
+            if (temporary) c.file.delete();
+        }
+        if (temporary) { dir.delete(); return; }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, HEADER)))) {
+            out.writeInt(MAGIC);
+            out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+            out.writeLong(size);
+            out.writeBoolean(sorted);
+            for(int b=0; b<NBUCKETS; b++) { out.writeLong(bucketCount[b]); out.writeInt(bucketWidth[b]); out.writeInt(bucketHeight[b]); }
+        }
+    }
+}
@@ -30,6 +30,11 @@ public class GDSLayer {
         GDSLayer go = (GDSLayer)other;
         return go.major == major && go.minor == minor;
     }
-    public int hashCode() { return major ^ minor; }
+    public int hashCode() { return key(); }
+
+    /** the major/minor numbers packed into one int; GDS layer numbers are 16 bits, so distinct layers have distinct keys */
+    public int key() { return key(major, minor); }
+    public static int key(int major, int minor) { return (major << 16) | (minor & 0xffff); }
+
     public String toString() { return name+"("+major+"/"+minor+")"; }
 }
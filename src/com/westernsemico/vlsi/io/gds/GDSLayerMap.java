@@ -0,0 +1,88 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.io.gds;
+import java.util.*;
+
+/**
+ *  A map keyed by GDS layer which is looked up by the raw major/minor
+ *  numbers, as they come out of a GDS record, without allocating.
+ *  Keys are packed as GDSLayer.key() into a flat open-addressing
+ *  table with linear probing; since the packing is one-to-one for
+ *  16-bit layer numbers, distinct layers never compare equal and a
+ *  probe is a single int comparison.  Every int is a possible key, so
+ *  which slots are occupied is kept separately.
+ */
+public class GDSLayerMap<V> {
+
+    private int      size = 0;
+    private int[]    keys;
+    private boolean[] used;
+    private Object[] values;
+
+    public GDSLayerMap() { this(16); }
+
+    public GDSLayerMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(4, capacity*2-1));
+        keys = new int[n];
+        used = new boolean[n];
+        values = new Object[n];
+    }
+
+    /** a multiplicative hash; the low bits of a packed key are the minor number, which alone would cluster badly */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public int size() { return size; }
+
+    public V get(GDSLayer g) { return get(g.key()); }
+    public V get(int major, int minor) { return get(GDSLayer.key(major, minor)); }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length-1;
+        for(int i=slot(key, mask); ; i=(i+1) & mask) {
+            if (!used[i])       return null;
+            if (keys[i] == key) return (V)values[i];
+        }
+    }
+
+    /** returns the previous value, if any */
+    public V put(GDSLayer g, V value) { return put(g.key(), value); }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (2*(size+1) > keys.length) rehash(2*keys.length);
+        int mask = keys.length-1;
+        for(int i=slot(key, mask); ; i=(i+1) & mask) {
+            if (!used[i]) { used[i] = true; keys[i] = key; values[i] = value; size++; return null; }
+            if (keys[i] == key) { V ret = (V)values[i]; values[i] = value; return ret; }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int n) {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        Object[] oldValues = values;
+        keys = new int[n];
+        used = new boolean[n];
+        values = new Object[n];
+        size = 0;
+        for(int i=0; i<oldKeys.length; i++)
+            if (oldUsed[i]) put(oldKeys[i], (V)oldValues[i]);
+    }
+}
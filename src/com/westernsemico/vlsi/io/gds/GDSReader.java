@@ -0,0 +1,282 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.io.gds;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Reads a GDSII stream file and hands its flattened contents to a
+ *  Sink.  Boundaries, boxes, and paths all arrive as polygons in
+ *  database units; structure references (SREF/AREF) are expanded
+ *  recursively.  Properties, nodes, and everything else Electric
+ *  does not use are skipped.
+ */
+public class GDSReader {
+
+    /** receives the flattened contents of a GDS file */
+    public interface Sink {
+        /** a closed polygon; xy holds npoints (x,y) pairs in database units, without the repeated closing point */
+        void polygon(int layer, int datatype, int[] xy, int npoints);
+        /** a text label at (x,y) in database units */
+        void text(int layer, int texttype, int x, int y, String text);
+    }
+
+    // record types (GDSII Stream Format Manual, release 6.0)
+    private static final int HEADER   = 0x00;
+    private static final int BGNLIB   = 0x01;
+    private static final int UNITS    = 0x03;
+    private static final int ENDLIB   = 0x04;
+    private static final int BGNSTR   = 0x05;
+    private static final int STRNAME  = 0x06;
+    private static final int ENDSTR   = 0x07;
+    private static final int BOUNDARY = 0x08;
+    private static final int PATH     = 0x09;
+    private static final int SREF     = 0x0A;
+    private static final int AREF     = 0x0B;
+    private static final int TEXT     = 0x0C;
+    private static final int LAYER    = 0x0D;
+    private static final int DATATYPE = 0x0E;
+    private static final int WIDTH    = 0x0F;
+    private static final int XY       = 0x10;
+    private static final int ENDEL    = 0x11;
+    private static final int SNAME    = 0x12;
+    private static final int COLROW   = 0x13;
+    private static final int TEXTTYPE = 0x16;
+    private static final int STRING   = 0x19;
+    private static final int STRANS   = 0x1A;
+    private static final int MAG      = 0x1B;
+    private static final int ANGLE    = 0x1C;
+    private static final int PATHTYPE = 0x21;
+    private static final int BOX      = 0x2D;
+    private static final int BOXTYPE  = 0x2E;
+
+    /** the maximum depth of structure references; deeper hierarchies are assumed to be cyclic */
+    private static final int MAX_DEPTH = 64;
+
+    /** the size of a database unit in meters, from the UNITS record */
+    public double metersPerDbu    = 1e-9;
+
+    /** the size of a database unit in user units, from the UNITS record */
+    public double userUnitsPerDbu = 1e-3;
+
+    /** all structures in the file, in file order */
+    private final LinkedHashMap<String,Structure> structures = new LinkedHashMap<String,Structure>();
+
+    public GDSReader(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) { read(is); }
+    }
+    public GDSReader(InputStream is) throws IOException { read(is); }
+
+    /** one element of a structure; which fields are meaningful depends on the kind */
+    private static class Element {
+        final int kind;
+        int layer, datatype, width, pathtype, cols = 1, rows = 1;
+        int[] xy = new int[0];
+        String sname, string;
+        boolean reflect = false;
+        double mag = 1.0, angle = 0.0;
+        Element(int kind) { this.kind = kind; }
+    }
+
+    private static class Structure {
+        final String name;
+        final ArrayList<Element> elements = new ArrayList<Element>();
+        Structure(String name) { this.name = name; }
+    }
+
+    private void read(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is, 1<<16));
+        Structure str = null;
+        Element el = null;
+        byte[] buf = new byte[0x10000];
+        while (true) {
+            int len;
+            try { len = dis.readUnsignedShort(); } catch (EOFException e) { break; }
+            if (len == 0) break;   // null padding after ENDLIB
+            if (len < 4) throw new IOException("malformed GDS record of length "+len);
+            int type = dis.readUnsignedByte();
+            dis.readUnsignedByte();   // the data type is implied by the record type
+            int n = len - 4;
+            dis.readFully(buf, 0, n);
+            switch(type) {
+            case UNITS:
+                userUnitsPerDbu = real8(buf, 0);
+                metersPerDbu    = real8(buf, 8);
+                break;
+            case BGNSTR:   str = null; break;
+            case STRNAME:  str = new Structure(string(buf, n)); structures.put(str.name, str); break;
+            case ENDSTR:   str = null; break;
+            case BOUNDARY: case PATH: case SREF: case AREF: case TEXT: case BOX:
+                el = new Element(type); break;
+            case LAYER:    if (el != null) el.layer    = int2(buf, 0); break;
+            case DATATYPE: case TEXTTYPE: case BOXTYPE:
+                if (el != null) el.datatype = int2(buf, 0); break;
+            case WIDTH:    if (el != null) el.width    = Math.abs(int4(buf, 0)); break;
+            case PATHTYPE: if (el != null) el.pathtype = int2(buf, 0); break;
+            case SNAME:    if (el != null) el.sname    = string(buf, n); break;
+            case STRING:   if (el != null) el.string   = string(buf, n); break;
+            case STRANS:   if (el != null) el.reflect  = (buf[0] & 0x80) != 0; break;
+            case MAG:      if (el != null) el.mag      = real8(buf, 0); break;
+            case ANGLE:    if (el != null) el.angle    = real8(buf, 0); break;
+            case COLROW:   if (el != null) { el.cols = int2(buf, 0); el.rows = int2(buf, 2); } break;
+            case XY:
+                if (el == null) break;
+                el.xy = new int[n/4];
+                for(int i=0; i<el.xy.length; i++) el.xy[i] = int4(buf, 4*i);
+                break;
+            case ENDEL:
+                if (el != null && str != null) str.elements.add(el);
+                el = null;
+                break;
+            case ENDLIB:
+                return;
+            default:
+                break;
+            }
+        }
+    }
+
+    /** the names of all structures which are not referenced by any other structure */
+    public List<String> getTopStructures() {
+        HashSet<String> referenced = new HashSet<String>();
+        for(Structure s : structures.values())
+            for(Element e : s.elements)
+                if (e.sname != null) referenced.add(e.sname);
+        ArrayList<String> ret = new ArrayList<String>();
+        for(String name : structures.keySet())
+            if (!referenced.contains(name)) ret.add(name);
+        return ret;
+    }
+
+    /** flatten every top-level structure into the sink */
+    public void flatten(Sink sink) throws IOException {
+        for(String top : getTopStructures()) flatten(top, sink);
+    }
+
+    /** flatten the named structure into the sink */
+    public void flatten(String top, Sink sink) throws IOException {
+        Structure s = structures.get(top);
+        if (s == null) throw new IOException("no such structure: "+top);
+        flatten(s, new double[] { 1, 0, 0, 1, 0, 0 }, sink, 0, new int[16]);
+    }
+
+    // the transform is { m00, m01, m10, m11, tx, ty } mapping (x,y) to (m00*x+m01*y+tx, m10*x+m11*y+ty)
+    private void flatten(Structure s, double[] t, Sink sink, int depth, int[] scratch) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("structure hierarchy deeper than "+MAX_DEPTH+" at "+s.name+"; cyclic reference?");
+        for(Element e : s.elements) {
+            switch(e.kind) {
+            case BOUNDARY: case BOX: {
+                int npoints = e.xy.length/2;
+                if (npoints > 1 && e.xy[0]==e.xy[e.xy.length-2] && e.xy[1]==e.xy[e.xy.length-1]) npoints--;
+                if (npoints < 3) break;
+                if (scratch.length < 2*npoints) scratch = new int[2*npoints];
+                for(int i=0; i<npoints; i++) {
+                    scratch[2*i]   = tx(t, e.xy[2*i], e.xy[2*i+1]);
+                    scratch[2*i+1] = ty(t, e.xy[2*i], e.xy[2*i+1]);
+                }
+                sink.polygon(e.layer, e.datatype, scratch, npoints);
+                break;
+            }
+            case PATH:
+                flattenPath(e, t, sink);
+                break;
+            case TEXT:
+                if (e.xy.length >= 2 && e.string != null)
+                    sink.text(e.layer, e.datatype, tx(t, e.xy[0], e.xy[1]), ty(t, e.xy[0], e.xy[1]), e.string);
+                break;
+            case SREF: {
+                Structure child = structures.get(e.sname);
+                if (child == null) throw new IOException("reference to undefined structure "+e.sname+" in "+s.name);
+                flatten(child, compose(t, local(e, e.xy[0], e.xy[1])), sink, depth+1, scratch);
+                break;
+            }
+            case AREF: {
+                Structure child = structures.get(e.sname);
+                if (child == null) throw new IOException("reference to undefined structure "+e.sname+" in "+s.name);
+                double colx = (e.xy[2]-e.xy[0]) / (double)e.cols, coly = (e.xy[3]-e.xy[1]) / (double)e.cols;
+                double rowx = (e.xy[4]-e.xy[0]) / (double)e.rows, rowy = (e.xy[5]-e.xy[1]) / (double)e.rows;
+                for(int r=0; r<e.rows; r++)
+                    for(int c=0; c<e.cols; c++)
+                        flatten(child, compose(t, local(e, e.xy[0]+c*colx+r*rowx, e.xy[1]+c*coly+r*rowy)), sink, depth+1, scratch);
+                break;
+            }
+            }
+        }
+    }
+
+    /** emit one quadrilateral per path segment; interior joints are extended by half the width so that right-angle bends are square */
+    private void flattenPath(Element e, double[] t, Sink sink) {
+        int npoints = e.xy.length/2;
+        double hw = e.width / 2.0;
+        int[] quad = new int[8];
+        for(int i=0; i+1<npoints; i++) {
+            double x0 = e.xy[2*i],   y0 = e.xy[2*i+1];
+            double x1 = e.xy[2*i+2], y1 = e.xy[2*i+3];
+            double len = Math.hypot(x1-x0, y1-y0);
+            if (len == 0) continue;
+            double dx = (x1-x0)/len, dy = (y1-y0)/len;
+            double ext0 = i==0         ? (e.pathtype==2 ? hw : 0) : hw;
+            double ext1 = i+2==npoints ? (e.pathtype==2 ? hw : 0) : hw;
+            x0 -= dx*ext0; y0 -= dy*ext0;
+            x1 += dx*ext1; y1 += dy*ext1;
+            double nx = -dy*hw, ny = dx*hw;
+            double[] pts = { x0+nx, y0+ny, x1+nx, y1+ny, x1-nx, y1-ny, x0-nx, y0-ny };
+            for(int j=0; j<4; j++) {
+                quad[2*j]   = tx(t, pts[2*j], pts[2*j+1]);
+                quad[2*j+1] = ty(t, pts[2*j], pts[2*j+1]);
+            }
+            sink.polygon(e.layer, e.datatype, quad, 4);
+        }
+    }
+
+    /** the transform of a reference placed at (x,y): reflect about the x-axis, then magnify, then rotate, then translate */
+    private static double[] local(Element e, double x, double y) {
+        double rad = Math.toRadians(e.angle);
+        double c = Math.rint(Math.cos(rad)*1e12)/1e12, s = Math.rint(Math.sin(rad)*1e12)/1e12;
+        double f = e.reflect ? -1 : 1;
+        return new double[] { e.mag*c, -e.mag*s*f, e.mag*s, e.mag*c*f, x, y };
+    }
+
+    private static double[] compose(double[] p, double[] c) {
+        return new double[] {
+            p[0]*c[0]+p[1]*c[2], p[0]*c[1]+p[1]*c[3],
+            p[2]*c[0]+p[3]*c[2], p[2]*c[1]+p[3]*c[3],
+            p[0]*c[4]+p[1]*c[5]+p[4], p[2]*c[4]+p[3]*c[5]+p[5] };
+    }
+
+    private static int tx(double[] t, double x, double y) { return (int)Math.round(t[0]*x + t[1]*y + t[4]); }
+    private static int ty(double[] t, double x, double y) { return (int)Math.round(t[2]*x + t[3]*y + t[5]); }
+
+    // Record Decoding //////////////////////////////////////////////////////////////////////////////
+
+    private static int int2(byte[] b, int ofs) { return (short)(((b[ofs] & 0xff) << 8) | (b[ofs+1] & 0xff)); }
+    private static int int4(byte[] b, int ofs) {
+        return ((b[ofs] & 0xff) << 24) | ((b[ofs+1] & 0xff) << 16) | ((b[ofs+2] & 0xff) << 8) | (b[ofs+3] & 0xff); }
+
+    /** strings are padded to an even length with a null */
+    private static String string(byte[] b, int n) {
+        while (n > 0 && b[n-1] == 0) n--;
+        return new String(b, 0, n, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    /** GDS "eight-byte real": sign bit, 7-bit excess-64 base-16 exponent, 56-bit mantissa */
+    private static double real8(byte[] b, int ofs) {
+        int exponent = (b[ofs] & 0x7f) - 64;
+        long mantissa = 0;
+        for(int i=1; i<8; i++) mantissa = (mantissa << 8) | (b[ofs+i] & 0xff);
+        double ret = mantissa / Math.pow(2, 56) * Math.pow(16, exponent);
+        return (b[ofs] & 0x80) != 0 ? -ret : ret;
+    }
+}
@@ -0,0 +1,431 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.layout;
+import com.westernsemico.vlsi.geom.*;
+import com.westernsemico.vlsi.io.gds.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  A flattened layout, in integer database units, whose shapes are
+ *  all horizontal trapezoids on TechLayers.  A trapezoid has a
+ *  horizontal bottom edge from (xlb,ylo) to (xhb,ylo) and a
+ *  horizontal top edge from (xlt,yhi) to (xht,yhi); rectangles are
+ *  the case xlb==xlt and xhb==xht.  Any polygon (including ones with
+ *  45-degree edges) decomposes into these, so every tool downstream
+ *  only has to understand one kind of shape.
+ *
+ *  Shapes are stored column-wise and referred to by their index.
+ */
+public class Layout {
+
+    /** the technology whose layers this layout is drawn on */
+    public final Tech tech;
+
+    /** the size of one database unit in microns (Electric's "units") */
+    public final double micronsPerDbu;
+
+    /** the layers which appear in this layout, indexed by the ordinal stored with each shape */
+    private final ArrayList<TechLayer> layers = new ArrayList<TechLayer>();
+    private final HashMap<TechLayer,Integer> ordinals = new HashMap<TechLayer,Integer>();
+
+    private int   size = 0;
+    private int[] layer = new int[1024];
+    private int[] ylo   = new int[1024];
+    private int[] yhi   = new int[1024];
+    private int[] xlb   = new int[1024];
+    private int[] xhb   = new int[1024];
+    private int[] xlt   = new int[1024];
+    private int[] xht   = new int[1024];
+
+    /** text labels, usually naming the net of the shape underneath them */
+    private final ArrayList<Label> labels = new ArrayList<Label>();
+
+    /** merged geometry of drawn layers (keyed by TechLayer) and derived layers (keyed by DerivedLayer), computed on demand */
+    private final ConcurrentHashMap<Object,CompletableFuture<Region>> regions = new ConcurrentHashMap<Object,CompletableFuture<Region>>();
+
+    public Layout(Tech tech, double micronsPerDbu) {
+        this.tech = tech;
+        this.micronsPerDbu = micronsPerDbu;
+    }
+
+    /** a text label on a layer */
+    public static class Label {
+        public final TechLayer layer;
+        public final int x;
+        public final int y;
+        public final String text;
+        public Label(TechLayer layer, int x, int y, String text) { this.layer = layer; this.x = x; this.y = y; this.text = text; }
+        public String toString() { return text+"@"+layer+"("+x+","+y+")"; }
+    }
+
+    /** read and flatten a GDS file; shapes on GDS layers which the Tech does not know about are dropped */
+    public static Layout read(final Tech tech, File gds) throws IOException {
+        tech.compile();
+        GDSReader reader = new GDSReader(gds);
+        final Layout layout = new Layout(tech, reader.metersPerDbu * 1e6);
+        reader.flatten(new GDSReader.Sink() {
+                public void polygon(int major, int minor, int[] xy, int npoints) {
+                    TechLayer tl = tech.getLayerForGds(major, minor);
+                    if (tl != null) layout.addPolygon(tl, xy, npoints);
+                }
+                public void text(int major, int minor, int x, int y, String text) {
+                    TechLayer tl = tech.getPinLayerForGds(major, minor);
+                    if (tl == null) tl = tech.getLayerForGds(major, minor);
+                    if (tl != null) layout.labels.add(new Label(tl, x, y, text));
+                }
+            });
+        return layout;
+    }
+
+    /**
+     *  Read and flatten a GDS file straight into a ShapeStore, for
+     *  layouts too large to hold as a Layout.  The layer ordinal of each
+     *  shape is the position of its TechLayer in tech.getLayers(), the
+     *  net ids are left at -1, and labels are dropped.  Returns the size
+     *  of a database unit in microns.
+     */
+    public static double read(final Tech tech, File gds, final ShapeStore store) throws IOException {
+        tech.compile();
+        GDSReader reader = new GDSReader(gds);
+        final HashMap<TechLayer,Integer> ordinals = new HashMap<TechLayer,Integer>();
+        for(TechLayer tl : tech.getLayers()) ordinals.put(tl, ordinals.size());
+        try {
+            reader.flatten(new GDSReader.Sink() {
+                    public void polygon(int major, int minor, int[] xy, int npoints) {
+                        TechLayer tl = tech.getLayerForGds(major, minor);
+                        if (tl == null) return;
+                        int ordinal = ordinals.get(tl);
+                        Region r = Region.polygon(xy, npoints);
+                        try {
+                            for(int i=0; i<r.count(); i++)
+                                store.append(ordinal, r.ylo(i), r.yhi(i), r.xlb(i), r.xhb(i), r.xlt(i), r.xht(i), -1);
+                        } catch (IOException e) { throw new UncheckedIOException(e); }
+                    }
+                    public void text(int major, int minor, int x, int y, String text) { }
+                });
+        } catch (UncheckedIOException e) { throw e.getCause(); }
+        return reader.metersPerDbu * 1e6;
+    }
+
+    // Adding Shapes //////////////////////////////////////////////////////////////////////////////
+
+    /** the ordinal used for the given layer in this layout, assigning one if necessary */
+    public int ordinal(TechLayer tl) {
+        Integer ret = ordinals.get(tl);
+        if (ret == null) {
+            ret = layers.size();
+            layers.add(tl);
+            ordinals.put(tl, ret);
+        }
+        return ret;
+    }
+
+    public int addTrapezoid(TechLayer tl, int ylo, int yhi, int xlb, int xhb, int xlt, int xht) {
+        if (yhi <= ylo) throw new IllegalArgumentException("empty trapezoid");
+        if (size == layer.length) {
+            int n = size*2;
+            layer = Arrays.copyOf(layer, n);
+            this.ylo = Arrays.copyOf(this.ylo, n); this.yhi = Arrays.copyOf(this.yhi, n);
+            this.xlb = Arrays.copyOf(this.xlb, n); this.xhb = Arrays.copyOf(this.xhb, n);
+            this.xlt = Arrays.copyOf(this.xlt, n); this.xht = Arrays.copyOf(this.xht, n);
+        }
+        if (!regions.isEmpty()) regions.clear();
+        layer[size] = ordinal(tl);
+        this.ylo[size] = ylo; this.yhi[size] = yhi;
+        this.xlb[size] = xlb; this.xhb[size] = xhb;
+        this.xlt[size] = xlt; this.xht[size] = xht;
+        return size++;
+    }
+
+    public int addRect(TechLayer tl, int xlo, int ylo, int xhi, int yhi) { return addTrapezoid(tl, ylo, yhi, xlo, xhi, xlo, xhi); }
+
+    public void addLabel(Label label) { labels.add(label); }
+
+    /** add a polygon (npoints vertices in xy), decomposed into trapezoids by Region */
+    public void addPolygon(TechLayer tl, int[] xy, int npoints) {
+        Region r = Region.polygon(xy, npoints);
+        for(int i=0; i<r.count(); i++)
+            addTrapezoid(tl, r.ylo(i), r.yhi(i), r.xlb(i), r.xhb(i), r.xlt(i), r.xht(i));
+    }
+
+    // Regions //////////////////////////////////////////////////////////////////////////////
+
+    /** the merged geometry on a drawn layer */
+    public Region region(TechLayer tl) { return regionAsync(DerivedLayer.of(tl)).join(); }
+
+    /** the geometry of a derived layer */
+    public Region region(DerivedLayer dl) { return regionAsync(dl).join(); }
+
+    /** the geometry of the derived layer with the given name */
+    public Region region(String derivedLayerName) { return region(tech.getDerivedLayer(derivedLayerName)); }
+
+    /**
+     *  Each node of the expression is computed at most once per
+     *  layout.  The operands of a node are requested before the node
+     *  waits on them, so independent subexpressions (and independent
+     *  derived layers requested by different threads) are computed in
+     *  parallel on the common fork-join pool.
+     */
+    public CompletableFuture<Region> regionAsync(final DerivedLayer dl) {
+        Object key = dl.op == DerivedLayer.Op.LAYER ? dl.layer : dl;
+        CompletableFuture<Region> ret = regions.get(key);
+        if (ret != null) return ret;
+        CompletableFuture<Region> mine = new CompletableFuture<Region>();
+        ret = regions.putIfAbsent(key, mine);
+        if (ret != null) return ret;
+
+        CompletableFuture<Region> f;
+        switch(dl.op) {
+        case LAYER: f = CompletableFuture.supplyAsync(() -> mergedLayer(dl.layer)); break;
+        case SIZE:  f = regionAsync(dl.a).thenApplyAsync(r -> r.size((int)Math.round(dl.amount / micronsPerDbu))); break;
+        case AND:   f = regionAsync(dl.a).thenCombineAsync(regionAsync(dl.b), Region::and); break;
+        case OR:    f = regionAsync(dl.a).thenCombineAsync(regionAsync(dl.b), Region::or); break;
+        case XOR:   f = regionAsync(dl.a).thenCombineAsync(regionAsync(dl.b), Region::xor); break;
+        case NOT:   f = regionAsync(dl.a).thenCombineAsync(regionAsync(dl.b), Region::not); break;
+        default:    throw new Error("unknown op "+dl.op);
+        }
+        f.whenComplete((r, t) -> { if (t != null) mine.completeExceptionally(t); else mine.complete(r); });
+        return mine;
+    }
+
+    private Region mergedLayer(TechLayer tl) {
+        int[] shapes = shapesOn(tl);
+        int n = shapes.length;
+        int[] a = new int[n], b = new int[n], c = new int[n], d = new int[n], e = new int[n], f = new int[n];
+        for(int k=0; k<n; k++) {
+            int i = shapes[k];
+            a[k] = ylo[i]; b[k] = yhi[i]; c[k] = xlb[i]; d[k] = xhb[i]; e[k] = xlt[i]; f[k] = xht[i];
+        }
+        return Region.union(n, a, b, c, d, e, f);
+    }
+
+    // Accessors //////////////////////////////////////////////////////////////////////////////
+
+    public int size() { return size; }
+    public List<TechLayer> getLayers() { return Collections.unmodifiableList(layers); }
+    public List<Label> getLabels() { return Collections.unmodifiableList(labels); }
+
+    public TechLayer getLayer(int i) { return layers.get(layer[i]); }
+    public int layerOrdinal(int i) { return layer[i]; }
+    public int ylo(int i) { return ylo[i]; }
+    public int yhi(int i) { return yhi[i]; }
+    public int xlb(int i) { return xlb[i]; }
+    public int xhb(int i) { return xhb[i]; }
+    public int xlt(int i) { return xlt[i]; }
+    public int xht(int i) { return xht[i]; }
+    public int xmin(int i) { return Math.min(xlb[i], xlt[i]); }
+    public int xmax(int i) { return Math.max(xhb[i], xht[i]); }
+    public boolean isRect(int i) { return xlb[i]==xlt[i] && xhb[i]==xht[i]; }
+
+    /** area in square database units */
+    public double area(int i) { return ((xhb[i]-xlb[i]) + (double)(xht[i]-xlt[i])) * (yhi[i]-ylo[i]) / 2.0; }
+
+    /** the x coordinate of the left edge of shape i at height y */
+    public double left(int i, double y)  { return xlb[i] + (xlt[i]-xlb[i]) * (y-ylo[i]) / (yhi[i]-ylo[i]); }
+
+    /** the x coordinate of the right edge of shape i at height y */
+    public double right(int i, double y) { return xhb[i] + (xht[i]-xhb[i]) * (y-ylo[i]) / (yhi[i]-ylo[i]); }
+
+    /** the indices of every shape on the given layer, sorted by xmin */
+    public int[] shapesOn(TechLayer tl) {
+        Integer ord = ordinals.get(tl);
+        if (ord == null) return new int[0];
+        int n = 0;
+        for(int i=0; i<size; i++) if (layer[i] == ord) n++;
+        long[] keys = new long[n];
+        n = 0;
+        for(int i=0; i<size; i++) if (layer[i] == ord) keys[n++] = ((long)xmin(i) << 32) | i;
+        Arrays.sort(keys);
+        int[] ret = new int[n];
+        for(int i=0; i<n; i++) ret[i] = (int)keys[i];
+        return ret;
+    }
+
+    // Overlap //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  The area of the intersection of two shapes, in square database
+     *  units, or -1 if they do not even touch.  Within the y-range the
+     *  two have in common the width of the intersection is piecewise
+     *  linear, with breaks only where the left edges or the right
+     *  edges cross, so it is integrated exactly piece by piece.
+     */
+    public double overlapArea(int i, int j) {
+        double a = Math.max(ylo[i], ylo[j]), b = Math.min(yhi[i], yhi[j]);
+        if (a > b) return -1;
+        if (a == b) return width(i, j, a) >= 0 ? 0 : -1;
+        double[] ys = { a, crossing(i, j, a, b, true), crossing(i, j, a, b, false), b };
+        Arrays.sort(ys);
+        boolean touches = false;
+        double ret = 0;
+        double y0 = ys[0], w0 = width(i, j, y0);
+        for(int k=1; k<ys.length; k++) {
+            double y1 = ys[k];
+            if (Double.isNaN(y1) || y1 <= y0) continue;
+            double w1 = width(i, j, y1);
+            if (w0 >= 0 || w1 >= 0) touches = true;
+            if (w0 >= 0 && w1 >= 0)  ret += (w0+w1)/2 * (y1-y0);
+            else if (w0 > 0)         ret += w0 * (y1-y0) * (w0/(w0-w1)) / 2;
+            else if (w1 > 0)         ret += w1 * (y1-y0) * (w1/(w1-w0)) / 2;
+            y0 = y1; w0 = w1;
+        }
+        return touches ? ret : -1;
+    }
+
+    /** true if the point lies inside or on the boundary of shape i */
+    public boolean contains(int i, int x, int y) {
+        if (y < ylo[i] || y > yhi[i] || x < xmin(i) || x > xmax(i)) return false;
+        return isRect(i) || (left(i, y) <= x && x <= right(i, y));
+    }
+
+    /** true if the two shapes overlap or abut */
+    public boolean touches(int i, int j) {
+        if (xmax(i) < xmin(j) || xmax(j) < xmin(i)) return false;
+        if (isRect(i) && isRect(j)) return ylo[i] <= yhi[j] && ylo[j] <= yhi[i];
+        return overlapArea(i, j) >= 0;
+    }
+
+    private double width(int i, int j, double y) { return Math.min(right(i, y), right(j, y)) - Math.max(left(i, y), left(j, y)); }
+
+    /** the height in (a,b) at which the left (or right) edges of i and j cross, or NaN */
+    private double crossing(int i, int j, double a, double b, boolean leftEdges) {
+        double fa = leftEdges ? left(i, a) - left(j, a) : right(i, a) - right(j, a);
+        double fb = leftEdges ? left(i, b) - left(j, b) : right(i, b) - right(j, b);
+        if (fa == fb || (fa < 0) == (fb < 0)) return Double.NaN;
+        return a + (b-a) * fa / (fa-fb);
+    }
+
+    /** receives pairs of shape indices */
+    public interface PairConsumer { void pair(int i, int j); }
+
+    /**
+     *  Report every touching pair (i,j) with i from as and j from bs,
+     *  where both arrays are sorted by xmin (as shapesOn() returns
+     *  them).  If as==bs each unordered pair is reported once.  This is
+     *  a single sweep in x which keeps the shapes whose x-extent
+     *  straddles the sweep line in an active list, binned by y so that
+     *  a row of wide shapes is not all compared with each other; pairs
+     *  come out in sweep order either way.
+     */
+    public void forEachTouching(int[] as, int[] bs, PairConsumer consumer) {
+        boolean self = as == bs;
+        if (as.length == 0 || bs.length == 0) return;
+        Sweep sweep = new Sweep(as, self ? new int[0] : bs);
+        Sweep.Active activeA = sweep.new Active(), activeB = self ? activeA : sweep.new Active();
+        int ia = 0, ib = 0, p = 0;
+        while (ia < as.length || (!self && ib < bs.length)) {
+            boolean fromA = self || ib >= bs.length || (ia < as.length && xmin(as[ia]) <= xmin(bs[ib]));
+            int s = fromA ? as[ia++] : bs[ib++];
+            int nfound = (fromA ? activeB : activeA).touching(s);
+            for(int k=0; k<nfound; k++) {
+                int t = sweep.shape[sweep.found[k]];
+                consumer.pair(fromA ? s : t, fromA ? t : s);
+            }
+            sweep.shape[p] = s;
+            (fromA ? activeA : activeB).add(p++);
+        }
+    }
+
+    /** the state of one forEachTouching(): the shapes by sweep position, and the y bins */
+    private final class Sweep {
+        /** a shape spanning more bins than this is kept on its own list rather than in each of them */
+        static final int TALL = 8;
+
+        final int[] shape;
+        final long  y0, binHeight;
+        final int   nbins;
+        int[] found = new int[16];
+
+        /** bins about as tall as the median shape, but no more of them than there are shapes */
+        Sweep(int[] as, int[] bs) {
+            int n = as.length + bs.length;
+            shape = new int[n];
+            int[] heights = new int[n];
+            long lo = Long.MAX_VALUE, hi = Long.MIN_VALUE;
+            for(int k=0; k<n; k++) {
+                int i = k < as.length ? as[k] : bs[k-as.length];
+                heights[k] = yhi[i] - ylo[i];
+                lo = Math.min(lo, ylo[i]);
+                hi = Math.max(hi, yhi[i]);
+            }
+            Arrays.sort(heights);
+            long range = hi - lo + 1;
+            long h = Math.max(Math.max(1, heights[n/2]), (range + n - 1) / n);
+            y0 = lo;
+            binHeight = h;
+            nbins = (int)((range + h - 1) / h);
+        }
+
+        int bin(int y) { return (int)Math.max(0, Math.min(nbins-1, (y - y0) / binHeight)); }
+
+        /** the shapes of one side straddling the sweep line, by sweep position (so in sweep order) */
+        final class Active {
+            final int[][] bins = new int[nbins][];
+            final int[]   nbin = new int[nbins];
+            int[] tall = new int[16];
+            int   ntall = 0;
+
+            void add(int p) {
+                int s = shape[p], lo = bin(ylo[s]), hi = bin(yhi[s]);
+                if (hi - lo > TALL) {
+                    if (ntall == tall.length) tall = Arrays.copyOf(tall, 2*ntall);
+                    tall[ntall++] = p;
+                    return;
+                }
+                for(int b=lo; b<=hi; b++) {
+                    if (bins[b] == null) bins[b] = new int[4];
+                    else if (nbin[b] == bins[b].length) bins[b] = Arrays.copyOf(bins[b], 2*nbin[b]);
+                    bins[b][nbin[b]++] = p;
+                }
+            }
+
+            /** put the positions of the active shapes touching s into found, in sweep order, dropping those the sweep has passed; returns how many */
+            int touching(int s) {
+                int x = xmin(s), lo = bin(ylo[s]), hi = bin(yhi[s]), n = 0;
+                for(int b=lo; b<=hi; b++) {
+                    int[] in = bins[b];
+                    int keep = 0;
+                    for(int k=0; k<nbin[b]; k++) {
+                        int p = in[k], t = shape[p];
+                        if (xmax(t) < x) continue;
+                        in[keep++] = p;
+                        // a pair meeting in several bins is reported from the first
+                        if (b == Math.max(lo, bin(ylo[t])) && ylo[s] <= yhi[t] && ylo[t] <= yhi[s] && touches(s, t)) n = found(n, p);
+                    }
+                    nbin[b] = keep;
+                }
+                int keep = 0;
+                for(int k=0; k<ntall; k++) {
+                    int p = tall[k], t = shape[p];
+                    if (xmax(t) < x) continue;
+                    tall[keep++] = p;
+                    if (ylo[s] <= yhi[t] && ylo[t] <= yhi[s] && touches(s, t)) n = found(n, p);
+                }
+                ntall = keep;
+                if (hi > lo || ntall > 0) Arrays.sort(found, 0, n);
+                return n;
+            }
+
+            private int found(int n, int p) {
+                if (n == found.length) found = Arrays.copyOf(found, 2*n);
+                found[n] = p;
+                return n+1;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.layout;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import java.util.*;
+
+/**
+ *  A read-only spatial index over a Layout: one uniform grid of bins
+ *  per TechLayer, each bin listing the shapes whose bounding box
+ *  overlaps it.  The bins of a layer are sized so that there are
+ *  about as many bins as shapes, which keeps a point query to one
+ *  bin per layer and a handful of exact containment tests.
+ *
+ *  The grids are packed into int arrays (bin offsets plus shape
+ *  indices) and never change once built, so any number of threads
+ *  may query an index at once.
+ */
+public class LayoutIndex {
+
+    public final Layout layout;
+
+    private final LinkedHashMap<TechLayer,Grid> grids = new LinkedHashMap<TechLayer,Grid>();
+
+    /** receives shape indices */
+    public interface Visitor { void visit(int shape); }
+
+    public LayoutIndex(Layout layout) {
+        this.layout = layout;
+        for(TechLayer tl : layout.getLayers()) {
+            int[] shapes = layout.shapesOn(tl);
+            if (shapes.length > 0) grids.put(tl, new Grid(shapes));
+        }
+    }
+
+    /** the layers which have at least one shape, in the order the layout first saw them */
+    public Set<TechLayer> getLayers() { return Collections.unmodifiableSet(grids.keySet()); }
+
+    // Grid //////////////////////////////////////////////////////////////////////////////
+
+    private class Grid {
+        final int x0, y0, nx, ny;
+        final long bin;
+        /** shapes in bin b are shapes[start[b]..start[b+1]) */
+        final int[] start;
+        final int[] shapes;
+
+        Grid(int[] on) {
+            long xlo = Long.MAX_VALUE, ylo = Long.MAX_VALUE, xhi = Long.MIN_VALUE, yhi = Long.MIN_VALUE, dims = 0;
+            for(int i : on) {
+                xlo = Math.min(xlo, layout.xmin(i)); xhi = Math.max(xhi, layout.xmax(i));
+                ylo = Math.min(ylo, layout.ylo(i));  yhi = Math.max(yhi, layout.yhi(i));
+                dims += (layout.xmax(i) - layout.xmin(i)) + (layout.yhi(i) - layout.ylo(i));
+            }
+            // about one bin per shape, but no smaller than a typical shape
+            long w = xhi - xlo + 1, h = yhi - ylo + 1;
+            long b = Math.max(1, Math.max(dims / (2L*on.length), (long)Math.ceil(Math.sqrt((double)w * h / on.length))));
+            this.x0 = (int)xlo;
+            this.y0 = (int)ylo;
+            this.bin = b;
+            this.nx = (int)((w + b - 1) / b);
+            this.ny = (int)((h + b - 1) / b);
+
+            start = new int[nx*ny+1];
+            for(int i : on)
+                for(int by=by(layout.ylo(i)); by<=by(layout.yhi(i)); by++)
+                    for(int bx=bx(layout.xmin(i)); bx<=bx(layout.xmax(i)); bx++)
+                        start[by*nx+bx+1]++;
+            for(int k=0; k<nx*ny; k++) start[k+1] += start[k];
+            shapes = new int[start[nx*ny]];
+            int[] fill = Arrays.copyOf(start, nx*ny);
+            for(int i : on)
+                for(int by=by(layout.ylo(i)); by<=by(layout.yhi(i)); by++)
+                    for(int bx=bx(layout.xmin(i)); bx<=bx(layout.xmax(i)); bx++)
+                        shapes[fill[by*nx+bx]++] = i;
+        }
+
+        int bx(long x) { return (int)Math.max(0, Math.min(nx-1, (x - x0) / bin)); }
+        int by(long y) { return (int)Math.max(0, Math.min(ny-1, (y - y0) / bin)); }
+
+        void point(int x, int y, Visitor visitor) {
+            if (x < x0 || y < y0 || (x - x0) / bin >= nx || (y - y0) / bin >= ny) return;
+            int b = by(y)*nx + bx(x);
+            for(int k=start[b]; k<start[b+1]; k++)
+                if (layout.contains(shapes[k], x, y)) visitor.visit(shapes[k]);
+        }
+
+        /** each shape is reported only from the first bin (in x and in y) where it meets the window */
+        void window(int xlo, int ylo, int xhi, int yhi, Visitor visitor) {
+            int bxlo = bx(xlo), bxhi = bx(xhi), bylo = by(ylo), byhi = by(yhi);
+            for(int by=bylo; by<=byhi; by++)
+                for(int bx=bxlo; bx<=bxhi; bx++) {
+                    int b = by*nx + bx;
+                    for(int k=start[b]; k<start[b+1]; k++) {
+                        int i = shapes[k];
+                        if (Math.max(bx(layout.xmin(i)), bxlo) != bx || Math.max(by(layout.ylo(i)), bylo) != by) continue;
+                        if (overlaps(i, xlo, ylo, xhi, yhi)) visitor.visit(i);
+                    }
+                }
+        }
+    }
+
+    /** true if shape i meets the rectangle; within the rectangle's y-range a trapezoid spans the hull of its two ends */
+    private boolean overlaps(int i, int xlo, int ylo, int xhi, int yhi) {
+        if (layout.xmax(i) < xlo || layout.xmin(i) > xhi || layout.yhi(i) < ylo || layout.ylo(i) > yhi) return false;
+        if (layout.isRect(i)) return true;
+        double a = Math.max(ylo, layout.ylo(i)), b = Math.min(yhi, layout.yhi(i));
+        return Math.min(layout.left(i, a), layout.left(i, b)) <= xhi && Math.max(layout.right(i, a), layout.right(i, b)) >= xlo;
+    }
+
+    // Queries //////////////////////////////////////////////////////////////////////////////
+
+    /** visit every shape (on any layer) containing the point */
+    public void point(int x, int y, Visitor visitor) {
+        for(Grid g : grids.values()) g.point(x, y, visitor);
+    }
+
+    /** visit every shape on the given layer containing the point */
+    public void point(TechLayer tl, int x, int y, Visitor visitor) {
+        Grid g = grids.get(tl);
+        if (g != null) g.point(x, y, visitor);
+    }
+
+    /** visit every shape (on any layer) meeting the rectangle [xlo,xhi]x[ylo,yhi], once each */
+    public void window(int xlo, int ylo, int xhi, int yhi, Visitor visitor) {
+        for(Grid g : grids.values()) g.window(xlo, ylo, xhi, yhi, visitor);
+    }
+
+    /** visit every shape on the given layer meeting the rectangle [xlo,xhi]x[ylo,yhi], once each */
+    public void window(TechLayer tl, int xlo, int ylo, int xhi, int yhi, Visitor visitor) {
+        Grid g = grids.get(tl);
+        if (g != null) g.window(xlo, ylo, xhi, yhi, visitor);
+    }
+}
@@ -0,0 +1,162 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.layout;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.util.*;
+import java.util.*;
+
+/**
+ *  The electrical connectivity of a Layout: every shape on a layer
+ *  which some contact or via connects (Tech.getViaConnections()) is
+ *  assigned a net, and nets are named by the labels which land on
+ *  them.  Shapes on other layers (implants, markers) have net -1.
+ *
+ *  Touching shapes on one layer, and each cut with the shapes it
+ *  touches on the layers it connects, are merged with a union-find;
+ *  the representatives are then renumbered densely in order of their
+ *  first shape, so net numbers are stable for a given layout.
+ */
+public class Nets {
+
+    public final Layout layout;
+
+    /** net of each shape, or -1 */
+    private final int[] net;
+
+    /** shapes of net k are members[first[k]..first[k+1]) */
+    private final int[] first;
+    private final int[] members;
+
+    /** the label text naming each net, or null */
+    private final String[] names;
+    private final HashMap<String,Integer> byName = new HashMap<String,Integer>();
+
+    /** the shape under each label (in Layout.getLabels() order), and under the label naming each net, or -1 */
+    private final int[] labelShape;
+    private final int[] namedShape;
+
+    /** the widest conducting shape, which bounds how far left of a label its shape can begin */
+    private int maxWidth = 0;
+
+    public Nets(Layout layout) {
+        this.layout = layout;
+        Tech tech = layout.tech.compile();
+        int n = layout.size();
+        UnionFind uf = new UnionFind(n);
+
+        Map<TechLayer,Set<TechLayer>> vias = tech.getViaConnections();
+        LinkedHashSet<TechLayer> conductors = new LinkedHashSet<TechLayer>(vias.keySet());
+        for(Set<TechLayer> connects : vias.values()) conductors.addAll(connects);
+        HashMap<TechLayer,int[]> shapesOn = new HashMap<TechLayer,int[]>();
+        for(TechLayer tl : conductors) shapesOn.put(tl, layout.shapesOn(tl));
+        for(TechLayer tl : conductors) {
+            int[] shapes = shapesOn.get(tl);
+            layout.forEachTouching(shapes, shapes, uf::union);
+        }
+        for(TechLayer cut : vias.keySet())
+            for(TechLayer other : vias.get(cut))
+                if (other != cut)
+                    layout.forEachTouching(shapesOn.get(cut), shapesOn.get(other), uf::union);
+
+        // renumber, then bucket the shapes by net
+        net = new int[n];
+        Arrays.fill(net, -1);
+        int[] rootNet = new int[n];
+        Arrays.fill(rootNet, -1);
+        int count = 0;
+        boolean[] conducting = new boolean[n];
+        for(int[] shapes : shapesOn.values())
+            for(int i : shapes) {
+                conducting[i] = true;
+                maxWidth = Math.max(maxWidth, layout.xmax(i) - layout.xmin(i));
+            }
+        for(int i=0; i<n; i++) {
+            if (!conducting[i]) continue;
+            int r = uf.find(i);
+            if (rootNet[r] == -1) rootNet[r] = count++;
+            net[i] = rootNet[r];
+        }
+        first = new int[count+1];
+        for(int i=0; i<n; i++) if (net[i] >= 0) first[net[i]+1]++;
+        for(int k=0; k<count; k++) first[k+1] += first[k];
+        members = new int[first[count]];
+        int[] fill = Arrays.copyOf(first, count);
+        for(int i=0; i<n; i++) if (net[i] >= 0) members[fill[net[i]]++] = i;
+
+        // the first label landing on a net names it
+        names = new String[count];
+        namedShape = new int[count];
+        Arrays.fill(namedShape, -1);
+        List<Layout.Label> labels = layout.getLabels();
+        labelShape = new int[labels.size()];
+        for(int l=0; l<labels.size(); l++) {
+            Layout.Label label = labels.get(l);
+            int[] shapes = shapesOn.get(label.layer);
+            int s = labelShape[l] = shapes == null ? -1 : shapeAt(shapes, label.x, label.y);
+            if (s < 0) continue;
+            int k = net[s];
+            if (names[k] == null) { names[k] = label.text; namedShape[k] = s; }
+            if (!byName.containsKey(label.text)) byName.put(label.text, k);
+        }
+    }
+
+    /** some shape among shapes (sorted by xmin) containing the point, or -1 */
+    private int shapeAt(int[] shapes, int x, int y) {
+        int lo = 0, hi = shapes.length;
+        while (lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if (layout.xmin(shapes[mid]) <= x) lo = mid+1; else hi = mid;
+        }
+        for(int k=lo-1; k>=0 && layout.xmin(shapes[k]) >= (long)x - maxWidth; k--)
+            if (layout.contains(shapes[k], x, y)) return shapes[k];
+        return -1;
+    }
+
+    /** the number of nets */
+    public int count() { return names.length; }
+
+    /** the net of shape i, or -1 if it is not on a conducting layer */
+    public int net(int shape) { return net[shape]; }
+
+    /** the name of net k from its labels, or null if it has none */
+    public String name(int k) { return names[k]; }
+
+    /** the shape under label l of Layout.getLabels(), or -1 if it lands on no conducting shape */
+    public int labelShape(int l) { return labelShape[l]; }
+
+    /** the shape under the label naming net k, or -1 if it is unlabelled */
+    public int namedShape(int k) { return namedShape[k]; }
+
+    /** the name of net k, or a made-up one if it is unlabelled */
+    public String displayName(int k) { return names[k] != null ? names[k] : "net#"+k; }
+
+    /** the net with the given label (or made-up name), or -1 */
+    public int find(String name) {
+        Integer ret = byName.get(name);
+        if (ret != null) return ret;
+        if (name.startsWith("net#"))
+            try {
+                int k = Integer.parseInt(name.substring(4));
+                if (k >= 0 && k < count()) return k;
+            } catch (NumberFormatException e) { }
+        return -1;
+    }
+
+    /** the shapes of net k, in index order */
+    public int[] shapes(int k) { return Arrays.copyOfRange(members, first[k], first[k+1]); }
+
+    /** the number of shapes on net k */
+    public int size(int k) { return first[k+1] - first[k]; }
+}
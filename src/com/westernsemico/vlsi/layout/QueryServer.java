@@ -0,0 +1,339 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.layout;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ *  A long-running "what is here" service.  The layout is read,
+ *  indexed (LayoutIndex) and netlisted (Nets) once; queries then
+ *  arrive one per line over a Unix-domain socket:
+ *
+ *      point  x y                  shapes containing the point
+ *      window xlo ylo xhi yhi      shapes meeting the rectangle
+ *      net    name                 the shapes of a net
+ *      layer  name                 one layer's function, description and rules
+ *
+ *  Coordinates are in database units.  Each answer is a line per
+ *  shape ("shape index layer net xlo ylo xhi yhi"), then a line per
+ *  layer mentioned ("layer name fun=... rules... primitives=...
+ *  description"), then a line holding a single ".".  A malformed
+ *  query is answered with "error message" and ".".
+ *
+ *  One selector thread does all the socket I/O; each query is
+ *  answered on the common fork-join pool, and the answers to one
+ *  connection are chained so that they come back in the order they
+ *  were asked.  The index is immutable, so queries never wait for
+ *  one another.
+ */
+public class QueryServer implements Closeable {
+
+    public final Layout      layout;
+    public final LayoutIndex index;
+    public final Nets        nets;
+
+    /** at most this many shapes are listed in one answer */
+    public static final int MAX_SHAPES = 10000;
+
+    /** a longer query line is answered with an error rather than buffered */
+    public static final int MAX_LINE = 4096;
+
+    /** a connection is not read while this many of its answers are still to be sent */
+    public static final int HIGH_WATER = 64;
+
+    /** the "layer" line for each layer, computed once */
+    private final HashMap<TechLayer,String> layerLines = new HashMap<TechLayer,String>();
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Path socket;
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    public QueryServer(Layout layout, Path socket) throws IOException {
+        this.layout = layout;
+        CompletableFuture<LayoutIndex> index = CompletableFuture.supplyAsync(() -> new LayoutIndex(layout));
+        this.nets   = new Nets(layout);
+        this.index  = index.join();
+        HashMap<TechLayer,List<String>> primitives = new HashMap<TechLayer,List<String>>();
+        for(PrimitiveGroup group : layout.tech.getPrimitiveGroups())
+            for(Primitive p : group.getPrimitives())
+                for(Primitive.Layer l : p.getLayers()) {
+                    List<String> names = primitives.get(l.tlayer);
+                    if (names == null) primitives.put(l.tlayer, names = new ArrayList<String>());
+                    if (!names.contains(p.name)) names.add(p.name);
+                }
+        for(TechLayer tl : layout.tech.getLayers()) layerLines.put(tl, layerLine(tl, primitives.get(tl)));
+
+        this.socket = socket;
+        Files.deleteIfExists(socket);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    private static String layerLine(TechLayer tl, List<String> primitives) {
+        StringBuilder sb = new StringBuilder("layer "+tl.name+" fun="+tl.fun);
+        LayerRules lr = tl.layerRules;
+        if (lr != null) {
+            sb.append(" minWidth="+lr.minWidth+" minSpace="+lr.minSpace+" minArea="+lr.minArea);
+            if (lr.maxWidth != Double.MAX_VALUE) sb.append(" maxWidth="+lr.maxWidth);
+        }
+        for(Map.Entry<TechLayer,Double> e : tl.getSpacingRules().entrySet())            sb.append(" spacing:"+e.getKey()+"="+e.getValue());
+        for(Map.Entry<TechLayer,Double> e : tl.getUnconnectedSpacingRules().entrySet()) sb.append(" unconnectedSpacing:"+e.getKey()+"="+e.getValue());
+        for(Map.Entry<TechLayer,Double> e : tl.getEnclosureRules().entrySet())          sb.append(" enclosure:"+e.getKey()+"="+e.getValue());
+        for(Map.Entry<TechLayer,Double> e : tl.getExtensionRules().entrySet())          sb.append(" extension:"+e.getKey()+"="+e.getValue());
+        for(TechLayer other : tl.getForbidden())                                         sb.append(" forbidden:"+other);
+        if (tl.antennaRatio > 0)           sb.append(" antennaRatio="+tl.antennaRatio);
+        if (tl.cumulativeAntennaRatio > 0) sb.append(" cumulativeAntennaRatio="+tl.cumulativeAntennaRatio);
+        if (primitives != null) sb.append(" primitives="+String.join(",", primitives));
+        if (tl.description != null) sb.append(" "+tl.description.replace('\n', ' '));
+        return sb.toString();
+    }
+
+    // Queries //////////////////////////////////////////////////////////////////////////////
+
+    /** answer one query line, including the trailing "." line */
+    public String query(String line) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            String[] args = line.trim().split("\\s+");
+            LinkedHashSet<TechLayer> layers = new LinkedHashSet<TechLayer>();
+            int[] count = new int[1];
+            LayoutIndex.Visitor shape = i -> {
+                layers.add(layout.getLayer(i));
+                if (count[0]++ < MAX_SHAPES) shapeLine(sb, i);
+            };
+            switch(args[0]) {
+            case "point":
+                arity(args, 3);
+                index.point(Integer.parseInt(args[1]), Integer.parseInt(args[2]), shape);
+                break;
+            case "window":
+                arity(args, 5);
+                index.window(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), shape);
+                break;
+            case "net": {
+                arity(args, 2);
+                int k = nets.find(args[1]);
+                if (k < 0) throw new IllegalArgumentException("no net named "+args[1]);
+                for(int i : nets.shapes(k)) shape.visit(i);
+                break;
+            }
+            case "layer": {
+                arity(args, 2);
+                for(TechLayer tl : layout.tech.getLayers()) if (tl.name.equals(args[1])) layers.add(tl);
+                if (layers.isEmpty()) throw new IllegalArgumentException("no layer named "+args[1]);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown query "+args[0]);
+            }
+            if (count[0] > MAX_SHAPES) sb.append("truncated "+count[0]+" shapes\n");
+            for(TechLayer tl : layers) sb.append(layerLines.get(tl)).append('\n');
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            sb.setLength(0);
+            sb.append("error "+e.getMessage()+"\n");
+        }
+        return sb.append(".\n").toString();
+    }
+
+    /** query(), but an internal error is reported to the client rather than breaking its chain of answers */
+    private String answer(String line) {
+        try { return query(line); }
+        catch (RuntimeException e) { return "error "+e+"\n.\n"; }
+    }
+
+    private static void arity(String[] args, int n) {
+        if (args.length != n) throw new IllegalArgumentException(args[0]+" takes "+(n-1)+" arguments");
+    }
+
+    private void shapeLine(StringBuilder sb, int i) {
+        int k = nets.net(i);
+        sb.append("shape ").append(i).append(' ').append(layout.getLayer(i).name).append(' ')
+            .append(k < 0 ? "-" : nets.displayName(k)).append(' ')
+            .append(layout.xmin(i)).append(' ').append(layout.ylo(i)).append(' ')
+            .append(layout.xmax(i)).append(' ').append(layout.yhi(i)).append('\n');
+    }
+
+    // Connections //////////////////////////////////////////////////////////////////////////////
+
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey  key;
+        final ByteBuffer    in = ByteBuffer.allocate(4096);
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        /** queued after the last answer; the connection is closed when it reaches the head of out */
+        final ByteBuffer    goodbye = ByteBuffer.allocate(0);
+        /** the answer to the most recent query; the next one is chained after it */
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        boolean eof = false;
+        /** the current line has gone past MAX_LINE; the rest of it is dropped */
+        boolean overlong = false;
+        /** queries read whose answers are not yet written, and whether reading is paused on that account; guarded by out */
+        int pending = 0;
+        boolean paused = false;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /** called on the selector thread */
+        void read() throws IOException {
+            in.clear();
+            int n = channel.read(in);
+            if (n < 0) {
+                eof = true;
+                key.interestOps(0);
+                tail.whenComplete((v, t) -> send(null));
+                return;
+            }
+            for(int k=0; k<n; k++) {
+                byte b = in.get(k);
+                if (b != '\n') {
+                    if (line.size() < MAX_LINE) line.write(b); else overlong = true;
+                    continue;
+                }
+                String q = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                line.reset();
+                if (overlong) {
+                    overlong = false;
+                    synchronized(out) { pending++; }
+                    tail = tail.thenRunAsync(() -> send("error query longer than "+MAX_LINE+" bytes\n.\n"));
+                    continue;
+                }
+                if (q.trim().length() == 0) continue;
+                synchronized(out) { pending++; }
+                tail = tail.thenRunAsync(() -> send(answer(q)));
+            }
+            synchronized(out) { key.interestOps(readOps() | (key.interestOps() & SelectionKey.OP_WRITE)); }
+        }
+
+        /** OP_READ unless the client is gone or too far ahead of its answers; called holding out */
+        int readOps() {
+            paused = !eof && pending >= HIGH_WATER;
+            return eof || paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         *  Send an answer (or, given null, the end of the conversation).
+         *  Usually the socket has room and the answer is written right
+         *  here on the worker thread; only what does not fit is left for
+         *  the selector thread, which then has to be woken.  It is also
+         *  woken when this answer lets a paused connection be read again.
+         */
+        void send(String answer) {
+            synchronized(out) {
+                out.add(answer == null ? goodbye : ByteBuffer.wrap(answer.getBytes(StandardCharsets.UTF_8)));
+                if (out.size() == 1)
+                    try {
+                        ByteBuffer b = out.peek();
+                        if (b == goodbye) { channel.shutdownOutput(); channel.close(); return; }
+                        channel.write(b);
+                        if (!b.hasRemaining()) {
+                            out.poll();
+                            if (--pending >= HIGH_WATER || !paused) return;
+                        }
+                    } catch (IOException e) {
+                        try { channel.close(); } catch (IOException e2) { }
+                        return;
+                    }
+            }
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        /** called on the selector thread; returns false once the connection is closed */
+        boolean write() throws IOException {
+            synchronized(out) {
+                while (!out.isEmpty()) {
+                    ByteBuffer b = out.peek();
+                    // a registered channel is only really closed at the next select, so say goodbye first
+                    if (b == goodbye) { channel.shutdownOutput(); channel.close(); return false; }
+                    channel.write(b);
+                    if (b.hasRemaining()) { key.interestOps(readOps() | SelectionKey.OP_WRITE); return true; }
+                    out.poll();
+                    pending--;
+                }
+                key.interestOps(readOps());
+            }
+            return true;
+        }
+    }
+
+    /** serve until closed */
+    public void serve() throws IOException {
+        try { loop(); } catch (ClosedSelectorException e) { }
+    }
+
+    private void loop() throws IOException {
+        while (selector.isOpen()) {
+            selector.select();
+            if (!selector.isOpen()) break;
+            for(Connection c; (c = writable.poll()) != null; )
+                if (c.channel.isOpen())
+                    try { c.write(); } catch (IOException | CancelledKeyException e) { c.channel.close(); }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    SocketChannel channel = server.accept();
+                    if (channel != null) new Connection(channel);
+                    continue;
+                }
+                Connection c = (Connection)key.attachment();
+                try {
+                    if (key.isWritable()) c.write();
+                    if (key.isValid() && key.isReadable()) c.read();
+                } catch (IOException | CancelledKeyException e) {
+                    c.channel.close();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        selector.close();
+        server.close();
+        Files.deleteIfExists(socket);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: java "+QueryServer.class.getName()+" <layout.gds> <socket>");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        Layout layout = Layout.read(new SkyWater130(), new File(args[0]));
+        QueryServer qs = new QueryServer(layout, Paths.get(args[1]));
+        System.err.println("indexed "+layout.size()+" shapes, "+qs.nets.count()+" nets in "+(System.currentTimeMillis()-start)+"ms; listening on "+args[1]);
+        qs.serve();
+    }
+}
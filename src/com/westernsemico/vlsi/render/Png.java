@@ -0,0 +1,80 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.render;
+import java.util.zip.*;
+import java.io.*;
+
+/**
+ *  A minimal PNG encoder for 8-bit RGBA images.  ImageIO's encoder
+ *  spends most of its time choosing row filters and deflating hard;
+ *  layout tiles are large flat areas which compress well with no
+ *  filter at the fastest deflate level, which is several times
+ *  quicker.
+ */
+class Png {
+
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    static void write(int[] argb, int width, int height, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(width);
+        h.writeInt(height);
+        h.writeByte(8);     // bit depth
+        h.writeByte(6);     // color type: RGBA
+        h.writeByte(0);     // deflate
+        h.writeByte(0);     // adaptive filtering
+        h.writeByte(0);     // not interlaced
+        chunk(out, "IHDR", header.toByteArray(), header.size());
+
+        byte[] raw = new byte[height * (1 + 4*width)];
+        int k = 0;
+        for(int y=0; y<height; y++) {
+            raw[k++] = 0;   // filter: none
+            for(int x=0; x<width; x++) {
+                int p = argb[y*width + x];
+                raw[k++] = (byte)(p >>> 16);
+                raw[k++] = (byte)(p >>> 8);
+                raw[k++] = (byte)p;
+                raw[k++] = (byte)(p >>> 24);
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 8);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater, 1<<16)) {
+            dos.write(raw);
+        } finally {
+            deflater.end();
+        }
+        byte[] data = compressed.toByteArray();
+        chunk(out, "IDAT", data, data.length);
+        chunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(t);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+}
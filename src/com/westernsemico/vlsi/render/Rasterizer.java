@@ -0,0 +1,361 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.render;
+import com.westernsemico.vlsi.geom.ShapeStore;
+import com.westernsemico.vlsi.layout.Layout;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Renders layout geometry into 256x256 ARGB tiles, drawing each
+ *  layer in the color, stipple, and outline of its RenderingStyle and
+ *  compositing the layers bottom to top by height3D.
+ *
+ *  Tiles are addressed (level, x, y) with tile (0,0) at the top left
+ *  of the layout's bounding box.  At level 0 a pixel is dbuPerPixel
+ *  database units; each level above halves the resolution, and its
+ *  tiles are box-filtered from the four tiles beneath rather than
+ *  rendered from geometry, so a zoomed-out view of a full chip costs
+ *  no more than the tiles it is made from.  tile() keeps a bounded
+ *  LRU cache of tiles; writePyramid() renders every level to disk.
+ *
+ *  Each layer is scan-converted into a coverage bitmap of 64-bit
+ *  words (one bit per pixel, with a one-pixel apron all around), and
+ *  stipples and outlines are computed a word at a time: the fill is
+ *  coverage & Pattern.word(), and the outline is the covered pixels
+ *  with an uncovered 4-neighbor.  A pixel is covered if the shape
+ *  overlaps it at all, so geometry never vanishes when zoomed out.
+ */
+public class Rasterizer {
+
+    public static final int TILE = 256;
+
+    /** words per bitmap row: the tile plus a word on either side for the apron */
+    private static final int W = TILE/64 + 2;
+
+    /** levels at or below this many levels above 0 render all their level-0 tiles at once in writePyramid() */
+    private static final int PARALLEL_LEVELS = 2;
+
+    /** where the shapes come from; layer is an index into the list of layers given to the Rasterizer */
+    public static interface Source {
+        /** visit at least every shape whose bounding box overlaps [xlo,xhi]x[ylo,yhi] */
+        public void scan(int xlo, int ylo, int xhi, int yhi, ShapeVisitor visitor);
+        /** xlo, ylo, xhi, yhi of everything, or null if there is nothing */
+        public int[] bounds();
+    }
+
+    public static interface ShapeVisitor { public void shape(int layer, int ylo, int yhi, int xlb, int xhb, int xlt, int xht); }
+
+    private final List<TechLayer> layers;
+    private final Source          source;
+    private final int             dbuPerPixel;
+    private final int             background;
+    private final int[]           bounds;
+    /** layer indices, bottom to top */
+    private final int[]           order;
+    /** the tile with nothing on it, shared by every empty tile and never written to disk */
+    private final int[]           blank;
+
+    private final int capacity;
+    private final LinkedHashMap<Long,CompletableFuture<int[]>> cache;
+
+    public Rasterizer(List<TechLayer> layers, Source source, int dbuPerPixel, int cacheTiles, int background) {
+        this.layers = new ArrayList<TechLayer>(layers);
+        this.source = source;
+        this.dbuPerPixel = dbuPerPixel;
+        this.background = background;
+        this.bounds = source.bounds();
+        this.blank = new int[TILE*TILE];
+        Arrays.fill(blank, background);
+        this.capacity = cacheTiles;
+        this.cache = new LinkedHashMap<Long,CompletableFuture<int[]>>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long,CompletableFuture<int[]>> e) { return size() > capacity; }
+        };
+        Integer[] o = new Integer[layers.size()];
+        for(int i=0; i<o.length; i++) o[i] = i;
+        Arrays.sort(o, (a, b) -> Double.compare(this.layers.get(a).height3D, this.layers.get(b).height3D));
+        this.order = new int[o.length];
+        for(int i=0; i<o.length; i++) order[i] = o[i];
+    }
+
+    /** a layout held in memory; every tile scans every shape, so use a ShapeStore for anything large */
+    public Rasterizer(Layout layout, int dbuPerPixel) { this(layout.getLayers(), source(layout), dbuPerPixel, 1024, 0xffffffff); }
+
+    /** a sorted ShapeStore filled by Layout.read(tech, gds, store), whose layer ordinals index tech.getLayers() */
+    public Rasterizer(Tech tech, ShapeStore store, int dbuPerPixel) {
+        this(new ArrayList<TechLayer>(tech.compile().getLayers()), source(store), dbuPerPixel, 1024, 0xffffffff);
+    }
+
+    public static Source source(final Layout layout) {
+        return new Source() {
+            public void scan(int xlo, int ylo, int xhi, int yhi, ShapeVisitor v) {
+                for(int i=0; i<layout.size(); i++)
+                    if (layout.xmax(i) >= xlo && layout.xmin(i) <= xhi && layout.yhi(i) >= ylo && layout.ylo(i) <= yhi)
+                        v.shape(layout.layerOrdinal(i), layout.ylo(i), layout.yhi(i), layout.xlb(i), layout.xhb(i), layout.xlt(i), layout.xht(i));
+            }
+            public int[] bounds() {
+                if (layout.size() == 0) return null;
+                int[] b = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+                for(int i=0; i<layout.size(); i++) grow(b, layout.xmin(i), layout.ylo(i), layout.xmax(i), layout.yhi(i));
+                return b;
+            }
+        };
+    }
+
+    public static Source source(final ShapeStore store) {
+        return new Source() {
+            public void scan(int xlo, int ylo, int xhi, int yhi, ShapeVisitor v) {
+                store.scan(-1, xlo, ylo, xhi, yhi, (long i) ->
+                           v.shape(store.layer(i), store.ylo(i), store.yhi(i), store.xlb(i), store.xhb(i), store.xlt(i), store.xht(i)));
+            }
+            public int[] bounds() {
+                if (store.size() == 0) return null;
+                int[] b = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+                for(long i=0; i<store.size(); i++) grow(b, store.xmin(i), store.ylo(i), store.xmax(i), store.yhi(i));
+                return b;
+            }
+        };
+    }
+
+    private static void grow(int[] b, int xlo, int ylo, int xhi, int yhi) {
+        b[0] = Math.min(b[0], xlo); b[1] = Math.min(b[1], ylo);
+        b[2] = Math.max(b[2], xhi); b[3] = Math.max(b[3], yhi);
+    }
+
+    // Tile Geometry //////////////////////////////////////////////////////////////////////////////
+
+    /** database units per pixel at the given level */
+    public long scale(int level) { return (long)dbuPerPixel << level; }
+
+    /** the number of tiles across (resp. down) at the given level */
+    public int tilesX(int level) { return bounds == null ? 0 : (int)((bounds[2] - (long)bounds[0] + TILE*scale(level) - 1) / (TILE*scale(level))); }
+    public int tilesY(int level) { return bounds == null ? 0 : (int)((bounds[3] - (long)bounds[1] + TILE*scale(level) - 1) / (TILE*scale(level))); }
+
+    /** the lowest level at which the whole layout fits in one tile */
+    public int topLevel() {
+        int level = 0;
+        while (tilesX(level) > 1 || tilesY(level) > 1) level++;
+        return level;
+    }
+
+    // Tiles //////////////////////////////////////////////////////////////////////////////
+
+    /** the tile at (level, tx, ty), TILE*TILE ARGB pixels in rows from the top; do not modify it */
+    public int[] tile(int level, int tx, int ty) { return tileAsync(level, tx, ty).join(); }
+
+    public CompletableFuture<int[]> tileAsync(final int level, final int tx, final int ty) {
+        final Long key = ((long)level << 58) | ((long)tx << 29) | ty;
+        CompletableFuture<int[]> mine = new CompletableFuture<int[]>();
+        synchronized(cache) {
+            CompletableFuture<int[]> f = cache.get(key);
+            if (f != null) return f;
+            cache.put(key, mine);
+        }
+        CompletableFuture<int[]> f;
+        if (tx < 0 || ty < 0 || tx >= tilesX(level) || ty >= tilesY(level)) f = CompletableFuture.completedFuture(blank);
+        else if (level == 0) f = CompletableFuture.supplyAsync(() -> render(tx, ty));
+        else {
+            final CompletableFuture<int[]> a = tileAsync(level-1, 2*tx, 2*ty),   b = tileAsync(level-1, 2*tx+1, 2*ty);
+            final CompletableFuture<int[]> c = tileAsync(level-1, 2*tx, 2*ty+1), d = tileAsync(level-1, 2*tx+1, 2*ty+1);
+            f = CompletableFuture.allOf(a, b, c, d).thenApply(v -> downsample(a.join(), b.join(), c.join(), d.join()));
+        }
+        f.whenComplete((pixels, e) -> {
+                if (e == null) { mine.complete(pixels); return; }
+                synchronized(cache) { cache.remove(key, mine); }
+                mine.completeExceptionally(e);
+            });
+        return mine;
+    }
+
+    /** render a level-0 tile from geometry */
+    int[] render(int tx, int ty) {
+        final long s = dbuPerPixel;
+        final long x0 = bounds[0] + tx*TILE*s;
+        final long y0 = bounds[3] - ty*TILE*s;
+        final long[][] coverage = new long[layers.size()][];
+
+        // one pixel of apron on every side, so outlines are right at the edges of the tile
+        source.scan((int)Math.max(Integer.MIN_VALUE, x0 - s), (int)Math.max(Integer.MIN_VALUE, y0 - (TILE+1)*s),
+                    (int)Math.min(Integer.MAX_VALUE, x0 + (TILE+1)*s), (int)Math.min(Integer.MAX_VALUE, y0 + s),
+                    (layer, ylo, yhi, xlb, xhb, xlt, xht) -> {
+                        if (yhi <= ylo) return;
+                        long[] bm = coverage[layer];
+                        if (bm == null) bm = coverage[layer] = new long[(TILE+2)*W];
+                        scanConvert(bm, x0, y0, s, ylo, yhi, xlb, xhb, xlt, xht);
+                    });
+
+        boolean empty = true;
+        for(long[] bm : coverage) empty &= bm == null;
+        if (empty) return blank;
+
+        int[] pixels = blank.clone();
+        for(int l : order) {
+            long[] bm = coverage[l];
+            if (bm == null) continue;
+            RenderingStyle rs = layers.get(l).rs;
+            boolean outlined = !"NOPAT".equals(rs.border);
+            int argb = 0xff000000 | (rs.r << 16) | (rs.g << 8) | rs.b;
+            for(int py=0; py<TILE; py++) {
+                int r = (py+1)*W;
+                long stipple = rs.pattern.word(ty*TILE + py);
+                for(int k=1; k<W-1; k++) {
+                    long cov = bm[r+k];
+                    if (cov == 0) continue;
+                    long paint = cov & stipple;
+                    if (outlined) {
+                        long left  = (cov >>> 1) | (bm[r+k-1] << 63);
+                        long right = (cov << 1)  | (bm[r+k+1] >>> 63);
+                        paint |= cov & ~(left & right & bm[r-W+k] & bm[r+W+k]);
+                    }
+                    int base = py*TILE + (k-1)*64;
+                    while (paint != 0) {
+                        int bit = Long.numberOfLeadingZeros(paint);
+                        pixels[base+bit] = argb;
+                        paint &= ~(Long.MIN_VALUE >>> bit);
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     *  Set the bits of every pixel the trapezoid overlaps, including the
+     *  apron.  Pixel (px,py) covers x in [x0+px*s, x0+(px+1)*s] and y in
+     *  [y0-(py+1)*s, y0-py*s]; it is bit (px+64) of its bitmap row.
+     */
+    private static void scanConvert(long[] bm, long x0, long y0, long s, int ylo, int yhi, int xlb, int xhb, int xlt, int xht) {
+        int pyFirst = (int)Math.max(-1,   Math.floorDiv(y0 - yhi, s));
+        int pyLast  = (int)Math.min(TILE, ceilDiv(y0 - ylo, s) - 1);
+        for(int py=pyFirst; py<=pyLast; py++) {
+            double ya = Math.max(ylo, y0 - (py+1)*s);
+            double yb = Math.min(yhi, y0 - py*s);
+            if (yb <= ya) continue;
+            double xl = Math.min(edge(xlb, xlt, ylo, yhi, ya), edge(xlb, xlt, ylo, yhi, yb));
+            double xr = Math.max(edge(xhb, xht, ylo, yhi, ya), edge(xhb, xht, ylo, yhi, yb));
+            int pxFirst = (int)Math.max(-1,   Math.floor((xl - x0) / s));
+            int pxLast  = (int)Math.min(TILE, Math.ceil((xr - x0) / s) - 1);
+            if (pxLast < pxFirst) continue;
+            fill(bm, (py+1)*W, pxFirst+64, pxLast+64);
+        }
+    }
+
+    private static double edge(int xb, int xt, int ylo, int yhi, double y) { return xb + (xt - xb) * (y - ylo) / (yhi - ylo); }
+
+    private static long ceilDiv(long a, long b) { return -Math.floorDiv(-a, b); }
+
+    /** set bits first..last (inclusive, counted from the most significant bit of word 0) of the row starting at base */
+    private static void fill(long[] bm, int base, int first, int last) {
+        int wf = first >>> 6, wl = last >>> 6;
+        long mf = -1L >>> (first & 63);
+        long ml = -1L << (63 - (last & 63));
+        if (wf == wl) { bm[base+wf] |= mf & ml; return; }
+        bm[base+wf] |= mf;
+        for(int w=wf+1; w<wl; w++) bm[base+w] = -1L;
+        bm[base+wl] |= ml;
+    }
+
+    /** box-filter four tiles (top-left, top-right, bottom-left, bottom-right) into one at half the resolution */
+    private int[] downsample(int[] tl, int[] tr, int[] bl, int[] br) {
+        if (tl == blank && tr == blank && bl == blank && br == blank) return blank;
+        int[] ret = new int[TILE*TILE];
+        int h = TILE/2;
+        for(int y=0; y<TILE; y++)
+            for(int x=0; x<TILE; x++) {
+                int[] src = y < h ? (x < h ? tl : tr) : (x < h ? bl : br);
+                int sx = (x % h) * 2, sy = (y % h) * 2;
+                int p = src[sy*TILE+sx], q = src[sy*TILE+sx+1], r = src[(sy+1)*TILE+sx], t = src[(sy+1)*TILE+sx+1];
+                int argb = 0;
+                for(int shift=0; shift<32; shift+=8)
+                    argb |= ((((p >>> shift) & 0xff) + ((q >>> shift) & 0xff) + ((r >>> shift) & 0xff) + ((t >>> shift) & 0xff) + 2) >>> 2) << shift;
+                ret[y*TILE+x] = argb;
+            }
+        return ret;
+    }
+
+    // Output //////////////////////////////////////////////////////////////////////////////
+
+    public static void writePng(int[] pixels, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            Png.write(pixels, TILE, TILE, out);
+        }
+    }
+
+    /**
+     *  Write every tile of every level up to topLevel() as
+     *  dir/level/x/y.png, skipping tiles with nothing on them.  The pyramid is built depth first, each tile
+     *  from the four beneath it, so only a few tiles per level are in
+     *  memory at once and the cache is bypassed; the level-0 tiles of
+     *  each small subtree are rendered in parallel.
+     */
+    public void writePyramid(File dir) throws IOException {
+        if (bounds == null) return;
+        try {
+            pyramid(dir, topLevel(), 0, 0);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)e.getCause()).getCause();
+            throw e;
+        }
+    }
+
+    private int[] pyramid(File dir, int level, int tx, int ty) throws IOException {
+        int[] ret;
+        if (tx >= tilesX(level) || ty >= tilesY(level)) return blank;
+        if (level <= PARALLEL_LEVELS) ret = parallel(dir, level, tx, ty).join();
+        else ret = downsample(pyramid(dir, level-1, 2*tx, 2*ty),   pyramid(dir, level-1, 2*tx+1, 2*ty),
+                              pyramid(dir, level-1, 2*tx, 2*ty+1), pyramid(dir, level-1, 2*tx+1, 2*ty+1));
+        if (level > PARALLEL_LEVELS && ret != blank) writePng(ret, new File(dir, level+"/"+tx+"/"+ty+".png"));
+        return ret;
+    }
+
+    /** the tile at (level, tx, ty), rendering its level-0 tiles concurrently; each tile is written as it completes */
+    private CompletableFuture<int[]> parallel(final File dir, final int level, final int tx, final int ty) {
+        CompletableFuture<int[]> f;
+        if (tx >= tilesX(level) || ty >= tilesY(level)) return CompletableFuture.completedFuture(blank);
+        if (level == 0) f = CompletableFuture.supplyAsync(() -> render(tx, ty));
+        else {
+            final CompletableFuture<int[]> a = parallel(dir, level-1, 2*tx, 2*ty),   b = parallel(dir, level-1, 2*tx+1, 2*ty);
+            final CompletableFuture<int[]> c = parallel(dir, level-1, 2*tx, 2*ty+1), d = parallel(dir, level-1, 2*tx+1, 2*ty+1);
+            f = CompletableFuture.allOf(a, b, c, d).thenApply(v -> downsample(a.join(), b.join(), c.join(), d.join()));
+        }
+        return f.thenApply(pixels -> {
+                try { if (pixels != blank) writePng(pixels, new File(dir, level+"/"+tx+"/"+ty+".png")); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+                return pixels;
+            });
+    }
+
+    /** usage: Rasterizer <layout.gds> <output directory> [dbu per pixel]; renders with SkyWater130 */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java "+Rasterizer.class.getName()+" <layout.gds> <output directory> [dbu per pixel]");
+            System.exit(1);
+        }
+        Tech tech = new SkyWater130();
+        try (ShapeStore store = new ShapeStore()) {
+            Layout.read(tech, new File(args[0]), store);
+            store.sortByX();
+            Rasterizer r = new Rasterizer(tech, store, args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            long start = System.nanoTime();
+            r.writePyramid(new File(args[1]));
+            System.err.println("levels 0-"+r.topLevel()+", "+r.tilesX(0)+"x"+r.tilesY(0)+" tiles at level 0, "+
+                               (System.nanoTime()-start)/1000000+"ms");
+        }
+    }
+}
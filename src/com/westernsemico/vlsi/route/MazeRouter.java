@@ -0,0 +1,846 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.route;
+import com.westernsemico.vlsi.layout.*;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  A gridded maze router for short hookups (analog nets, pad ring
+ *  connections) over a Tech's metal stack.
+ *
+ *  Each routing layer has its own square lattice of nodes whose pitch
+ *  is the layer's via-to-via pitch from Tracks (the widest of its
+ *  wire and via landings plus its minSpace, on the manufacturing
+ *  grid).  To keep via landings aligned, every lattice pitch is a
+ *  power-of-two multiple of the finest one (the "base" pitch), and a
+ *  via can be placed where the lattices of two adjacent layers
+ *  coincide.  Since any two nodes on a layer are at least a pitch
+ *  apart, wires of different nets never violate spacing provided no
+ *  node is shared, so occupancy is one bit per node.
+ *
+ *  The lattice is therefore coarser than the routing tracks which
+ *  Tracks publishes (and LEF carries): a track pitch is via-to-line,
+ *  which leaves no room for vias on neighbouring tracks, and tracks
+ *  of different layers need not line up, whereas here any node may
+ *  hold another net's via and vias need aligned lattices.  Wires
+ *  routed here are on the lattice, not on those tracks; a detailed
+ *  router which checks via-to-via spacing itself could use the
+ *  tracks instead.  Layer changes use the cut from ViaStacks, drawn
+ *  with the enclosure rules of the via primitive's layers.
+ *
+ *  Each connection is found by bidirectional A* (with the average of
+ *  the two directions' heuristics as potential, so both searches see
+ *  consistent costs) in a window around the net's pins, in primitive
+ *  arrays which belong to the worker thread and are stamped rather
+ *  than cleared, so a search allocates nothing.  Nets whose windows do
+ *  not overlap are independent and are searched in parallel, in
+ *  waves; nets which fail are retried over the whole area, and then
+ *  by rip-up: a search which may cross other nets' wires at a
+ *  penalty, after which the nets it crossed are removed and queued
+ *  again.
+ */
+public class MazeRouter {
+
+    /** cost of a step against a layer's preferred direction, per step along it */
+    public static final int WRONG_WAY  = 3;
+
+    /** cost of a via, in base pitches of wire */
+    public static final int VIA_COST   = 6;
+
+    /** cost of crossing a node of another net during rip-up, in base pitches of wire */
+    public static final int RIPUP_COST = 50;
+
+    /** how often a net may be ripped up before it is given up on */
+    public static final int MAX_RIPUPS = 8;
+
+    /** nets are searched in a window this many base pitches (or a quarter of their extent, if more) around their pins */
+    public static final int MARGIN     = 16;
+
+    public final Tech   tech;
+    public final double micronsPerDbu;
+
+    /** the origin of the lattices and the base pitch, in dbu */
+    public final int    xlo, ylo, base;
+
+    // per routing layer, bottom-up
+    private final int nl;
+    private final TechLayer[] layers;
+    private final boolean[]   vertical;     // preferred direction
+    private final int[]       k;            // lattice pitch in base pitches (a power of two)
+    private final int[]       NX, NY;       // lattice size
+    private final int[]       nodeBase;     // global node ids are nodeBase[l] + j*NX[l] + i
+    private final int[]       width;        // wire width, dbu
+    private final int[]       halo;         // nodes within this distance (dbu) of a foreign shape are blocked
+    private final TechLayer[] cutAbove;     // the cut from layer l to layer l+1, or null
+    private final Primitive[] viaAbove;
+    private final int[]       cutWidth, landingBelow, landingAbove;
+
+    // one bit per global node
+    private final long[] fixed, pinned, used;
+    private final IntMap pinOwner = new IntMap();
+    private final IntMap owner    = new IntMap();
+
+    private final ArrayList<Net> nets = new ArrayList<Net>();
+
+    /** a router over the rectangle [xlo,xhi]x[ylo,yhi] (in dbu) on the given metal layers */
+    public MazeRouter(Tech tech, double micronsPerDbu, int xlo, int ylo, int xhi, int yhi, List<TechLayer> routingLayers) {
+        this.tech = tech.compile();
+        this.micronsPerDbu = micronsPerDbu;
+        this.xlo = xlo;
+        this.ylo = ylo;
+        ArrayList<TechLayer> sorted = new ArrayList<TechLayer>(routingLayers);
+        Collections.sort(sorted, (a, b) -> Double.compare(a.height3D, b.height3D));
+        nl = sorted.size();
+        layers = sorted.toArray(new TechLayer[nl]);
+
+        // preferred directions are the Tech's routing tracks' (which alternate up the whole metal stack)
+        Tracks tracks = Tracks.forTech(tech);
+        vertical = new boolean[nl];
+        for(int l=0; l<nl; l++) vertical[l] = tracks.get(layers[l]) != null ? tracks.get(layers[l]).vertical : l % 2 == 0;
+
+        ViaStacks stacks = ViaStacks.forTech(tech);
+        cutAbove = new TechLayer[nl];
+        viaAbove = new Primitive[nl];
+        cutWidth = new int[nl];
+        landingBelow = new int[nl];
+        landingAbove = new int[nl];
+        width = new int[nl];
+        halo = new int[nl];
+        int[] pitch = new int[nl], widest = new int[nl], cutPitch = new int[nl];
+        for(int l=0; l<nl; l++) {
+            if (layers[l].layerRules == null) throw new IllegalArgumentException(layers[l]+" has no width and spacing rules");
+            width[l] = widest[l] = dbu(layers[l].layerRules.minWidth);
+        }
+        for(int l=0; l+1<nl; l++) {
+            ViaStacks.Stack s = stacks.get(layers[l], layers[l+1]);
+            if (s == null || s.size() != 1) continue;
+            TechLayer cut = s.cuts[0];
+            cutAbove[l] = cut;
+            viaAbove[l] = s.vias[0];
+            cutWidth[l] = dbu(cut.layerRules.minWidth);
+            landingBelow[l] = Math.max(width[l],   cutWidth[l] + 2*dbu(enclosure(layers[l], cut)));
+            landingAbove[l] = Math.max(width[l+1], cutWidth[l] + 2*dbu(enclosure(layers[l+1], cut)));
+            widest[l]   = Math.max(widest[l],   landingBelow[l]);
+            widest[l+1] = Math.max(widest[l+1], landingAbove[l]);
+            int cp = cutWidth[l] + dbu(cut.layerRules.minSpace);
+            cutPitch[l]   = Math.max(cutPitch[l], cp);
+            cutPitch[l+1] = Math.max(cutPitch[l+1], cp);
+        }
+        int finest = Integer.MAX_VALUE;
+        for(int l=0; l<nl; l++) {
+            Tracks.Grid g = tracks.get(layers[l]);
+            pitch[l] = Math.max(widest[l] + dbu(layers[l].layerRules.minSpace), cutPitch[l]);
+            if (g != null) pitch[l] = Math.max(pitch[l], dbu(g.viaToVia));
+            halo[l] = dbu(layers[l].layerRules.minSpace) + (widest[l]+1)/2;
+            finest = Math.min(finest, pitch[l]);
+        }
+        base = finest;
+        k = new int[nl];
+        NX = new int[nl];
+        NY = new int[nl];
+        nodeBase = new int[nl+1];
+        long total = 0;
+        for(int l=0; l<nl; l++) {
+            k[l] = 1;
+            while ((long)k[l]*base < pitch[l]) k[l] *= 2;
+            NX[l] = (int)(((long)xhi - xlo) / ((long)k[l]*base)) + 1;
+            NY[l] = (int)(((long)yhi - ylo) / ((long)k[l]*base)) + 1;
+            nodeBase[l] = (int)total;
+            total += (long)NX[l] * NY[l];
+            if (total >= Integer.MAX_VALUE) throw new IllegalArgumentException("routing area too large for one router");
+        }
+        nodeBase[nl] = (int)total;
+        fixed  = new long[(int)((total+63)/64)];
+        pinned = new long[fixed.length];
+        used   = new long[fixed.length];
+    }
+
+    /** the metal layers above the lowest (which is left to the cells), as routing layers */
+    public static List<TechLayer> defaultLayers(Tech tech) {
+        ArrayList<TechLayer> ret = new ArrayList<TechLayer>();
+        for(int o=tech.lowestMetalLayerOrdinal()+1; o<tech.lowestMetalLayerOrdinal()-1+tech.numLayersPolyOrMetal(); o++) {
+            TechLayer tl = tech.getPolyOrMetalLayer(o);
+            if (tl != null && tl.layerRules != null) ret.add(tl);
+        }
+        return ret;
+    }
+
+    private static double enclosure(TechLayer tl, TechLayer cut) {
+        Double ret = tl.getEnclosureRules().get(cut);
+        return ret == null ? 0 : ret;
+    }
+
+    /** microns to dbu, rounded up to the manufacturing grid */
+    private int dbu(double microns) {
+        int grid = Math.max(1, (int)Math.round(tech.gridAlignmentInUnits / micronsPerDbu));
+        int ret = (int)Math.ceil(microns / micronsPerDbu - 1e-6);
+        return (ret + grid - 1) / grid * grid;
+    }
+
+    /** the routing layer ordinal of a TechLayer, or -1 */
+    public int layer(TechLayer tl) {
+        for(int l=0; l<nl; l++) if (layers[l] == tl) return l;
+        return -1;
+    }
+
+    public TechLayer getLayer(int l)  { return layers[l]; }
+    public int layers()               { return nl; }
+    public int pitch(int l)           { return k[l] * base; }
+    public boolean isVertical(int l)  { return vertical[l]; }
+
+    // Nodes //////////////////////////////////////////////////////////////////////////////
+
+    private static boolean bit(long[] bits, int g) { return (bits[g >>> 6] & (1L << g)) != 0; }
+    private static void set(long[] bits, int g)    { bits[g >>> 6] |= 1L << g; }
+    private static void clear(long[] bits, int g)  { bits[g >>> 6] &= ~(1L << g); }
+
+    private int layerOf(int g) {
+        int l = 0;
+        while (g >= nodeBase[l+1]) l++;
+        return l;
+    }
+    private int nodeX(int g) { int l = layerOf(g); return xlo + ((g - nodeBase[l]) % NX[l]) * k[l] * base; }
+    private int nodeY(int g) { int l = layerOf(g); return ylo + ((g - nodeBase[l]) / NX[l]) * k[l] * base; }
+
+    /** visit the nodes of layer l whose centres lie in [x0,x1]x[y0,y1] (dbu) */
+    private void forNodes(int l, long x0, long y0, long x1, long y1, IntConsumer visitor) {
+        long p = (long)k[l] * base;
+        int i0 = (int)Math.max(0, Math.floorDiv(x0 - xlo + p - 1, p)), i1 = (int)Math.min(NX[l]-1, Math.floorDiv(x1 - xlo, p));
+        int j0 = (int)Math.max(0, Math.floorDiv(y0 - ylo + p - 1, p)), j1 = (int)Math.min(NY[l]-1, Math.floorDiv(y1 - ylo, p));
+        for(int j=j0; j<=j1; j++)
+            for(int i=i0; i<=i1; i++)
+                visitor.accept(nodeBase[l] + j*NX[l] + i);
+    }
+
+    private interface IntConsumer { void accept(int g); }
+
+    /** block every node on the shape's layer too close to a shape which is not part of the routing */
+    public void addObstacle(TechLayer tl, int x0, int y0, int x1, int y1) {
+        int l = layer(tl);
+        if (l == -1) return;
+        forNodes(l, (long)x0 - halo[l] + 1, (long)y0 - halo[l] + 1, (long)x1 + halo[l] - 1, (long)y1 + halo[l] - 1, g -> set(fixed, g));
+    }
+
+    // Nets //////////////////////////////////////////////////////////////////////////////
+
+    public class Net {
+        public final String name;
+        final int id;
+        /** each pin's nodes, and its rectangle {layer, x0, y0, x1, y1} */
+        final ArrayList<int[]> pins = new ArrayList<int[]>();
+        final ArrayList<int[]> pinRects = new ArrayList<int[]>();
+        /** the routed connections, each a sequence of global nodes from the tree to a pin */
+        int[][] paths;
+        int ripups = 0;
+
+        Net(String name, int id) { this.name = name; this.id = id; }
+
+        /** a pin on a routing layer; if the rectangle holds no node of its layer, the nearest one is used and the pin is drawn out to it */
+        public void addPin(TechLayer tl, int x0, int y0, int x1, int y1) {
+            int l = layer(tl);
+            if (l == -1) throw new IllegalArgumentException(tl+" is not a routing layer");
+            ArrayList<Integer> nodes = new ArrayList<Integer>();
+            forNodes(l, x0, y0, x1, y1, g -> nodes.add(g));
+            if (nodes.isEmpty()) {
+                long p = (long)k[l] * base;
+                int i = (int)Math.max(0, Math.min(NX[l]-1, Math.round((((long)x0 + x1) / 2.0 - xlo) / p)));
+                int j = (int)Math.max(0, Math.min(NY[l]-1, Math.round((((long)y0 + y1) / 2.0 - ylo) / p)));
+                nodes.add(nodeBase[l] + j*NX[l] + i);
+            }
+            int[] pin = new int[nodes.size()];
+            for(int n=0; n<pin.length; n++) pin[n] = nodes.get(n);
+            pins.add(pin);
+
+            // a pin off the lattice grows to take in the wire end at its nearest node
+            int h = width[l] / 2, x = nodeX(pin[0]), y = nodeY(pin[0]);
+            if (x < x0 || x > x1 || y < y0 || y > y1) {
+                x0 = Math.min(x0, x - h); y0 = Math.min(y0, y - h);
+                x1 = Math.max(x1, x - h + width[l]); y1 = Math.max(y1, y - h + width[l]);
+            }
+            pinRects.add(new int[] { l, x0, y0, x1, y1 });
+
+            // nodes too close to the pin for another net belong to this net if a wire there would merge with the pin, and
+            // otherwise to no net, since this net's own wire there would leave a notch
+            int px0 = x0, py0 = y0, px1 = x1, py1 = y1;
+            forNodes(l, (long)x0 - halo[l] + 1, (long)y0 - halo[l] + 1, (long)x1 + halo[l] - 1, (long)y1 + halo[l] - 1, g -> {
+                    int dx = Math.max(0, Math.max(px0 - nodeX(g), nodeX(g) - px1)), dy = Math.max(0, Math.max(py0 - nodeY(g), nodeY(g) - py1));
+                    if (dx > h || dy > h) { set(fixed, g); return; }
+                    set(pinned, g);
+                    int o = pinOwner.get(g);
+                    pinOwner.put(g, o == -1 || o == id ? id : -2);
+                });
+        }
+
+        public boolean isRouted()  { return paths != null; }
+        public int pins()          { return pins.size(); }
+
+        public int vias() {
+            int ret = 0;
+            if (paths != null) for(int[] p : paths) for(int s=1; s<p.length; s++) if (layerOf(p[s]) != layerOf(p[s-1])) ret++;
+            return ret;
+        }
+
+        public double wirelengthMicrons() {
+            long ret = 0;
+            if (paths != null)
+                for(int[] p : paths)
+                    for(int s=1; s<p.length; s++)
+                        if (layerOf(p[s]) == layerOf(p[s-1])) ret += Math.abs(nodeX(p[s]) - nodeX(p[s-1])) + Math.abs(nodeY(p[s]) - nodeY(p[s-1]));
+            return ret * micronsPerDbu;
+        }
+
+        public String toString() { return name; }
+    }
+
+    public Net addNet(String name) {
+        Net ret = new Net(name, nets.size());
+        nets.add(ret);
+        return ret;
+    }
+
+    public List<Net> getNets() { return Collections.unmodifiableList(nets); }
+
+    /** a net's pins' bounding box, in base pitches, grown by the margin; {x0, y0, x1, y1} */
+    private int[] window(Net net) {
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for(int[] pin : net.pins)
+            for(int g : pin) {
+                int l = layerOf(g), r = g - nodeBase[l];
+                x0 = Math.min(x0, (r % NX[l]) * k[l]); x1 = Math.max(x1, (r % NX[l]) * k[l]);
+                y0 = Math.min(y0, (r / NX[l]) * k[l]); y1 = Math.max(y1, (r / NX[l]) * k[l]);
+            }
+        int margin = Math.max(MARGIN, ((x1 - x0) + (y1 - y0)) / 4);
+        for(int l=0; l<nl; l++) margin = Math.max(margin, 2*k[l]);
+        return new int[] { x0 - margin, y0 - margin, x1 + margin, y1 + margin };
+    }
+
+    private int[] everywhere() {
+        int x1 = 0, y1 = 0;
+        for(int l=0; l<nl; l++) { x1 = Math.max(x1, (NX[l]-1)*k[l]); y1 = Math.max(y1, (NY[l]-1)*k[l]); }
+        return new int[] { 0, 0, x1, y1 };
+    }
+
+    // Search //////////////////////////////////////////////////////////////////////////////
+
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+    private static final int OFFSET   = 1 << 30;
+    private static final byte NONE = -1, EAST = 0, WEST = 1, NORTH = 2, SOUTH = 3, UP = 4, DOWN = 5;
+
+    /**
+     *  The working storage of one thread's searches: a window of the
+     *  lattices, numbered locally, and for each direction the cost to
+     *  each node, the move that reached it, and a heap of (key, node).
+     *  Arrays grow to the largest window seen and are never cleared;
+     *  an entry is valid only if its stamp is the current search's.
+     */
+    private class Search {
+        final int[] i0 = new int[nl], j0 = new int[nl], ni = new int[nl], nj = new int[nl], off = new int[nl+1];
+        int n = 0, epoch = 0;
+        int[]  gF = new int[0], gB = new int[0], seenF = new int[0], seenB = new int[0], doneF = new int[0], doneB = new int[0];
+        byte[] fromF = new byte[0], fromB = new byte[0];
+        long[] heapF = new long[1024], heapB = new long[1024];
+        int    sizeF, sizeB;
+
+        // the current connection: the net, and bounding boxes (base pitches) and layer ranges of its two ends
+        Net net;
+        boolean ripup;
+        int sx0, sy0, sx1, sy1, sl0, sl1, tx0, ty0, tx1, ty1, tl0, tl1;
+
+        void window(int[] w) {
+            n = 0;
+            for(int l=0; l<nl; l++) {
+                i0[l] = Math.max(0, Math.floorDiv(w[0] + k[l] - 1, k[l]));
+                j0[l] = Math.max(0, Math.floorDiv(w[1] + k[l] - 1, k[l]));
+                ni[l] = Math.max(0, Math.min(NX[l]-1, Math.floorDiv(w[2], k[l])) - i0[l] + 1);
+                nj[l] = Math.max(0, Math.min(NY[l]-1, Math.floorDiv(w[3], k[l])) - j0[l] + 1);
+                off[l] = n;
+                n += ni[l] * nj[l];
+            }
+            off[nl] = n;
+            if (gF.length < n) {
+                int size = n + n/4;
+                gF = new int[size]; gB = new int[size];
+                seenF = new int[size]; seenB = new int[size]; doneF = new int[size]; doneB = new int[size];
+                fromF = new byte[size]; fromB = new byte[size];
+                epoch = 0;
+            }
+        }
+
+        int localLayer(int u) {
+            int l = 0;
+            while (u >= off[l+1]) l++;
+            return l;
+        }
+
+        /** the local number of a global node, or -1 if it is outside the window */
+        int local(int g) {
+            int l = layerOf(g), r = g - nodeBase[l];
+            int i = r % NX[l] - i0[l], j = r / NX[l] - j0[l];
+            if (i < 0 || j < 0 || i >= ni[l] || j >= nj[l]) return -1;
+            return off[l] + j*ni[l] + i;
+        }
+
+        int global(int u) {
+            int l = localLayer(u), r = u - off[l];
+            return nodeBase[l] + (j0[l] + r / ni[l]) * NX[l] + i0[l] + r % ni[l];
+        }
+
+        /** the neighbour of local node u (on layer l) by the given move, or -1 */
+        int step(int u, int l, int move) {
+            int r = u - off[l], i = r % ni[l], j = r / ni[l];
+            switch(move) {
+                case EAST:  return i+1 < ni[l] ? u+1 : -1;
+                case WEST:  return i > 0 ? u-1 : -1;
+                case NORTH: return j+1 < nj[l] ? u+ni[l] : -1;
+                case SOUTH: return j > 0 ? u-ni[l] : -1;
+                default:
+                    int m = move == UP ? l+1 : l-1;
+                    if (m < 0 || m >= nl || cutAbove[Math.min(l, m)] == null) return -1;
+                    int bx = (i0[l] + i) * k[l], by = (j0[l] + j) * k[l];
+                    if (bx % k[m] != 0 || by % k[m] != 0) return -1;
+                    int mi = bx / k[m] - i0[m], mj = by / k[m] - j0[m];
+                    if (mi < 0 || mj < 0 || mi >= ni[m] || mj >= nj[m]) return -1;
+                    return off[m] + mj*ni[m] + mi;
+            }
+        }
+
+        /** the extra cost of entering global node g, or -1 if it may not be entered */
+        int entry(int g) {
+            if (bit(fixed, g)) return -1;
+            if (bit(pinned, g) && pinOwner.get(g) != net.id) return -1;
+            if (bit(used, g)) return ripup && owner.get(g) != net.id ? 2*RIPUP_COST : owner.get(g) == net.id ? 0 : -1;
+            return 0;
+        }
+
+        /** the forward potential: half the difference of the (doubled) lower bounds to the target and from the source */
+        int potential(int l, int bx, int by) {
+            int ht = Math.max(0, Math.max(tx0 - bx, bx - tx1)) + Math.max(0, Math.max(ty0 - by, by - ty1)) + VIA_COST * Math.max(0, Math.max(tl0 - l, l - tl1));
+            int hs = Math.max(0, Math.max(sx0 - bx, bx - sx1)) + Math.max(0, Math.max(sy0 - by, by - sy1)) + VIA_COST * Math.max(0, Math.max(sl0 - l, l - sl1));
+            return ht - hs;
+        }
+
+        int potential(int u) {
+            int l = localLayer(u), r = u - off[l];
+            return potential(l, (i0[l] + r % ni[l]) * k[l], (j0[l] + r / ni[l]) * k[l]);
+        }
+
+        /** a bounding box (base pitches) and layer range of some local nodes; {x0, y0, x1, y1, l0, l1} */
+        void bounds(int[] nodes, int count, int[] ret) {
+            ret[0] = ret[1] = ret[4] = Integer.MAX_VALUE;
+            ret[2] = ret[3] = ret[5] = Integer.MIN_VALUE;
+            for(int c=0; c<count; c++) {
+                int u = nodes[c], l = localLayer(u), r = u - off[l];
+                int bx = (i0[l] + r % ni[l]) * k[l], by = (j0[l] + r / ni[l]) * k[l];
+                ret[0] = Math.min(ret[0], bx); ret[2] = Math.max(ret[2], bx);
+                ret[1] = Math.min(ret[1], by); ret[3] = Math.max(ret[3], by);
+                ret[4] = Math.min(ret[4], l);  ret[5] = Math.max(ret[5], l);
+            }
+        }
+
+        final int[] box = new int[6];
+
+        /**
+         *  The cheapest path from any of the sources to any of the
+         *  targets (local node numbers), as local nodes from a source to
+         *  a target, or null.
+         */
+        int[] connect(int[] sources, int ns, int[] targets, int nt) {
+            if (++epoch == Integer.MAX_VALUE) { epoch = 1; Arrays.fill(seenF, 0); Arrays.fill(seenB, 0); Arrays.fill(doneF, 0); Arrays.fill(doneB, 0); }
+            bounds(sources, ns, box); sx0 = box[0]; sy0 = box[1]; sx1 = box[2]; sy1 = box[3]; sl0 = box[4]; sl1 = box[5];
+            bounds(targets, nt, box); tx0 = box[0]; ty0 = box[1]; tx1 = box[2]; ty1 = box[3]; tl0 = box[4]; tl1 = box[5];
+            sizeF = sizeB = 0;
+            int mu = INFINITY, meet = -1;
+            for(int c=0; c<ns; c++) {
+                int u = sources[c];
+                if (seenF[u] == epoch) continue;
+                seenF[u] = epoch; gF[u] = 0; fromF[u] = NONE;
+                pushF(potential(u), u);
+            }
+            for(int c=0; c<nt; c++) {
+                int u = targets[c];
+                if (seenB[u] == epoch) continue;
+                seenB[u] = epoch; gB[u] = 0; fromB[u] = NONE;
+                pushB(-potential(u), u);
+                if (seenF[u] == epoch) { mu = 0; meet = u; }
+            }
+            while (sizeF > 0 && sizeB > 0) {
+                int topF = (int)(heapF[0] >>> 32) - OFFSET, topB = (int)(heapB[0] >>> 32) - OFFSET;
+                if ((long)topF + topB >= mu) break;
+                boolean forward = topF <= topB;
+                int u = forward ? popF() : popB();
+                int[] g = forward ? gF : gB, done = forward ? doneF : doneB, seen = forward ? seenF : seenB, otherSeen = forward ? seenB : seenF, other = forward ? gB : gF;
+                byte[] from = forward ? fromF : fromB;
+                if (done[u] == epoch) continue;
+                done[u] = epoch;
+                int l = localLayer(u);
+                for(int move=EAST; move<=DOWN; move++) {
+                    int v = step(u, l, move);
+                    if (v == -1) continue;
+                    int extra = entry(global(v));
+                    if (extra == -1) continue;
+                    int cost;
+                    if (move == UP || move == DOWN)            cost = 2*VIA_COST;
+                    else if ((move >= NORTH) == vertical[l])   cost = 2*k[l];
+                    else                                       cost = 2*k[l]*WRONG_WAY;
+                    int ng = g[u] + cost + extra;
+                    if (seen[v] == epoch && ng >= g[v]) continue;
+                    seen[v] = epoch;
+                    g[v] = ng;
+                    from[v] = (byte)move;
+                    if (forward) pushF(ng + potential(v), v);
+                    else         pushB(ng - potential(v), v);
+                    if (otherSeen[v] == epoch && ng + other[v] < mu) { mu = ng + other[v]; meet = v; }
+                }
+            }
+            if (meet == -1) return null;
+
+            // walk back to a source and on to a target
+            int count = 1;
+            for(int u=meet; fromF[u] != NONE; u=step(u, localLayer(u), fromF[u]^1)) count++;
+            for(int u=meet; fromB[u] != NONE; u=step(u, localLayer(u), fromB[u]^1)) count++;
+            int[] ret = new int[count];
+            int p = 0;
+            for(int u=meet; ; u=step(u, localLayer(u), fromF[u]^1)) { ret[p++] = u; if (fromF[u] == NONE) break; }
+            for(int a=0, b=p-1; a<b; a++, b--) { int t = ret[a]; ret[a] = ret[b]; ret[b] = t; }
+            for(int u=meet; fromB[u] != NONE; ) { u = step(u, localLayer(u), fromB[u]^1); ret[p++] = u; }
+            return ret;
+        }
+
+        void pushF(int key, int u) { if (sizeF == heapF.length) heapF = Arrays.copyOf(heapF, 2*sizeF); sizeF = push(heapF, sizeF, ((long)(key + OFFSET) << 32) | u); }
+        void pushB(int key, int u) { if (sizeB == heapB.length) heapB = Arrays.copyOf(heapB, 2*sizeB); sizeB = push(heapB, sizeB, ((long)(key + OFFSET) << 32) | u); }
+        int popF() { int u = (int)heapF[0]; sizeF = pop(heapF, sizeF); return u; }
+        int popB() { int u = (int)heapB[0]; sizeB = pop(heapB, sizeB); return u; }
+
+        int[] tree = new int[256], target = new int[64];
+
+        /** route a whole net in the given window; returns its connections as global nodes, or null */
+        int[][] route(Net net, int[] w, boolean ripup) {
+            this.net = net;
+            this.ripup = ripup;
+            window(w);
+            int nt = 0;
+            for(int g : net.pins.get(0)) {
+                int u = local(g);
+                if (u == -1 || entry(g) == -1) continue;
+                if (nt == tree.length) tree = Arrays.copyOf(tree, 2*nt);
+                tree[nt++] = u;
+            }
+            if (nt == 0) return null;
+            int[][] ret = new int[net.pins.size()-1][];
+            boolean[] joined = new boolean[net.pins.size()];
+            joined[0] = true;
+            for(int c=0; c<ret.length; c++) {
+                // the unjoined pin nearest the tree next
+                bounds(tree, nt, box);
+                int best = -1;
+                long bestDistance = Long.MAX_VALUE;
+                for(int p=1; p<joined.length; p++) {
+                    if (joined[p]) continue;
+                    int g = net.pins.get(p)[0], l = layerOf(g), r = g - nodeBase[l];
+                    int bx = (r % NX[l]) * k[l], by = (r / NX[l]) * k[l];
+                    long d = (long)Math.max(0, Math.max(box[0] - bx, bx - box[2])) + Math.max(0, Math.max(box[1] - by, by - box[3]));
+                    if (d < bestDistance) { bestDistance = d; best = p; }
+                }
+                joined[best] = true;
+                int np = 0;
+                for(int g : net.pins.get(best)) {
+                    int u = local(g);
+                    if (u == -1 || entry(g) == -1) continue;
+                    if (np == target.length) target = Arrays.copyOf(target, 2*np);
+                    target[np++] = u;
+                }
+                int[] path = np == 0 ? null : connect(tree, nt, target, np);
+                if (path == null) return null;
+                ret[c] = new int[path.length];
+                for(int s=0; s<path.length; s++) {
+                    ret[c][s] = global(path[s]);
+                    if (nt == tree.length) tree = Arrays.copyOf(tree, 2*nt);
+                    tree[nt++] = path[s];
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static int push(long[] heap, int size, long e) {
+        int i = size++;
+        while (i > 0) {
+            int p = (i-1) >>> 1;
+            if (heap[p] <= e) break;
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = e;
+        return size;
+    }
+
+    private static int pop(long[] heap, int size) {
+        long e = heap[--size];
+        int i = 0;
+        while (true) {
+            int c = 2*i+1;
+            if (c >= size) break;
+            if (c+1 < size && heap[c+1] < heap[c]) c++;
+            if (e <= heap[c]) break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = e;
+        return size;
+    }
+
+    private final ThreadLocal<Search> searches = ThreadLocal.withInitial(() -> new Search());
+
+    // Routing //////////////////////////////////////////////////////////////////////////////
+
+    private void commit(Net net, int[][] paths) {
+        net.paths = paths;
+        for(int[] p : paths) for(int g : p) { set(used, g); owner.put(g, net.id); }
+    }
+
+    private void ripUp(Net net) {
+        for(int[] p : net.paths) for(int g : p) if (owner.get(g) == net.id) { clear(used, g); owner.remove(g); }
+        net.paths = null;
+        net.ripups++;
+    }
+
+    /** windows are claimed in cells of this many base pitches when grouping nets into waves */
+    private static final int CELL = 32;
+
+    /** route every net which is not yet routed; returns how many nets are routed in all */
+    public int route() {
+        ArrayList<Net> pending = new ArrayList<Net>();
+        for(Net net : nets) if (!net.isRouted() && net.pins.size() > 1) pending.add(net);
+        HashMap<Net,int[]> windows = new HashMap<Net,int[]>();
+        for(Net net : pending) windows.put(net, window(net));
+        Collections.sort(pending, (a, b) -> {
+                int[] wa = windows.get(a), wb = windows.get(b);
+                return Long.compare((long)(wa[2]-wa[0]) * (wa[3]-wa[1]), (long)(wb[2]-wb[0]) * (wb[3]-wb[1]));
+            });
+
+        // waves of nets whose windows are disjoint, each searched in parallel and committed in order
+        int[] all = everywhere();
+        int cx = all[2] / CELL + 1, cy = all[3] / CELL + 1;
+        boolean[] claimed = new boolean[cx * cy];
+        ArrayList<Net> retry = new ArrayList<Net>();
+        while (!pending.isEmpty()) {
+            Arrays.fill(claimed, false);
+            ArrayList<Net> wave = new ArrayList<Net>(), later = new ArrayList<Net>();
+            for(Net net : pending) {
+                int[] w = windows.get(net);
+                int x0 = Math.max(0, w[0] / CELL), y0 = Math.max(0, w[1] / CELL), x1 = Math.min(cx-1, w[2] / CELL), y1 = Math.min(cy-1, w[3] / CELL);
+                boolean free = true;
+                for(int y=y0; y<=y1 && free; y++) for(int x=x0; x<=x1 && free; x++) free = !claimed[y*cx+x];
+                if (!free) { later.add(net); continue; }
+                for(int y=y0; y<=y1; y++) for(int x=x0; x<=x1; x++) claimed[y*cx+x] = true;
+                wave.add(net);
+            }
+            int[][][] found = new int[wave.size()][][];
+            int chunks = Math.max(1, Math.min(4*ForkJoinPool.getCommonPoolParallelism(), wave.size() / 16));
+            ArrayList<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+            for(int c=0; c<chunks; c++) {
+                int lo = wave.size() * c / chunks, hi = wave.size() * (c+1) / chunks;
+                tasks.add(CompletableFuture.runAsync(() -> {
+                            Search s = searches.get();
+                            for(int n=lo; n<hi; n++) found[n] = s.route(wave.get(n), windows.get(wave.get(n)), false);
+                        }));
+            }
+            for(CompletableFuture<Void> t : tasks) t.join();
+            for(int n=0; n<wave.size(); n++) {
+                if (found[n] != null) commit(wave.get(n), found[n]);
+                else retry.add(wave.get(n));
+            }
+            pending = later;
+        }
+
+        // what failed in its window: the whole area, then rip-up
+        Search s = searches.get();
+        ArrayDeque<Net> queue = new ArrayDeque<Net>(retry);
+        while (!queue.isEmpty()) {
+            Net net = queue.poll();
+            int[][] paths = s.route(net, all, false);
+            if (paths == null && net.ripups < MAX_RIPUPS) {
+                paths = s.route(net, all, true);
+                if (paths == null) continue;
+                LinkedHashSet<Net> victims = new LinkedHashSet<Net>();
+                for(int[] p : paths)
+                    for(int g : p)
+                        if (bit(used, g) && owner.get(g) != net.id) victims.add(nets.get(owner.get(g)));
+                for(Net v : victims) { ripUp(v); queue.add(v); }
+                net.ripups++;
+            }
+            if (paths != null) commit(net, paths);
+        }
+        int ret = 0;
+        for(Net net : nets) if (net.isRouted()) ret++;
+        return ret;
+    }
+
+    // Output //////////////////////////////////////////////////////////////////////////////
+
+    /** draw the routed nets into a layout: wires, and for each layer change the cut and its two landings */
+    public void emit(Layout out) {
+        for(Net net : nets) {
+            if (!net.isRouted()) continue;
+            for(int[] p : net.paths) {
+                int start = 0;
+                for(int s=1; s<=p.length; s++) {
+                    boolean turn = s == p.length || layerOf(p[s]) != layerOf(p[start])
+                        || (nodeX(p[s]) != nodeX(p[start]) && nodeY(p[s]) != nodeY(p[start]));
+                    if (!turn) continue;
+                    if (s-1 > start) wire(out, layerOf(p[start]), nodeX(p[start]), nodeY(p[start]), nodeX(p[s-1]), nodeY(p[s-1]));
+                    if (s < p.length && layerOf(p[s]) != layerOf(p[s-1])) {
+                        int l = Math.min(layerOf(p[s]), layerOf(p[s-1]));
+                        int x = nodeX(p[s]), y = nodeY(p[s]);
+                        square(out, cutAbove[l], x, y, cutWidth[l]);
+                        square(out, layers[l], x, y, landingBelow[l]);
+                        square(out, layers[l+1], x, y, landingAbove[l]);
+                        start = s;
+                    } else start = s-1;
+                }
+            }
+            // pins which have grown to reach the lattice
+            for(int[] rect : net.pinRects) out.addRect(layers[rect[0]], rect[1], rect[2], rect[3], rect[4]);
+        }
+    }
+
+    private void wire(Layout out, int l, int x0, int y0, int x1, int y1) {
+        int h = width[l] / 2;
+        out.addRect(layers[l], Math.min(x0, x1) - h, Math.min(y0, y1) - h, Math.max(x0, x1) - h + width[l], Math.max(y0, y1) - h + width[l]);
+    }
+
+    private void square(Layout out, TechLayer tl, int x, int y, int size) {
+        out.addRect(tl, x - size/2, y - size/2, x - size/2 + size, y - size/2 + size);
+    }
+
+    // IntMap //////////////////////////////////////////////////////////////////////////////
+
+    /** an open-addressed map from node to net id (-1 if absent), without boxing */
+    private static class IntMap {
+        private int[] keys = new int[64], values = new int[64];
+        private int size = 0;
+        IntMap() { Arrays.fill(keys, -1); }
+
+        private static int hash(int key) { int h = key * 0x9E3779B9; return h ^ (h >>> 16); }
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for(int h=hash(key) & mask; ; h=(h+1) & mask) {
+                if (keys[h] == key) return values[h];
+                if (keys[h] == -1) return -1;
+            }
+        }
+
+        void put(int key, int value) {
+            if (2*(size+1) > keys.length) {
+                int[] ok = keys, ov = values;
+                keys = new int[2*ok.length];
+                values = new int[2*ok.length];
+                Arrays.fill(keys, -1);
+                size = 0;
+                for(int i=0; i<ok.length; i++) if (ok[i] != -1) put(ok[i], ov[i]);
+            }
+            int mask = keys.length - 1, h = hash(key) & mask;
+            while (keys[h] != -1 && keys[h] != key) h = (h+1) & mask;
+            if (keys[h] == -1) size++;
+            keys[h] = key;
+            values[h] = value;
+        }
+
+        void remove(int key) {
+            int mask = keys.length - 1, h = hash(key) & mask;
+            while (keys[h] != key) { if (keys[h] == -1) return; h = (h+1) & mask; }
+            keys[h] = -1;
+            size--;
+            // put back the rest of the cluster, which may have probed past the hole
+            for(int j=(h+1) & mask; keys[j] != -1; j=(j+1) & mask) {
+                int kk = keys[j], v = values[j];
+                keys[j] = -1;
+                size--;
+                put(kk, v);
+            }
+        }
+    }
+
+    // main //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Route a GDS file: labelled shapes on the routing layers are pins
+     *  (labels with the same text are one net), and every other shape
+     *  on a routing layer is an obstacle.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: java "+MazeRouter.class.getName()+" <layout.gds> [routing layer names...]");
+            System.exit(1);
+        }
+        Tech tech = new SkyWater130().compile();
+        Layout layout = Layout.read(tech, new File(args[0]));
+        List<TechLayer> routing = defaultLayers(tech);
+        if (args.length > 1) {
+            routing = new ArrayList<TechLayer>();
+            for(int a=1; a<args.length; a++) routing.add(tech.getLayer(args[a]));
+        }
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for(int i=0; i<layout.size(); i++) {
+            x0 = Math.min(x0, layout.xmin(i)); x1 = Math.max(x1, layout.xmax(i));
+            y0 = Math.min(y0, layout.ylo(i));  y1 = Math.max(y1, layout.yhi(i));
+        }
+        MazeRouter router = new MazeRouter(tech, layout.micronsPerDbu, x0, y0, x1, y1, routing);
+
+        LayoutIndex index = new LayoutIndex(layout);
+        boolean[] isPin = new boolean[layout.size()];
+        LinkedHashMap<String,Net> byName = new LinkedHashMap<String,Net>();
+        for(Layout.Label label : layout.getLabels()) {
+            if (router.layer(label.layer) == -1) continue;
+            int[] shape = { -1 };
+            index.point(label.layer, label.x, label.y, i -> { if (shape[0] == -1) shape[0] = i; });
+            Net net = byName.computeIfAbsent(label.text, t -> router.addNet(t));
+            if (shape[0] == -1) net.addPin(label.layer, label.x, label.y, label.x, label.y);
+            else {
+                int i = shape[0];
+                isPin[i] = true;
+                net.addPin(label.layer, layout.xmin(i), layout.ylo(i), layout.xmax(i), layout.yhi(i));
+            }
+        }
+        for(int i=0; i<layout.size(); i++)
+            if (!isPin[i]) router.addObstacle(layout.getLayer(i), layout.xmin(i), layout.ylo(i), layout.xmax(i), layout.yhi(i));
+
+        long start = System.nanoTime();
+        int routed = router.route();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int multi = 0, vias = 0;
+        double length = 0;
+        for(Net net : router.getNets()) {
+            if (net.pins() < 2) continue;
+            multi++;
+            if (!net.isRouted()) System.out.println("unrouted: "+net.name);
+            vias += net.vias();
+            length += net.wirelengthMicrons();
+        }
+        System.out.println(String.format("%d of %d nets routed in %.3fs (%.0f nets/s): %.1fum of wire, %d vias; base pitch %.3fum",
+                                         routed, multi, seconds, multi / seconds, length, vias, router.base * layout.micronsPerDbu));
+        Tracks tracks = Tracks.forTech(router.tech);
+        for(int l=0; l<router.layers(); l++) {
+            Tracks.Grid g = tracks.get(router.getLayer(l));
+            System.out.println("  "+router.getLayer(l)+": pitch "+router.pitch(l) * layout.micronsPerDbu+"um, "+(router.isVertical(l) ? "vertical" : "horizontal")+
+                               (g == null ? "" : " (tracks "+Math.round(g.pitch*1000)/1000.0+"um, via-to-via "+Math.round(g.viaToVia*1000)/1000.0+"um)"));
+        }
+    }
+}
@@ -13,41 +13,60 @@
 // limitations under the License.
 //
 package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.Interner;
 
-/** encapsulates a <box> element in an Electric Technology XML File */
+/**
+ *  encapsulates a <box> element in an Electric Technology XML File.
+ *  Boxes are interned: the factories return the one instance with
+ *  given coordinates, so boxes can be compared with ==.
+ */
 public class Box {
     public final double klx;
     public final double kly;
     public final double khx;
     public final double khy;
-    public Box() { this(-1, -1, 1, 1); }
-    public Box(double klx, double kly, double khx, double khy) {
+
+    private static final Interner<Box> interned = new Interner<Box>();
+
+    /** the box from (-1,-1) to (1,1): the magnification of a ScaledBox which scales with its node */
+    public static final Box UNIT = of(-1, -1, 1, 1);
+
+    private Box(double klx, double kly, double khx, double khy) {
         this.klx = klx;
         this.kly = kly;
         this.khx = khx;
         this.khy = khy;
     }
+    public static Box of(double klx, double kly, double khx, double khy) { return interned.intern(new Box(klx, kly, khx, khy)); }
     /** origin-centered square */
-    public Box(double widthHeight) { this(widthHeight, widthHeight); }
+    public static Box of(double widthHeight) { return of(widthHeight, widthHeight); }
     /** origin-centered box */
-    public Box(double width, double height) {
-        this(-1.0*width/2.0,
-             -1.0*height/2.0,
-             width/2.0,
-             height/2.0);
+    public static Box of(double width, double height) {
+        return of(-1.0*width/2.0,
+                  -1.0*height/2.0,
+                  width/2.0,
+                  height/2.0);
     }
     public Box grow(double expansion) { return grow(expansion, expansion); }
     public Box grow(double horizontalEdgeExpansion,
                     double verticalEdgeExpansion) {
-        return new Box(klx - horizontalEdgeExpansion,
-                       kly -   verticalEdgeExpansion,
-                       khx + horizontalEdgeExpansion,
-                       khy +   verticalEdgeExpansion);
+        return of(klx - horizontalEdgeExpansion,
+                  kly -   verticalEdgeExpansion,
+                  khx + horizontalEdgeExpansion,
+                  khy +   verticalEdgeExpansion);
+    }
+    public Box swapAxes() { return of(kly, klx, khy, khx); }
+    public Box shift(double x, double y) { return of(klx + x, kly + y, khx + x, khy + y); }
+
+    // bitwise, like Double.equals, so that -0.0 and 0.0 (which print differently) stay distinct
+    public int hashCode() { return Double.hashCode(khx) ^ 31*(Double.hashCode(khy) ^ 31*(Double.hashCode(klx) ^ 31*Double.hashCode(kly))); }
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof Box)) return false;
+        Box b = (Box)other;
+        return same(b.khx, khx) && same(b.khy, khy) && same(b.klx, klx) && same(b.kly, kly);
     }
-    public Box swapAxes() { return new Box(kly, klx, khy, khx); }
-    public Box shift(double x, double y) { return new Box(klx + x, kly + y, khx + x, khy + y); }
-    public int hashCode() { return Double.hashCode(khx) ^ Double.hashCode(khy) ^ Double.hashCode(klx) ^ Double.hashCode(kly); }
-    public boolean equals(Object other) { Box b = (Box)other; return b.khx==khx && b.khy==khy && b.klx==klx && b.kly==kly; }
+    private static boolean same(double a, double b) { return Double.doubleToLongBits(a) == Double.doubleToLongBits(b); }
     public double getWidth() { return khx - klx; }
     public double getHeight() { return khy - kly; }
     public String toString() {
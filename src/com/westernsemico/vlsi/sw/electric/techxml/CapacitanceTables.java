@@ -0,0 +1,410 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ *  Wire capacitance per unit length, tabulated by a 2D field solver
+ *  over the cross-section of the Tech's height3D/thick3D stack.
+ *
+ *  For each poly or metal layer and each reference plane beneath it
+ *  (the substrate, or the top of any lower poly or metal layer) the
+ *  solver is run on a victim wire at 1V between two grounded
+ *  neighbours, over a sweep of widths and spacings; each run yields
+ *  the victim's total capacitance and its coupling to one neighbour.
+ *  Lookups interpolate bilinearly in width and in 1/spacing, so an
+ *  isolated wire (infinite spacing) is simply the column 1/s=0.
+ *  Wires wider than the sweep add the parallel-plate capacitance of
+ *  the extra width, which is what a wide wire tends to.
+ *
+ *  The sweeps run in parallel on the common fork-join pool, and the
+ *  finished tables are cached on disk under a name which includes a
+ *  hash of everything they depend on (the stack, the layers' minimum
+ *  width and space, the dielectric constant, and the sweep itself),
+ *  so a Tech pays for the solver once.
+ */
+public class CapacitanceTables {
+
+    /** width sweep, in multiples of the layer's minimum width */
+    private static final double[] WIDTHS   = { 1, 2, 4, 8, 16 };
+
+    /** spacing sweep, in multiples of the layer's minimum space; isolated is added after these */
+    private static final double[] SPACINGS = { 1, 1.5, 2, 4, 8 };
+
+    /** bump this whenever the solver or the file format changes */
+    private static final int VERSION = 1;
+
+    public final Tech tech;
+
+    /** the poly and metal layers from the bottom up */
+    private final List<TechLayer> wires = new ArrayList<TechLayer>();
+
+    /** [wire][reference][w][u] where reference 0 is the substrate and reference r>0 is wires.get(r-1), and u indexes 1/spacing */
+    private double[][][][] total;
+    private double[][][][] coupling;
+
+    /** the default cache directory */
+    public static final File CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "captables");
+
+    /**
+     *  The tables for a Tech, read from (or solved and written to) the
+     *  default cache directory.  Solving takes tens of seconds, so this
+     *  is for callers which ask for it; see ifReady().  Concurrent
+     *  callers for the same Tech wait for one solve.
+     */
+    public static CapacitanceTables forTech(Tech tech) throws IOException {
+        // the Tech keeps a future of its tables, so that the solver never runs inside its map
+        tech.compile();
+        CompletableFuture<CapacitanceTables> mine = new CompletableFuture<CapacitanceTables>();
+        CompletableFuture<?> f = (CompletableFuture<?>)tech.memo.putIfAbsent(CapacitanceTables.class, mine);
+        if (f == null) {
+            f = mine;
+            try { mine.complete(new CapacitanceTables(tech, CACHE_DIR)); }
+            catch (IOException | RuntimeException e) {
+                tech.memo.remove(CapacitanceTables.class, mine);
+                mine.completeExceptionally(e);
+            }
+        }
+        try {
+            return (CapacitanceTables)f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw e;
+        }
+    }
+
+    /** the tables for a Tech if they have been solved already (in this process, or into the default cache directory), else null; never runs the solver */
+    public static CapacitanceTables ifReady(Tech tech) {
+        CompletableFuture<?> f = (CompletableFuture<?>)tech.compile().memo.get(CapacitanceTables.class);
+        if (f != null) return f.isDone() && !f.isCompletedExceptionally() ? (CapacitanceTables)f.join() : null;
+        try {
+            CapacitanceTables ret = new CapacitanceTables(tech);
+            File file = ret.file(CACHE_DIR);
+            if (!file.exists()) return null;
+            ret.read(file);
+            tech.memo.putIfAbsent(CapacitanceTables.class, CompletableFuture.completedFuture(ret));
+            return ret;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** the tables for a Tech, read from (or solved and written to) the given directory */
+    public CapacitanceTables(Tech tech, File cacheDir) throws IOException {
+        this(tech);
+        File file = file(cacheDir);
+        if (file.exists()) { read(file); return; }
+        solveAll();
+        cacheDir.mkdirs();
+        write(file);
+    }
+
+    /** tables with nothing in them yet */
+    private CapacitanceTables(Tech tech) {
+        this.tech = tech.compile();
+        for(int o=tech.lowestMetalLayerOrdinal()-1; o<tech.lowestMetalLayerOrdinal()-1+tech.numLayersPolyOrMetal(); o++) {
+            TechLayer tl = tech.getPolyOrMetalLayer(o);
+            if (tl != null && tl.layerRules != null) wires.add(tl);
+        }
+    }
+
+    private File file(File cacheDir) { return new File(cacheDir, tech+"-"+key()+".captables"); }
+
+    /** a hash of everything the tables depend on */
+    private String key() {
+        StringBuilder sb = new StringBuilder("v"+VERSION+" eps="+tech.getDielectricConstant()+" surface="+tech.getSubstrateSurface3D()
+                                             +" w="+Arrays.toString(WIDTHS)+" s="+Arrays.toString(SPACINGS));
+        for(TechLayer tl : wires)
+            sb.append(" "+tl.name+":"+tl.height3D+":"+tl.thick3D+":"+tl.layerRules.minWidth+":"+tl.layerRules.minSpace);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for(int i=0; i<8; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) { throw new RuntimeException(e); }
+    }
+
+    // Lookups //////////////////////////////////////////////////////////////////////////////
+
+    /** the poly and metal layers covered by these tables, from the bottom up */
+    public List<TechLayer> getWires() { return Collections.unmodifiableList(wires); }
+
+    /** total capacitance of a wire between two neighbours at the given spacing (Double.POSITIVE_INFINITY for none) over the reference (null for the substrate), in fF/um */
+    public double totalFemtoFaradsPerMicron(TechLayer tl, TechLayer reference, double widthMicrons, double spacingMicrons) {
+        double ret = lookup(total, tl, reference, widthMicrons, spacingMicrons);
+        double widest = WIDTHS[WIDTHS.length-1] * tl.layerRules.minWidth;
+        if (widthMicrons > widest)
+            ret += (widthMicrons - widest) * tech.getDielectricConstant() * Tech.EPSILON_0_FEMTOFARADS_PER_MICRON / height(tl, reference);
+        return ret;
+    }
+
+    /** the gap between the bottom of tl and the top of the reference (null for the substrate) */
+    private double height(TechLayer tl, TechLayer reference) {
+        return tl.height3D - (reference == null ? tech.getSubstrateSurface3D() : reference.height3D + reference.thick3D);
+    }
+
+    /** coupling capacitance from a wire to each of its two neighbours, in fF/um */
+    public double couplingFemtoFaradsPerMicron(TechLayer tl, TechLayer reference, double widthMicrons, double spacingMicrons) {
+        return lookup(coupling, tl, reference, widthMicrons, spacingMicrons);
+    }
+
+    /** capacitance from a wire to the reference plane alone (area plus fringe), in fF/um */
+    public double groundFemtoFaradsPerMicron(TechLayer tl, TechLayer reference, double widthMicrons, double spacingMicrons) {
+        return totalFemtoFaradsPerMicron(tl, reference, widthMicrons, spacingMicrons)
+            - 2 * couplingFemtoFaradsPerMicron(tl, reference, widthMicrons, spacingMicrons);
+    }
+
+    private double lookup(double[][][][] table, TechLayer tl, TechLayer reference, double w, double s) {
+        int i = wires.indexOf(tl);
+        int r = reference == null ? 0 : wires.indexOf(reference)+1;
+        if (i < 0) throw new IllegalArgumentException(tl+" is not a poly or metal layer");
+        if (r < 0 || r > i) throw new IllegalArgumentException(reference+" is not below "+tl);
+        double[][] t = table[i][r];
+        double minW = tl.layerRules.minWidth, minS = tl.layerRules.minSpace;
+
+        // width: clamped to the sweep; totalFemtoFaradsPerMicron() adds the plate beyond it
+        double wx = Math.max(Math.min(w / minW, WIDTHS[WIDTHS.length-1]), WIDTHS[0]);
+        int a = 0;
+        while (a < WIDTHS.length-2 && wx > WIDTHS[a+1]) a++;
+        double fw = (wx - WIDTHS[a]) / (WIDTHS[a+1] - WIDTHS[a]);
+
+        // spacing: u = minS/s runs from 1/SPACINGS[0] down to 0 (isolated)
+        double[] us = inverseSpacings();
+        double u = Math.min(minS / s, us[0]);
+        int b = 0;
+        while (b < us.length-2 && u < us[b+1]) b++;
+        double fu = (us[b] - u) / (us[b] - us[b+1]);
+
+        double lo = t[a][b]   + fu * (t[a][b+1]   - t[a][b]);
+        double hi = t[a+1][b] + fu * (t[a+1][b+1] - t[a+1][b]);
+        return lo + fw * (hi - lo);
+    }
+
+    private static double[] inverseSpacings() {
+        double[] ret = new double[SPACINGS.length+1];
+        for(int k=0; k<SPACINGS.length; k++) ret[k] = 1 / SPACINGS[k];
+        return ret;
+    }
+
+    // Solving //////////////////////////////////////////////////////////////////////////////
+
+    private void solveAll() {
+        int n = wires.size(), nw = WIDTHS.length, nu = SPACINGS.length+1;
+        total    = new double[n][][][];
+        coupling = new double[n][][][];
+        ArrayList<CompletableFuture<Void>> runs = new ArrayList<CompletableFuture<Void>>();
+        double eps = tech.getDielectricConstant() * Tech.EPSILON_0_FEMTOFARADS_PER_MICRON;
+        for(int i=0; i<n; i++) {
+            TechLayer tl = wires.get(i);
+            total[i]    = new double[i+1][nw][nu];
+            coupling[i] = new double[i+1][nw][nu];
+            for(int r=0; r<=i; r++) {
+                double h = height(tl, r == 0 ? null : wires.get(r-1));
+                if (h <= 0) throw new RuntimeException("layer "+tl+" is not above "+(r==0 ? "the substrate" : wires.get(r-1)));
+                for(int a=0; a<nw; a++)
+                    for(int b=0; b<nu; b++) {
+                        final int fi = i, fr = r, fa = a, fb = b;
+                        final double w = WIDTHS[a] * tl.layerRules.minWidth;
+                        final double s = b < SPACINGS.length ? SPACINGS[b] * tl.layerRules.minSpace : Double.POSITIVE_INFINITY;
+                        runs.add(CompletableFuture.runAsync(() -> {
+                                    double[] c = new CrossSection(h, tl.thick3D, w, s).solve();
+                                    total[fi][fr][fa][fb]    = eps * c[0];
+                                    coupling[fi][fr][fa][fb] = eps * c[1];
+                                }));
+                    }
+            }
+        }
+        for(CompletableFuture<Void> f : runs) f.join();
+    }
+
+    /**
+     *  One solver run: the right half of a symmetric cross-section (the
+     *  victim's centre line is a mirror), with a victim wire of width w
+     *  and thickness t at height h over a grounded plane, a grounded
+     *  neighbour at spacing s to its right, and zero-flux boundaries
+     *  far enough away not to matter.  Laplace's equation is solved by
+     *  finite volumes on a tensor grid which is fine at the conductor
+     *  edges and grows geometrically away from them, with successive
+     *  over-relaxation.  The results are in units of the permittivity.
+     */
+    static class CrossSection {
+        final double[] x, z;
+        final int nx, nz;
+        /** 0 = free, 1 = victim, 2 = neighbour, 3 = ground */
+        final byte[] owner;
+        final double[] v;
+
+        CrossSection(double h, double t, double w, double s) {
+            double fine = Math.min(Math.min(w/2, t), Math.min(h, s)) / 4;
+            double reach = 4 * (h + t);
+            boolean isolated = Double.isInfinite(s);
+            double right = isolated ? w/2 + reach : w/2 + s + w + reach;
+            x = isolated ? axis(fine, 0, w/2, right) : axis(fine, 0, w/2, w/2+s, w/2+s+w, right);
+            z = axis(fine, 0, h, h+t, h+t+reach);
+            nx = x.length; nz = z.length;
+            owner = new byte[nx*nz];
+            v = new double[nx*nz];
+            for(int j=0; j<nz; j++)
+                for(int i=0; i<nx; i++) {
+                    int k = j*nx+i;
+                    boolean inZ = z[j] >= h - 1e-9 && z[j] <= h+t + 1e-9;
+                    if (j == 0)                                   owner[k] = 3;
+                    else if (inZ && x[i] <= w/2 + 1e-9)           { owner[k] = 1; v[k] = 1; }
+                    else if (inZ && !isolated && x[i] >= w/2+s - 1e-9 && x[i] <= w/2+s+w + 1e-9) owner[k] = 2;
+                }
+        }
+
+        /** grid lines through every break, spaced fine at each break and growing by 1.3x towards the middle of each interval */
+        static double[] axis(double fine, double... breaks) {
+            ArrayList<Double> ret = new ArrayList<Double>();
+            for(int b=0; b+1<breaks.length; b++) {
+                double lo = breaks[b], hi = breaks[b+1], step = fine;
+                ArrayList<Double> upper = new ArrayList<Double>();
+                ret.add(lo);
+                while (hi - lo > 3*step) {
+                    lo += step; hi -= step;
+                    ret.add(lo); upper.add(hi);
+                    step *= 1.3;
+                }
+                if (hi - lo > 1.5*step) ret.add((lo+hi)/2);
+                Collections.reverse(upper);
+                ret.addAll(upper);
+            }
+            ret.add(breaks[breaks.length-1]);
+            double[] a = new double[ret.size()];
+            for(int i=0; i<a.length; i++) a[i] = ret.get(i);
+            return a;
+        }
+
+        /** the finite-volume coupling between node (i,j) and its neighbour in direction (di,dj): face length over distance */
+        double weight(int i, int j, int di, int dj) {
+            if (di != 0) {
+                double face = ((j > 0 ? z[j]-z[j-1] : 0) + (j < nz-1 ? z[j+1]-z[j] : 0)) / 2;
+                return face / Math.abs(x[i+di] - x[i]);
+            } else {
+                double face = ((i > 0 ? x[i]-x[i-1] : 0) + (i < nx-1 ? x[i+1]-x[i] : 0)) / 2;
+                return face / Math.abs(z[j+dj] - z[j]);
+            }
+        }
+
+        /** returns { total capacitance of the victim, coupling to one neighbour }, both over the permittivity */
+        double[] solve() {
+            // precompute the four weights of every node
+            double[] we = new double[nx*nz], ww = new double[nx*nz], wn = new double[nx*nz], ws = new double[nx*nz];
+            for(int j=0; j<nz; j++)
+                for(int i=0; i<nx; i++) {
+                    int k = j*nx+i;
+                    if (i < nx-1) we[k] = weight(i, j, 1, 0);
+                    if (i > 0)    ww[k] = weight(i, j, -1, 0);
+                    if (j < nz-1) wn[k] = weight(i, j, 0, 1);
+                    if (j > 0)    ws[k] = weight(i, j, 0, -1);
+                }
+            double omega = 1.9;
+            for(int iter=0; iter<100000; iter++) {
+                double change = 0;
+                for(int j=1; j<nz; j++)
+                    for(int i=0; i<nx; i++) {
+                        int k = j*nx+i;
+                        if (owner[k] != 0) continue;
+                        double sum = ws[k]*v[k-nx] + (j < nz-1 ? wn[k]*v[k+nx] : 0) + (i > 0 ? ww[k]*v[k-1] : 0) + (i < nx-1 ? we[k]*v[k+1] : 0);
+                        double next = sum / (we[k]+ww[k]+wn[k]+ws[k]);
+                        double d = omega * (next - v[k]);
+                        v[k] += d;
+                        change = Math.max(change, Math.abs(d));
+                    }
+                if (change < 1e-6) break;
+            }
+            // Gauss's law: the flux leaving each conductor through the faces of its boundary nodes
+            double victim = 0, neighbour = 0;
+            for(int j=1; j<nz; j++)
+                for(int i=0; i<nx; i++) {
+                    int k = j*nx+i;
+                    if (owner[k] != 1 && owner[k] != 2) continue;
+                    double q = 0;
+                    if (i < nx-1 && owner[k+1]  != owner[k]) q += we[k] * (v[k] - v[k+1]);
+                    if (i > 0    && owner[k-1]  != owner[k]) q += ww[k] * (v[k] - v[k-1]);
+                    if (j < nz-1 && owner[k+nx] != owner[k]) q += wn[k] * (v[k] - v[k+nx]);
+                    if (owner[k-nx] != owner[k])            q += ws[k] * (v[k] - v[k-nx]);
+                    if (owner[k] == 1) victim += q; else neighbour += q;
+                }
+            // the victim is split by the mirror; each neighbour lies wholly on its own side
+            return new double[] { 2*victim, -neighbour };
+        }
+    }
+
+    // Cache Files //////////////////////////////////////////////////////////////////////////////
+
+    private void write(File file) throws IOException {
+        // a temporary file of our own, so that processes filling the same cache at once never write into one another's
+        Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(key());
+                for(double[][][][] table : new double[][][][][] { total, coupling })
+                    for(double[][][] byReference : table)
+                        for(double[][] byWidth : byReference)
+                            for(double[] row : byWidth)
+                                for(double c : row)
+                                    out.writeDouble(c);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void read(File file) throws IOException {
+        int n = wires.size(), nw = WIDTHS.length, nu = SPACINGS.length+1;
+        total    = new double[n][][][];
+        coupling = new double[n][][][];
+        for(int i=0; i<n; i++) { total[i] = new double[i+1][nw][nu]; coupling[i] = new double[i+1][nw][nu]; }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key())) throw new IOException(file+" is not a cache of these tables");
+            for(double[][][][] table : new double[][][][][] { total, coupling })
+                for(double[][][] byReference : table)
+                    for(double[][] byWidth : byReference)
+                        for(double[] row : byWidth)
+                            for(int b=0; b<nu; b++)
+                                row[b] = in.readDouble();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: java "+CapacitanceTables.class.getName()+" <Tech class>");
+            System.exit(1);
+        }
+        Tech tech = (Tech)Class.forName(args[0]).getDeclaredConstructor().newInstance();
+        long start = System.currentTimeMillis();
+        CapacitanceTables ct = forTech(tech);
+        System.err.println("tables ready in "+(System.currentTimeMillis()-start)+"ms");
+        for(TechLayer tl : ct.wires) {
+            double w = tl.layerRules.minWidth, s = tl.layerRules.minSpace;
+            System.out.println(String.format("%-6s min width/space over substrate: total %.4f  coupling %.4f  ground %.4f fF/um; isolated %.4f (analytic %.4f)",
+                                             tl.name,
+                                             ct.totalFemtoFaradsPerMicron(tl, null, w, s),
+                                             ct.couplingFemtoFaradsPerMicron(tl, null, w, s),
+                                             ct.groundFemtoFaradsPerMicron(tl, null, w, s),
+                                             ct.totalFemtoFaradsPerMicron(tl, null, w, Double.POSITIVE_INFINITY),
+                                             tech.getWireCapacitanceFemtoFaradsPerMicron(tl, w)));
+        }
+    }
+}
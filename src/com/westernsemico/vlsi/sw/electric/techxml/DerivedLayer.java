@@ -0,0 +1,89 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import java.util.function.*;
+
+/**
+ *  A layer which is never drawn but is computed from drawn layers by
+ *  geometric boolean operations, such as "gate = poly AND diff".
+ *  Instances are expression trees whose leaves are TechLayers; the
+ *  named ones are declared on a Tech with Tech.derive().  Nothing
+ *  here is evaluated -- see Layout.region() for that.
+ */
+public class DerivedLayer {
+
+    public enum Op { LAYER, AND, OR, XOR, NOT, SIZE }
+
+    /** the name given to Tech.derive(), or null for an anonymous subexpression */
+    public final String       name;
+
+    public final Op           op;
+
+    /** for LAYER, the drawn layer */
+    public final TechLayer    layer;
+
+    /** the operands; b is null for LAYER and SIZE */
+    public final DerivedLayer a;
+    public final DerivedLayer b;
+
+    /** for SIZE, the distance (in microns) to grow by; negative to shrink */
+    public final double       amount;
+
+    private DerivedLayer(String name, Op op, TechLayer layer, DerivedLayer a, DerivedLayer b, double amount) {
+        this.name = name;
+        this.op = op;
+        this.layer = layer;
+        this.a = a;
+        this.b = b;
+        this.amount = amount;
+    }
+
+    /** the same expression under a name */
+    DerivedLayer named(String name) { return new DerivedLayer(name, op, layer, a, b, amount); }
+
+    /** the same expression with each drawn layer passed through remap; this itself if none changes, or null if remap takes one to null */
+    DerivedLayer remap(UnaryOperator<TechLayer> remap) {
+        if (op == Op.LAYER) {
+            TechLayer tl = remap.apply(layer);
+            return tl == null ? null : tl == layer ? this : new DerivedLayer(name, op, tl, null, null, amount);
+        }
+        DerivedLayer ra = a.remap(remap);
+        DerivedLayer rb = b == null ? null : b.remap(remap);
+        if (ra == null || (b != null && rb == null)) return null;
+        return ra == a && rb == b ? this : new DerivedLayer(name, op, null, ra, rb, amount);
+    }
+
+    public static DerivedLayer of(TechLayer layer) { return new DerivedLayer(null, Op.LAYER, layer, null, null, 0); }
+
+    public DerivedLayer and(DerivedLayer other) { return new DerivedLayer(null, Op.AND, null, this, other, 0); }
+    public DerivedLayer or(DerivedLayer other)  { return new DerivedLayer(null, Op.OR,  null, this, other, 0); }
+    public DerivedLayer xor(DerivedLayer other) { return new DerivedLayer(null, Op.XOR, null, this, other, 0); }
+    public DerivedLayer not(DerivedLayer other) { return new DerivedLayer(null, Op.NOT, null, this, other, 0); }
+    public DerivedLayer size(double microns)    { return new DerivedLayer(null, Op.SIZE, null, this, null, microns); }
+
+    public DerivedLayer and(TechLayer other) { return and(of(other)); }
+    public DerivedLayer or(TechLayer other)  { return or(of(other)); }
+    public DerivedLayer xor(TechLayer other) { return xor(of(other)); }
+    public DerivedLayer not(TechLayer other) { return not(of(other)); }
+
+    public String toString() {
+        if (name != null) return name;
+        switch(op) {
+        case LAYER: return layer.toString();
+        case SIZE:  return "("+a+" SIZE "+amount+")";
+        default:    return "("+a+" "+op+" "+b+")";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  Emits the Electric Technology XML file.  Electric wants every
+ *  layer to appear in several sections (layers, arcs, pins, GDS
+ *  mapping, rules), so the layers are collected as they arrive and
+ *  the sections are written by end().  Each section, and each
+ *  primitive group, is rendered into its own buffer on the common
+ *  pool; the buffers are written out in order as they are finished.
+ */
+public class ElectricXmlEmitter extends TechEmitter {
+
+    private final ArrayList<TechLayer>      layers = new ArrayList<TechLayer>();
+    private final ArrayList<PrimitiveGroup> groups = new ArrayList<PrimitiveGroup>();
+
+    public ElectricXmlEmitter() { }
+    public ElectricXmlEmitter(IndentingPrintWriter pw) { super(pw); }
+
+    public String getFileName() { return tech+".xml"; }
+
+    public void layer(TechLayer layer) { layers.add(layer); }
+    public void primitiveGroup(PrimitiveGroup group) { groups.add(group); }
+
+    public void end() throws IOException {
+        String techName = tech.toString();
+        pw.println("<?xml version='1.0' encoding='UTF-8'?>");
+        tech.header(pw);
+        pw.println("<technology name='"+techName+"'");
+        pw.adjustIndentation(4);
+        pw.println("     xmlns='http://electric.sun.com/Technology'");
+        pw.println("     xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'");
+        pw.println("     xsi:schemaLocation='http://electric.sun.com/Technology ../../technology/Technology.xsd'>");
+        pw.println("");
+        pw.println("    <shortName>"+techName+"</shortName>");
+        pw.println("    <description>"+tech.getTechDescription()+"</description>");
+        int numMetals = tech.numLayersPolyOrMetal()-1;
+        pw.println("    <numMetals min='"+numMetals+"' max='"+numMetals+"' default='"+numMetals+"'/>");
+        pw.println("    <scale value='1000.0' relevant='true'/>");
+        pw.println("    <resolution value='"+tech.gridAlignmentInUnits+"'/>");
+        pw.println("    <defaultFoundry value='"+tech.getFoundryName()+"'/>");
+        pw.println("    <minResistance value='4.0'/>       <!-- not sure what this should be; copied default from mocmos -->");
+        pw.println("    <minCapacitance value='0.1'/>      <!-- not sure what this should be; copied default from mocmos -->");
+        pw.println("");
+        pw.println("    <!-- Transparent layers; not sure why these are in a techfile, copied from mocmos -->");
+        pw.println("    <transparentLayer transparent='1'><r>107</r><g>255</g><b>242</b></transparentLayer>");
+        pw.println("    <transparentLayer transparent='2'><r>0</r><g>153</g><b>51</b></transparentLayer>");
+        pw.println("    <transparentLayer transparent='3'><r>255</r><g>155</g><b>192</b></transparentLayer>");
+        pw.println("    <transparentLayer transparent='4'><r>224</r><g>95</g><b>255</b></transparentLayer>");
+        pw.println("    <transparentLayer transparent='5'><r>247</r><g>251</g><b>20</b></transparentLayer>");
+        pw.println("");
+        pw.println("    <!-- **************************************** LAYERS **************************************** -->");
+
+        // the bulk of the file is rendered section by section, and group by group, in parallel
+        ArrayList<CompletableFuture<String>> body = new ArrayList<CompletableFuture<String>>();
+        body.add(render(out -> { for(TechLayer tlayer : layers) tlayer.dump(out); }));
+        body.add(render(out -> { for(TechLayer tlayer : layers) tlayer.dumpArcs(out); }));
+        body.add(render(out -> { for(TechLayer tlayer : layers) tlayer.dumpPins(out); }));
+        for(PrimitiveGroup nodeGroup : groups) body.add(render(nodeGroup::dump));
+        CompletableFuture<String> gdsMapping = render(out -> { for(TechLayer layer : layers) layer.dumpGdsMapping(out); });
+        CompletableFuture<String> rules      = render(out -> { for(TechLayer layer : layers) layer.dumpRules(out); });
+        for(CompletableFuture<String> section : body) pw.printNested(join(section));
+
+        pw.println("<spiceHeader level='1'><spiceLine line='* SPICE deck for "+tech.getTechDescription()+"'/></spiceHeader>");
+        pw.println("<spiceHeader level='2'><spiceLine line='* SPICE deck for "+tech.getTechDescription()+"'/></spiceHeader>");
+        pw.println("<spiceHeader level='3'><spiceLine line='* SPICE deck for "+tech.getTechDescription()+"'/></spiceHeader>");
+        tech.dumpMenuPalette(pw);
+
+        pw.println("<Foundry name='"+tech.getFoundryName()+"'>");
+        pw.adjustIndentation(4);
+        pw.printNested(join(gdsMapping));
+        pw.adjustIndentation(4);
+        pw.printNested(join(rules));
+        pw.adjustIndentation(-4);
+        pw.println("</Foundry>");
+
+        pw.adjustIndentation(-4);
+        pw.println("</technology>");
+        super.end();
+    }
+
+    /** one piece of the file */
+    private interface Section { void dump(IndentingPrintWriter pw) throws IOException; }
+
+    /** render a section into its own buffer on the common pool, indented from zero; see IndentingWriter.writeNested() */
+    private static CompletableFuture<String> render(Section section) {
+        return CompletableFuture.supplyAsync(() -> {
+                StringWriter sw = new StringWriter();
+                IndentingPrintWriter out = new IndentingPrintWriter(new IndentingWriter(sw));
+                try {
+                    section.dump(out);
+                } catch (IOException e) { throw new UncheckedIOException(e); }
+                out.flush();
+                return sw.toString();
+            });
+    }
+
+    private static String join(CompletableFuture<String> section) throws IOException {
+        try {
+            return section.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)e.getCause()).getCause();
+            throw e;
+        }
+    }
+}
@@ -40,7 +40,7 @@ public class FetGenerator {
       double SELECT_EXTEND_GATE_LENGTH_EDGE = bgs.SELECT_EXTEND_GATE_LENGTH_EDGE;
       double MIN_POLY_SURROUND_PCONT = bgs.MIN_POLY_SURROUND_PCONT;
 
-      Box           gateBox      = new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH).shift(0,Y_OFFSET);
+      Box           gateBox      = Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH).shift(0,Y_OFFSET);
       Primitive          fet          = new Primitive(Tech.this, name, is_n ? "TRANMOS" : "TRAPMOS", gateBox);
       Primitive.PrimitiveNet  gate         = fet.new PrimitiveNet("gate");
 
@@ -63,27 +63,27 @@ public class FetGenerator {
       // these four ports must appear in this specific order for NCC
       //
       Primitive.PrimitivePort gate_left    = fet.new PrimitivePort("gate-left",
-      new ScaledBox(new Box(0.0, 0.0)).shift(-GATE_PORT_SHIFT,0)
+      ScaledBox.of(Box.of(0.0, 0.0)).shift(-GATE_PORT_SHIFT,0)
       .shift(0,Y_OFFSET),
       gate,getLayer("Poly"));
       Primitive.PrimitivePort diff_top     = fet.new PrimitivePort("diff-top",
-      new ScaledBox(new Box(MIN_GATE_WIDTH, 0.0))
+      ScaledBox.of(Box.of(MIN_GATE_WIDTH, 0.0))
       .shift(0, DIFF_PORT_SHIFT)
       .shift(0,Y_OFFSET),
       getLayer("Diff"));
       Primitive.PrimitivePort gate_right   = fet.new PrimitivePort("gate-right",
-      new ScaledBox(new Box(0.0, 0.0))
+      ScaledBox.of(Box.of(0.0, 0.0))
       .shift( GATE_PORT_SHIFT,0)
       .shift(0,Y_OFFSET),
       gate,getLayer("Poly"));
       Primitive.PrimitivePort diff_bot     = fet.new PrimitivePort("diff-bot",
-      new ScaledBox(new Box(MIN_GATE_WIDTH, 0.0))
+      ScaledBox.of(Box.of(MIN_GATE_WIDTH, 0.0))
       .shift(0,-DIFF_PORT_SHIFT)
       .shift(0,Y_OFFSET),
       getLayer("Diff"));
       Primitive.PrimitiveLayer left_endcap = fet.new Rectangle(getLayer("Poly"),
       gate_left,
-      new ScaledBox(new Box(POLY_ENDCAP - POLY_TO_DIFF,
+      ScaledBox.of(Box.of(POLY_ENDCAP - POLY_TO_DIFF,
       MIN_GATE_LENGTH)
       .shift(-POLY_ENDCAP/2.0 -MIN_GATE_WIDTH/2.0
       - POLY_TO_DIFF/2.0, 0))
@@ -91,49 +91,49 @@ public class FetGenerator {
       );
       Primitive.PrimitiveLayer right_endcap = fet.new Rectangle(getLayer("Poly"),
       gate_right,
-      new ScaledBox(new Box(POLY_ENDCAP - POLY_TO_DIFF,
+      ScaledBox.of(Box.of(POLY_ENDCAP - POLY_TO_DIFF,
       MIN_GATE_LENGTH)
       .shift(POLY_ENDCAP/2.0 + MIN_GATE_WIDTH/2.0
       + POLY_TO_DIFF/2.0, 0))
       .shift(0,Y_OFFSET)
       );
       Primitive.PrimitiveLayer gate_layer   = fet.new Rectangle(getLayer("Poly"),
-      new ScaledBox(MIN_GATE_WIDTH + 2.0 * POLY_TO_DIFF,
+      ScaledBox.of(MIN_GATE_WIDTH + 2.0 * POLY_TO_DIFF,
       MIN_GATE_LENGTH)
       .shift(0,Y_OFFSET));
       gate_layer.notElectrical = true;
 
       Primitive.PrimitiveLayer diff_nonelectrical_layer = fet.new Rectangle(getLayer("Diff"),
-      new ScaledBox(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
+      ScaledBox.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
       .shift(0,Y_OFFSET));
       diff_nonelectrical_layer.notElectrical = true;
 
       Primitive.PrimitiveLayer diff_top_layer = fet.new Rectangle(getLayer("Diff"),
       diff_top,
-      new ScaledBox(
-      new Box(MIN_GATE_WIDTH,
+      ScaledBox.of(
+      Box.of(MIN_GATE_WIDTH,
       SOURCE_DRAIN_LENGTH)
       .shift(0, SOURCE_DRAIN_LENGTH/2.0+MIN_GATE_LENGTH/2.0))
       .shift(0,Y_OFFSET));
 
       Primitive.PrimitiveLayer diff_bot_layer = fet.new Rectangle(getLayer("Diff"),
       diff_bot,
-      new ScaledBox(
-      new Box(MIN_GATE_WIDTH,
+      ScaledBox.of(
+      Box.of(MIN_GATE_WIDTH,
       SOURCE_DRAIN_LENGTH)
       .shift(0,-SOURCE_DRAIN_LENGTH/2.0-MIN_GATE_LENGTH/2.0))
       .shift(0,Y_OFFSET));
       fet.new Rectangle(getLayer(is_n ? "Well-P" : "Well-N"),
-      new ScaledBox(new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
+      ScaledBox.of(Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
       .grow(WELL_ENCLOSE_GATE_LENGTH_EDGE, WELL_ENCLOSE_GATE_WIDTH_EDGE))
       .shift(0,Y_OFFSET));
       fet.new Rectangle(getLayer(is_n ? "Select-NAct" : "Select-PAct"),
-      new ScaledBox(new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
+      ScaledBox.of(Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
       .grow(SELECT_EXTEND_GATE_LENGTH_EDGE, SELECT_EXTEND_GATE_WIDTH_EDGE))
       .shift(0,Y_OFFSET));
       for(TechLayer vtLayer : vtLayers)
       fet.new Rectangle(vtLayer,
-      new ScaledBox(new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
+      ScaledBox.of(Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH)
       .grow(VT_EXTEND_GATE_LENGTH_EDGE, VT_EXTEND_GATE_WIDTH_EDGE))
       .shift(0,Y_OFFSET));
       return fet;
@@ -170,14 +170,14 @@ public class FetGenerator {
     protected void mkTaps() {
         double minWidth = getLayer("Diff").drcRules.minWidth;
         for(boolean ptap : new boolean[] { true, false }) {
-            Box diff     = new Box(minWidth, bgs.MIN_TAP_AREA / minWidth);
+            Box diff     = Box.of(minWidth, bgs.MIN_TAP_AREA / minWidth);
             Box select   = diff.grow(bgs.SELECT_SURROUND_TAP, bgs.SELECT_SURROUND_TAP);
             Box nodeBase = diff;  // use the select as the nodebase since it is what hits the DRC rules
             Primitive tapPrimitive = new Primitive(Tech.this, "Welltap-"+(ptap?"P":"N"), new PrimitiveGroup(Tech.this), "CONTACT", nodeBase);
-            Primitive.PrimitivePort port = tapPrimitive.new PrimitivePort("port", new ScaledBox(diff), getLayer("Diff"));
-            tapPrimitive.new Rectangle(getLayer("Diff"), port, new ScaledBox(diff));
-            tapPrimitive.new Rectangle(getLayer("Well-"+(ptap?"P":"N")), new ScaledBox(diff.grow(bgs.WELL_SURROUND_TAP)));
-            tapPrimitive.new Rectangle(getLayer("Select-"+(ptap?"P":"N")+"Tap"), new ScaledBox(diff.grow(bgs.SELECT_SURROUND_TAP)));
+            Primitive.PrimitivePort port = tapPrimitive.new PrimitivePort("port", ScaledBox.of(diff), getLayer("Diff"));
+            tapPrimitive.new Rectangle(getLayer("Diff"), port, ScaledBox.of(diff));
+            tapPrimitive.new Rectangle(getLayer("Well-"+(ptap?"P":"N")), ScaledBox.of(diff.grow(bgs.WELL_SURROUND_TAP)));
+            tapPrimitive.new Rectangle(getLayer("Select-"+(ptap?"P":"N")+"Tap"), ScaledBox.of(diff.grow(bgs.SELECT_SURROUND_TAP)));
         }
     }
     
@@ -13,40 +13,97 @@
 // limitations under the License.
 //
 package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.Interner;
+import java.util.*;
 import java.io.*;
 
-/** An Electric Technology XML "pattern", which is basically a 16x16 monochrome bitmap. */
+/**
+ *  An Electric Technology XML "pattern", which is basically a 16x16
+ *  monochrome bitmap.  Each row is packed into the low 16 bits of a
+ *  short, column 0 in the most significant bit, so a row can be
+ *  stippled onto a raster a word at a time (see word()).  The XML
+ *  text and a 16x16 mask tile are computed once, when the pattern is
+ *  created, since patterns are immutable and shared by many layers.
+ *  Patterns are interned, so equal patterns are the same instance.
+ */
 public class Pattern {
 
-    /** the 16x16 bits of the bitmap */
-    private boolean[][] bits = new boolean[16][];
+    private static final Interner<Pattern> interned = new Interner<Pattern>();
 
-    /** create a pattern from 16 Java strings, each of which must be 16 characters long, where each character is 'X' or ' ' */
-    public Pattern(String[] lines) {
+    /** the 16 rows of the bitmap, top row first, column 0 in bit 15 */
+    private final short[] rows = new short[16];
+
+    /** the 16 <pattern> lines, as dump() prints them */
+    private final String xml;
+
+    /** 16x16 pixels, row-major: 0xffffffff where the bit is set and 0 where it is clear */
+    private final int[] tile = new int[256];
+
+    /** the pattern from 16 Java strings, each of which must be 16 characters long, where each character is 'X' or ' ' */
+    public static Pattern of(String[] lines) { return interned.intern(new Pattern(lines)); }
+
+    /** the pattern from 16 rows of bits, column 0 in bit 15 */
+    public static Pattern of(short[] rows) { return interned.intern(new Pattern(rows)); }
+
+    private Pattern(String[] lines) {
         if (lines.length != 16) throw new RuntimeException("patterns must have 16 rows");
         for(int i=0; i<lines.length; i++) {
             if (lines[i].length() != 16) throw new RuntimeException("patterns must have 16 columns");
-            bits[i] = new boolean[16];
+            int row = 0;
             for(int j=0; j<16; j++)
-                bits[i][j] = lines[i].charAt(j) != ' ';
+                if (lines[i].charAt(j) != ' ') row |= 0x8000 >>> j;
+            rows[i] = (short)row;
         }
+        this.xml = render();
     }
 
-    /** dump the XML representation of the pattern */
-    public void dump(PrintWriter pw) {
-        for(int row=0; row<bits.length; row++) {
-            pw.print("        <pattern>");
-            for(int col=0; col<bits[row].length; col++)
-                pw.print(bits[row][col] ? 'X' : ' ');
-            pw.println("</pattern>");
+    private Pattern(short[] rows) {
+        if (rows.length != 16) throw new RuntimeException("patterns must have 16 rows");
+        System.arraycopy(rows, 0, this.rows, 0, 16);
+        this.xml = render();
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        for(int row=0; row<16; row++) {
+            sb.append("<pattern>");
+            for(int col=0; col<16; col++) {
+                boolean set = get(row, col);
+                sb.append(set ? 'X' : ' ');
+                tile[row*16+col] = set ? 0xffffffff : 0;
+            }
+            sb.append("</pattern>").append(nl);
         }
+        return sb.toString();
     }
 
+    /** true if the bit at (row, col) is set; row 0 is the top */
+    public boolean get(int row, int col) { return (rows[row] & (0x8000 >>> col)) != 0; }
+
+    /** the bits of one row (0-15), column 0 in bit 15 */
+    public int row(int row) { return rows[row] & 0xffff; }
+
+    /** one row repeated four times across a long, column 0 in bit 63: the stipple for 64 pixels starting at a multiple of 16 */
+    public long word(int row) {
+        long r = rows[row & 15] & 0xffffL;
+        r |= r << 16;
+        return r | (r << 32);
+    }
+
+    /** a 16x16 row-major mask, 0xffffffff where set; AND it with a color to get an ARGB tile (see RenderingStyle.tile()).  Do not modify. */
+    public int[] tile() { return tile; }
+
+    /** dump the XML representation of the pattern */
+    public void dump(PrintWriter pw) { pw.print(xml); }
+
+    public int hashCode() { return Arrays.hashCode(rows); }
+    public boolean equals(Object other) { return other instanceof Pattern && Arrays.equals(rows, ((Pattern)other).rows); }
 
     // static declarations for useful patterns //////////////////////////////////////////////////////////////////////////////
     
     public static final Pattern empty =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "                ",
                 "                ",
                 "                ",
@@ -66,7 +123,7 @@ public class Pattern {
             });
 
     public static final Pattern solid =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "XXXXXXXXXXXXXXXX",
                 "XXXXXXXXXXXXXXXX",
                 "XXXXXXXXXXXXXXXX",
@@ -86,7 +143,7 @@ public class Pattern {
             });
 
     public static final Pattern pad =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "XXXX            ",
                 "X   X           ",
                 "X   X           ",
@@ -106,7 +163,7 @@ public class Pattern {
             });
 
     public static final Pattern ivd =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "XXXXX           ",
                 "  X             ",
                 "  X             ",
@@ -126,7 +183,7 @@ public class Pattern {
             });
 
     public static final Pattern ld =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X               ",
                 "X               ",
                 "X               ",
@@ -145,7 +202,7 @@ public class Pattern {
                 "                " });
 
     public static final Pattern three_point_three =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "XXXXX           ",
                 "     X          ",
                 "     X          ",
@@ -166,7 +223,7 @@ public class Pattern {
 
 
     public static final Pattern dense =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X X X X X X X X ",
                 " X X X X X X X X",
                 "X X X X X X X X ",
@@ -185,7 +242,7 @@ public class Pattern {
                 " X X X X X X X X" });
 
     public static final Pattern sparse =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 "                ",
                 "X   X   X   X   ",
@@ -204,7 +261,7 @@ public class Pattern {
                 "                " });
 
     public static final Pattern very_sparse =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X       X       ",
                 "                ",
                 "    X       X   ",
@@ -223,7 +280,7 @@ public class Pattern {
                 "                " });
 
     public static final Pattern carats =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "   X       X    ",
                 "  X X     X X   ",
                 " X   X   X   X  ",
@@ -244,7 +301,7 @@ public class Pattern {
 
 
     public static final Pattern slash_dense =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 "   X   X   X   X",
                 "  X   X   X   X ",
@@ -264,7 +321,7 @@ public class Pattern {
             });
 
     public static final Pattern backslash_dense =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 " X   X   X   X  ",
                 "  X   X   X   X ",
@@ -284,7 +341,7 @@ public class Pattern {
             });
 
     public static final Pattern dot_circle =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "                ",
                 "      XX      XX",
                 " X  X    X  X   ",
@@ -304,7 +361,7 @@ public class Pattern {
             });
 
     public static final Pattern slash =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "  X       X     ",
                 "                ",
                 "X       X       ",
@@ -324,7 +381,7 @@ public class Pattern {
             });
 
     public static final Pattern backslash =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "   X       X    ",
                 "                ",
                 "     X       X  ",
@@ -344,7 +401,7 @@ public class Pattern {
             });
 
     public static final Pattern slash_thick =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 " XXX     XXX    ",
                 "                ",
                 "XX     XXX     X",
@@ -364,7 +421,7 @@ public class Pattern {
             });
 
     public static final Pattern backslash_thick =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "  XXX     XXX   ",
                 "                ",
                 "    XXX     XXX ",
@@ -385,7 +442,7 @@ public class Pattern {
 
 
     public static final Pattern backslash_mixed =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 "     X       X  ",
                 "  X   X   X   X ",
@@ -405,7 +462,7 @@ public class Pattern {
             });
 
     public static final Pattern slash_mixed =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "  X   X   X   X ",
                 " X       X      ",
                 "X   X   X   X   ",
@@ -425,7 +482,7 @@ public class Pattern {
             });
 
     public static final Pattern fill_50pct =
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X X X X X X X X ",
                 " X X X X X X X X",
                 "X X X X X X X X ",
@@ -446,7 +503,7 @@ public class Pattern {
 
     public static final Pattern[] quarters =
         new Pattern[] {
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   XXXXXXXX",
                 "   X   XXXXXXXXX",
                 "  X   X XXXXXXXX",
@@ -464,7 +521,7 @@ public class Pattern {
                 "  X   X   X   X ",
                 " X   X   X   X  ",
             }),
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 "   X   X   X   X",
                 "  X   X   X   X ",
@@ -482,7 +539,7 @@ public class Pattern {
                 "  X   X XXXXXXXX",
                 " X   X  XXXXXXXX",
             }),
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "XXXXXXXXX   X   ",
                 "XXXXXXXX   X   X",
                 "XXXXXXXX  X   X ",
@@ -500,7 +557,7 @@ public class Pattern {
                 "  X   X   X   X ",
                 " X   X   X   X  ",
             }),
-        new Pattern(new String[] {
+        Pattern.of(new String[] {
                 "X   X   X   X   ",
                 "   X   X   X   X",
                 "  X   X   X   X ",
@@ -15,6 +15,7 @@
 package com.westernsemico.vlsi.sw.electric.techxml;
 import com.westernsemico.util.*;
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 
 /** Encapsulates a <primitiveNode> element in an Electric Technology XML file */
@@ -75,8 +76,67 @@ public class Primitive {
     public Primitive(Tech tech, String name, PrimitiveGroup group, String fun, Box nodeBase) {
         this(tech, name, group, fun, nodeBase, nodeBase.getWidth(), nodeBase.getHeight()); }
 
+    /**
+     *  A copy of this primitive in another Tech's group, with each layer
+     *  it draws or connects passed through remap; see TechVariant.
+     *  Nets and ports keep their numbers.
+     */
+    Primitive copy(Tech tech, PrimitiveGroup group, UnaryOperator<TechLayer> remap) {
+        Primitive ret = new Primitive(tech, name, group, fun, nodeBase, defaultWidth, defaultHeight);
+        ret.setMinDimensions(minWidth, minHeight);
+        HashMap<Net,Net> nets = new HashMap<Net,Net>();
+        HashMap<Port,Port> ports = new HashMap<Port,Port>();
+        ArrayList<Net> byNumber = new ArrayList<Net>();
+        for(Port port : nodePorts) if (!byNumber.contains(port.net)) byNumber.add(port.net);
+        Collections.sort(byNumber, (a, b) -> Integer.compare(a.nodeNetNum, b.nodeNetNum));
+        for(Net net : byNumber) {
+            ret.nodeNetNums = net.nodeNetNum;
+            nets.put(net, ret.new Net(net.comment));
+        }
+        ret.nodeNetNums = nodeNetNums;
+        for(Port port : nodePorts) {
+            ArrayList<TechLayer> layers = new ArrayList<TechLayer>();
+            for(TechLayer tl : port.layers) layers.add(remap.apply(tl));
+            ports.put(port, ret.new Port(port.name, port.extent, nets.get(port.net), layers.toArray(new TechLayer[0])));
+        }
+        for(Layer l : nodeLayers) {
+            TechLayer tl = remap.apply(l.tlayer);
+            Port port = l.port == null ? null : ports.get(l.port);
+            Layer copy;
+            if (l instanceof Rectangle) {
+                copy = ret.new Rectangle(tl, port, ((Rectangle)l).lambdaBox);
+            } else if (l instanceof Round) {
+                Round r = (Round)l;
+                copy = ret.new Round(tl, port, r.diameter, r.thickness, r.mult * 2);
+            } else {
+                MultiCut mc = (MultiCut)l;
+                copy = ret.new MultiCut(tl, mc.boundingBoxOfCentroids, mc.cutWidth, mc.cutHeight, mc.cutSpacing1d, mc.cutSpacing2d);
+            }
+            copy.notElectrical = l.notElectrical;
+        }
+        return ret;
+    }
+
+    /** the ports of this primitive, in the order they are written to the XML file */
+    public List<Port> getPorts() { return Collections.unmodifiableList(nodePorts); }
+
+    /** the layers of this primitive, in the order they are written to the XML file */
+    public List<Layer> getLayers() { return Collections.unmodifiableList(nodeLayers); }
+
     public void setMinDimensions(Box box) { setMinDimensions(box.getWidth(), box.getHeight()); }
     public void setMinDimensions(double minWidth, double minHeight) { this.minWidth = minWidth; this.minHeight = minHeight; }
+    public double getMinWidth()  { return minWidth; }
+    public double getMinHeight() { return minHeight; }
+
+    /** a ScaledBox of this primitive (a layer's or a port's) as drawn at the default size, or null if sb is */
+    public Box atDefaultSize(ScaledBox sb) {
+        if (sb == null) return null;
+        double dx = (defaultWidth  - nodeBase.getWidth())  / 2;
+        double dy = (defaultHeight - nodeBase.getHeight()) / 2;
+        if (dx == 0 && dy == 0) return sb.add;
+        return Box.of(sb.add.klx + sb.mult.klx * dx, sb.add.kly + sb.mult.kly * dy,
+                      sb.add.khx + sb.mult.khx * dx, sb.add.khy + sb.mult.khy * dy);
+    }
 
     /** dump the Technology XML File fragment */
     public void dump(IndentingPrintWriter pw) throws IOException {
@@ -91,7 +151,7 @@ public class Primitive {
             
         pw.println("<nodeBase>");
         pw.adjustIndentation(4);
-        new ScaledBox(nodeBase).dump(pw);
+        ScaledBox.of(nodeBase).dump(pw);
         pw.adjustIndentation(-4);
         pw.println("</nodeBase>");
 
@@ -111,13 +171,13 @@ public class Primitive {
         public final Set<TechLayer> layers;
         public final Net net;
         private final int portNum;   // this must be the ordinal index of the Port, as written in the XML file
-        public Port(String name, Box extent, TechLayer... layers) { this(name, new ScaledBox(extent), null, layers); }
+        public Port(String name, Box extent, TechLayer... layers) { this(name, ScaledBox.of(extent), null, layers); }
         public Port(String name, ScaledBox extent, TechLayer... layers) { this(name, extent, null, layers); }
         public Port(String name, ScaledBox extent, Net net, TechLayer... layers) { 
             this.name = name;
             this.net = net==null ? new Net(name) : net;
             this.extent = extent;
-            HashSet<TechLayer> arr = new HashSet<TechLayer>();
+            LinkedHashSet<TechLayer> arr = new LinkedHashSet<TechLayer>();
             for(TechLayer tlayer : layers) if (tlayer != null) arr.add(tlayer);
             this.layers = Collections.unmodifiableSet(arr);
             this.portNum = numPorts++;
@@ -175,16 +235,16 @@ public class Primitive {
     /** a Layer whose shape is a rectangle */
     public class Rectangle extends Layer {
         public final ScaledBox lambdaBox;
-        public Rectangle(TechLayer tlayer, Port port, Box lambdaBox) { this(tlayer, port, new ScaledBox(lambdaBox)); }
+        public Rectangle(TechLayer tlayer, Port port, Box lambdaBox) { this(tlayer, port, ScaledBox.of(lambdaBox)); }
         public Rectangle(TechLayer tlayer, Port port, ScaledBox lambdaBox) { 
             super(tlayer, port);
             this.lambdaBox = lambdaBox;
         }
-        public Rectangle(TechLayer tlayer, Box box) { this(tlayer, new ScaledBox(box)); }
+        public Rectangle(TechLayer tlayer, Box box) { this(tlayer, ScaledBox.of(box)); }
         public Rectangle(TechLayer tlayer, ScaledBox lambdaBox) { this(tlayer, null, lambdaBox); }
         public Rectangle(TechLayer tlayer, double width, double height) { this(tlayer, null, width, height); }
         public Rectangle(TechLayer tlayer, Port port, double width, double height) {
-            this(tlayer, port, new ScaledBox(width, height)); }
+            this(tlayer, port, ScaledBox.of(width, height)); }
         public void dump(IndentingPrintWriter pw) throws IOException {
             pw.println("<nodeLayer layer='"+tlayer+"' style='FILLED'"+
                        (port==null?" portNum='-1'":" portNum='"+port.portNum+"'")+
@@ -236,12 +296,17 @@ public class Primitive {
         public MultiCut(TechLayer tlayer,
                         double cutWidth, double cutHeight, double cutSpacing1d, double cutSpacing2d,
                         Box    boundingBoxOfCuts) {
+            this(tlayer, boundingBoxOfCuts.grow(-cutWidth/2.0, -cutHeight/2.0), cutWidth, cutHeight, cutSpacing1d, cutSpacing2d);
+        }
+        /** as above, but given the box of the cut centers (as written in the XML) rather than of the cuts themselves */
+        public MultiCut(TechLayer tlayer, Box boundingBoxOfCentroids,
+                        double cutWidth, double cutHeight, double cutSpacing1d, double cutSpacing2d) {
             super(tlayer, null);
             this.cutWidth = cutWidth;
             this.cutHeight = cutHeight;
             this.cutSpacing1d = cutSpacing1d;
             this.cutSpacing2d = cutSpacing2d;
-            this.boundingBoxOfCentroids = boundingBoxOfCuts.grow(-cutWidth/2.0, -cutHeight/2.0);
+            this.boundingBoxOfCentroids = boundingBoxOfCentroids;
         }
         public void dump(IndentingPrintWriter pw) throws IOException {
             pw.println("<nodeLayer layer='"+tlayer+"' style='FILLED'>");
@@ -20,7 +20,8 @@ import java.io.*;
 /** Encapsulates a <primitivePrimitiveGroup> element in an Electric Technology XML File */
 public class PrimitiveGroup {
     ArrayList<Primitive> primitives = new ArrayList<Primitive>();
-    public PrimitiveGroup(Tech tech) { tech.primitiveGroups.add(this); }
+    public PrimitiveGroup(Tech tech) { tech.register(this); }
+    public List<Primitive> getPrimitives() { return Collections.unmodifiableList(primitives); }
     public void dump(IndentingPrintWriter pw) throws IOException {
         for(Primitive primitive : primitives) {
             pw.println("<primitiveNodeGroup>");
@@ -13,6 +13,7 @@
 // limitations under the License.
 //
 package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.Interner;
 import java.io.*;
 
 /**
@@ -22,6 +23,7 @@ import java.io.*;
  * class) plus a boolean indicating whether or not the border outline
  * should be drawn as a solid line.  Border outlines other than "none"
  * or "solid line" (e.g. dotted, dashed, etc) are not yet supported.
+ * Styles are interned by rs(), so equal styles are the same instance.
  */
 public class RenderingStyle {
     public final Pattern pattern;
@@ -29,8 +31,12 @@ public class RenderingStyle {
     public final int r;
     public final int g;
     public final int b;
-    public RenderingStyle(Pattern pattern, boolean border, int r, int g, int b) { this(pattern, border?"PAT_S":"NOPAT", r, g, b); }
-    public RenderingStyle(Pattern pattern, String border, int r, int g, int b) {
+    /** computed on first use, so that a style which turns out to be a duplicate costs nothing to intern */
+    private volatile int[] tile;
+
+    private static final Interner<RenderingStyle> interned = new Interner<RenderingStyle>();
+
+    private RenderingStyle(Pattern pattern, String border, int r, int g, int b) {
         this.pattern = pattern;
         this.border = border;
         this.r = r;
@@ -38,9 +44,31 @@ public class RenderingStyle {
         this.b = b;
     }
 
+    /** the pattern in this style's color as a 16x16 row-major ARGB tile, transparent where the pattern is clear.  Do not modify. */
+    public int[] tile() {
+        int[] ret = tile;
+        if (ret == null) {
+            ret = new int[256];
+            int argb = 0xff000000 | (r << 16) | (g << 8) | b;
+            int[] mask = pattern.tile();
+            for(int i=0; i<ret.length; i++) ret[i] = mask[i] & argb;
+            tile = ret;
+        }
+        return ret;
+    }
+
+    // patterns are interned, so they compare by reference
+    public int hashCode() { return System.identityHashCode(pattern) ^ 31*(border.hashCode() ^ 31*((r << 16) | (g << 8) | b)); }
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof RenderingStyle)) return false;
+        RenderingStyle rs = (RenderingStyle)other;
+        return rs.pattern == pattern && rs.border.equals(border) && rs.r == r && rs.g == g && rs.b == b;
+    }
+
     public static RenderingStyle rs(Pattern pattern) { return rs(pattern, false); }
-    public static RenderingStyle rs(Pattern pattern, boolean border, int r, int g, int b) { return new RenderingStyle(pattern, border, r, g, b); }
-    public static RenderingStyle rs(Pattern pattern, String border, int r, int g, int b) { return new RenderingStyle(pattern, border, r, g, b); }
+    public static RenderingStyle rs(Pattern pattern, boolean border, int r, int g, int b) { return rs(pattern, border?"PAT_S":"NOPAT", r, g, b); }
+    public static RenderingStyle rs(Pattern pattern, String border, int r, int g, int b) { return interned.intern(new RenderingStyle(pattern, border, r, g, b)); }
     public static RenderingStyle rs(Pattern pattern, int r, int g, int b) { return rs(pattern, false, r, g, b); }
     public static RenderingStyle rs(Pattern pattern, boolean border) { return rs(pattern, border, 100, 100, 100); }
     public static RenderingStyle rs(int r, int g, int b) { return rs(Pattern.solid, r, g, b); }
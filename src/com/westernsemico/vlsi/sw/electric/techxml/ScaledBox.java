@@ -27,21 +27,38 @@ import java.io.*;
  * magnification in each direction (right/left edge for x, top/bot
  * edge for y) separately, but I can't imagine what this is useful
  * for.
+ *
+ * ScaledBoxes are interned like Boxes, so they too can be compared
+ * with ==.
  */
 public class ScaledBox {
     public final Box add;
     public final Box mult;
-    public ScaledBox(double size) { this(size, size); }
-    public ScaledBox(Box add, Box mult) { this.add = add; this.mult = mult; }
-    public ScaledBox(Box add, double mag_x, double mag_y) { this(add, new Box(2.0*mag_x,2.0*mag_y)); }
-    public ScaledBox(Box add, double magnification) { this(add, magnification, magnification); }
-    public ScaledBox(Box add) { this(add, 1.0); }
-    public ScaledBox(double width, double height, double magnification) { this(new Box(width, height), magnification); }
-    public ScaledBox(double width, double height, double mag_x, double mag_y) { this(new Box(width, height), mag_x, mag_y); }
-    public ScaledBox(double width, double height) { this(width, height, 1.0); }
-    public ScaledBox shift(double x, double y) { return new ScaledBox(add.shift(x, y), mult); }
+
+    private static final Interner<ScaledBox> interned = new Interner<ScaledBox>();
+
+    private ScaledBox(Box add, Box mult) { this.add = add; this.mult = mult; }
+    public static ScaledBox of(double size) { return of(size, size); }
+    public static ScaledBox of(Box add, Box mult) { return interned.intern(new ScaledBox(add, mult)); }
+    public static ScaledBox of(Box add, double mag_x, double mag_y) { return of(add, Box.of(2.0*mag_x,2.0*mag_y)); }
+    public static ScaledBox of(Box add, double magnification) { return of(add, magnification, magnification); }
+    public static ScaledBox of(Box add) { return of(add, 1.0); }
+    public static ScaledBox of(double width, double height, double magnification) { return of(Box.of(width, height), magnification); }
+    public static ScaledBox of(double width, double height, double mag_x, double mag_y) { return of(Box.of(width, height), mag_x, mag_y); }
+    public static ScaledBox of(double width, double height) { return of(width, height, 1.0); }
+    public ScaledBox shift(double x, double y) { return of(add.shift(x, y), mult); }
+
+    // add and mult are interned, so they compare by reference
+    public int hashCode() { return add.hashCode() ^ 31*mult.hashCode(); }
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof ScaledBox)) return false;
+        ScaledBox sb = (ScaledBox)other;
+        return sb.add == add && sb.mult == mult;
+    }
+
     public void dump(IndentingPrintWriter pw) throws IOException {
-        if (mult.equals(new Box())) {
+        if (mult == Box.UNIT) {
             pw.println("<box>");
         } else {
             pw.println("<box "+mult.toString()+">");
@@ -14,11 +14,14 @@
 //
 package com.westernsemico.vlsi.sw.electric.techxml;
 import com.westernsemico.vlsi.io.gds.GDSLayer;
+import com.westernsemico.vlsi.io.gds.GDSLayerMap;
 import static com.westernsemico.vlsi.sw.electric.techxml.Pattern.*;
 import com.westernsemico.vlsi.sw.electric.techxml.RenderingStyle;
 import static com.westernsemico.vlsi.sw.electric.techxml.RenderingStyle.rs;
 import com.westernsemico.util.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.io.*;
 
 /** Encapsulates an Electric Technology and emits the XML file which describes it */
@@ -27,14 +30,66 @@ public abstract class Tech {
     /** the default grid alignment in Electric "units" (which are usally microns) */
     public final double gridAlignmentInUnits;
 
-    /** TechLayers for this Tech, indexed by name */
-    final HashMap<String,TechLayer> techLayers = new HashMap<String,TechLayer>();
+    /** TechLayers for this Tech, indexed by name, in the order they were created */
+    final LinkedHashMap<String,TechLayer> techLayers = new LinkedHashMap<String,TechLayer>();
 
     /** all primitive node groups for this technology */
     final ArrayList<PrimitiveGroup> primitiveGroups = new ArrayList<PrimitiveGroup>();
 
-    /** a many-to-one map from GDS major/minor to TechLayer (a TechLayer can have geometry/pin/res/dum gdslayers associated with it) */
-    private final HashMap<GDSLayer,TechLayer> gdsLayerToTechLayer = new HashMap<GDSLayer,TechLayer>();
+    /** layers computed from the drawn layers by boolean operations, indexed by name */
+    final LinkedHashMap<String,DerivedLayer> derivedLayers = new LinkedHashMap<String,DerivedLayer>();
+
+    /** the derived layers which stand for layers that are never drawn in GDS (i.e. Electric's), by the layer they stand for */
+    final LinkedHashMap<TechLayer,DerivedLayer> standIns = new LinkedHashMap<TechLayer,DerivedLayer>();
+
+    /** the TechLayer drawn (resp. pinned) on each GDS layer, keyed by packed major/minor; filled in by compile() */
+    private final GDSLayerMap<TechLayer> gdsGeomLayers = new GDSLayerMap<TechLayer>();
+    private final GDSLayerMap<TechLayer> gdsPinLayers  = new GDSLayerMap<TechLayer>();
+
+    /**
+     *  What other classes compute from this Tech once it is compiled
+     *  (Tracks, ViaStacks, CapacitanceTables), by their class.  They
+     *  are kept here rather than in static maps so that they go when
+     *  the Tech does.
+     */
+    final ConcurrentHashMap<Class<?>,Object> memo = new ConcurrentHashMap<Class<?>,Object>();
+
+    /** the value of type key computed from this Tech, computing it if no one has yet; computation is outside any lock, so two callers may both compute and one result wins */
+    <T> T memo(Class<T> key, Function<Tech,T> compute) {
+        Object ret = memo.get(key);
+        if (ret == null) {
+            T mine = compute.apply(this);
+            ret = memo.putIfAbsent(key, mine);
+            if (ret == null) ret = mine;
+        }
+        return key.cast(ret);
+    }
+
+    /** true once build() has started (so that build() itself may call compile()) */
+    private boolean built = false;
+
+    /** what build() threw, rethrown (wrapped) by every later compile() */
+    private Throwable failure;
+
+    /**
+     *  What compile() publishes once build() is done: read-only copies
+     *  of the collections above.  A compiled Tech never changes again,
+     *  so lookups read these without locking and one Tech can be
+     *  shared by any number of threads (or TechVariants).
+     */
+    private static final class Compiled {
+        final Map<String,TechLayer>    layers;
+        final List<PrimitiveGroup>     groups;
+        final Map<String,DerivedLayer> derived;
+        final Map<TechLayer,DerivedLayer> standIns;
+        Compiled(Tech tech) {
+            this.layers  = Collections.unmodifiableMap(new LinkedHashMap<String,TechLayer>(tech.techLayers));
+            this.groups  = Collections.unmodifiableList(new ArrayList<PrimitiveGroup>(tech.primitiveGroups));
+            this.derived = Collections.unmodifiableMap(new LinkedHashMap<String,DerivedLayer>(tech.derivedLayers));
+            this.standIns = Collections.unmodifiableMap(new LinkedHashMap<TechLayer,DerivedLayer>(tech.standIns));
+        }
+    }
+    private volatile Compiled compiled;
 
     public Tech() { this(0); }
     
@@ -42,6 +97,9 @@ public abstract class Tech {
         this.gridAlignmentInUnits = gridAlignmentInUnits;
     }
 
+    /** false if this Tech does not know its GDS aliases (the Technology XML does not record them), so TechValidator can tell neither an alias from a clash nor what a layer reaches through one */
+    public boolean hasGdsAliases() { return true; }
+
     /** the foundry-recommended core voltage */
     public abstract double getFoundryRecommendedVdd();
 
@@ -57,6 +115,53 @@ public abstract class Tech {
     /** returns the wire sheet resistence of the given layer in ohms per square; poly is lowestMetalLayerOrdinal()-1 */
     public abstract double getResistanceOhmsPerSquare(int layer);
 
+    /** returns the resistance of one cut on the given contact or via layer, in ohms */
+    public double getViaResistanceOhms(TechLayer cut) { throw new RuntimeException("not implemented"); }
+
+    /** the largest DC current density the given poly or metal layer may carry (its cross-section being width times thick3D), in mA/um^2 */
+    public double getMaxCurrentDensityMilliAmpsPerSquareMicron(TechLayer tl) { throw new RuntimeException("not implemented"); }
+
+    /** the relative permittivity of the dielectric between the wires and the substrate; override this if it is not silicon dioxide */
+    public double getDielectricConstant() { return 3.9; }
+
+    /** the poly (lowestMetalLayerOrdinal()-1) or metal layer with the given ordinal, in the numbering used by getResistanceOhmsPerSquare(); null if there is none */
+    public TechLayer getPolyOrMetalLayer(int layer) {
+        compile();
+        for(TechLayer tl : techLayers.values())
+            if (tl.isSignal && tl.gdsGeom != null && polyOrMetalOrdinal(tl) == layer)
+                return tl;
+        return null;
+    }
+
+    /** the ordinal of a poly or metal layer in the numbering used by getResistanceOhmsPerSquare(), or Integer.MIN_VALUE for any other layer */
+    public int polyOrMetalOrdinal(TechLayer tl) {
+        return tl.isMetal ? tl.metalNumber : tl.isPoly ? lowestMetalLayerOrdinal()-1 : Integer.MIN_VALUE;
+    }
+
+    /**
+     *  The capacitance to the substrate of a long isolated wire of the
+     *  given width on the given layer, from the 3D stack: h is the
+     *  layer's height3D above the top of the diffusion and t its
+     *  thick3D.  Yuan and Trick's formula for a line over a ground
+     *  plane, whose first term (w/h) is the parallel-plate area
+     *  capacitance and whose remaining terms are the fringe.
+     */
+    public double getWireCapacitanceFemtoFaradsPerMicron(TechLayer tl, double widthMicrons) {
+        double h = tl.height3D - getSubstrateSurface3D(), t = tl.thick3D, w = widthMicrons;
+        if (h <= 0) throw new RuntimeException("layer "+tl+" is not above the substrate (height3D="+tl.height3D+")");
+        double epsilon = getDielectricConstant() * EPSILON_0_FEMTOFARADS_PER_MICRON;
+        return epsilon * (w/h + 0.77 + 1.06*Math.pow(w/h, 0.25) + 1.06*Math.sqrt(t/h));
+    }
+
+    public static final double EPSILON_0_FEMTOFARADS_PER_MICRON = 8.854187817e-3;
+
+    /** the 3D height of the top of the substrate, taken to be the top of the highest diffusion layer */
+    public double getSubstrateSurface3D() {
+        double ret = 0;
+        for(TechLayer d : getLayers()) if (d.isDiff) ret = Math.max(ret, d.height3D + d.thick3D);
+        return ret;
+    }
+
     /** used to calculate the load presented by a wire in X-units (the smallest manufacturable transistor is X=1) */
     public double getNfetGateCapacitanceFemtoFaradsForX1() { throw new RuntimeException("not implemented"); }
 
@@ -68,77 +173,191 @@ public abstract class Tech {
     /** the name of the foundry that manufactures this technology */
     public abstract String getFoundryName();
 
+    /** override this to create the TechLayers, rules, and Primitives of this Tech; compile() runs it exactly once */
+    protected void build() { }
+
+    /**
+     *  Populate the layers, rules, and primitives of this Tech if that
+     *  has not already been done; after the first call this takes no
+     *  lock.  If build() throws, so does this call and every later one.
+     */
+    public Tech compile() {
+        if (compiled != null) return this;
+        synchronized(this) {
+            if (failure != null) throw new IllegalStateException(this+" failed to build", failure);
+            if (!built) {
+                built = true;
+                try {
+                    build();
+                    for(TechLayer tl : techLayers.values()) {
+                        registerGdsLayer(gdsGeomLayers, tl.gdsGeom, tl);
+                        registerGdsLayer(gdsPinLayers,  tl.gdsPin,  tl);
+                    }
+                } catch (RuntimeException | Error e) {
+                    failure = e;
+                    throw e;
+                }
+                compiled = new Compiled(this);
+            }
+        }
+        return this;
+    }
+
+    public boolean isCompiled() { return compiled != null; }
+
+    /** throws unless this Tech is still being built */
+    void checkMutable() {
+        if (compiled != null) throw new IllegalStateException(this+" is compiled and can no longer be changed");
+    }
+
+    /** add a layer; TechLayer's constructors do this */
+    void register(TechLayer tl) {
+        checkMutable();
+        techLayers.put(tl.name, tl);
+    }
+
+    /** add a primitive group; PrimitiveGroup's constructor does this */
+    void register(PrimitiveGroup group) {
+        checkMutable();
+        primitiveGroups.add(group);
+    }
+
     /** override this if you want to print a header comment in the Technology XML file */
     protected void header(IndentingPrintWriter pw) throws IOException { }
     
-    private void registerGdsLayerToTechLayer(GDSLayer g, TechLayer t) {
-        if (g==null) return;
-        TechLayer old = gdsLayerToTechLayer.get(g);
-        if (old != null)
-            throw new RuntimeException("GDS layer " + g + " already associated to TechLayer " + old + "; cannot associate it with " + t);
-        gdsLayerToTechLayer.put(g, t);
+    /** when two TechLayers share a GDS layer (i.e. poly and gate) the signal layer wins */
+    private static void registerGdsLayer(GDSLayerMap<TechLayer> map, GDSLayer g, TechLayer t) {
+        if (g == null) return;
+        TechLayer old = map.get(g);
+        if (old == null || (t.isSignal && !old.isSignal)) map.put(g, t);
     }
 
+    /** the TechLayer whose geometry is drawn on GDS layer major/minor, or null; suitable for per-record lookups since it neither hashes objects nor allocates */
+    public TechLayer getLayerForGds(int major, int minor) { return gdsGeomLayers.get(major, minor); }
+
+    /** the TechLayer whose pins are on GDS layer major/minor, or null */
+    public TechLayer getPinLayerForGds(int major, int minor) { return gdsPinLayers.get(major, minor); }
+
     /** Retrieve a TechLayer by name */
     public TechLayer getLayer(String name) {
         name = name.replace(':', '-');
-        TechLayer ret = techLayers.get(name);
+        Compiled c = compiled;
+        TechLayer ret = (c == null ? techLayers : c.layers).get(name);
         if (ret == null) throw new Error("could not find layer '"+name+"'");
         return ret;
     }
 
+    /** declare a derived layer; see DerivedLayer */
+    public DerivedLayer derive(String name, DerivedLayer expr) {
+        checkMutable();
+        if (derivedLayers.get(name) != null)
+            throw new RuntimeException("derived layer "+name+" declared twice");
+        DerivedLayer ret = expr.named(name);
+        derivedLayers.put(name, ret);
+        return ret;
+    }
+
+    /** declare a derived layer which stands for a layer that is never drawn, so rules on that layer can be checked on GDS */
+    public DerivedLayer derive(String name, DerivedLayer expr, TechLayer standsFor) {
+        DerivedLayer ret = derive(name, expr);
+        standIns.put(standsFor, ret);
+        return ret;
+    }
+
+    /** the derived layer declared to stand for tl, or else the one named like it, or null */
+    public DerivedLayer getStandIn(TechLayer tl) {
+        Compiled c = compiled;
+        DerivedLayer ret = (c == null ? standIns : c.standIns).get(tl);
+        return ret != null ? ret : (c == null ? derivedLayers : c.derived).get(tl.name);
+    }
+
+    /** Retrieve a DerivedLayer by name */
+    public DerivedLayer getDerivedLayer(String name) {
+        Compiled c = compiled;
+        DerivedLayer ret = (c == null ? derivedLayers : c.derived).get(name);
+        if (ret == null) throw new Error("could not find derived layer '"+name+"'");
+        return ret;
+    }
+
+    /** all derived layers of this Tech, in the order they were declared */
+    public Collection<DerivedLayer> getDerivedLayers() {
+        Compiled c = compiled;
+        return c == null ? Collections.unmodifiableCollection(derivedLayers.values()) : c.derived.values();
+    }
+
+    /** all TechLayers of this Tech */
+    public Collection<TechLayer> getLayers() {
+        Compiled c = compiled;
+        return c == null ? Collections.unmodifiableCollection(techLayers.values()) : c.layers.values();
+    }
+
+    /** all primitive node groups of this Tech */
+    public List<PrimitiveGroup> getPrimitiveGroups() {
+        Compiled c = compiled;
+        return c == null ? Collections.unmodifiableList(primitiveGroups) : c.groups;
+    }
+
+    /**
+     *  Returns a map from each cut layer (any layer drawn as a
+     *  MultiCut in some Primitive) to the set of layers which that
+     *  cut connects, as given by the ports of those Primitives.
+     */
+    public Map<TechLayer,Set<TechLayer>> getViaConnections() {
+        LinkedHashMap<TechLayer,Set<TechLayer>> ret = new LinkedHashMap<TechLayer,Set<TechLayer>>();
+        for(PrimitiveGroup group : primitiveGroups)
+            for(Primitive primitive : group.getPrimitives())
+                for(Primitive.Layer layer : primitive.getLayers()) {
+                    if (!(layer instanceof Primitive.MultiCut)) continue;
+                    Set<TechLayer> connects = ret.get(layer.tlayer);
+                    if (connects == null) ret.put(layer.tlayer, connects = new LinkedHashSet<TechLayer>());
+                    for(Primitive.Port port : primitive.getPorts())
+                        connects.addAll(port.layers);
+                }
+        return ret;
+    }
+
     /** dump the Technology XML file */
     protected void dump(IndentingPrintWriter pw) throws IOException {
-        String techName = this.toString();
-        pw.println("<?xml version='1.0' encoding='UTF-8'?>");
-        header(pw);
-        pw.println("<technology name='"+techName+"'");
-        pw.adjustIndentation(4);
-        pw.println("     xmlns='http://electric.sun.com/Technology'");
-        pw.println("     xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'");
-        pw.println("     xsi:schemaLocation='http://electric.sun.com/Technology ../../technology/Technology.xsd'>");
-        pw.println("");
-        pw.println("    <shortName>"+techName+"</shortName>");
-        pw.println("    <description>"+getTechDescription()+"</description>");
-        pw.println("    <numMetals min='"+(numLayersPolyOrMetal()-1)+"' max='"+(numLayersPolyOrMetal()-1)+"' default='"+(numLayersPolyOrMetal()-1)+"'/>");
-        pw.println("    <scale value='1000.0' relevant='true'/>");
-        pw.println("    <resolution value='"+gridAlignmentInUnits+"'/>");
-        pw.println("    <defaultFoundry value='"+getFoundryName()+"'/>");
-        pw.println("    <minResistance value='4.0'/>       <!-- not sure what this should be; copied default from mocmos -->");
-        pw.println("    <minCapacitance value='0.1'/>      <!-- not sure what this should be; copied default from mocmos -->");
-        pw.println("");
-        pw.println("    <!-- Transparent layers; not sure why these are in a techfile, copied from mocmos -->");
-        pw.println("    <transparentLayer transparent='1'><r>107</r><g>255</g><b>242</b></transparentLayer>");
-        pw.println("    <transparentLayer transparent='2'><r>0</r><g>153</g><b>51</b></transparentLayer>");
-        pw.println("    <transparentLayer transparent='3'><r>255</r><g>155</g><b>192</b></transparentLayer>");
-        pw.println("    <transparentLayer transparent='4'><r>224</r><g>95</g><b>255</b></transparentLayer>");
-        pw.println("    <transparentLayer transparent='5'><r>247</r><g>251</g><b>20</b></transparentLayer>");
-        pw.println("");
-        pw.println("    <!-- **************************************** LAYERS **************************************** -->");
-
-        for(TechLayer tlayer : techLayers.values()) tlayer.dump(pw);
-        for(TechLayer tlayer : techLayers.values()) tlayer.dumpArcs(pw);
-        for(TechLayer tlayer : techLayers.values()) tlayer.dumpPins(pw);
-        for(PrimitiveGroup nodeGroup : primitiveGroups) nodeGroup.dump(pw);
-
-        pw.println("<spiceHeader level='1'><spiceLine line='* SPICE deck for "+getTechDescription()+"'/></spiceHeader>");
-        pw.println("<spiceHeader level='2'><spiceLine line='* SPICE deck for "+getTechDescription()+"'/></spiceHeader>");
-        pw.println("<spiceHeader level='3'><spiceLine line='* SPICE deck for "+getTechDescription()+"'/></spiceHeader>");
-        dumpMenuPalette(pw);
-
-        pw.println("<Foundry name='"+getFoundryName()+"'>");
-        pw.adjustIndentation(4);
-        for(TechLayer layer : techLayers.values())
-            layer.dumpGdsMapping(pw);
-        pw.adjustIndentation(4);
-        for(TechLayer layer : techLayers.values())
-            layer.dumpRules(pw);
-        pw.adjustIndentation(-4);
-        pw.println("</Foundry>");
-
-        pw.adjustIndentation(-4);
-        pw.println("</technology>");
-        pw.flush();
+        compile();
+        accept(new ElectricXmlEmitter(pw));
+    }
+
+    /** walk this Tech: every layer (in getLayers() order), then every primitive group */
+    public void accept(TechVisitor visitor) throws IOException {
+        compile();
+        visitor.begin(this);
+        for(TechLayer tlayer : techLayers.values()) visitor.layer(tlayer);
+        for(PrimitiveGroup group : primitiveGroups) visitor.primitiveGroup(group);
+        visitor.end();
+    }
+
+    /**
+     *  Feed one traversal of this Tech to several visitors at once.
+     *  The traversal is taken once up front and replayed into each
+     *  visitor on its own thread; the compiled Tech is not modified
+     *  by visiting, so the visitors only need to keep their output
+     *  apart (as TechEmitter does).
+     */
+    public void emit(Collection<? extends TechVisitor> visitors) throws IOException {
+        compile();
+        final List<TechLayer>      layers = new ArrayList<TechLayer>(techLayers.values());
+        final List<PrimitiveGroup> groups = new ArrayList<PrimitiveGroup>(primitiveGroups);
+        ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for(final TechVisitor visitor : visitors)
+            futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            visitor.begin(this);
+                            for(TechLayer tlayer : layers) visitor.layer(tlayer);
+                            for(PrimitiveGroup group : groups) visitor.primitiveGroup(group);
+                            visitor.end();
+                        } catch (IOException e) { throw new UncheckedIOException(e); }
+                    }));
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException)e.getCause()).getCause();
+            throw e;
+        }
     }
 
     /** override this in order to provide a default menu palette */
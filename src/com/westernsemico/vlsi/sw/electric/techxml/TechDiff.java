@@ -0,0 +1,227 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.vlsi.io.gds.GDSLayer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ *  A structural comparison of two Techs.  Layers, rules, and
+ *  primitives are each flattened into a map from a key (the layer
+ *  name, the Electric rule name, the primitive name) to a map of
+ *  attributes, the keys of the two sides are matched by hashing,
+ *  and the three kinds of entity are compared in parallel.  The
+ *  report does not depend on the order in which either Tech
+ *  declared anything.
+ */
+public class TechDiff {
+
+    public enum Kind { ADDED, REMOVED, CHANGED }
+
+    public static class Change implements Comparable<Change> {
+        public final Kind   kind;
+        /** "tech", "layer", "rule", or "primitive" */
+        public final String entity;
+        public final String key;
+        /** the attribute which changed, or null for an added or removed entity */
+        public final String attribute;
+        public final String before;
+        public final String after;
+        public Change(Kind kind, String entity, String key, String attribute, String before, String after) {
+            this.kind = kind;
+            this.entity = entity;
+            this.key = key;
+            this.attribute = attribute;
+            this.before = before;
+            this.after = after;
+        }
+        public int compareTo(Change c) {
+            int ret = entity.compareTo(c.entity);
+            if (ret == 0) ret = key.compareTo(c.key);
+            if (ret == 0) ret = String.valueOf(attribute).compareTo(String.valueOf(c.attribute));
+            return ret;
+        }
+        public String toString() {
+            switch(kind) {
+            case ADDED:   return "+ "+entity+" "+key+(after==null  ? "" : " "+after);
+            case REMOVED: return "- "+entity+" "+key+(before==null ? "" : " "+before);
+            default:      return "~ "+entity+" "+key+" "+attribute+": "+before+" -> "+after;
+            }
+        }
+    }
+
+    /** the changes which turn a into b, sorted by entity and key */
+    public static List<Change> diff(Tech a, Tech b) {
+        a.compile();
+        b.compile();
+        CompletableFuture<List<Change>> tech       = CompletableFuture.supplyAsync(() -> compare("tech", techAttributes(a), techAttributes(b)));
+        CompletableFuture<List<Change>> layers     = CompletableFuture.supplyAsync(() -> compare("layer", layers(a), layers(b)));
+        CompletableFuture<List<Change>> rules      = CompletableFuture.supplyAsync(() -> compare("rule", rules(a), rules(b)));
+        CompletableFuture<List<Change>> primitives = CompletableFuture.supplyAsync(() -> compare("primitive", primitives(a), primitives(b)));
+        ArrayList<Change> ret = new ArrayList<Change>();
+        for(CompletableFuture<List<Change>> f : Arrays.asList(tech, layers, rules, primitives)) ret.addAll(f.join());
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /** compare two flattened sets of entities; a single "value" attribute is reported inline */
+    private static List<Change> compare(String entity, Map<String,Map<String,String>> a, Map<String,Map<String,String>> b) {
+        ArrayList<Change> ret = new ArrayList<Change>();
+        for(Map.Entry<String,Map<String,String>> e : a.entrySet()) {
+            Map<String,String> other = b.get(e.getKey());
+            if (other == null) { ret.add(new Change(Kind.REMOVED, entity, e.getKey(), null, summary(e.getValue()), null)); continue; }
+            for(Map.Entry<String,String> attr : e.getValue().entrySet()) {
+                String after = other.get(attr.getKey());
+                if (!Objects.equals(attr.getValue(), after))
+                    ret.add(new Change(Kind.CHANGED, entity, e.getKey(), attr.getKey(), attr.getValue(), after));
+            }
+            for(Map.Entry<String,String> attr : other.entrySet())
+                if (!e.getValue().containsKey(attr.getKey()))
+                    ret.add(new Change(Kind.CHANGED, entity, e.getKey(), attr.getKey(), null, attr.getValue()));
+        }
+        for(Map.Entry<String,Map<String,String>> e : b.entrySet())
+            if (!a.containsKey(e.getKey())) ret.add(new Change(Kind.ADDED, entity, e.getKey(), null, null, summary(e.getValue())));
+        return ret;
+    }
+
+    private static String summary(Map<String,String> attributes) {
+        return attributes.size() == 1 && attributes.containsKey("value") ? attributes.get("value") : null;
+    }
+
+    // Flattening //////////////////////////////////////////////////////////////////////////////
+
+    private static Map<String,Map<String,String>> techAttributes(Tech tech) {
+        HashMap<String,String> attrs = new HashMap<String,String>();
+        attrs.put("name", tech.toString());
+        attrs.put("description", tech.getTechDescription());
+        attrs.put("foundry", tech.getFoundryName());
+        attrs.put("numLayersPolyOrMetal", ""+tech.numLayersPolyOrMetal());
+        attrs.put("resolution", ""+tech.gridAlignmentInUnits);
+        HashMap<String,Map<String,String>> ret = new HashMap<String,Map<String,String>>();
+        ret.put("", attrs);
+        return ret;
+    }
+
+    private static Map<String,Map<String,String>> layers(Tech tech) {
+        HashMap<String,Map<String,String>> ret = new HashMap<String,Map<String,String>>();
+        for(TechLayer tl : tech.getLayers()) {
+            HashMap<String,String> attrs = new HashMap<String,String>();
+            attrs.put("fun", tl.fun);
+            attrs.put("signal", ""+tl.isSignal);
+            attrs.put("gds", gds(tl.gdsGeom));
+            attrs.put("gdsPin", gds(tl.gdsPin));
+            attrs.put("color", tl.rs.r+","+tl.rs.g+","+tl.rs.b);
+            attrs.put("pattern", pattern(tl.rs.pattern));
+            attrs.put("outlined", tl.rs.border);
+            attrs.put("height3D", ""+tl.height3D);
+            attrs.put("thick3D", ""+tl.thick3D);
+            attrs.put("antennaRatio", ""+tl.antennaRatio);
+            TreeSet<String> connections = new TreeSet<String>();
+            for(TechLayer other : tl.getPureLayerNodeConnections()) connections.add(other.name);
+            attrs.put("connections", connections.toString());
+            ret.put(tl.name, attrs);
+        }
+        return ret;
+    }
+
+    /** every rule, under the name TechLayer.dumpRules() gives it */
+    private static Map<String,Map<String,String>> rules(Tech tech) {
+        HashMap<String,Map<String,String>> ret = new HashMap<String,Map<String,String>>();
+        for(TechLayer tl : tech.getLayers()) {
+            LayerRules r = tl.layerRules;
+            if (r != null) {
+                if (r.minWidth > 0)                  rule(ret, tl+".MINWIDTH", r.minWidth);
+                if (r.minSpace > 0)                  rule(ret, tl+".SPACING", r.minSpace);
+                if (r.minArea > 0)                   rule(ret, tl+".MINAREA", r.minArea);
+                if (r.maxWidth != Double.MAX_VALUE)  rule(ret, tl+".MAXWIDTH", r.maxWidth);
+            }
+            for(Map.Entry<TechLayer,Double> e : tl.getSpacingRules().entrySet())            rule(ret, tl+".TO."+e.getKey()+".SPACING", e.getValue());
+            for(Map.Entry<TechLayer,Double> e : tl.getUnconnectedSpacingRules().entrySet()) rule(ret, tl+".TO."+e.getKey()+".USPACING", e.getValue());
+            for(TechLayer other : tl.getForbidden())                                        rule(ret, tl+".AND."+other+".FORBIDDEN", 0);
+            for(Map.Entry<TechLayer,Double> e : tl.getEnclosureRules().entrySet())          rule(ret, tl+".ENCLOSES."+e.getKey(), e.getValue());
+            for(Map.Entry<TechLayer,Double> e : tl.getExtensionRules().entrySet())          rule(ret, tl+".EXTENDS.PAST."+e.getKey(), e.getValue());
+        }
+        return ret;
+    }
+
+    private static void rule(Map<String,Map<String,String>> rules, String name, double value) {
+        rules.put(name, Collections.singletonMap("value", ""+value));
+    }
+
+    /** nodeLayers are keyed by position, ports by name */
+    private static Map<String,Map<String,String>> primitives(Tech tech) {
+        HashMap<String,Map<String,String>> ret = new HashMap<String,Map<String,String>>();
+        for(PrimitiveGroup group : tech.getPrimitiveGroups())
+            for(Primitive p : group.getPrimitives()) {
+                HashMap<String,String> attrs = new HashMap<String,String>();
+                attrs.put("fun", p.fun);
+                attrs.put("nodeBase", p.nodeBase.toString().trim());
+                attrs.put("defaultSize", p.defaultWidth+"x"+p.defaultHeight);
+                attrs.put("minSize", p.getMinWidth()+"x"+p.getMinHeight());
+                int i = 0;
+                for(Primitive.Layer l : p.getLayers()) attrs.put("nodeLayer["+(i++)+"]", describe(l));
+                for(Primitive.Port port : p.getPorts()) {
+                    TreeSet<String> arcs = new TreeSet<String>();
+                    for(TechLayer tl : port.layers) arcs.add(tl.name);
+                    attrs.put("port "+port.name+" net", port.net.comment);
+                    attrs.put("port "+port.name+" arcs", arcs.toString());
+                    attrs.put("port "+port.name+" box", scaledBox(port.extent));
+                }
+                ret.put(p.name, attrs);
+            }
+        return ret;
+    }
+
+    private static String describe(Primitive.Layer l) {
+        String ret = l.tlayer+(l.port==null ? "" : " port="+l.port.name)+(l.notElectrical ? " nonelectrical" : "");
+        if (l instanceof Primitive.Rectangle) return ret+" box="+scaledBox(((Primitive.Rectangle)l).lambdaBox);
+        if (l instanceof Primitive.MultiCut) {
+            Primitive.MultiCut m = (Primitive.MultiCut)l;
+            return ret+" cut="+m.cutWidth+"x"+m.cutHeight+" sep="+m.cutSpacing1d+"/"+m.cutSpacing2d+" centroids="+m.boundingBoxOfCentroids.toString().trim();
+        }
+        if (l instanceof Primitive.Round) {
+            Primitive.Round r = (Primitive.Round)l;
+            return ret+" diameter="+r.diameter+" thickness="+r.thickness;
+        }
+        return ret;
+    }
+
+    private static String scaledBox(ScaledBox sb) { return sb.add.toString().trim()+(sb.mult == Box.UNIT ? "" : " *"+sb.mult.toString()); }
+
+    private static String gds(GDSLayer g) { return g == null ? "none" : g.major+"/"+g.minor; }
+
+    private static String pattern(Pattern p) {
+        StringBuilder sb = new StringBuilder();
+        for(int row=0; row<16; row++) sb.append(String.format("%04x", p.row(row)));
+        return sb.toString();
+    }
+
+    // Command Line //////////////////////////////////////////////////////////////////////////////
+
+    /** a Technology XML file, or the name of a Tech class */
+    private static Tech load(String arg) throws Exception {
+        if (new File(arg).isFile()) return TechXmlReader.read(new File(arg));
+        return (Tech)Class.forName(arg).getDeclaredConstructor().newInstance();
+    }
+
+    /** usage: TechDiff <before> <after>, each of which is a Technology XML file or a Tech class name */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) throw new RuntimeException("usage: TechDiff <before.xml|TechClass> <after.xml|TechClass>");
+        List<Change> changes = diff(load(args[0]), load(args[1]));
+        for(Change c : changes) System.out.println(c);
+        System.err.println(changes.size()+" change(s)");
+    }
+}
@@ -0,0 +1,81 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.*;
+import com.westernsemico.vlsi.sw.klayout.LypEmitter;
+import com.westernsemico.vlsi.sw.lef.LefTechEmitter;
+import com.westernsemico.vlsi.sw.magic.MagicTechEmitter;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  A TechVisitor which writes one file format.  Each emitter has its
+ *  own buffer (unless it is given a writer), so several emitters can
+ *  consume the same traversal at once; see Tech.emit().
+ */
+public abstract class TechEmitter implements TechVisitor {
+
+    private final StringWriter buffer;
+    protected final IndentingPrintWriter pw;
+    protected Tech tech;
+
+    /** an emitter which buffers its output; see getOutput() */
+    protected TechEmitter() {
+        this.buffer = new StringWriter();
+        this.pw = new IndentingPrintWriter(new IndentingWriter(buffer));
+    }
+
+    /** an emitter which writes directly to pw */
+    protected TechEmitter(IndentingPrintWriter pw) {
+        this.buffer = null;
+        this.pw = pw;
+    }
+
+    /** the name conventionally given to a file in this format, i.e. "skywater130.lyp" */
+    public abstract String getFileName();
+
+    public void begin(Tech tech) throws IOException { this.tech = tech; }
+    public void layer(TechLayer layer) throws IOException { }
+    public void primitiveGroup(PrimitiveGroup group) throws IOException { }
+    public void end() throws IOException { pw.flush(); }
+
+    /** the buffered output; only valid after end() */
+    public String getOutput() {
+        if (buffer == null) throw new IllegalStateException(getClass().getSimpleName()+" was not created with a buffer");
+        return buffer.toString();
+    }
+
+    /** emit the Electric XML, KLayout, Magic, and LEF descriptions of tech into dir in one pass */
+    public static List<TechEmitter> writeAll(Tech tech, File dir) throws IOException {
+        List<TechEmitter> emitters =
+            Arrays.asList(new ElectricXmlEmitter(), new LypEmitter(), new MagicTechEmitter(), new LefTechEmitter());
+        tech.emit(emitters);
+        for(TechEmitter e : emitters)
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, e.getFileName())), "UTF-8")) {
+                w.write(e.getOutput());
+            }
+        return emitters;
+    }
+
+    /** usage: TechEmitter <Tech class> <output directory> */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) throw new RuntimeException("usage: TechEmitter <Tech class> <output directory>");
+        Tech tech = (Tech)Class.forName(args[0]).getDeclaredConstructor().newInstance();
+        File dir = new File(args[1]);
+        dir.mkdirs();
+        for(TechEmitter e : writeAll(tech, dir))
+            System.err.println("wrote "+new File(dir, e.getFileName()));
+    }
+}
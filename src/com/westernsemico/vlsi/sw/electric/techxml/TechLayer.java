@@ -20,6 +20,7 @@ import com.westernsemico.vlsi.sw.electric.techxml.RenderingStyle;
 import static com.westernsemico.vlsi.sw.electric.techxml.RenderingStyle.rs;
 import com.westernsemico.util.*;
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 
 /** A Technology Layer -- encapsulates roughly one masking step and the layer(s) for it (geometry, LVS resistor, dummy, etc) */
@@ -79,17 +80,35 @@ public class TechLayer {
     /** the 3D thickness of this layer */
     public double thick3D  = 0.0;
 
+    /** the maximum ratio of this layer's area on a net to the gate area on that net (the "partial" antenna ratio); zero means unchecked */
+    public double antennaRatio = 0.0;
+
+    /** the maximum sum of the partial antenna ratios of this layer and every layer fabricated before it; zero means unchecked */
+    public double cumulativeAntennaRatio = 0.0;
+
     /** every layer has a corresponding "pure layer primitive node" with one port; this field indicates which arcs are allowed to connect to that port */
-    private final HashSet<TechLayer> pureLayerNodeConnections = new HashSet<TechLayer>();
+    private final LinkedHashSet<TechLayer> pureLayerNodeConnections = new LinkedHashSet<TechLayer>();
 
     /** the set of other layers whose geometry are forbidden to overlap the geometry of this layer */
-    private HashSet<TechLayer> forbidden = new HashSet<TechLayer>();
+    private LinkedHashSet<TechLayer> forbidden = new LinkedHashSet<TechLayer>();
 
     /** the minimum spacings to geometry on other layers, regardless of connectivity -- i.e. "notch" rules */
-    private HashMap<TechLayer,Double> interLayerSpacings = new HashMap<TechLayer,Double>();
+    private LinkedHashMap<TechLayer,Double> interLayerSpacings = new LinkedHashMap<TechLayer,Double>();
 
     /** the minimum spacings to geometry on other layers UNLESS those other layers are on the same net as this one -- i.e. "short circuit" rules */
-    private HashMap<TechLayer,Double> interLayerSpacingsUnconnected = new HashMap<TechLayer,Double>();
+    private LinkedHashMap<TechLayer,Double> interLayerSpacingsUnconnected = new LinkedHashMap<TechLayer,Double>();
+
+    /** other layers which deliberately tape out to the same GDS numbers as this one (and so are one conductor on the mask), for TechValidator */
+    private final LinkedHashSet<TechLayer> gdsAliases = new LinkedHashSet<TechLayer>();
+
+    /** rules declared more than once, for TechValidator */
+    private final ArrayList<String> redeclaredRules = new ArrayList<String>();
+
+    /** the minimum distances by which this layer must surround geometry on other layers wherever it overlaps them -- i.e. "enclosure" rules */
+    private LinkedHashMap<TechLayer,Double> enclosures = new LinkedHashMap<TechLayer,Double>();
+
+    /** the minimum distances by which this layer must extend past the edge of geometry on other layers wherever it crosses them -- i.e. "extension" rules */
+    private LinkedHashMap<TechLayer,Double> extensions = new LinkedHashMap<TechLayer,Double>();
 
     public TechLayer(Tech tech, String name, GDSLayer gdsGeom, GDSLayer gdsPin, String description) {
         this(tech, name, gdsGeom, gdsPin, null, description); }
@@ -122,10 +141,8 @@ public class TechLayer {
         this.description = description;
         this.isMetal = metalNumber > -1;
         this.metalNumber = metalNumber;
-        this.isPoly = name.toLowerCase().startsWith("poly") && !name.toLowerCase().startsWith("polymide");
-        this.isDiff =
-            (name.toLowerCase().startsWith("diff") && !name.toLowerCase().startsWith("diff-1v8") && !name.toLowerCase().startsWith("diff-2v5")) ||
-            (name.toLowerCase().equals("tap"));
+        this.isPoly = isPolyName(name);
+        this.isDiff = isDiffName(name);
         this.isSignal = isPoly || isDiff || isMetal;
 
         String fun = "UNKNOWN"; /* FIXME */
@@ -160,7 +177,7 @@ public class TechLayer {
             case 10:rs = rs(solid,  168, 171,  14); break;
             case 11:rs = rs(solid,   44, 222,  45); break;
             }
-            dummy_rs = new RenderingStyle(very_sparse, true, rs.r/2, rs.g/2, rs.b/2);
+            dummy_rs = rs(very_sparse, true, rs.r/2, rs.g/2, rs.b/2);
         } else if (name.toLowerCase().startsWith("cont") || name.toLowerCase().startsWith("licon1") || name.toLowerCase().startsWith("mcon")) {
             fun = "CONTACT1";
             rs = rs(solid,
@@ -236,18 +253,131 @@ public class TechLayer {
         this.fun = fun;
         this.rs  = explicitRS==null ? rs : explicitRS;
 
-        tech.techLayers.put(name, this);
+        tech.register(this);
 
         this.layer_res      = gds_res==null   ? null : new TechLayer(tech, name+"-Res",   gds_res,   null, "Resistor for "+name);
         this.layer_dummy    = gds_dummy==null ? null : new TechLayer(tech, name+"-Dummy", gds_dummy, null, null, dummy_rs, "Dummy for "+name);
         this.layer_block    = gds_block==null ? null : new TechLayer(tech, name+"-Block", gds_block, null, "Block for "+name);
     }
 
+    /**
+     *  A layer whose function, rendering, and metal ordinal are given
+     *  explicitly rather than derived from its name, i.e. when reading
+     *  a Technology XML file written by someone else; see TechXmlReader.
+     */
+    TechLayer(Tech tech, String name, String fun, GDSLayer gdsGeom, GDSLayer gdsPin, LayerRules layerRules, RenderingStyle rs,
+              int metalNumber, boolean isSignal) {
+        this.tech = tech;
+        this.name = name;
+        this.fun = fun;
+        this.gdsGeom = gdsGeom;
+        this.gdsPin = gdsPin;
+        this.layerRules = layerRules;
+        this.rs = rs;
+        this.description = "";
+        this.isPoly = isPolyName(name);
+        this.isDiff = isDiffName(name);
+        this.metalNumber = metalNumber;
+        this.isMetal = metalNumber > -1;
+        this.isSignal = isSignal;
+        this.layer_res = null;
+        this.layer_dummy = null;
+        this.layer_block = null;
+        tech.register(this);
+    }
+
+    /**
+     *  A copy of another Tech's layer for a TechVariant, with the given
+     *  companions.  Unlike the constructors above this does not
+     *  register the layer (the variant registers its layers in its
+     *  base's order), and its rules are filled in afterwards by
+     *  copyRules(), once every layer they might name exists.
+     */
+    TechLayer(Tech tech, TechLayer from, TechLayer layer_res, TechLayer layer_dummy, TechLayer layer_block) {
+        this.tech = tech;
+        this.name = from.name;
+        this.fun = from.fun;
+        this.gdsGeom = from.gdsGeom;
+        this.gdsPin = from.gdsPin;
+        this.layerRules = from.layerRules;
+        this.rs = from.rs;
+        this.description = from.description;
+        this.isPoly = from.isPoly;
+        this.isDiff = from.isDiff;
+        this.metalNumber = from.metalNumber;
+        this.isMetal = from.isMetal;
+        this.isSignal = from.isSignal;
+        this.height3D = from.height3D;
+        this.thick3D = from.thick3D;
+        this.antennaRatio = from.antennaRatio;
+        this.cumulativeAntennaRatio = from.cumulativeAntennaRatio;
+        this.layer_res = layer_res;
+        this.layer_dummy = layer_dummy;
+        this.layer_block = layer_block;
+    }
+
+    /** copy from's rules onto this layer, naming each layer through remap; a rule whose layer remap takes to null is dropped */
+    void copyRules(TechLayer from, UnaryOperator<TechLayer> remap) {
+        for(TechLayer tl : from.pureLayerNodeConnections) { tl = remap.apply(tl); if (tl != null) pureLayerNodeConnections.add(tl); }
+        for(TechLayer tl : from.forbidden)                { tl = remap.apply(tl); if (tl != null) forbidden.add(tl); }
+        for(TechLayer tl : from.gdsAliases)               { tl = remap.apply(tl); if (tl != null) gdsAliases.add(tl); }
+        copyRules(from.interLayerSpacings,            interLayerSpacings,            remap);
+        copyRules(from.interLayerSpacingsUnconnected, interLayerSpacingsUnconnected, remap);
+        copyRules(from.enclosures,                    enclosures,                    remap);
+        copyRules(from.extensions,                    extensions,                    remap);
+        redeclaredRules.addAll(from.redeclaredRules);
+    }
+    private static void copyRules(Map<TechLayer,Double> from, Map<TechLayer,Double> to, UnaryOperator<TechLayer> remap) {
+        for(Map.Entry<TechLayer,Double> e : from.entrySet()) {
+            TechLayer tl = remap.apply(e.getKey());
+            if (tl != null) to.put(tl, e.getValue());
+        }
+    }
+
+    /** every other layer this one names: its companions and the layers of its rules */
+    Set<TechLayer> getReferencedLayers() {
+        LinkedHashSet<TechLayer> ret = new LinkedHashSet<TechLayer>();
+        for(TechLayer tl : new TechLayer[] { layer_res, layer_dummy, layer_block }) if (tl != null) ret.add(tl);
+        ret.addAll(pureLayerNodeConnections);
+        ret.addAll(forbidden);
+        ret.addAll(gdsAliases);
+        ret.addAll(interLayerSpacings.keySet());
+        ret.addAll(interLayerSpacingsUnconnected.keySet());
+        ret.addAll(enclosures.keySet());
+        ret.addAll(extensions.keySet());
+        ret.remove(this);
+        return ret;
+    }
+
+    private static boolean isPolyName(String name) {
+        return name.toLowerCase().startsWith("poly") && !name.toLowerCase().startsWith("polymide");
+    }
+
+    private static boolean isDiffName(String name) {
+        return
+            (name.toLowerCase().startsWith("diff") && !name.toLowerCase().startsWith("diff-1v8") && !name.toLowerCase().startsWith("diff-2v5")) ||
+            (name.toLowerCase().equals("tap"));
+    }
+
     public String toString() { return name; }
-    public void forbidden(TechLayer other) { forbidden.add(other); }
-    public void addSpacingRule(TechLayer other, double distance) { interLayerSpacings.put(other, distance); }
-    public void addUnconnectedSpacingRule(TechLayer other, double distance) { interLayerSpacingsUnconnected.put(other, distance); }
-    public void addPureLayerNodeConnection(TechLayer layer) { pureLayerNodeConnections.add(layer); }
+    public void forbidden(TechLayer other) { tech.checkMutable(); if (!forbidden.add(other)) redeclaredRules.add("forbidden("+other+")"); }
+    public void addSpacingRule(TechLayer other, double distance) { tech.checkMutable(); redeclared("addSpacingRule", other, interLayerSpacings.put(other, distance)); }
+    public void addUnconnectedSpacingRule(TechLayer other, double distance) { tech.checkMutable(); redeclared("addUnconnectedSpacingRule", other, interLayerSpacingsUnconnected.put(other, distance)); }
+    public void addEnclosureRule(TechLayer inner, double distance) { tech.checkMutable(); redeclared("addEnclosureRule", inner, enclosures.put(inner, distance)); }
+    public void addExtensionRule(TechLayer other, double distance) { tech.checkMutable(); redeclared("addExtensionRule", other, extensions.put(other, distance)); }
+    private void redeclared(String rule, TechLayer other, Double old) { if (old != null) redeclaredRules.add(rule+"("+other+", was "+old+")"); }
+    public void addPureLayerNodeConnection(TechLayer layer) { tech.checkMutable(); pureLayerNodeConnections.add(layer); }
+    /** declare that this layer and other share GDS numbers on purpose; the declaration goes both ways */
+    public void addGdsAlias(TechLayer other) { tech.checkMutable(); gdsAliases.add(other); other.gdsAliases.add(this); }
+
+    public Set<TechLayer>        getPureLayerNodeConnections() { return Collections.unmodifiableSet(pureLayerNodeConnections); }
+    public List<String>          getRedeclaredRules()          { return Collections.unmodifiableList(redeclaredRules); }
+    public Set<TechLayer>        getForbidden()                { return Collections.unmodifiableSet(forbidden); }
+    public Set<TechLayer>        getGdsAliases()               { return Collections.unmodifiableSet(gdsAliases); }
+    public Map<TechLayer,Double> getSpacingRules()             { return Collections.unmodifiableMap(interLayerSpacings); }
+    public Map<TechLayer,Double> getUnconnectedSpacingRules()  { return Collections.unmodifiableMap(interLayerSpacingsUnconnected); }
+    public Map<TechLayer,Double> getEnclosureRules()           { return Collections.unmodifiableMap(enclosures); }
+    public Map<TechLayer,Double> getExtensionRules()           { return Collections.unmodifiableMap(extensions); }
 
     public void dump(IndentingPrintWriter pw) throws IOException {
         double minWidth  = (layerRules == null ? 0.0 : layerRules.minWidth);
@@ -292,7 +422,10 @@ public class TechLayer {
         pw.println("        <extended>true</extended>");
         pw.println("        <fixedAngle>true</fixedAngle>");
         pw.println("        <angleIncrement>45</angleIncrement>");
-        pw.println("        <antennaRatio>400.0</antennaRatio> <!-- dummy value -->");
+        if (antennaRatio > 0)
+            pw.println("        <antennaRatio>"+antennaRatio+"</antennaRatio>");
+        else
+            pw.println("        <antennaRatio>400.0</antennaRatio> <!-- dummy value -->");
         pw.println("        <arcLayer layer=\""+name+"\" style=\"FILLED\">");
         pw.println("            <lambda>"+halfWidth+"</lambda>");
         pw.println("        </arcLayer>");
@@ -332,7 +465,7 @@ public class TechLayer {
     public void dumpGdsMapping(IndentingPrintWriter pw) throws IOException {
         if (gdsGeom == null) return;
         String gdsmap = gdsGeom!=null ? (gdsGeom.major+"/"+gdsGeom.minor) : "";
-        if (gdsPin != null) gdsmap += (gdsmap.equals("")?"":",")+(gdsPin.major+'/'+gdsPin.minor)+"p";
+        if (gdsPin != null) gdsmap += (gdsmap.equals("")?"":",")+(gdsPin.major+"/"+gdsPin.minor)+"p";
         pw.println("<layerGds layer='"+name+"' gds='"+gdsmap+"'/>");
     }
     
@@ -344,6 +477,9 @@ public class TechLayer {
             if (layerRules.minSpace > 0)
                 pw.println("<LayersRule ruleName='"+this+".SPACING' "+
                            "layerNames='{"+this+","+this+"}' type='UCONSPA' when='ALL' value='"+(layerRules.minSpace)+"'/>");
+            if (layerRules.minArea > 0)
+                pw.println("<LayerRule ruleName='"+this+".MINAREA' "+
+                           "layerName='"+this+"' type='MINAREA' when='ALL' value='"+(layerRules.minArea)+"'/>");
         }
         for(TechLayer otherLayer : interLayerSpacings.keySet()) {
             pw.println("<LayersRule ruleName='"+this+".TO."+otherLayer+".SPACING' "+
@@ -360,7 +496,16 @@ public class TechLayer {
                        "layerNames='{"+this+","+otherLayer+"}' "+
                        "type='SPACING' when='ALL' value='0'/>");
         }
-        // FIXME: minarea
+        for(TechLayer otherLayer : enclosures.keySet()) {
+            pw.println("<LayersRule ruleName='"+this+".ENCLOSES."+otherLayer+"' "+
+                       "layerNames='{"+this+","+otherLayer+"}' "+
+                       "type='SURROUND' when='ALL' value='"+(enclosures.get(otherLayer))+"'/>");
+        }
+        for(TechLayer otherLayer : extensions.keySet()) {
+            pw.println("<LayersRule ruleName='"+this+".EXTENDS.PAST."+otherLayer+"' "+
+                       "layerNames='{"+this+","+otherLayer+"}' "+
+                       "type='EXTENSION' when='ALL' value='"+(extensions.get(otherLayer))+"'/>");
+        }
         // FIXME: maxwidth
     }
 }
@@ -0,0 +1,109 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ *  Compiled Techs by name, for servers and tools which work in several
+ *  processes (or several metal stacks of one) at once.
+ *
+ *  Registration copies the table and publishes the copy through a
+ *  volatile field, so lookups never lock and never see a table being
+ *  changed; registrations are rare.  Every Tech is compiled before it
+ *  is published, and a compiled Tech never changes again, so what a
+ *  lookup returns may be used from any thread.  Metal-stack variants
+ *  (see TechVariant) are made once each, on first use.
+ */
+public class TechRegistry {
+
+    /** one registration: a compiled Tech and the variants made from it, which go when it is replaced */
+    private static class Entry {
+        final Tech tech;
+        final ConcurrentHashMap<Integer,TechVariant> variants = new ConcurrentHashMap<Integer,TechVariant>();
+        Entry(Tech tech) { this.tech = tech; }
+    }
+
+    private final Object lock = new Object();
+    private volatile Map<String,Entry> entries = Collections.emptyMap();
+    private final CopyOnWriteArrayList<Consumer<Tech>> replaced = new CopyOnWriteArrayList<Consumer<Tech>>();
+
+    /** have listener told of each Tech a registration drops: the base it replaces, and each variant made from that */
+    public void onReplace(Consumer<Tech> listener) { replaced.add(listener); }
+
+    /** compile a Tech and publish it under a name, replacing whatever had that name (and that Tech's variants) */
+    public Tech register(String name, Tech tech) {
+        tech.compile();
+        Entry old;
+        synchronized(lock) {
+            LinkedHashMap<String,Entry> copy = new LinkedHashMap<String,Entry>(entries);
+            old = copy.put(name, new Entry(tech));
+            entries = Collections.unmodifiableMap(copy);
+        }
+        if (old != null)
+            for(Consumer<Tech> listener : replaced) {
+                listener.accept(old.tech);
+                for(TechVariant v : old.variants.values()) listener.accept(v);
+            }
+        return tech;
+    }
+
+    /** the Tech registered under a name, or null */
+    public Tech get(String name) {
+        Entry e = entries.get(name);
+        return e == null ? null : e.tech;
+    }
+
+    /** the registered names, as of now */
+    public Set<String> getNames() { return entries.keySet(); }
+
+    /**
+     *  The Tech registered under a name, cut down to the given number
+     *  of poly and metal layers (itself if that is all it has).  The
+     *  variant is made from, and kept with, the registration this call
+     *  finds; if the name is registered again meanwhile, the variant
+     *  goes with the replaced registration rather than outliving it.
+     */
+    public Tech variant(String name, int numLayersPolyOrMetal) {
+        Entry e = entries.get(name);
+        if (e == null) throw new IllegalArgumentException("no tech registered as "+name);
+        if (numLayersPolyOrMetal == e.tech.numLayersPolyOrMetal()) return e.tech;
+        return e.variants.computeIfAbsent(numLayersPolyOrMetal,
+                                          n -> (TechVariant)new TechVariant(e.tech, n).compile());
+    }
+
+    public static void main(String[] args) throws Exception {
+        TechRegistry registry = new TechRegistry();
+        Tech base = registry.register("skywater130", new SkyWater130());
+        for(int n=base.numLayersPolyOrMetal()-1; n>=3; n--) {
+            Tech variant = registry.variant("skywater130", n);
+            int layers = 0, sharedLayers = 0, primitives = 0, sharedPrimitives = 0;
+            for(TechLayer tl : variant.getLayers()) {
+                layers++;
+                if (tl.tech == base) sharedLayers++;
+            }
+            for(PrimitiveGroup group : variant.getPrimitiveGroups())
+                for(Primitive p : group.getPrimitives()) {
+                    primitives++;
+                    if (p.tech == base) sharedPrimitives++;
+                }
+            System.out.println(variant+": "+layers+" layers ("+sharedLayers+" shared), "+
+                               primitives+" primitives ("+sharedPrimitives+" shared), "+
+                               variant.getDerivedLayers().size()+" derived layers");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.*;
+import com.westernsemico.vlsi.tech.SkyWater130;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ *  A long-running Technology XML generator, so that asking for a
+ *  variant costs neither a JVM launch nor a rebuild of the Tech.
+ *  Each connection to the Unix-domain socket sends one line:
+ *
+ *      name [numLayersPolyOrMetal]    the XML of a registered Tech, or of its variant
+ *      list                           each registered name and its numLayersPolyOrMetal
+ *
+ *  and is answered with the XML document (or the list), after which
+ *  the server closes the connection; a request which cannot be
+ *  served is answered with "error message" instead.
+ *
+ *  Techs and their variants come from a TechRegistry, so each is
+ *  compiled once.  The first request for a given Tech streams the
+ *  document to its client as it is emitted, keeping a copy; later
+ *  requests for the same Tech are sent that copy, until the name is
+ *  registered again.  Connections are
+ *  served by a fixed pool of threads, each reading its request and
+ *  writing its answer with blocking I/O.
+ */
+public class TechServer implements Closeable {
+
+    public final TechRegistry registry;
+
+    /**
+     *  The emitted XML of each Tech served so far.  Entries are dropped
+     *  when the registry replaces their Tech, and the keys are weak, so
+     *  a document finished just after its Tech was replaced does not
+     *  outlive it either.
+     */
+    private final Map<Tech,byte[]> documents = Collections.synchronizedMap(new WeakHashMap<Tech,byte[]>());
+
+    private final ServerSocketChannel server;
+    private final Path socket;
+    private final ExecutorService workers;
+
+    /** the longest request line accepted */
+    private static final int MAX_REQUEST = 1024;
+
+    public TechServer(TechRegistry registry, Path socket, int threads) throws IOException {
+        this.registry = registry;
+        registry.onReplace(documents::remove);
+        this.socket = socket;
+        this.workers = Executors.newFixedThreadPool(threads);
+        Files.deleteIfExists(socket);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+    }
+
+    /** accept connections until closed */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                workers.execute(() -> {
+                    try (SocketChannel c = channel) { handle(c); }
+                    catch (IOException e) { }   // the client went away
+                });
+            }
+        } catch (ClosedChannelException e) { }
+    }
+
+    private void handle(SocketChannel channel) throws IOException {
+        OutputStream out = Channels.newOutputStream(channel);
+        String request;
+        try {
+            request = readLine(channel);
+        } catch (IllegalArgumentException e) {
+            out.write(("error "+e.getMessage()+"\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        Tech tech;
+        try {
+            String[] args = request.trim().split("\\s+");
+            if (args[0].equals("list") && args.length == 1) {
+                StringBuilder sb = new StringBuilder();
+                for(String name : registry.getNames()) sb.append(name+" "+registry.get(name).numLayersPolyOrMetal()+"\n");
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (args.length > 2) throw new IllegalArgumentException("expected: name [numLayersPolyOrMetal]");
+            tech = registry.get(args[0]);
+            if (tech == null) throw new IllegalArgumentException("no tech named "+args[0]);
+            if (args.length == 2) tech = registry.variant(args[0], Integer.parseInt(args[1]));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            out.write(("error "+e.getMessage()+"\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        byte[] document = documents.get(tech);
+        if (document != null) { out.write(document); return; }
+        Tee tee = new Tee(out);
+        IndentingPrintWriter pw = new IndentingPrintWriter(new IndentingWriter(new OutputStreamWriter(tee, StandardCharsets.UTF_8)));
+        tech.accept(new ElectricXmlEmitter(pw));
+        pw.flush();
+        if (pw.checkError()) throw new IOException("could not send "+tech);
+        documents.putIfAbsent(tech, tee.finish());
+    }
+
+    /** the request line, read a byte at a time so that nothing after it is consumed */
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (true) {
+            b.clear();
+            if (channel.read(b) < 0 || b.get(0) == '\n') break;
+            line.write(b.get(0));
+            if (line.size() > MAX_REQUEST) throw new IllegalArgumentException("request longer than "+MAX_REQUEST+" bytes");
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Passes what is written to it on to the client in large chunks,
+     *  keeping a copy.  It ignores flush(), which IndentingWriter calls
+     *  at every change of indentation and which would otherwise send a
+     *  packet for every few lines.
+     */
+    private static class Tee extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final byte[] buf = new byte[1 << 16];
+        private int n = 0;
+        Tee(OutputStream out) { this.out = out; }
+        @Override public void write(int b) throws IOException {
+            if (n == buf.length) drain();
+            buf[n++] = (byte)b;
+        }
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (n == buf.length) drain();
+                int k = Math.min(len, buf.length - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+            }
+        }
+        @Override public void flush() { }
+        private void drain() throws IOException {
+            out.write(buf, 0, n);
+            copy.write(buf, 0, n);
+            n = 0;
+        }
+        /** send what is left; returns everything that was written */
+        byte[] finish() throws IOException {
+            drain();
+            return copy.toByteArray();
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        workers.shutdown();
+        Files.deleteIfExists(socket);
+    }
+
+    /** a Tech by class name, or read from a Technology XML file */
+    private static Tech load(String what) throws Exception {
+        if (what.endsWith(".xml")) return TechXmlReader.read(new File(what));
+        return (Tech)Class.forName(what).getDeclaredConstructor().newInstance();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: java "+TechServer.class.getName()+" <socket> [<name>=<Tech class or tech.xml>]...");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        TechRegistry registry = new TechRegistry();
+        if (args.length == 1) registry.register("skywater130", new SkyWater130());
+        for(int i=1; i<args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("expected <name>=<Tech class or tech.xml>: "+args[i]);
+            registry.register(args[i].substring(0, eq), load(args[i].substring(eq+1)));
+        }
+        TechServer ts = new TechServer(registry, Paths.get(args[0]), Math.max(4, 2*Runtime.getRuntime().availableProcessors()));
+        System.err.println("compiled "+registry.getNames()+" in "+(System.currentTimeMillis()-start)+"ms; listening on "+args[0]);
+        ts.serve();
+    }
+}
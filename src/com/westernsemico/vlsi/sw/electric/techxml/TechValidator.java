@@ -0,0 +1,116 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.vlsi.io.gds.GDSLayer;
+import com.westernsemico.vlsi.io.gds.GDSLayerMap;
+import java.util.*;
+
+/**
+ *  Consistency checks on a compiled Tech.  Each check is one pass
+ *  over the layers (or primitives) against indexes built once up
+ *  front, so validating a Tech costs about as much as dumping it.
+ */
+public class TechValidator {
+
+    public enum Kind {
+        /** two layers emit geometry or pins on the same GDS major/minor without being declared GDS aliases */
+        DUPLICATE_GDS,
+        /** the same rule was declared twice on a layer */
+        DUPLICATE_RULE,
+        /** a rule, primitive, or derived layer refers to a layer which is not (or is no longer) part of the Tech */
+        DANGLING_REFERENCE,
+        /** a signal layer which no contact or via connects to anything else, directly or through a GDS alias */
+        UNREACHABLE_LAYER,
+        /** a signal layer without a minimum width, so its arc has no width */
+        NO_ARC,
+    }
+
+    public static class Problem {
+        public final Kind      kind;
+        public final TechLayer layer;
+        public final String    message;
+        public Problem(Kind kind, TechLayer layer, String message) {
+            this.kind = kind;
+            this.layer = layer;
+            this.message = message;
+        }
+        public String toString() { return kind+": "+layer+": "+message; }
+    }
+
+    public static List<Problem> validate(Tech tech) {
+        tech.compile();
+        ArrayList<Problem> ret = new ArrayList<Problem>();
+        ArrayList<TechLayer> layers = new ArrayList<TechLayer>(tech.techLayers.values());
+        Collections.sort(layers, (a, b) -> a.name.compareTo(b.name));
+
+        // duplicate GDS numbers: geometry and pins share one namespace
+        GDSLayerMap<TechLayer> owners = new GDSLayerMap<TechLayer>(2*layers.size());
+        if (tech.hasGdsAliases())
+            for(TechLayer tl : layers)
+                for(GDSLayer g : new GDSLayer[] { tl.gdsGeom, tl.gdsPin }) {
+                    if (g == null) continue;
+                    TechLayer owner = owners.get(g);
+                    if (owner == null) owners.put(g, tl);
+                    else if (owner != tl && !tl.getGdsAliases().contains(owner))
+                        ret.add(new Problem(Kind.DUPLICATE_GDS, tl, "GDS "+g.major+"/"+g.minor+" is also used by "+owner));
+                }
+
+        for(TechLayer tl : layers)
+            for(String rule : tl.getRedeclaredRules())
+                ret.add(new Problem(Kind.DUPLICATE_RULE, tl, rule+" declared more than once"));
+
+        // dangling references: anything which is not the layer registered under its own name
+        for(TechLayer tl : layers) {
+            for(TechLayer other : tl.getForbidden())                       dangling(tech, tl, other, "forbidden", ret);
+            for(TechLayer other : tl.getGdsAliases())                      dangling(tech, tl, other, "GDS alias", ret);
+            for(TechLayer other : tl.getSpacingRules().keySet())           dangling(tech, tl, other, "spacing rule", ret);
+            for(TechLayer other : tl.getUnconnectedSpacingRules().keySet()) dangling(tech, tl, other, "unconnected spacing rule", ret);
+            for(TechLayer other : tl.getEnclosureRules().keySet())         dangling(tech, tl, other, "enclosure rule", ret);
+            for(TechLayer other : tl.getExtensionRules().keySet())         dangling(tech, tl, other, "extension rule", ret);
+            for(TechLayer other : tl.getPureLayerNodeConnections())        dangling(tech, tl, other, "pure layer node connection", ret);
+        }
+        for(PrimitiveGroup group : tech.primitiveGroups)
+            for(Primitive p : group.getPrimitives()) {
+                for(Primitive.Layer l : p.getLayers()) dangling(tech, null, l.tlayer, "primitive "+p.name, ret);
+                for(Primitive.Port port : p.getPorts())
+                    for(TechLayer other : port.layers) dangling(tech, null, other, "port "+p.name+"."+port.name, ret);
+            }
+        for(DerivedLayer dl : tech.derivedLayers.values()) danglingLeaves(tech, dl, dl.name, ret);
+
+        // signal layers which nothing connects to, if the aliases through which something might are known
+        HashSet<TechLayer> connected = new HashSet<TechLayer>();
+        for(Set<TechLayer> s : tech.getViaConnections().values()) connected.addAll(s);
+        for(TechLayer tl : layers) {
+            if (!tl.isSignal) continue;
+            if (tech.hasGdsAliases() && !connected.contains(tl) && Collections.disjoint(connected, tl.getGdsAliases()))
+                ret.add(new Problem(Kind.UNREACHABLE_LAYER, tl, "signal layer is not connected to any other layer by a contact or via"));
+            if (tl.layerRules == null || tl.layerRules.minWidth <= 0)
+                ret.add(new Problem(Kind.NO_ARC, tl, "signal layer has no minimum width, so its arc is zero-width"));
+        }
+        return ret;
+    }
+
+    private static void dangling(Tech tech, TechLayer from, TechLayer to, String what, List<Problem> ret) {
+        if (to == null || tech.techLayers.get(to.name) == to) return;
+        ret.add(new Problem(Kind.DANGLING_REFERENCE, from, what+" refers to "+to+", which is not a layer of "+tech));
+    }
+
+    private static void danglingLeaves(Tech tech, DerivedLayer dl, String name, List<Problem> ret) {
+        if (dl == null) return;
+        if (dl.op == DerivedLayer.Op.LAYER) dangling(tech, null, dl.layer, "derived layer "+name, ret);
+        danglingLeaves(tech, dl.a, name, ret);
+        danglingLeaves(tech, dl.b, name, ret);
+    }
+}
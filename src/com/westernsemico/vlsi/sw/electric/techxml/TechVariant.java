@@ -0,0 +1,159 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  A Tech with fewer metal layers than its base: the same process
+ *  with its metal stack cut off above some layer, as for a 3- or
+ *  4-metal flavour of a 5-metal process.
+ *
+ *  The variant shares everything it can with its (compiled, hence
+ *  immutable) base.  It drops the metals above the new top, their
+ *  companions, the cuts to them, and every primitive and derived
+ *  layer which draws or names any of these; only a layer whose rules
+ *  name a dropped or copied layer is itself copied (copy-on-write),
+ *  and only a primitive which touches a copied layer.  Everything else
+ *  -- typically all of the front end -- is the base's own instance,
+ *  so shared layers and primitives answer the base for their .tech.
+ *  Electrical parameters are the base's.
+ */
+public class TechVariant extends Tech {
+
+    public final Tech base;
+
+    /** the highest metal layer kept */
+    public final TechLayer topMetal;
+
+    private final int numLayersPolyOrMetal;
+
+    /** base layers which are dropped map to null, base layers which are copied map to their copy; shared layers are absent */
+    private final HashMap<TechLayer,TechLayer> remap = new HashMap<TechLayer,TechLayer>();
+
+    public TechVariant(Tech base, int numLayersPolyOrMetal) {
+        super(base.compile().gridAlignmentInUnits);
+        this.base = base;
+        if (numLayersPolyOrMetal < 2 || numLayersPolyOrMetal > base.numLayersPolyOrMetal())
+            throw new IllegalArgumentException(base+" has no variant with "+numLayersPolyOrMetal+" poly and metal layers");
+        this.numLayersPolyOrMetal = numLayersPolyOrMetal;
+        int top = base.lowestMetalLayerOrdinal() + numLayersPolyOrMetal - 2;
+        TechLayer topMetal = null;
+        for(TechLayer tl : base.getLayers())
+            if (tl.isMetal && tl.gdsGeom != null && tl.metalNumber == top)
+                topMetal = tl;
+        if (topMetal == null) throw new IllegalArgumentException(base+" has no metal "+top);
+        this.topMetal = topMetal;
+    }
+
+    /** a base layer as this variant has it: itself, its copy, or null if it was dropped */
+    private TechLayer map(TechLayer tl) { return remap.containsKey(tl) ? remap.get(tl) : tl; }
+
+    @Override protected void build() {
+        // what goes: the metals above the top, the cuts which reach them, and their companions
+        HashSet<TechLayer> dropped = new HashSet<TechLayer>();
+        for(TechLayer tl : base.getLayers())
+            if (tl.isMetal && tl.metalNumber > topMetal.metalNumber) dropped.add(tl);
+        for(Map.Entry<TechLayer,Set<TechLayer>> e : base.getViaConnections().entrySet())
+            if (!Collections.disjoint(e.getValue(), dropped)) dropped.add(e.getKey());
+        for(TechLayer tl : new ArrayList<TechLayer>(dropped))
+            for(TechLayer companion : new TechLayer[] { tl.layer_res, tl.layer_dummy, tl.layer_block })
+                if (companion != null) dropped.add(companion);
+        for(TechLayer tl : dropped) remap.put(tl, null);
+
+        // what is copied: any layer naming something dropped or copied, until nothing more changes
+        HashSet<TechLayer> copied = new HashSet<TechLayer>();
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(TechLayer tl : base.getLayers())
+                if (!remap.containsKey(tl) && !copied.contains(tl))
+                    for(TechLayer other : tl.getReferencedLayers())
+                        if (remap.containsKey(other) || copied.contains(other)) {
+                            changed |= copied.add(tl);
+                            break;
+                        }
+        }
+
+        // companions first, since a layer's copy is constructed with them
+        HashSet<TechLayer> companions = new HashSet<TechLayer>();
+        for(TechLayer tl : base.getLayers())
+            for(TechLayer companion : new TechLayer[] { tl.layer_res, tl.layer_dummy, tl.layer_block })
+                if (companion != null) companions.add(companion);
+        for(int pass=0; pass<2; pass++)
+            for(TechLayer tl : base.getLayers())
+                if (copied.contains(tl) && companions.contains(tl) == (pass == 0))
+                    remap.put(tl, new TechLayer(this, tl, map(tl.layer_res), map(tl.layer_dummy), map(tl.layer_block)));
+        for(TechLayer tl : copied) remap.get(tl).copyRules(tl, this::map);
+        for(TechLayer tl : base.getLayers()) {
+            TechLayer mine = map(tl);
+            if (mine != null) register(mine);
+        }
+
+        // primitives: shared untouched groups, otherwise a group of the survivors
+        for(PrimitiveGroup group : base.getPrimitiveGroups()) {
+            ArrayList<Primitive> kept = new ArrayList<Primitive>();
+            boolean changed = false;
+            for(Primitive p : group.getPrimitives()) {
+                Set<TechLayer> uses = uses(p);
+                if (!Collections.disjoint(uses, dropped)) changed = true;
+                else {
+                    kept.add(p);
+                    changed |= !Collections.disjoint(uses, copied);
+                }
+            }
+            if (!changed) { register(group); continue; }
+            if (kept.isEmpty()) continue;
+            PrimitiveGroup mine = new PrimitiveGroup(this);
+            for(Primitive p : kept) {
+                if (Collections.disjoint(uses(p), copied)) mine.primitives.add(p);
+                else p.copy(this, mine, this::map);
+            }
+        }
+
+        for(DerivedLayer dl : base.getDerivedLayers()) {
+            DerivedLayer mine = dl.remap(this::map);
+            if (mine != null) derivedLayers.put(mine.name, mine);
+        }
+        for(TechLayer tl : base.getLayers()) {
+            DerivedLayer standIn = base.getStandIn(tl);
+            if (map(tl) != null && standIn != null && derivedLayers.get(standIn.name) != null)
+                standIns.put(map(tl), derivedLayers.get(standIn.name));
+        }
+    }
+
+    /** every layer a primitive draws or connects */
+    private static Set<TechLayer> uses(Primitive p) {
+        HashSet<TechLayer> ret = new HashSet<TechLayer>();
+        for(Primitive.Layer l : p.getLayers()) ret.add(l.tlayer);
+        for(Primitive.Port port : p.getPorts()) ret.addAll(port.layers);
+        return ret;
+    }
+
+    public String toString() { return base+"-"+topMetal; }
+    public String getTechDescription() { return base.getTechDescription()+" ("+topMetal+" top metal)"; }
+    public String getFoundryName() { return base.getFoundryName(); }
+    public int numLayersPolyOrMetal() { return numLayersPolyOrMetal; }
+    public int lowestMetalLayerOrdinal() { return base.lowestMetalLayerOrdinal(); }
+    public double getFoundryRecommendedVdd() { return base.getFoundryRecommendedVdd(); }
+    public double getCapacitanceFemtoFaradsPerNm(int layer) { return base.getCapacitanceFemtoFaradsPerNm(layer); }
+    public double getResistanceOhmsPerSquare(int layer) { return base.getResistanceOhmsPerSquare(layer); }
+    public double getViaResistanceOhms(TechLayer cut) { return base.getViaResistanceOhms(cut); }
+    public double getMaxCurrentDensityMilliAmpsPerSquareMicron(TechLayer tl) { return base.getMaxCurrentDensityMilliAmpsPerSquareMicron(tl); }
+    public double getDielectricConstant() { return base.getDielectricConstant(); }
+    public double getNfetGateCapacitanceFemtoFaradsForX1() { return base.getNfetGateCapacitanceFemtoFaradsForX1(); }
+    public double getNfetDrainCapacitanceFemtoFaradsForX1() { return base.getNfetDrainCapacitanceFemtoFaradsForX1(); }
+    @Override protected void header(IndentingPrintWriter pw) throws IOException { base.header(pw); }
+}
@@ -0,0 +1,28 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import java.io.*;
+
+/**
+ *  Receives a compiled Tech one piece at a time; see Tech.accept()
+ *  and Tech.emit().  The layers arrive in the same order as
+ *  Tech.getLayers(), followed by the primitive groups.
+ */
+public interface TechVisitor {
+    public void begin(Tech tech) throws IOException;
+    public void layer(TechLayer layer) throws IOException;
+    public void primitiveGroup(PrimitiveGroup group) throws IOException;
+    public void end() throws IOException;
+}
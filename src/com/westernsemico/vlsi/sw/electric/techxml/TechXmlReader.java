@@ -0,0 +1,516 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import com.westernsemico.util.*;
+import com.westernsemico.vlsi.io.gds.GDSLayer;
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import javax.xml.stream.*;
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ *  Reads an Electric Technology XML file back into a Tech, in one
+ *  streaming (StAX) pass with no DOM.  The layers, arcs, primitives,
+ *  GDS mapping, and rules are gathered as they go by and the Tech is
+ *  assembled at the end, since the rules for a layer come long after
+ *  the layer itself.
+ *
+ *  Whatever Tech.dump() writes is read back, so dumping the result
+ *  reproduces the file exactly; the pin primitives which dumpPins()
+ *  derives from each arc are recognized and not read as primitives.
+ *  The header comments and menu palette, which the model does not
+ *  describe, are kept verbatim.  Elements the model has no place for
+ *  are skipped.
+ */
+public class TechXmlReader {
+
+    /** a Tech read from a file; the things the XML does not record (Vdd, R, C) throw */
+    public static class XmlTech extends Tech {
+        private final String name;
+        private final String description;
+        private final String foundry;
+        private final int    numMetals;
+        private final String header;
+        private final String menuPalette;
+        XmlTech(String name, String description, String foundry, int numMetals, double resolution, String header, String menuPalette) {
+            super(resolution);
+            this.name = name;
+            this.description = description;
+            this.foundry = foundry;
+            this.numMetals = numMetals;
+            this.header = header;
+            this.menuPalette = menuPalette;
+        }
+        public String toString() { return name; }
+        public String getTechDescription() { return description; }
+        public String getFoundryName() { return foundry; }
+        public int numLayersPolyOrMetal() { return numMetals+1; }
+        public boolean hasGdsAliases() { return false; }
+        public double getFoundryRecommendedVdd() { throw new RuntimeException("not recorded in the Technology XML"); }
+        public double getCapacitanceFemtoFaradsPerNm(int layer) { throw new RuntimeException("not recorded in the Technology XML"); }
+        public double getResistanceOhmsPerSquare(int layer) { throw new RuntimeException("not recorded in the Technology XML"); }
+        @Override protected void header(IndentingPrintWriter pw) throws IOException { if (header != null) printVerbatim(pw, header); }
+        @Override protected void dumpMenuPalette(IndentingPrintWriter pw) throws IOException {
+            if (menuPalette == null) super.dumpMenuPalette(pw);
+            else printVerbatim(pw, menuPalette);
+        }
+    }
+
+    public static XmlTech read(File file) throws IOException {
+        return read(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    public static XmlTech read(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[1<<16];
+        for(int n; (n = reader.read(buf)) > 0; ) sb.append(buf, 0, n);
+        return read(sb.toString());
+    }
+
+    /** parse the text of a Technology XML file */
+    public static XmlTech read(String text) throws IOException {
+        try {
+            return new TechXmlReader(text).parse();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // What the stream leaves behind //////////////////////////////////////////////////////////////////////////////
+
+    private static class LayerSpec {
+        String name, fun = "UNKNOWN", border = "NOPAT";
+        int r = 100, g = 100, b = 100;
+        ArrayList<String> pattern = new ArrayList<String>();
+        double thick3D, height3D, antennaRatio, minWidth, minSpace, minArea;
+        boolean hasArc;
+        GDSLayer gdsGeom, gdsPin;
+        ArrayList<String> portArcs = new ArrayList<String>();
+    }
+
+    /** a rule from the Foundry section; kind is the TechLayer method it becomes */
+    private static class RuleSpec {
+        final String kind, layer, other;
+        final double value;
+        RuleSpec(String kind, String layer, String other, double value) { this.kind = kind; this.layer = layer; this.other = other; this.value = value; }
+    }
+
+    private static class NodeLayerSpec {
+        String layer, style;
+        int portNum = -1;
+        boolean electrical = true;
+        ScaledBox box;
+        Box cutCentroids;
+        double sizex, sizey, sep1d, sep2d;
+        ArrayList<double[]> techPoints = new ArrayList<double[]>();
+    }
+
+    private static class PortSpec {
+        String name, netComment = "";
+        int topology;
+        ScaledBox box;
+        ArrayList<String> portArcs = new ArrayList<String>();
+    }
+
+    private static class PrimitiveSpec {
+        String name, fun;
+        double defaultWidth, defaultHeight;
+        Box nodeBase;
+        double minWidth, minHeight;
+        ArrayList<NodeLayerSpec> layers = new ArrayList<NodeLayerSpec>();
+        ArrayList<PortSpec> ports = new ArrayList<PortSpec>();
+    }
+
+    private final String text;
+    private final XMLStreamReader r;
+
+    private String name, description = "", foundry, menuPalette;
+    private int    numMetals;
+    private double resolution;
+    private final LinkedHashMap<String,LayerSpec> layers = new LinkedHashMap<String,LayerSpec>();
+    private final ArrayList<PrimitiveSpec> primitives = new ArrayList<PrimitiveSpec>();
+    private final ArrayList<RuleSpec> rules = new ArrayList<RuleSpec>();
+
+    private TechXmlReader(String text) throws XMLStreamException {
+        this.text = text;
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.r = factory.createXMLStreamReader(new StringReader(text));
+    }
+
+    // Parsing //////////////////////////////////////////////////////////////////////////////
+
+    private XmlTech parse() throws XMLStreamException {
+        while (r.hasNext()) {
+            if (r.next() != START_ELEMENT) continue;
+            switch(r.getLocalName()) {
+            case "technology":         name = r.getAttributeValue(null, "name"); break;
+            case "description":        description = r.getElementText(); break;
+            case "numMetals":          numMetals = Integer.parseInt(r.getAttributeValue(null, "default")); break;
+            case "resolution":         resolution = dbl("value"); break;
+            case "defaultFoundry":     foundry = r.getAttributeValue(null, "value"); break;
+            case "Foundry":            if (foundry == null) foundry = r.getAttributeValue(null, "name"); break;
+            case "layer":              parseLayer(); break;
+            case "arcProto":           parseArc(); break;
+            case "primitiveNodeGroup": parseGroup(); break;
+            case "layerGds":           parseGds(); break;
+            case "LayerRule":
+            case "LayersRule":         parseRule(); break;
+            case "menuPalette":        menuPalette = slice("<menuPalette", "</menuPalette>"); skip(); break;
+            default: break;
+            }
+        }
+        return build();
+    }
+
+    private void parseLayer() throws XMLStreamException {
+        LayerSpec ls = new LayerSpec();
+        ls.name = r.getAttributeValue(null, "name");
+        if (r.getAttributeValue(null, "fun") != null) ls.fun = r.getAttributeValue(null, "fun");
+        layers.put(ls.name, ls);
+        for(int ev = r.next(); !end(ev, "layer"); ev = r.next()) {
+            if (ev != START_ELEMENT) continue;
+            switch(r.getLocalName()) {
+            case "opaqueColor": ls.r = (int)dbl("r"); ls.g = (int)dbl("g"); ls.b = (int)dbl("b"); break;
+            case "pattern":     ls.pattern.add(r.getElementText()); break;
+            case "outlined":    ls.border = r.getElementText().trim(); break;
+            case "display3D":   ls.thick3D = dbl("thick"); ls.height3D = dbl("height"); break;
+            case "lambda":      ls.minWidth = Double.parseDouble(r.getElementText().trim()); break;
+            case "portArc":     ls.portArcs.add(r.getElementText().trim()); break;
+            default: break;
+            }
+        }
+    }
+
+    private void parseArc() throws XMLStreamException {
+        LayerSpec ls = layers.get(r.getAttributeValue(null, "name"));
+        boolean afterAntennaRatio = false;
+        for(int ev = r.next(); !end(ev, "arcProto"); ev = r.next()) {
+            if (ev == START_ELEMENT && r.getLocalName().equals("antennaRatio") && ls != null) {
+                ls.antennaRatio = Double.parseDouble(r.getElementText().trim());
+                afterAntennaRatio = true;
+            } else if (ev == START_ELEMENT) {
+                afterAntennaRatio = false;
+            } else if (ev == COMMENT && afterAntennaRatio && r.getText().contains("dummy value")) {
+                // dumpArcs() writes a placeholder, marked as such, when there is no antenna rule
+                ls.antennaRatio = 0;
+            }
+        }
+        if (ls != null) ls.hasArc = true;
+    }
+
+    private void parseGroup() throws XMLStreamException {
+        PrimitiveSpec ps = null;
+        for(int ev = r.next(); !end(ev, "primitiveNodeGroup"); ev = r.next()) {
+            if (ev != START_ELEMENT) continue;
+            switch(r.getLocalName()) {
+            case "primitiveNode":
+                primitives.add(ps = new PrimitiveSpec());
+                ps.name = r.getAttributeValue(null, "name");
+                ps.fun  = r.getAttributeValue(null, "fun");
+                break;
+            case "defaultWidth":  ps.defaultWidth  = lambda("defaultWidth"); break;
+            case "defaultHeight": ps.defaultHeight = lambda("defaultHeight"); break;
+            case "nodeBase":      ps.nodeBase = parseScaledBox("nodeBase").add; break;
+            case "nodeLayer":     ps.layers.add(parseNodeLayer()); break;
+            case "primitivePort": ps.ports.add(parsePort()); break;
+            case "minSizeRule":   ps.minWidth = dbl("width"); ps.minHeight = dbl("height"); break;
+            default: break;
+            }
+        }
+    }
+
+    private NodeLayerSpec parseNodeLayer() throws XMLStreamException {
+        NodeLayerSpec nl = new NodeLayerSpec();
+        nl.layer = r.getAttributeValue(null, "layer");
+        nl.style = r.getAttributeValue(null, "style");
+        if (r.getAttributeValue(null, "portNum") != null) nl.portNum = Integer.parseInt(r.getAttributeValue(null, "portNum"));
+        nl.electrical = !"false".equals(r.getAttributeValue(null, "electrical"));
+        for(int ev = r.next(); !end(ev, "nodeLayer"); ev = r.next()) {
+            if (ev != START_ELEMENT) continue;
+            switch(r.getLocalName()) {
+            case "box":
+                nl.box = parseScaledBox("box");
+                break;
+            case "multicutbox":
+                nl.sizex = dbl("sizex"); nl.sizey = dbl("sizey"); nl.sep1d = dbl("sep1d"); nl.sep2d = dbl("sep2d");
+                nl.cutCentroids = parseScaledBox("multicutbox").add;
+                break;
+            case "techPoint":
+                nl.techPoints.add(new double[] { dbl("xm"), dbl("xa"), dbl("ym"), dbl("ya") });
+                break;
+            default: break;
+            }
+        }
+        return nl;
+    }
+
+    private PortSpec parsePort() throws XMLStreamException {
+        PortSpec port = new PortSpec();
+        port.name = r.getAttributeValue(null, "name");
+        boolean afterTopology = false;
+        for(int ev = r.next(); !end(ev, "primitivePort"); ev = r.next()) {
+            if (ev == COMMENT && afterTopology) {
+                // Port.dump() writes the net's comment as "<!-- comment -->"
+                String c = r.getText();
+                port.netComment = c.length() >= 2 ? c.substring(1, c.length()-1) : c.trim();
+                afterTopology = false;
+            }
+            if (ev != START_ELEMENT) continue;
+            afterTopology = false;
+            switch(r.getLocalName()) {
+            case "portTopology": port.topology = Integer.parseInt(r.getElementText().trim()); afterTopology = true; break;
+            case "box":          port.box = parseScaledBox("box"); break;
+            case "portArc":      port.portArcs.add(r.getElementText().trim()); break;
+            default: break;
+            }
+        }
+        return port;
+    }
+
+    /** a <box> (or other element) holding a <lambdaBox>; the element's own klx..khy, if any, are the multipliers */
+    private ScaledBox parseScaledBox(String element) throws XMLStreamException {
+        Box mult = r.getAttributeValue(null, "klx") == null ? Box.UNIT : box();
+        Box add = null;
+        for(int ev = r.next(); !end(ev, element); ev = r.next())
+            if (ev == START_ELEMENT && r.getLocalName().equals("lambdaBox")) add = box();
+        return ScaledBox.of(add, mult);
+    }
+
+    private double lambda(String element) throws XMLStreamException {
+        double ret = 0;
+        for(int ev = r.next(); !end(ev, element); ev = r.next())
+            if (ev == START_ELEMENT && r.getLocalName().equals("lambda")) ret = Double.parseDouble(r.getElementText().trim());
+        return ret;
+    }
+
+    private void parseGds() {
+        LayerSpec ls = layers.get(r.getAttributeValue(null, "layer"));
+        if (ls == null) return;
+        for(String g : r.getAttributeValue(null, "gds").split(",")) {
+            g = g.trim();
+            if (g.isEmpty()) continue;
+            boolean pin = g.endsWith("p");
+            if (!Character.isDigit(g.charAt(g.length()-1))) g = g.substring(0, g.length()-1);
+            int slash = g.indexOf('/');
+            GDSLayer gds = slash < 0
+                ? new GDSLayer(Integer.parseInt(g), 0)
+                : new GDSLayer(Integer.parseInt(g.substring(0, slash)), Integer.parseInt(g.substring(slash+1)));
+            if (pin) ls.gdsPin = gds;
+            else if (ls.gdsGeom == null) ls.gdsGeom = gds;
+        }
+    }
+
+    /** see TechLayer.dumpRules() for the rules this recognizes */
+    private void parseRule() {
+        String ruleName = r.getAttributeValue(null, "ruleName");
+        String type     = r.getAttributeValue(null, "type");
+        double value    = dbl("value");
+        String names    = r.getAttributeValue(null, "layerNames");
+        if (names == null) names = r.getAttributeValue(null, "layerName");
+        String[] ln = names.replace("{", "").replace("}", "").split(",");
+        String a = ln[0].trim(), b = ln.length > 1 ? ln[1].trim() : a;
+        LayerSpec ls = layers.get(a);
+        if (ls == null) return;
+        switch(type) {
+        case "MINWID":  ls.minWidth = value; break;
+        case "MINAREA": ls.minArea = value; break;
+        case "UCONSPA":
+            if (a.equals(b) && !ruleName.endsWith(".USPACING")) ls.minSpace = value;
+            else rules.add(new RuleSpec("addUnconnectedSpacingRule", a, b, value));
+            break;
+        case "SPACING":
+            if (ruleName.endsWith(".FORBIDDEN")) rules.add(new RuleSpec("forbidden", a, b, value));
+            else rules.add(new RuleSpec("addSpacingRule", a, b, value));
+            break;
+        case "SURROUND":  rules.add(new RuleSpec("addEnclosureRule", a, b, value)); break;
+        case "EXTENSION": rules.add(new RuleSpec("addExtensionRule", a, b, value)); break;
+        default: break;
+        }
+    }
+
+    // Helpers //////////////////////////////////////////////////////////////////////////////
+
+    private boolean end(int ev, String element) throws XMLStreamException {
+        if (ev == END_DOCUMENT) throw new XMLStreamException("unexpected end of document inside <"+element+">");
+        return ev == END_ELEMENT && r.getLocalName().equals(element);
+    }
+
+    /** skip to the end of the current element */
+    private void skip() throws XMLStreamException {
+        for(int depth = 1; depth > 0; ) {
+            int ev = r.next();
+            if (ev == START_ELEMENT) depth++;
+            else if (ev == END_ELEMENT) depth--;
+        }
+    }
+
+    private double dbl(String attribute) {
+        String v = r.getAttributeValue(null, attribute);
+        return v == null ? 0 : Double.parseDouble(v);
+    }
+
+    private Box box() { return Box.of(dbl("klx"), dbl("kly"), dbl("khx"), dbl("khy")); }
+
+    /** the lines of the source from the one containing the first occurrence of start through the one containing end */
+    private String slice(String start, String end) {
+        int s = text.indexOf(start);
+        int e = text.indexOf(end, s);
+        if (s < 0 || e < 0) return null;
+        return text.substring(text.lastIndexOf('\n', s)+1, e+end.length());
+    }
+
+    /** the text between the XML declaration and the root element: Tech.header()'s output */
+    private String header() {
+        int decl = text.indexOf("?>");
+        int root = text.indexOf("<technology");
+        if (decl < 0 || root < 0 || decl > root) return null;
+        int s = text.indexOf('\n', decl);
+        int e = text.lastIndexOf('\n', root);
+        return s < 0 || e <= s ? "" : text.substring(s+1, e+1);
+    }
+
+    /**
+     *  Print text through pw, keeping each line's indentation relative
+     *  to the least-indented line; IndentingWriter would otherwise
+     *  discard leading spaces.  One trailing newline is dropped.
+     */
+    static void printVerbatim(IndentingPrintWriter pw, String text) throws IOException {
+        if (text.endsWith("\n")) text = text.substring(0, text.length()-1);
+        if (text.isEmpty()) return;
+        String[] lines = text.split("\n", -1);
+        int base = Integer.MAX_VALUE;
+        for(String line : lines) if (!line.trim().isEmpty()) base = Math.min(base, indentOf(line));
+        for(String line : lines) {
+            int indent = line.trim().isEmpty() ? 0 : indentOf(line) - base;
+            pw.adjustIndentation(indent);
+            pw.println(line.trim().isEmpty() ? "" : line.substring(base+indent));
+            pw.adjustIndentation(-indent);
+        }
+    }
+
+    private static int indentOf(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    // Assembly //////////////////////////////////////////////////////////////////////////////
+
+    private XmlTech build() throws XMLStreamException {
+        if (name == null) throw new XMLStreamException("no <technology> element");
+        XmlTech tech = new XmlTech(name, description, foundry, numMetals, resolution, header(), menuPalette);
+
+        HashMap<String,TechLayer> byName = new HashMap<String,TechLayer>();
+        for(LayerSpec ls : layers.values()) {
+            Pattern pattern = Pattern.solid;
+            if (ls.pattern.size() == 16) {
+                String[] lines = new String[16];
+                for(int i=0; i<16; i++) lines[i] = String.format("%-16.16s", ls.pattern.get(i));
+                pattern = Pattern.of(lines);
+            }
+            LayerRules rules = ls.minWidth > 0 || ls.minSpace > 0 || ls.minArea > 0
+                ? new LayerRules(ls.minWidth, ls.minSpace, ls.minArea, 0) : null;
+            int metalNumber = ls.fun.startsWith("METAL")
+                ? Integer.parseInt(ls.fun.substring(5)) - 1 + tech.lowestMetalLayerOrdinal() : -1;
+            TechLayer tl = new TechLayer(tech, ls.name, ls.fun, ls.gdsGeom, ls.gdsPin, rules,
+                                         RenderingStyle.rs(pattern, ls.border, ls.r, ls.g, ls.b), metalNumber, ls.hasArc);
+            tl.thick3D = ls.thick3D;
+            tl.height3D = ls.height3D;
+            tl.antennaRatio = ls.antennaRatio;
+            byName.put(ls.name, tl);
+        }
+
+        // the pure layer node lists its connections and then, for a signal layer, the layer itself
+        for(LayerSpec ls : layers.values()) {
+            TechLayer tl = byName.get(ls.name);
+            List<String> arcs = ls.portArcs;
+            if (tl.isSignal && !arcs.isEmpty() && arcs.get(arcs.size()-1).equals(ls.name)) arcs = arcs.subList(0, arcs.size()-1);
+            for(String arc : arcs) tl.addPureLayerNodeConnection(layer(byName, arc));
+        }
+
+        for(RuleSpec rule : rules) {
+            TechLayer tl = layer(byName, rule.layer), other = layer(byName, rule.other);
+            switch(rule.kind) {
+            case "forbidden":                 tl.forbidden(other); break;
+            case "addSpacingRule":            tl.addSpacingRule(other, rule.value); break;
+            case "addUnconnectedSpacingRule": tl.addUnconnectedSpacingRule(other, rule.value); break;
+            case "addEnclosureRule":          tl.addEnclosureRule(other, rule.value); break;
+            case "addExtensionRule":          tl.addExtensionRule(other, rule.value); break;
+            }
+        }
+
+        for(PrimitiveSpec ps : primitives) {
+            // the pins of signal layers are written by TechLayer.dumpPins(), not by a PrimitiveGroup
+            if ("PIN".equals(ps.fun) && ps.name.endsWith("-Pin")) {
+                TechLayer tl = byName.get(ps.name.substring(0, ps.name.length()-4));
+                if (tl != null && tl.isSignal) continue;
+            }
+            if (ps.nodeBase == null) throw new XMLStreamException("primitive "+ps.name+" has no <nodeBase>");
+            Primitive p = new Primitive(tech, ps.name, new PrimitiveGroup(tech), ps.fun, ps.nodeBase,
+                                        ps.nodeBase.getWidth() + ps.defaultWidth, ps.nodeBase.getHeight() + ps.defaultHeight);
+            p.setMinDimensions(ps.minWidth, ps.minHeight);
+
+            // nets are numbered in order of creation, so create them in order of their numbers
+            TreeMap<Integer,String> comments = new TreeMap<Integer,String>();
+            for(PortSpec port : ps.ports) if (!comments.containsKey(port.topology)) comments.put(port.topology, port.netComment);
+            HashMap<Integer,Primitive.Net> nets = new HashMap<Integer,Primitive.Net>();
+            for(int t=1; !comments.isEmpty() && t<=comments.lastKey(); t++)
+                nets.put(t, p.new Net(comments.containsKey(t) ? comments.get(t) : ""));
+
+            ArrayList<Primitive.Port> ports = new ArrayList<Primitive.Port>();
+            for(PortSpec port : ps.ports) {
+                TechLayer[] arcs = new TechLayer[port.portArcs.size()];
+                for(int i=0; i<arcs.length; i++) arcs[i] = layer(byName, port.portArcs.get(i));
+                ports.add(p.new Port(port.name, port.box, nets.get(port.topology), arcs));
+            }
+
+            for(NodeLayerSpec nl : ps.layers) {
+                TechLayer tl = layer(byName, nl.layer);
+                Primitive.Port port = nl.portNum < 0 || nl.portNum >= ports.size() ? null : ports.get(nl.portNum);
+                Primitive.Layer layer;
+                if (nl.cutCentroids != null)
+                    layer = p.new MultiCut(tl, nl.cutCentroids, nl.sizex, nl.sizey, nl.sep1d, nl.sep2d);
+                else if ("DISC".equals(nl.style) || "THICKCIRCLE".equals(nl.style)) {
+                    // the thickness of a THICKCIRCLE is not written, only that it is nonzero
+                    double[] rim = nl.techPoints.size() > 1 ? nl.techPoints.get(1) : new double[4];
+                    layer = p.new Round(tl, port, 2*rim[1], "DISC".equals(nl.style) ? 0 : 1, 2*rim[0]);
+                } else
+                    layer = p.new Rectangle(tl, port, nl.box);
+                layer.notElectrical = !nl.electrical;
+            }
+        }
+        return tech;
+    }
+
+    private static TechLayer layer(Map<String,TechLayer> byName, String name) throws XMLStreamException {
+        TechLayer ret = byName.get(name);
+        if (ret == null) throw new XMLStreamException("reference to undeclared layer "+name);
+        return ret;
+    }
+
+    /** usage: TechXmlReader <file.xml>; reads the file and dumps it again on stdout */
+    public static void main(String[] args) throws Exception {
+        long start = System.nanoTime();
+        XmlTech tech = read(new File(args[0]));
+        System.err.println("read "+tech+" ("+tech.getLayers().size()+" layers) in "+(System.nanoTime()-start)/1000000+"ms");
+        for(TechValidator.Problem problem : TechValidator.validate(tech))
+            System.err.println("warning: "+tech+": "+problem);
+        tech.dump(new IndentingPrintWriter(new IndentingWriter(new OutputStreamWriter(System.out))));
+    }
+}
@@ -0,0 +1,242 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Routing tracks for every metal layer of a Tech: a preferred
+ *  direction, a pitch and an offset, on the manufacturing grid.
+ *
+ *  A layer's pitch is "via to line": half the landing of the widest
+ *  via it takes, its minSpace, and half its minWidth, so a via on one
+ *  track clears a wire on the next.  Landings are the via primitives'
+ *  own rectangles at their default size (the enclosures drawn in the
+ *  Tech's contact loop), measured across the track.  Directions
+ *  alternate up the stack; the starting direction, and which
+ *  primitive serves each pair of layers where there is a choice (an
+ *  X-shaped and a parallel-shaped cell, say), are whichever give the
+ *  most tracks per micron over the whole stack, preferring vertical
+ *  first on a tie.
+ */
+public class Tracks {
+
+    public final Tech tech;
+
+    /** the metal layers, bottom-up */
+    private final List<TechLayer> metals = new ArrayList<TechLayer>();
+    private final HashMap<TechLayer,Grid> grids = new HashMap<TechLayer,Grid>();
+
+    /** one layer's tracks, in microns */
+    public static class Grid {
+        public final TechLayer layer;
+        /** true if the tracks run vertically (so they are placed in x) */
+        public final boolean   vertical;
+        public final double    width;
+        /** the pitch at which plain wires, a via and a wire, and two vias side by side clear minSpace */
+        public final double    lineToLine, viaToLine, viaToVia;
+        /** the track pitch (viaToLine on the manufacturing grid), and the first track's distance from the origin */
+        public final double    pitch, offset;
+        /** the via primitives used to the layers below and above, or null */
+        public final Primitive viaBelow, viaAbove;
+
+        Grid(TechLayer layer, boolean vertical, double lineToLine, double viaToLine, double viaToVia,
+             double pitch, double offset, Primitive viaBelow, Primitive viaAbove) {
+            this.layer = layer;
+            this.vertical = vertical;
+            this.width = layer.layerRules.minWidth;
+            this.lineToLine = lineToLine;
+            this.viaToLine = viaToLine;
+            this.viaToVia = viaToVia;
+            this.pitch = pitch;
+            this.offset = offset;
+            this.viaBelow = viaBelow;
+            this.viaAbove = viaAbove;
+        }
+
+        /** the track nearest to a coordinate (x if vertical, else y); ties go up, as in Snap.index */
+        public double nearest(double c) { return offset + Math.floor((c - offset) / pitch + 0.5) * pitch; }
+
+        /** the tracks in database units */
+        public Snap inDbu(double micronsPerDbu) {
+            return new Snap(Math.max(1, Math.round(pitch / micronsPerDbu)), Math.round(offset / micronsPerDbu));
+        }
+
+        public String toString() {
+            return String.format("%s %s pitch %s offset %s (line-line %.4g, via-line %.4g, via-via %.4g)",
+                                 layer, vertical ? "vertical" : "horizontal", pitch, offset, lineToLine, viaToLine, viaToVia);
+        }
+    }
+
+    /**
+     *  One layer's tracks in integer database units.  Every query is a
+     *  subtraction and a floor division, for tools which snap millions
+     *  of coordinates.
+     */
+    public static class Snap {
+        public final long pitch, offset;
+        Snap(long pitch, long offset) { this.pitch = pitch; this.offset = offset; }
+
+        /** the number of the track nearest to c (track 0 is at the offset; ties go up) */
+        public long index(long c) { return Math.floorDiv(c - offset + pitch/2, pitch); }
+
+        /** the coordinate of track i */
+        public long track(long i) { return offset + i*pitch; }
+
+        /** the track nearest to c */
+        public long nearest(long c) { return track(index(c)); }
+
+        /** the first track at or above c */
+        public long ceil(long c) { return track(-Math.floorDiv(offset - c, pitch)); }
+
+        /** the last track at or below c */
+        public long floor(long c) { return track(Math.floorDiv(c - offset, pitch)); }
+
+        /** snap c[from..to) to their nearest tracks in place */
+        public void nearest(int[] c, int from, int to) {
+            for(int i=from; i<to; i++) c[i] = (int)nearest(c[i]);
+        }
+    }
+
+    /** the tracks of a Tech, computed once and kept with it */
+    public static Tracks forTech(Tech tech) { return tech.compile().memo(Tracks.class, Tracks::new); }
+
+    public Tracks(Tech tech) {
+        this.tech = tech.compile();
+        for(TechLayer tl : tech.getLayers()) if (tl.isMetal) metals.add(tl);
+        Collections.sort(metals, (a, b) -> Double.compare(a.height3D, b.height3D));
+        int n = metals.size();
+
+        // the via primitives which could join each metal to the one above it
+        ArrayList<List<Primitive>> candidates = new ArrayList<List<Primitive>>();
+        for(int i=0; i+1<n; i++) {
+            ArrayList<Primitive> vias = new ArrayList<Primitive>();
+            for(PrimitiveGroup group : tech.primitiveGroups)
+                for(Primitive p : group.getPrimitives())
+                    if (cut(p) != null && landing(p, metals.get(i)) != null && landing(p, metals.get(i+1)) != null)
+                        vias.add(p);
+            candidates.add(vias);
+        }
+
+        // try both starting directions and every choice of via; there are only a handful of each
+        Grid[] best = null;
+        double bestDensity = -1;
+        int[] choice = new int[Math.max(0, n-1)];
+        for(int start=0; start<2; start++)
+            while (true) {
+                Grid[] g = new Grid[n];
+                double density = 0;
+                for(int i=0; i<n; i++) {
+                    g[i] = grid(i, (i + start) % 2 == 0,
+                                i == 0   || candidates.get(i-1).isEmpty() ? null : candidates.get(i-1).get(choice[i-1]),
+                                i == n-1 || candidates.get(i).isEmpty()   ? null : candidates.get(i).get(choice[i]));
+                    if (g[i] != null) density += 1 / g[i].pitch;
+                }
+                if (density > bestDensity + 1e-9) {
+                    best = g;
+                    bestDensity = density;
+                }
+                int i = 0;
+                while (i < choice.length && ++choice[i] >= Math.max(1, candidates.get(i).size())) choice[i++] = 0;
+                if (i == choice.length) break;
+            }
+        for(Grid g : best) if (g != null) grids.put(g.layer, g);
+    }
+
+    /** the tracks of metal i, given its direction and its vias, or null if it has no width */
+    private Grid grid(int i, boolean vertical, Primitive below, Primitive above) {
+        TechLayer tl = metals.get(i);
+        if (tl.layerRules == null || tl.layerRules.minWidth <= 0) return null;
+        double w = tl.layerRules.minWidth, s = tl.layerRules.minSpace;
+        double landing = w, cutPitch = 0;
+        for(Primitive p : new Primitive[] { below, above }) {
+            if (p == null) continue;
+            Box b = landing(p, tl);
+            landing = Math.max(landing, vertical ? b.getWidth() : b.getHeight());
+            Primitive.MultiCut mc = cut(p);
+            cutPitch = Math.max(cutPitch, (vertical ? mc.cutWidth : mc.cutHeight) + mc.cutSpacing1d);
+        }
+        double lineToLine = w + s;
+        double viaToLine  = landing/2 + s + w/2;
+        double viaToVia   = Math.max(landing + s, cutPitch);
+        double grid = tech.gridAlignmentInUnits;
+        long units = (long)Math.ceil(Math.max(lineToLine, viaToLine) / grid - 1e-6);
+        return new Grid(tl, vertical, lineToLine, viaToLine, viaToVia,
+                        round(units * grid), round((units+1)/2 * grid), below, above);
+    }
+
+    /** a via primitive's cut: the MultiCut layer which is drawn in GDS, or failing that the first one */
+    private static Primitive.MultiCut cut(Primitive p) {
+        Primitive.MultiCut ret = null;
+        for(Primitive.Layer l : p.getLayers()) {
+            if (!(l instanceof Primitive.MultiCut)) continue;
+            if (l.tlayer.gdsGeom != null) return (Primitive.MultiCut)l;
+            if (ret == null) ret = (Primitive.MultiCut)l;
+        }
+        return ret;
+    }
+
+    /** the rectangle a primitive draws on a layer at its default size, or null */
+    private static Box landing(Primitive p, TechLayer tl) {
+        for(Primitive.Layer l : p.getLayers())
+            if (l instanceof Primitive.Rectangle && l.tlayer == tl)
+                return p.atDefaultSize(((Primitive.Rectangle)l).lambdaBox);
+        return null;
+    }
+
+    /** strip the binary noise from a multiple of the manufacturing grid */
+    private static double round(double um) { return Math.round(um * 1e6) / 1e6; }
+
+    /** the metal layers, bottom-up */
+    public List<TechLayer> getLayers() { return Collections.unmodifiableList(metals); }
+
+    /** a metal layer's tracks, or null if it is not a metal or has no minimum width */
+    public Grid get(TechLayer tl) { return grids.get(tl); }
+
+    // Emitting //////////////////////////////////////////////////////////////////////////////
+
+    /**
+     *  Write DEF TRACKS statements covering the die [x0,x1]x[y0,y1]
+     *  (microns), one per layer in its preferred direction.
+     */
+    public void writeDef(PrintWriter pw, int dbuPerMicron, double x0, double y0, double x1, double y1) {
+        for(TechLayer tl : metals) {
+            Grid g = grids.get(tl);
+            if (g == null) continue;
+            Snap s = g.inDbu(1.0 / dbuPerMicron);
+            long lo = Math.round((g.vertical ? x0 : y0) * dbuPerMicron);
+            long hi = Math.round((g.vertical ? x1 : y1) * dbuPerMicron);
+            long first = s.ceil(lo), last = s.floor(hi);
+            if (last < first) continue;
+            pw.println("TRACKS "+(g.vertical ? "X" : "Y")+" "+first+" DO "+((last-first)/s.pitch+1)+" STEP "+s.pitch+" LAYER "+tl+" ;");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("usage: java "+Tracks.class.getName()+" <Tech class> [<die width um> <die height um>]");
+            System.exit(1);
+        }
+        Tracks tracks = forTech((Tech)Class.forName(args[0]).getDeclaredConstructor().newInstance());
+        if (args.length == 1) {
+            for(TechLayer tl : tracks.getLayers())
+                if (tracks.get(tl) != null) System.out.println(tracks.get(tl));
+            return;
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(System.out));
+        tracks.writeDef(pw, 1000, 0, 0, Double.parseDouble(args[1]), Double.parseDouble(args[2]));
+        pw.flush();
+    }
+}
@@ -0,0 +1,207 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.electric.techxml;
+import java.util.*;
+
+/**
+ *  Which cuts join one conducting layer to another.  The graph is
+ *  compiled from the via primitives: each primitive with a cut joins
+ *  the layers of its ports.  The shortest stack (fewest cuts, then
+ *  least resistance) between every pair of layers is worked out once,
+ *  so a router or extractor gets the stack between two layers, and
+ *  its resistance, from one array lookup.
+ */
+public class ViaStacks {
+
+    public final Tech tech;
+
+    /** the conducting layers which some via joins, bottom-up */
+    private final List<TechLayer> layers = new ArrayList<TechLayer>();
+    private final HashMap<TechLayer,Integer> ordinals = new HashMap<TechLayer,Integer>();
+
+    /** [a*n+b]: the stack from layer a to layer b, or null if there is none */
+    private final Stack[] table;
+
+    /** the cuts from one layer to another, in the order they are passed through */
+    public static class Stack {
+        public final TechLayer   from, to;
+        /** the layers passed through, from first to last; one more than there are cuts */
+        public final TechLayer[] layers;
+        public final TechLayer[] cuts;
+        /** the first via primitive which makes each cut */
+        public final Primitive[] vias;
+        /** the resistance of one cut of each via and those below it in the stack, or NaN if the Tech has no via resistances */
+        public final double[]    ohms;
+
+        Stack(TechLayer[] layers, TechLayer[] cuts, Primitive[] vias, double[] ohms) {
+            this.from = layers[0];
+            this.to = layers[layers.length-1];
+            this.layers = layers;
+            this.cuts = cuts;
+            this.vias = vias;
+            this.ohms = ohms;
+        }
+
+        public int size() { return cuts.length; }
+
+        /** the resistance of the whole stack with one cut of each via */
+        public double totalOhms() { return cuts.length == 0 ? 0 : ohms[cuts.length-1]; }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(from.name);
+            for(int i=0; i<cuts.length; i++) sb.append(" -"+cuts[i].name+"-> "+layers[i+1].name);
+            if (!Double.isNaN(totalOhms())) sb.append(String.format(" (%.3g ohms)", totalOhms()));
+            return sb.toString();
+        }
+    }
+
+    /** the stacks of a Tech, compiled once and kept with it */
+    public static ViaStacks forTech(Tech tech) { return tech.compile().memo(ViaStacks.class, ViaStacks::new); }
+
+    public ViaStacks(Tech tech) {
+        this.tech = tech.compile();
+
+        // the layers each via primitive joins, and the layers bottom-up
+        ArrayList<Primitive> vias = new ArrayList<Primitive>();
+        ArrayList<Set<TechLayer>> joins = new ArrayList<Set<TechLayer>>();
+        for(PrimitiveGroup group : tech.primitiveGroups)
+            for(Primitive p : group.getPrimitives()) {
+                TechLayer cut = cut(p);
+                if (cut == null) continue;
+                LinkedHashSet<TechLayer> joined = new LinkedHashSet<TechLayer>();
+                for(Primitive.Port port : p.getPorts()) joined.addAll(port.layers);
+                joined.remove(cut);
+                for(TechLayer tl : joined) if (!layers.contains(tl)) layers.add(tl);
+                vias.add(p);
+                joins.add(joined);
+            }
+        Collections.sort(layers, (a, b) -> Double.compare(a.height3D, b.height3D));
+        for(int i=0; i<layers.size(); i++) ordinals.put(layers.get(i), i);
+
+        // one edge per pair of layers joined by a via primitive; the first primitive for a pair wins
+        ArrayList<int[]>     pairs = new ArrayList<int[]>();
+        ArrayList<TechLayer> edgeCut = new ArrayList<TechLayer>();
+        ArrayList<Primitive> edgeVia = new ArrayList<Primitive>();
+        for(int v=0; v<vias.size(); v++)
+            for(TechLayer a : joins.get(v))
+                for(TechLayer b : joins.get(v)) {
+                    int i = ordinals.get(a), j = ordinals.get(b);
+                    if (i >= j) continue;
+                    boolean seen = false;
+                    for(int[] e : pairs) seen |= e[0] == i && e[1] == j;
+                    if (seen) continue;
+                    pairs.add(new int[] { i, j });
+                    edgeCut.add(cut(vias.get(v)));
+                    edgeVia.add(vias.get(v));
+                }
+
+        // all pairs shortest paths over (cuts, ohms); n is the number of conducting layers, so Floyd-Warshall is plenty
+        int n = layers.size();
+        int[]    hops = new int[n*n];
+        double[] ohms = new double[n*n];
+        int[]    next = new int[n*n];     // the edge taken first on the way from a to b
+        Arrays.fill(hops, Integer.MAX_VALUE);
+        Arrays.fill(next, -1);
+        for(int a=0; a<n; a++) hops[a*n+a] = 0;
+        for(int e=0; e<pairs.size(); e++) {
+            int a = pairs.get(e)[0], b = pairs.get(e)[1];
+            double r = viaOhms(edgeCut.get(e));
+            hops[a*n+b] = hops[b*n+a] = 1;
+            ohms[a*n+b] = ohms[b*n+a] = r;
+            next[a*n+b] = next[b*n+a] = e;
+        }
+        for(int k=0; k<n; k++)
+            for(int a=0; a<n; a++) {
+                if (hops[a*n+k] == Integer.MAX_VALUE) continue;
+                for(int b=0; b<n; b++) {
+                    if (hops[k*n+b] == Integer.MAX_VALUE) continue;
+                    int h = hops[a*n+k] + hops[k*n+b];
+                    double r = ohms[a*n+k] + ohms[k*n+b];
+                    if (h < hops[a*n+b] || (h == hops[a*n+b] && r < ohms[a*n+b])) {
+                        hops[a*n+b] = h;
+                        ohms[a*n+b] = r;
+                        next[a*n+b] = next[a*n+k];
+                    }
+                }
+            }
+
+        table = new Stack[n*n];
+        for(int a=0; a<n; a++)
+            for(int b=0; b<n; b++) {
+                if (hops[a*n+b] == Integer.MAX_VALUE) continue;
+                int h = hops[a*n+b];
+                TechLayer[] ls = new TechLayer[h+1];
+                TechLayer[] cs = new TechLayer[h];
+                Primitive[] vs = new Primitive[h];
+                double[]    rs = new double[h];
+                ls[0] = layers.get(a);
+                for(int i=0, at=a; i<h; i++) {
+                    int e = next[at*n+b];
+                    int[] pair = pairs.get(e);
+                    at = pair[0] == at ? pair[1] : pair[0];
+                    ls[i+1] = layers.get(at);
+                    cs[i] = edgeCut.get(e);
+                    vs[i] = edgeVia.get(e);
+                    rs[i] = (i == 0 ? 0 : rs[i-1]) + viaOhms(cs[i]);
+                }
+                table[a*n+b] = new Stack(ls, cs, vs, rs);
+            }
+    }
+
+    /** a primitive's cut: the MultiCut layer which is drawn in GDS, or failing that the first one */
+    private static TechLayer cut(Primitive p) {
+        TechLayer ret = null;
+        for(Primitive.Layer l : p.getLayers()) {
+            if (!(l instanceof Primitive.MultiCut)) continue;
+            if (l.tlayer.gdsGeom != null) return l.tlayer;
+            if (ret == null) ret = l.tlayer;
+        }
+        return ret;
+    }
+
+    private double viaOhms(TechLayer cut) {
+        try { return tech.getViaResistanceOhms(cut); }
+        catch (RuntimeException e) { return Double.NaN; }
+    }
+
+    /** the layers which some via joins */
+    public List<TechLayer> getLayers() { return Collections.unmodifiableList(layers); }
+
+    /** a layer's index into the table, or -1 if no via joins it */
+    public int ordinal(TechLayer tl) {
+        Integer ret = ordinals.get(tl);
+        return ret == null ? -1 : ret;
+    }
+
+    /** the stack from layer ordinal a to layer ordinal b, or null if they are not joined */
+    public Stack get(int a, int b) { return table[a*layers.size()+b]; }
+
+    /** the stack from one layer to another, or null if they are not joined */
+    public Stack get(TechLayer from, TechLayer to) {
+        int a = ordinal(from), b = ordinal(to);
+        return a == -1 || b == -1 ? null : get(a, b);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: java "+ViaStacks.class.getName()+" <Tech class>");
+            System.exit(1);
+        }
+        ViaStacks vs = forTech((Tech)Class.forName(args[0]).getDeclaredConstructor().newInstance());
+        for(TechLayer a : vs.getLayers())
+            for(TechLayer b : vs.getLayers())
+                if (vs.ordinal(a) < vs.ordinal(b) && vs.get(a, b) != null) System.out.println(vs.get(a, b));
+    }
+}
@@ -0,0 +1,97 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.klayout;
+import com.westernsemico.vlsi.io.gds.GDSLayer;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Emits a KLayout layer properties (.lyp) file: one entry per GDS
+ *  layer, using the same colors and stipples as the Electric XML.
+ *  Each distinct Pattern becomes a custom dither pattern; pin layers
+ *  are drawn hollow in the color of their layer.
+ */
+public class LypEmitter extends TechEmitter {
+
+    /** custom dither patterns, numbered in order of first use */
+    private final LinkedHashMap<Pattern,Integer> patterns = new LinkedHashMap<Pattern,Integer>();
+    private final ArrayList<TechLayer> layers = new ArrayList<TechLayer>();
+
+    public String getFileName() { return tech+".lyp"; }
+
+    public void layer(TechLayer layer) {
+        if (layer.gdsGeom == null && layer.gdsPin == null) return;
+        layers.add(layer);
+        if (layer.gdsGeom != null && !patterns.containsKey(layer.rs.pattern))
+            patterns.put(layer.rs.pattern, patterns.size()+1);
+    }
+
+    public void end() throws IOException {
+        // KLayout lists layers in the order given; sort by GDS number so the panel is easy to scan
+        Collections.sort(layers, (a, b) -> Integer.compare(key(a), key(b)));
+        pw.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        pw.println("<layer-properties>");
+        pw.adjustIndentation(1);
+        for(TechLayer tl : layers) {
+            if (tl.gdsGeom != null) properties(tl.name, tl.gdsGeom, tl.rs, "C"+patterns.get(tl.rs.pattern));
+            if (tl.gdsPin  != null) properties(tl.name+".pin", tl.gdsPin, tl.rs, "I1");
+        }
+        for(Map.Entry<Pattern,Integer> e : patterns.entrySet()) {
+            pw.println("<custom-dither-pattern>");
+            pw.adjustIndentation(1);
+            pw.println("<pattern>");
+            pw.adjustIndentation(1);
+            for(int row=0; row<16; row++) {
+                StringBuilder sb = new StringBuilder();
+                for(int col=0; col<16; col++) sb.append(e.getKey().get(row, col) ? '*' : '.');
+                pw.println("<line>"+sb+"</line>");
+            }
+            pw.adjustIndentation(-1);
+            pw.println("</pattern>");
+            pw.println("<order>"+e.getValue()+"</order>");
+            pw.println("<name>pattern"+e.getValue()+"</name>");
+            pw.adjustIndentation(-1);
+            pw.println("</custom-dither-pattern>");
+        }
+        pw.println("<name/>");
+        pw.adjustIndentation(-1);
+        pw.println("</layer-properties>");
+        super.end();
+    }
+
+    private static int key(TechLayer tl) { return (tl.gdsGeom != null ? tl.gdsGeom : tl.gdsPin).key(); }
+
+    private void properties(String name, GDSLayer g, RenderingStyle rs, String dither) throws IOException {
+        String color = String.format("#%02x%02x%02x", rs.r, rs.g, rs.b);
+        pw.println("<properties>");
+        pw.adjustIndentation(1);
+        pw.println("<frame-color>"+color+"</frame-color>");
+        pw.println("<fill-color>"+color+"</fill-color>");
+        pw.println("<frame-brightness>0</frame-brightness>");
+        pw.println("<fill-brightness>0</fill-brightness>");
+        pw.println("<dither-pattern>"+dither+"</dither-pattern>");
+        pw.println("<valid>true</valid>");
+        pw.println("<visible>true</visible>");
+        pw.println("<transparent>false</transparent>");
+        pw.println("<width>1</width>");
+        pw.println("<marked>false</marked>");
+        pw.println("<animation>0</animation>");
+        pw.println("<name>"+name+" "+g.major+"/"+g.minor+"</name>");
+        pw.println("<source>"+g.major+"/"+g.minor+"@1</source>");
+        pw.adjustIndentation(-1);
+        pw.println("</properties>");
+    }
+}
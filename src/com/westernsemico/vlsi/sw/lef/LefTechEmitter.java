@@ -0,0 +1,106 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.lef;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Emits the technology part of a LEF file: units, manufacturing
+ *  grid, and the routing stack.  The stack is every metal layer plus
+ *  every cut which joins two of them, ordered bottom to top by
+ *  height3D; directions, pitches and offsets come from Tracks.
+ */
+public class LefTechEmitter extends TechEmitter {
+
+    private final ArrayList<TechLayer> metals = new ArrayList<TechLayer>();
+
+    public String getFileName() { return tech+".tech.lef"; }
+
+    public void layer(TechLayer layer) { if (layer.isMetal) metals.add(layer); }
+
+    public void end() throws IOException {
+        // cuts whose connections are exactly two metals, keyed by the lower metal
+        HashMap<TechLayer,TechLayer> cutAbove = new HashMap<TechLayer,TechLayer>();
+        for(Map.Entry<TechLayer,Set<TechLayer>> e : tech.getViaConnections().entrySet()) {
+            if (e.getValue().size() != 2 || !metals.containsAll(e.getValue())) continue;
+            Iterator<TechLayer> it = e.getValue().iterator();
+            TechLayer a = it.next(), b = it.next();
+            cutAbove.put(a.height3D < b.height3D ? a : b, e.getKey());
+        }
+        Collections.sort(metals, (a, b) -> Double.compare(a.height3D, b.height3D));
+
+        pw.println("VERSION 5.7 ;");
+        pw.println("BUSBITCHARS \"[]\" ;");
+        pw.println("DIVIDERCHAR \"/\" ;");
+        pw.println();
+        pw.println("UNITS");
+        pw.adjustIndentation(2);
+        pw.println("DATABASE MICRONS 1000 ;");
+        pw.adjustIndentation(-2);
+        pw.println("END UNITS");
+        pw.println();
+        pw.println("MANUFACTURINGGRID "+tech.gridAlignmentInUnits+" ;");
+        pw.println();
+
+        Tracks tracks = Tracks.forTech(tech);
+        boolean vertical = true;
+        for(int i=0; i<metals.size(); i++) {
+            TechLayer metal = metals.get(i);
+            LayerRules r = metal.layerRules;
+            Tracks.Grid g = tracks.get(metal);
+            if (g != null) vertical = g.vertical;
+            pw.println("LAYER "+metal);
+            pw.adjustIndentation(2);
+            pw.println("TYPE ROUTING ;");
+            pw.println("DIRECTION "+(vertical ? "VERTICAL" : "HORIZONTAL")+" ;");
+            if (g != null) {
+                pw.println("PITCH "+g.pitch+" ;");
+                pw.println("OFFSET "+g.offset+" ;");
+            }
+            if (r != null) {
+                pw.println("WIDTH "+r.minWidth+" ;");
+                if (r.maxWidth != Double.MAX_VALUE) pw.println("MAXWIDTH "+r.maxWidth+" ;");
+                pw.println("SPACING "+r.minSpace+" ;");
+                if (r.minArea > 0) pw.println("AREA "+r.minArea+" ;");
+            }
+            if (metal.thick3D > 0) pw.println("THICKNESS "+metal.thick3D+" ;");
+            pw.adjustIndentation(-2);
+            pw.println("END "+metal);
+            pw.println();
+            vertical = !vertical;
+
+            TechLayer cut = cutAbove.get(metal);
+            if (cut == null || i+1 == metals.size()) continue;
+            TechLayer above = metals.get(i+1);
+            pw.println("LAYER "+cut);
+            pw.adjustIndentation(2);
+            pw.println("TYPE CUT ;");
+            if (cut.layerRules != null) {
+                pw.println("WIDTH "+cut.layerRules.minWidth+" ;");
+                pw.println("SPACING "+cut.layerRules.minSpace+" ;");
+            }
+            Double below = metal.getEnclosureRules().get(cut);
+            if (below != null) pw.println("ENCLOSURE BELOW "+below+" "+below+" ;");
+            Double over = above.getEnclosureRules().get(cut);
+            if (over != null)  pw.println("ENCLOSURE ABOVE "+over+" "+over+" ;");
+            pw.adjustIndentation(-2);
+            pw.println("END "+cut);
+            pw.println();
+        }
+        pw.println("END LIBRARY");
+        super.end();
+    }
+}
@@ -0,0 +1,202 @@
+//
+// Copyright 2020 Western Semiconductor Corporation
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+//
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.westernsemico.vlsi.sw.magic;
+import com.westernsemico.vlsi.io.gds.GDSLayer;
+import com.westernsemico.vlsi.sw.electric.techxml.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *  Emits a Magic technology file (format 35) covering the electrical
+ *  layers of a Tech: each well and each metal gets its own plane,
+ *  diffusion and poly share an active plane and a poly plane, and
+ *  cut layers which join exactly two planes become contacts.  Marker
+ *  and implant layers are read and ignored by cifinput; layers with
+ *  no GDS number (Electric's own) are left out.  The Magic
+ *  internal unit is the Tech's grid, so DRC distances are in grids.
+ */
+public class MagicTechEmitter extends TechEmitter {
+
+    private final ArrayList<TechLayer> layers = new ArrayList<TechLayer>();
+
+    /** the plane of each layer which becomes a Magic type, bottom to top */
+    private final LinkedHashMap<TechLayer,String> planes = new LinkedHashMap<TechLayer,String>();
+    private final ArrayList<TechLayer> ignored = new ArrayList<TechLayer>();
+
+    public String getFileName() { return tech+".tech"; }
+
+    public void layer(TechLayer layer) { layers.add(layer); }
+
+    public void end() throws IOException {
+        double gridNm = tech.gridAlignmentInUnits * 1000;
+        Map<TechLayer,Set<TechLayer>> connections = tech.getViaConnections();
+        layers.sort((a, b) -> Double.compare(a.height3D, b.height3D));
+        ArrayList<TechLayer> cuts = new ArrayList<TechLayer>();
+        for(TechLayer tl : layers) {
+            if (tl.gdsGeom == null)                                    continue;
+            else if (connections.containsKey(tl))                      cuts.add(tl);
+            else if (tl.fun.startsWith("WELL") || tl.fun.equals("SUBSTRATE")) planes.put(tl, tl.name);
+            else if (tl.isMetal)                                       planes.put(tl, tl.name);
+            else if (tl.isPoly && tl.isSignal)                         planes.put(tl, "poly");
+            else if (tl.isDiff && tl.isSignal)                         planes.put(tl, "active");
+            else                                                       ignored.add(tl);
+        }
+
+        // a cut is a Magic contact only if it joins one type on each of two or more planes
+        LinkedHashMap<TechLayer,List<TechLayer>> contacts = new LinkedHashMap<TechLayer,List<TechLayer>>();
+        for(TechLayer cut : cuts) {
+            Set<TechLayer> connects = connections.get(cut);
+            TreeMap<String,TechLayer> byPlane = new TreeMap<String,TechLayer>();
+            boolean ok = true;
+            for(TechLayer residue : connects) {
+                String plane = planes.get(residue);
+                if (plane == null || byPlane.put(plane, residue) != null) ok = false;
+            }
+            if (ok && byPlane.size() >= 2) contacts.put(cut, sortByHeight(byPlane.values()));
+            else {
+                pw.println("# "+cut+" connects "+connects+", which is not one type per plane; it is not a Magic contact");
+                ignored.add(cut);
+            }
+        }
+        // a contact lives on the plane of its lowest residue
+        LinkedHashMap<TechLayer,String> types = new LinkedHashMap<TechLayer,String>(planes);
+        for(Map.Entry<TechLayer,List<TechLayer>> e : contacts.entrySet()) types.put(e.getKey(), planes.get(e.getValue().get(0)));
+
+        section("tech");
+        pw.println("format 35");
+        pw.println(tech.toString());
+        endSection();
+
+        section("version");
+        pw.println("version 1");
+        pw.println("description \""+tech.getTechDescription()+"\"");
+        endSection();
+
+        section("planes");
+        for(String plane : new LinkedHashSet<String>(planes.values())) pw.println(plane);
+        endSection();
+
+        section("types");
+        for(Map.Entry<TechLayer,String> e : types.entrySet()) pw.println(e.getValue()+" "+e.getKey());
+        endSection();
+
+        section("contact");
+        for(Map.Entry<TechLayer,List<TechLayer>> e : contacts.entrySet()) pw.println(e.getKey()+" "+names(e.getValue(), " "));
+        endSection();
+
+        section("styles");
+        pw.println("styletype mos");
+        for(TechLayer tl : types.keySet()) pw.println(tl+" "+style(tl, contacts.containsKey(tl)));
+        endSection();
+
+        section("compose");
+        endSection();
+
+        section("connect");
+        endSection();
+
+        section("cifoutput");
+        pw.println("style gdsii");
+        pw.adjustIndentation(1);
+        pw.println("scalefactor "+Math.round(gridNm)+" nanometers");
+        for(TechLayer tl : types.keySet()) {
+            if (tl.gdsGeom == null) continue;
+            pw.println("layer "+cifName(tl)+" "+tl);
+            pw.adjustIndentation(1);
+            pw.println("calma "+tl.gdsGeom.major+" "+tl.gdsGeom.minor);
+            pw.adjustIndentation(-1);
+        }
+        pw.adjustIndentation(-1);
+        endSection();
+
+        section("cifinput");
+        pw.println("style gdsii");
+        pw.adjustIndentation(1);
+        pw.println("scalefactor "+Math.round(gridNm)+" nanometers");
+        for(TechLayer tl : types.keySet()) {
+            if (tl.gdsGeom == null) continue;
+            pw.println("layer "+tl+" "+cifName(tl));
+            pw.adjustIndentation(1);
+            pw.println("calma "+cifName(tl)+" "+tl.gdsGeom.major+" "+tl.gdsGeom.minor);
+            pw.adjustIndentation(-1);
+        }
+        for(TechLayer tl : ignored) {
+            if (tl.gdsGeom == null) continue;
+            pw.println("ignore "+cifName(tl));
+            pw.println("calma "+cifName(tl)+" "+tl.gdsGeom.major+" "+tl.gdsGeom.minor);
+        }
+        pw.adjustIndentation(-1);
+        endSection();
+
+        section("drc");
+        for(TechLayer tl : types.keySet()) {
+            LayerRules r = tl.layerRules;
+            if (r != null && r.minWidth > 0)
+                pw.println("width "+tl+" "+grids(r.minWidth, gridNm)+" \""+tl+" width < "+r.minWidth+"um\"");
+            if (r != null && r.minSpace > 0)
+                pw.println("spacing "+tl+" "+tl+" "+grids(r.minSpace, gridNm)+" touching_ok \""+tl+" spacing < "+r.minSpace+"um\"");
+            for(Map.Entry<TechLayer,Double> e : tl.getSpacingRules().entrySet())
+                if (types.containsKey(e.getKey()) && planes.get(tl) != null && planes.get(tl).equals(planes.get(e.getKey())))
+                    pw.println("spacing "+tl+" "+e.getKey()+" "+grids(e.getValue(), gridNm)+" touching_illegal \""+
+                               tl+" to "+e.getKey()+" spacing < "+e.getValue()+"um\"");
+            for(Map.Entry<TechLayer,Double> e : tl.getEnclosureRules().entrySet())
+                if (types.containsKey(e.getKey()))
+                    pw.println("surround "+e.getKey()+" "+tl+" "+grids(e.getValue(), gridNm)+" absence_ok \""+
+                               tl+" must enclose "+e.getKey()+" by "+e.getValue()+"um\"");
+        }
+        endSection();
+
+        section("extract");
+        endSection();
+        super.end();
+    }
+
+    private void section(String name) throws IOException {
+        pw.println(name);
+        pw.adjustIndentation(1);
+    }
+
+    private void endSection() throws IOException {
+        pw.adjustIndentation(-1);
+        pw.println("end");
+        pw.println();
+    }
+
+    private static List<TechLayer> sortByHeight(Collection<TechLayer> layers) {
+        ArrayList<TechLayer> ret = new ArrayList<TechLayer>(layers);
+        Collections.sort(ret, (a, b) -> Double.compare(a.height3D, b.height3D));
+        return ret;
+    }
+
+    private static String names(List<TechLayer> layers, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for(TechLayer tl : layers) sb.append(sb.length()==0 ? "" : separator).append(tl.name);
+        return sb.toString();
+    }
+
+    private static int grids(double microns, double gridNm) { return (int)Math.round(microns * 1000 / gridNm); }
+
+    private static String cifName(TechLayer tl) { return tl.name.toUpperCase().replaceAll("[^A-Z0-9]", ""); }
+
+    /** the closest long name in Magic's "mos" display styles */
+    private static String style(TechLayer tl, boolean isContact) {
+        if (isContact)                    return "contact_X'";
+        if (tl.fun.startsWith("METAL"))   return "metal"+tl.fun.substring(5);
+        if (tl.isPoly)                    return "polysilicon";
+        if (tl.isDiff)                    return "ndiffusion";
+        if (tl.name.startsWith("p"))      return "pwell";
+        return "nwell";
+    }
+}
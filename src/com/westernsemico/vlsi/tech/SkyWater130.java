@@ -14,6 +14,7 @@
 //
 package com.westernsemico.vlsi.tech;
 import com.westernsemico.vlsi.sw.electric.techxml.*;
+import static com.westernsemico.vlsi.sw.electric.techxml.DerivedLayer.of;
 import com.westernsemico.util.*;
 import java.util.*;
 import java.io.*;
@@ -35,12 +36,55 @@ public class SkyWater130 extends Tech {
 
     @Override public int    lowestMetalLayerOrdinal()                     { return 0; }
     @Override public int    numLayersPolyOrMetal()                        { return 7; } // Poly+LI+M{12345}
-    @Override public double getNfetGateCapacitanceFemtoFaradsForX1()      { throw new RuntimeException("FIXME"); }
-    @Override public double getNfetDrainCapacitanceFemtoFaradsForX1()     { throw new RuntimeException("FIXME"); }
-    @Override public double getCapacitanceFemtoFaradsPerNm(int layer)     { throw new Error("FIXME"); }
-    @Override public double getResistanceOhmsPerSquare(int layer)         { throw new Error("FIXME"); }
+    // X=1 is the Fet-N primitive, 0.14um wide and 0.15um long; estimates, not characterized values:
+    // the gate is 4.1nm of oxide (8.4fF/um^2) plus 0.27fF/um of overlap on each side,
+    // the drain is a 0.26um source/drain region at about 1.1fF/um^2 plus 0.1fF/um of sidewall and the overlap
+    @Override public double getNfetGateCapacitanceFemtoFaradsForX1()      { return 0.25; }
+    @Override public double getNfetDrainCapacitanceFemtoFaradsForX1()     { return 0.14; }
+    @Override public double getCapacitanceFemtoFaradsPerNm(int layer) {
+        TechLayer tl = getPolyOrMetalLayer(layer);
+        if (tl == null) throw new IllegalArgumentException("no poly or metal layer "+layer);
+        // always the analytic estimate, so that the answer does not depend on what is cached;
+        // callers who want the field-solved value ask CapacitanceTables.forTech() for it
+        return getWireCapacitanceFemtoFaradsPerMicron(tl, tl.layerRules.minWidth) / 1000;
+    }
+
+    // typical sheet resistances from the PDK documentation, indexed by layer+1 (poly is -1, li1 is 0)
+    private static final double[] OHMS_PER_SQUARE = { 48.2, 12.8, 0.125, 0.125, 0.047, 0.047, 0.029 };
+    @Override public double getResistanceOhmsPerSquare(int layer) {
+        if (layer < -1 || layer >= OHMS_PER_SQUARE.length-1) throw new IllegalArgumentException("no poly or metal layer "+layer);
+        return OHMS_PER_SQUARE[layer+1];
+    }
+
+    // typical resistance of one cut, from the PDK documentation
+    @Override public double getViaResistanceOhms(TechLayer cut) {
+        switch(cut.name) {
+            case "licon1": return 152;
+            case "mcon":   return 9.3;
+            case "via":    return 4.5;
+            case "via2":   return 3.41;
+            case "via3":   return 3.41;
+            case "via4":   return 0.38;
+            default:       throw new IllegalArgumentException(cut+" is not a contact or via");
+        }
+    }
+
+    // DC electromigration limits at 110C; estimates, not characterized values: the aluminium
+    // layers are about 0.75MA/cm^2, and poly and li1 are held to a few times less
+    @Override public double getMaxCurrentDensityMilliAmpsPerSquareMicron(TechLayer tl) {
+        switch(tl.name) {
+            case "poly": return 1.0;
+            case "li1":  return 2.0;
+            case "met1": return 7.8;
+            case "met2": return 7.8;
+            case "met3": return 7.3;
+            case "met4": return 7.3;
+            case "met5": return 7.7;
+            default:     throw new IllegalArgumentException(tl+" is not a poly or metal layer");
+        }
+    }
     
-    @Override public void dump(IndentingPrintWriter pw) throws IOException {
+    @Override protected void build() {
 
         // TODO/FIXME: gate encap spacing must be 0.21, gate must be 0.15
         // TODO/FIXME: PWELL has no drawn layer but has pins on gds 64:59?
@@ -125,6 +169,23 @@ public class SkyWater130 extends Tech {
         mkLayer("Electric-NTap",      "Electric non-GDS layer to designate N-Tap");
         mkLayer("Electric-PTap",      "Electric non-GDS layer to designate P-Tap");
 
+        // gate tapes out as poly, and tap's pins go on diff's pin layer
+        gate_.addGdsAlias(poly);
+        tap.addGdsAlias(diff);
+
+        // Derived Layers //////////////////////////////////////////////////////////////////////////////
+
+        // What the Electric-* layers above stand for, computed from
+        // the drawn layers so that tools reading GDS can apply the
+        // same rules.
+        derive("gate",  of(poly).and(diff));
+        derive("ndiff", of(diff).and(nsdm),                  getLayer("Electric-NAct"));
+        derive("pdiff", of(diff).and(psdm),                  getLayer("Electric-PAct"));
+        derive("ntap",  of(tap).and(nsdm),                   getLayer("Electric-NTap"));
+        derive("ptap",  of(tap).and(psdm),                   getLayer("Electric-PTap"));
+        derive("pcont", of(licon1).and(poly),                getLayer("Electric-PCont"));
+        derive("dcont", of(licon1).and(of(diff).or(tap)),    getLayer("Electric-DCont"));
+
         
         // Layer Heights/Thicknesses (3D) /////////////////////////////////////////////////////////////////////////////////////////
 
@@ -180,6 +241,13 @@ public class SkyWater130 extends Tech {
         tunm.thick3D = 0.0; tunm.height3D = substrateTop3D;
         lvtn.thick3D = 0.0; lvtn.height3D = substrateTop3D;
 
+        // Antenna Ratios //////////////////////////////////////////////////////////////////////////////
+
+        poly.antennaRatio = 50;   // ant.1: max ratio of poly area to gate area
+        li1.antennaRatio  = 75;   // ant.2: max ratio of li1 area to gate area
+        for(TechLayer met : new TechLayer[] { met1, met2, met3, met4, met5 })
+            met.antennaRatio = 400;   // ant.3: max ratio of metal area to gate area
+
         // Interlayer spacing rules //////////////////////////////////////////////////////////////////////////////
         
         double MIN_GATE_WIDTH                   = 0.140;
@@ -197,7 +265,6 @@ public class SkyWater130 extends Tech {
         double PCONT_TO_DIFF                    = 0.190;  // licon.14: 0.19 min. spacing of poly_licon1 & "diffTap" in periphery
 
         getLayer("Electric-PCont").addUnconnectedSpacingRule(getLayer("diff"), PCONT_TO_DIFF);
-        getLayer("nsdm").forbidden(getLayer("psdm"));
         getLayer("poly").addSpacingRule(getLayer("diff"), POLY_TO_DIFF);        // poly.c1: 0.03 min. spacing of "poly" in core & diff
         getLayer("poly").addSpacingRule(getLayer("tap"), POLY_TO_DIFF);         // poly.c1: 0.03 min. spacing of "poly" in core & tap
         getLayer("lvtn").addSpacingRule(getLayer("hvtp"),  0.38);               // lvtn.9:      0.38 min. spacing of lvtn & hvtp
@@ -240,6 +307,30 @@ public class SkyWater130 extends Tech {
         // nsd.8: nsdm must not overlap pdiff/ptap (source of extendedDrain fet exempted)
         getLayer("nsdm").forbidden(getLayer("psdm"));
 
+        // Enclosure and extension rules //////////////////////////////////////////////////////////////////////////////
+
+        // the via rules require more enclosure on one pair of opposite sides; only the all-around minimum is given here
+        getLayer("diff").addEnclosureRule(getLayer("licon1"), DIFF_ENCLOSURE_OF_DCONT);  // licon.5a:  0.04 min. enclosure of licon1 by diff
+        getLayer("tap").addEnclosureRule(getLayer("licon1"), DIFF_ENCLOSURE_OF_DCONT);   // licon.5a:  0.04 min. enclosure of licon1 by tap
+        getLayer("poly").addEnclosureRule(getLayer("licon1"), POLY_ENCLOSURE_OF_PCONT);  // poly.c2:   0.05 min. enclosure of licon1 by poly
+        getLayer("npc").addEnclosureRule(getLayer("Electric-PCont"), 0.045);             // npcon.c6:  0.045 min. enclosure of poly_licon1 by npc
+        getLayer("met1").addEnclosureRule(getLayer("mcon"), 0.030);                      // ct.4:      0.03 min. enclosure of mcon by met1
+        getLayer("met1").addEnclosureRule(getLayer("via"),  0.055);                      // via.4a:    0.055 min. enclosure of via by met1
+        getLayer("met2").addEnclosureRule(getLayer("via"),  0.055);                      // m2.4:      0.055 min. enclosure of via by met2
+        getLayer("met2").addEnclosureRule(getLayer("via2"), 0.040);                      // via2.4:    0.04 min. enclosure of via2 by met2
+        getLayer("met3").addEnclosureRule(getLayer("via2"), 0.065);                      // m3.4:      0.065 min. enclosure of via2 by met3
+        getLayer("met3").addEnclosureRule(getLayer("via3"), 0.060);                      // via3.4:    0.06 min. enclosure of via3 by met3
+        getLayer("met4").addEnclosureRule(getLayer("via3"), 0.065);                      // m4.3:      0.065 min. enclosure of via3 by met4
+        getLayer("nwell").addEnclosureRule(getLayer("Electric-PAct"), 0.18);             // difftap.8: 0.18 min. enclosure of pdiff by nwell
+        getLayer("nwell").addEnclosureRule(getLayer("Electric-NTap"), 0.18);             // difftap.10: 0.18 min. enclosure of ntap by nwell
+        getLayer("nsdm").addEnclosureRule(getLayer("Electric-NAct"), SELECT_SURROUND_ACT);  // nsd.5a
+        getLayer("psdm").addEnclosureRule(getLayer("Electric-PAct"), SELECT_SURROUND_ACT);  // psd.5a
+        getLayer("nsdm").addEnclosureRule(getLayer("Electric-NTap"), 0.13);              // nsd.c5a:   0.13 min. enclosure of n+ tap in core by nsdm
+        getLayer("psdm").addEnclosureRule(getLayer("Electric-PTap"), 0.12);              // psd.c5b:   0.12 min. enclosure of p+ tap in core by psdm
+        getLayer("lvtn").addEnclosureRule(getLayer("gate"), VT_SURROUND_GATE);           // lvtn.4b:   0.18 min. enclosure of gate by lvtn
+        getLayer("poly").addExtensionRule(getLayer("diff"), 0.13);                       // poly.8:    0.13 min. extension of poly beyond diff
+        getLayer("diff").addExtensionRule(getLayer("poly"), 0.25);                       // poly.7:    0.25 min. extension of diff beyond poly
+
         // Transistor Primitives //////////////////////////////////////////////////////////////////////////////
 
         //
@@ -268,7 +359,7 @@ public class SkyWater130 extends Tech {
 
         for(String type : new String[] { "N", "P", "N-LVT" }) {
             String name = "Fet-"+type;
-            Box           gateBox      = new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH);
+            Box           gateBox      = Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH);
             Primitive          fet          = new Primitive(SkyWater130.this, name, new PrimitiveGroup(SkyWater130.this), type.startsWith("N") ? "TRANMOS" : "TRAPMOS", gateBox);
             Primitive.Net  gate         = fet.new Net("gate");
 
@@ -277,76 +368,76 @@ public class SkyWater130 extends Tech {
             //
             Primitive.Port gate_left    =
                 fet.new Port("gate-left",
-                                 new ScaledBox(new Box(-GATE_PORT_OFFSET_FROM_CENTER, -MIN_GATE_LENGTH/2.0,
-                                                       -GATE_PORT_OFFSET_FROM_CENTER,  MIN_GATE_LENGTH/2.0),
-                                               new Box(-1,-1,-1,1)),
+                                 ScaledBox.of(Box.of(-GATE_PORT_OFFSET_FROM_CENTER, -MIN_GATE_LENGTH/2.0,
+                                                     -GATE_PORT_OFFSET_FROM_CENTER,  MIN_GATE_LENGTH/2.0),
+                                              Box.of(-1,-1,-1,1)),
                                  gate,getLayer("poly"));
             Primitive.Port diff_top     =
                 fet.new Port("diff-top",
-                                 new ScaledBox(new Box(MIN_GATE_WIDTH, 0.0).shift(0, DIFF_PORT_OFFSET_FROM_CENTER)),
+                                 ScaledBox.of(Box.of(MIN_GATE_WIDTH, 0.0).shift(0, DIFF_PORT_OFFSET_FROM_CENTER)),
                                  getLayer("diff"));
             Primitive.Port gate_right   =
                 fet.new Port("gate-right",
-                                 new ScaledBox(new Box( GATE_PORT_OFFSET_FROM_CENTER, -MIN_GATE_LENGTH/2.0,
-                                                        GATE_PORT_OFFSET_FROM_CENTER,  MIN_GATE_LENGTH/2.0),
-                                               new Box(1,-1,1,1)),
+                                 ScaledBox.of(Box.of( GATE_PORT_OFFSET_FROM_CENTER, -MIN_GATE_LENGTH/2.0,
+                                                      GATE_PORT_OFFSET_FROM_CENTER,  MIN_GATE_LENGTH/2.0),
+                                              Box.of(1,-1,1,1)),
                                  gate,getLayer("poly"));
             Primitive.Port diff_bot     =
                 fet.new Port("diff-bot",
-                                 new ScaledBox(new Box(MIN_GATE_WIDTH, 0.0).shift(0,-DIFF_PORT_OFFSET_FROM_CENTER)),
+                                 ScaledBox.of(Box.of(MIN_GATE_WIDTH, 0.0).shift(0,-DIFF_PORT_OFFSET_FROM_CENTER)),
                                  getLayer("diff"));
             Primitive.Layer left_endcap = fet.new Rectangle(getLayer("poly"), gate_left,
-                                                           new ScaledBox(new Box(POLY_ENDCAP - POLY_TO_DIFF,
-                                                                                 MIN_GATE_LENGTH)
-                                                                         .shift(-POLY_ENDCAP/2.0 -MIN_GATE_WIDTH/2.0 - POLY_TO_DIFF/2.0, 0),
-                                                                         new Box(-1,-1,-1,1))
+                                                           ScaledBox.of(Box.of(POLY_ENDCAP - POLY_TO_DIFF,
+                                                                               MIN_GATE_LENGTH)
+                                                                        .shift(-POLY_ENDCAP/2.0 -MIN_GATE_WIDTH/2.0 - POLY_TO_DIFF/2.0, 0),
+                                                                        Box.of(-1,-1,-1,1))
                                                            );
             Primitive.Layer right_endcap = fet.new Rectangle(getLayer("poly"), gate_right,
-                                                            new ScaledBox(new Box(POLY_ENDCAP - POLY_TO_DIFF,
-                                                                                  MIN_GATE_LENGTH)
-                                                                          .shift(POLY_ENDCAP/2.0 + MIN_GATE_WIDTH/2.0 + POLY_TO_DIFF/2.0, 0),
-                                                                          new Box(1,-1,1,1))
+                                                            ScaledBox.of(Box.of(POLY_ENDCAP - POLY_TO_DIFF,
+                                                                                MIN_GATE_LENGTH)
+                                                                         .shift(POLY_ENDCAP/2.0 + MIN_GATE_WIDTH/2.0 + POLY_TO_DIFF/2.0, 0),
+                                                                         Box.of(1,-1,1,1))
                                                             );
             Primitive.Layer gate_layer   = fet.new Rectangle(getLayer("gate"),
-                                                            new ScaledBox(MIN_GATE_WIDTH + 2.0 * POLY_TO_DIFF,
-                                                                          MIN_GATE_LENGTH));
+                                                            ScaledBox.of(MIN_GATE_WIDTH + 2.0 * POLY_TO_DIFF,
+                                                                         MIN_GATE_LENGTH));
 
             Primitive.Layer diff_top_layer = fet.new Rectangle(getLayer("diff"),
                                                               diff_top,
-                                                              new ScaledBox(
-                                                                            new Box(MIN_GATE_WIDTH,
-                                                                                    SOURCE_DRAIN_LENGTH+MIN_GATE_LENGTH/2.0)
-                                                                            .shift(0, SOURCE_DRAIN_LENGTH/2.0+MIN_GATE_LENGTH/4.0),
-                                                                            new Box(-1,0,1,1)));
+                                                              ScaledBox.of(
+                                                                           Box.of(MIN_GATE_WIDTH,
+                                                                                  SOURCE_DRAIN_LENGTH+MIN_GATE_LENGTH/2.0)
+                                                                           .shift(0, SOURCE_DRAIN_LENGTH/2.0+MIN_GATE_LENGTH/4.0),
+                                                                           Box.of(-1,0,1,1)));
 
             Primitive.Layer diff_bot_layer = fet.new Rectangle(getLayer("diff"),
                                                               diff_bot,
-                                                              new ScaledBox(
-                                                                            new Box(MIN_GATE_WIDTH,
-                                                                                    SOURCE_DRAIN_LENGTH+MIN_GATE_LENGTH/2.0)
-                                                                            .shift(0,-SOURCE_DRAIN_LENGTH/2.0-MIN_GATE_LENGTH/4.0),
-                                                                            new Box(-1,-1,1,0)));
+                                                              ScaledBox.of(
+                                                                           Box.of(MIN_GATE_WIDTH,
+                                                                                  SOURCE_DRAIN_LENGTH+MIN_GATE_LENGTH/2.0)
+                                                                           .shift(0,-SOURCE_DRAIN_LENGTH/2.0-MIN_GATE_LENGTH/4.0),
+                                                                           Box.of(-1,-1,1,0)));
 
             // difftap.c12: "0.18 min. enclosure of adj. sides of ""pdiff"" in core by nwell"
             // difftap.c8:  "0.15 min. enclosure of ""pdiff"" in core by nwell"
             Primitive.Layer well =
                 type.startsWith("N") ? null :
                 fet.new Rectangle(getLayer("nwell"),
-                                  new ScaledBox(new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH + 2.0*SOURCE_DRAIN_LENGTH)
-                                                .grow(0.18, 0.18)));
+                                  ScaledBox.of(Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH + 2.0*SOURCE_DRAIN_LENGTH)
+                                               .grow(0.18, 0.18)));
 
             fet.new Rectangle(getLayer(type.startsWith("N") ? "Electric-NAct" : "Electric-PAct"),
-                              new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH + 2.0*SOURCE_DRAIN_LENGTH));
+                              Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH + 2.0*SOURCE_DRAIN_LENGTH));
                                 
             fet.new Rectangle(getLayer(type.startsWith("N") ? "nsdm" : "psdm"),
-                              new ScaledBox(new Box(MIN_GATE_WIDTH,
-                                                    MIN_GATE_LENGTH +
-                                                    2.0*(DCONT_TO_GATE +
-                                                         getLayer("licon1").layerRules.minWidth +
-                                                         DIFF_ENCLOSURE_OF_DCONT))
-                                            .grow(SELECT_SURROUND_ACT)));
-
-            ScaledBox vtBox = new ScaledBox(new Box(MIN_GATE_WIDTH, MIN_GATE_LENGTH).grow(VT_SURROUND_GATE));
+                              ScaledBox.of(Box.of(MIN_GATE_WIDTH,
+                                                  MIN_GATE_LENGTH +
+                                                  2.0*(DCONT_TO_GATE +
+                                                       getLayer("licon1").layerRules.minWidth +
+                                                       DIFF_ENCLOSURE_OF_DCONT))
+                                           .grow(SELECT_SURROUND_ACT)));
+
+            ScaledBox vtBox = ScaledBox.of(Box.of(MIN_GATE_WIDTH, MIN_GATE_LENGTH).grow(VT_SURROUND_GATE));
             if (type.equals("N-LVT")) fet.new Rectangle(getLayer("lvtn"), vtBox);
         }
 
@@ -359,9 +450,9 @@ public class SkyWater130 extends Tech {
             TechLayer layerAbove = i==numLayersPolyOrMetal() ? null : getLayer(i==-1 ? "li1"   : i==0 ? "li1" : ("met"+i));
             PrimitiveGroup nodeGroup = new PrimitiveGroup(SkyWater130.this);
             for(int style=0; style<2; style++) {
-                Box nodebase = new Box(via.layerRules.minWidth, via.layerRules.minWidth);
-                Box below    = new Box(via.layerRules.minWidth, via.layerRules.minWidth);
-                Box above    = new Box(via.layerRules.minWidth, via.layerRules.minWidth);
+                Box nodebase = Box.of(via.layerRules.minWidth, via.layerRules.minWidth);
+                Box below    = Box.of(via.layerRules.minWidth, via.layerRules.minWidth);
+                Box above    = Box.of(via.layerRules.minWidth, via.layerRules.minWidth);
                 String stylename = style==0?"-X":style==1?"-P":"-FAIL";
 
                 // style=0 means X-shaped (min-width metal on both layers, perpendicular)
@@ -395,7 +486,7 @@ public class SkyWater130 extends Tech {
                 if (i==0)
                     node.new Rectangle(getLayer("npc"),
                                        null, // no port
-                                       new ScaledBox(new Box(via.layerRules.minWidth, via.layerRules.minWidth).grow(0.045, 0.045)));
+                                       ScaledBox.of(Box.of(via.layerRules.minWidth, via.layerRules.minWidth).grow(0.045, 0.045)));
 
                 // ideal sizes for the above+below ports, if they could be different sizes
                 Box portBelow = below.grow(-layerBelow.layerRules.minWidth / 2.0, -layerBelow.layerRules.minWidth / 2.0);
@@ -403,15 +494,15 @@ public class SkyWater130 extends Tech {
                     above.grow(-layerAbove.layerRules.minWidth / 2.0, -layerAbove.layerRules.minWidth / 2.0);
 
                 // for now take the intersection of the two
-                Box portShape = new Box(Math.min(0, Math.max(portBelow.klx, portAbove.klx)),
-                                        Math.min(0, Math.max(portBelow.kly, portAbove.kly)),
-                                        Math.max(0, Math.min(portBelow.khx, portAbove.khx)),
-                                        Math.max(0, Math.min(portBelow.khy, portAbove.khy)));
+                Box portShape = Box.of(Math.min(0, Math.max(portBelow.klx, portAbove.klx)),
+                                       Math.min(0, Math.max(portBelow.kly, portAbove.kly)),
+                                       Math.max(0, Math.min(portBelow.khx, portAbove.khx)),
+                                       Math.max(0, Math.min(portBelow.khy, portAbove.khy)));
 
                 Primitive.Net    net  = node.new Net("port");
-                Primitive.Port   port = node.new Port("port", new ScaledBox(portShape), net, layerAbove, layerBelow);
-                Primitive.Layer  nodeLayerAbove = layerAbove==null?null:node.new Rectangle(layerAbove, port, new ScaledBox(above));
-                Primitive.Layer  nodeLayerBelow = layerBelow==null?null:node.new Rectangle(layerBelow, port, new ScaledBox(below));
+                Primitive.Port   port = node.new Port("port", ScaledBox.of(portShape), net, layerAbove, layerBelow);
+                Primitive.Layer  nodeLayerAbove = layerAbove==null?null:node.new Rectangle(layerAbove, port, ScaledBox.of(above));
+                Primitive.Layer  nodeLayerBelow = layerBelow==null?null:node.new Rectangle(layerBelow, port, ScaledBox.of(below));
 
                 for(int j=0; j<=1; j++) {
                     TechLayer cutLayer = via;
@@ -420,7 +511,7 @@ public class SkyWater130 extends Tech {
                     if (cutLayer == null) continue;
                     node.new MultiCut(cutLayer, via.layerRules.minWidth, via.layerRules.minWidth,
                                       via.layerRules.minSpace, via.layerRules.minSpace, // FIXME
-                                      new Box(via.layerRules.minWidth, via.layerRules.minWidth));
+                                      Box.of(via.layerRules.minWidth, via.layerRules.minWidth));
                 }
             }
         }
@@ -428,20 +519,18 @@ public class SkyWater130 extends Tech {
         // Welltap Primitives //////////////////////////////////////////////////////////////////////////////
         
         for(boolean ptap : new boolean[] { true, false }) {
-            Box nodeBase = new Box(0.15, 0.15);  // FIXME: what is the min-area requirement for taps?
+            Box nodeBase = Box.of(0.15, 0.15);  // FIXME: what is the min-area requirement for taps?
             Primitive tapNode = new Primitive(SkyWater130.this, ptap?"ptap":"ntap", new PrimitiveGroup(SkyWater130.this), "CONTACT", nodeBase);
-            Primitive.Port port = tapNode.new Port("port", new ScaledBox(nodeBase), getLayer("diff"));
-            tapNode.new Rectangle(getLayer("diff"), port, new ScaledBox(nodeBase));
+            Primitive.Port port = tapNode.new Port("port", ScaledBox.of(nodeBase), getLayer("diff"));
+            tapNode.new Rectangle(getLayer("diff"), port, ScaledBox.of(nodeBase));
 
             // difftap.c10: "0.15 min. enclosure of ""ntap"" in core by nwell"
-            if (ptap) tapNode.new Rectangle(getLayer("nwell"), new ScaledBox(nodeBase.grow(0.15)));
+            if (ptap) tapNode.new Rectangle(getLayer("nwell"), ScaledBox.of(nodeBase.grow(0.15)));
             
             // nsd.c5a:      0.13 min. enclosure of n+ tap in core by nsdm
             // psd.c5b:      0.12 min. enclosure of p+ tap in core by psdm
-            tapNode.new Rectangle(getLayer(ptap?"psdm":"nsdm"), new ScaledBox(ptap ? nodeBase.grow(0.13) : nodeBase.grow(0.12)));
+            tapNode.new Rectangle(getLayer(ptap?"psdm":"nsdm"), ScaledBox.of(ptap ? nodeBase.grow(0.13) : nodeBase.grow(0.12)));
         }
-
-        super.dump(pw);
     }
 
     @Override protected void header(IndentingPrintWriter pw) throws IOException {
@@ -561,6 +650,9 @@ public class SkyWater130 extends Tech {
     }
 
     public static void main(String[] s) throws Exception {
-        new SkyWater130().dump(new IndentingPrintWriter(new IndentingWriter(new OutputStreamWriter(System.out))));
+        SkyWater130 tech = new SkyWater130();
+        for(TechValidator.Problem problem : TechValidator.validate(tech))
+            System.err.println("warning: "+tech+": "+problem);
+        tech.dump(new IndentingPrintWriter(new IndentingWriter(new OutputStreamWriter(System.out))));
     }
 }